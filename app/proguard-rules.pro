@@ -9,6 +9,25 @@
 
 # Add any project specific keep options here:
 
+# Keep names readable in stack traces (the app is small, shrinking is what matters)
+-dontobfuscate
+
+# jNDN loads parts of itself by name
+-keep class net.named_data.jndn.** { *; }
+-dontwarn net.named_data.jndn.**
+
+# Strip verbose and debug logs from release builds, together with the strings built for them.
+# Sampled traces (Logger.shouldTrace/trace), info, warnings and errors are kept.
+-assumenosideeffects class android.util.Log {
+    public static int v(...);
+    public static int d(...);
+    public static boolean isLoggable(java.lang.String, int);
+}
+-assumenosideeffects class edu.ucla.cs.ndnmouse.utilities.Logger {
+    public static void v(...);
+    public static void d(...);
+}
+
 # If your project uses WebView with JS, uncomment the following
 # and specify the fully qualified class name to the JavaScript interface
 # class:
@@ -7,7 +7,6 @@ import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.support.v7.preference.PreferenceManager;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -16,6 +15,7 @@ import android.widget.RadioButton;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import edu.ucla.cs.ndnmouse.utilities.Logger;
 import edu.ucla.cs.ndnmouse.utilities.ServerUDP;
 
 public class MainActivity extends AppCompatActivity {
@@ -107,14 +107,14 @@ public class MainActivity extends AppCompatActivity {
     private int getPort() {
         try {
             int port = Integer.parseInt(mPortTextView.getText().toString());
-            Log.d(TAG, "Port is " + port);
+            Logger.d(TAG, "Port is " + port);
             if (1 <= port && port <= 65535)
                 return port;
         } catch (NumberFormatException e) {
-            Log.e(TAG, "Invalid port: not a number.");
+            Logger.e(TAG, "Invalid port: not a number.");
             return -1;
         }
-        Log.e(TAG, "Invalid port: out of range.");
+        Logger.e(TAG, "Invalid port: out of range.");
         return -1;
     }
 
@@ -162,7 +162,7 @@ public class MainActivity extends AppCompatActivity {
     private void periodicallyUpdateIPAddress() {
         if (mMonitorIPAddress) {
             mAddressTextView.setText(ServerUDP.getIPAddress(true));
-            Log.d(TAG, "Updating IP address to " + ServerUDP.getIPAddress(true));
+            Logger.d(TAG, "Updating IP address to " + ServerUDP.getIPAddress(true));
             final Handler handler = new Handler();
             handler.postDelayed(new Runnable() {
                 @Override
@@ -6,9 +6,10 @@ import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.preference.PreferenceManager;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -22,23 +23,29 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewFlipper;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-
-import javax.crypto.spec.SecretKeySpec;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.ucla.cs.ndnmouse.helpers.MetricsRegistry;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
+import edu.ucla.cs.ndnmouse.helpers.MotionRecorder;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.TouchSampler;
+import edu.ucla.cs.ndnmouse.utilities.Logger;
 import edu.ucla.cs.ndnmouse.utilities.Server;
+import edu.ucla.cs.ndnmouse.utilities.ServerHost;
 import edu.ucla.cs.ndnmouse.utilities.ServerNDN;
 import edu.ucla.cs.ndnmouse.utilities.ServerNDNSecure;
 import edu.ucla.cs.ndnmouse.utilities.ServerUDP;
+import edu.ucla.cs.ndnmouse.utilities.ServerUDPNio;
 import edu.ucla.cs.ndnmouse.utilities.ServerUDPSecure;
 
-public class MouseActivity extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class MouseActivity extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener, ServerHost {
 
     private static final String TAG = MouseActivity.class.getSimpleName();
 
@@ -46,6 +53,7 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
     private static boolean mUseNDN;                             // Setting to use NDN as the server protocol (otherwise UDP)
     private static int mTouchpadWidth;                          // Pixel width of the touchpad
     private static int mTouchpadHeight;                         // Pixel height of the touchpad
+    private float mRefreshRate;                                 // Display refresh rate in frames per second (read once, servers ask from their own threads)
     private TextView mTouchpadTextView;                         // Touchpad TextView reference
     private TextView mKeyboardTouchpadTextView;                 // Keyboard status TextView
     private ViewFlipper mViewFlipper;                           // Holds mouse and keyboard views
@@ -53,12 +61,34 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
     private boolean mKeyboardShowing = false;                   // Tells if the keyboard view is showing or not
 
     // Relative and absolute movement variables
-    private Point mAbsPos;                                      // Current absolute position on touchpad
-    private Point mLastRelPos;                                  // Used to calculate relative position differences
-    private boolean mBufferAbsPos = true;                       // Used to decide when to buffer an absolute position (to get an accurate relative movement)
+    private Point mAbsPos;                                      // Current absolute position on touchpad (UI thread only)
+    private final MotionAccumulator mMotion = new MotionAccumulator();  // Relative movement shared lock-free with all server sessions
+    private TouchSampler mTouchSampler;                         // Turns every touch sample (with sub-pixel carry) into relative movement
     private boolean mTouchDown = false;                         // User is currently touching down on touchpad (has not lifted yet)
     private float mMoveSensitivity;                                 // Sensitivity multiplier for mouse movement control
     private int mPrecision = 5;                                 // Min change in pixels to count as a movement update (otherwise same position)
+    private final List<MotionDispatcher> mMotionDispatchers = new CopyOnWriteArrayList<>();  // Per-session dispatchers to wake on new movement
+
+    // Update scheduling variables (UDP only)
+    private boolean mPushUpdates;                               // Push updates as soon as there is movement (otherwise poll on a fixed interval)
+    private int mCoalesceWindowMillis;                          // Milliseconds to gather more movement before pushing an update
+    private int mMinGapMillis;                                  // Minimum milliseconds between two pushed updates
+    private boolean mUdpEventLoop;                              // Serve all UDP clients from one event loop thread (non-secure only)
+    private MotionRecorder mMotionRecorder;                     // Writes touch samples to a log for replay (null if not recording)
+
+    // Metrics variables
+    private final MetricsRegistry mMetrics = new MetricsRegistry();     // Servers record their packet counts and timings here
+    private TextView mMetricsOverlayTextView;                   // Debug overlay showing the metrics (gone unless enabled in settings)
+    private final Handler mMetricsOverlayHandler = new Handler();   // Refreshes the overlay on the UI thread
+    private static final long mMetricsOverlayRefreshMillis = 500;   // How often the overlay is refreshed while showing
+    private static final int mTraceSamplingEvery = 100;            // Log one in this many packets while tracing is on
+    private final Runnable mMetricsOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsOverlayTextView.setText(mMetrics.snapshot().format());
+            mMetricsOverlayHandler.postDelayed(this, mMetricsOverlayRefreshMillis);
+        }
+    };
 
     // Tap to left click variables
     private boolean mTapToLeftClick = false;                    // Setting to detect tap -> trigger left click
@@ -68,7 +98,9 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
     private static final int mTapClickPixelThreshold = 5;       // Max num of pixel difference between touch down and touch up to count as a tap-click
 
     // Two finger scroll variables
-    private boolean mScrollActivated = false;                   // Scrolling movement activated if true (two fingers down on touchpad)
+    private volatile boolean mScrollActivated = false;          // Scrolling movement activated if true (two fingers down on touchpad)
+    private byte mMoveTypeRelative;                             // Protocol byte for relative movement (cached from strings.xml)
+    private byte mMoveTypeScrolling;                            // Protocol byte for scrolling movement (cached from strings.xml)
     private static final int mScrollVerticalDiffThreshold = 200;// Pixel threshold for vertical difference between two fingers to activate scrolling
     private boolean mScrollInverted;                            // Scrolling movement is inverted if true
     private Float mScrollSensitivity;                           // Scrolling movement sensitivity multiplier
@@ -85,6 +117,10 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_mouse);
         setupSharedPreferences();
+        mTouchSampler = new TouchSampler(mMotion, mPrecision);
+        mMoveTypeRelative = (byte) getString(R.string.protocol_move_relative).charAt(0);
+        mMoveTypeScrolling = (byte) getString(R.string.protocol_move_scrolling).charAt(0);
+        mRefreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
         PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(this);
 
         // Get extras from Intent
@@ -96,6 +132,7 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
         mTouchpadTextView = (TextView) findViewById(R.id.tv_touchpad);
         mKeyboardTouchpadTextView = (TextView) findViewById(R.id.tv_keyboard_touchpad);
         mViewFlipper = (ViewFlipper) findViewById(R.id.viewFlipper);
+        mMetricsOverlayTextView = (TextView) findViewById(R.id.tv_metrics_overlay);
 
         // Find out upper-left coordinate, and width/height of touchpad box
         final TextView mTouchpadTextView = (TextView) findViewById(R.id.tv_touchpad);
@@ -105,8 +142,9 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
             public void run() {
                 mTouchpadWidth = mTouchpadTextView.getWidth();
                 mTouchpadHeight = mTouchpadTextView.getHeight();
-                Log.d(TAG, String.format("Touchpad width is %d", mTouchpadWidth));
-                Log.d(TAG, String.format("Touchpad height is %d", mTouchpadHeight));
+                Logger.d(TAG, String.format("Touchpad width is %d", mTouchpadWidth));
+                Logger.d(TAG, String.format("Touchpad height is %d", mTouchpadHeight));
+                mTouchSampler.setBounds(mTouchpadWidth, mTouchpadHeight);
 
                 // Create and start mServer
                 if (mUseNDN) {
@@ -114,13 +152,15 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
                         mServer = new ServerNDN(MouseActivity.this, mMoveSensitivity, mScrollInverted, mScrollSensitivity);
                     else
                         mServer = new ServerNDNSecure(MouseActivity.this, mMoveSensitivity, mScrollInverted, mScrollSensitivity, mPassword);
-                    Log.d(TAG, "Creating NDN server...");
+                    Logger.d(TAG, "Creating NDN server...");
                 } else {
-                    if (mPassword.isEmpty())
-                        mServer = new ServerUDP(MouseActivity.this, mPort, mMoveSensitivity, mScrollInverted, mScrollSensitivity);
+                    if (mPassword.isEmpty() && mUdpEventLoop)
+                        mServer = new ServerUDPNio(MouseActivity.this, mPort, mMoveSensitivity, mScrollInverted, mScrollSensitivity, mPushUpdates, mCoalesceWindowMillis, mMinGapMillis);
+                    else if (mPassword.isEmpty())
+                        mServer = new ServerUDP(MouseActivity.this, mPort, mMoveSensitivity, mScrollInverted, mScrollSensitivity, mPushUpdates, mCoalesceWindowMillis, mMinGapMillis);
                     else
-                        mServer = new ServerUDPSecure(MouseActivity.this, mPort, mMoveSensitivity, mScrollInverted, mScrollSensitivity, mPassword);
-                    Log.d(TAG, "Creating UDP server...");
+                        mServer = new ServerUDPSecure(MouseActivity.this, mPort, mMoveSensitivity, mScrollInverted, mScrollSensitivity, mPushUpdates, mCoalesceWindowMillis, mMinGapMillis, mPassword);
+                    Logger.d(TAG, "Creating UDP server...");
                 }
                 mServer.start();
             }
@@ -129,8 +169,13 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
         setupMouseCallbacks();
         setupKeyboardCallbacks();
         mAbsPos = new Point();
-        mLastRelPos = new Point();
         mTouchDownPos = new Point();
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (sharedPreferences.getBoolean(getString(R.string.pref_record_motion_key), getResources().getBoolean(R.bool.pref_record_motion_default)))
+            startMotionRecording();
+        showMetricsOverlay(sharedPreferences.getBoolean(getString(R.string.pref_metrics_overlay_key), getResources().getBoolean(R.bool.pref_metrics_overlay_default)));
+        setTraceSampling(sharedPreferences.getBoolean(getString(R.string.pref_trace_sampling_key), getResources().getBoolean(R.bool.pref_trace_sampling_default)));
     }
 
     @Override
@@ -138,6 +183,8 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
         super.onDestroy();
         PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
         mServer.stop();
+        stopMotionRecording();
+        showMetricsOverlay(false);
     }
 
     @Override
@@ -175,12 +222,108 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
             mServer.UpdateSettings(R.string.pref_sensitivity_key, mMoveSensitivity);
         } else if (key.equals(getString(R.string.pref_precision_key))) {
             mPrecision = Integer.valueOf(sharedPreferences.getString(key, getString(R.string.pref_precision_default)));
+            mTouchSampler.setPrecision(mPrecision);
         } else if (key.equals(getString(R.string.pref_scroll_direction_key))) {
             mScrollInverted = sharedPreferences.getString(key, getString(R.string.pref_scroll_direction_default)).equals(getString(R.string.pref_scroll_inverted_value));
             mServer.UpdateSettings(R.string.pref_scroll_direction_key, mScrollInverted);
         } else if (key.equals(getString(R.string.pref_scroll_sensitivity_key))) {
             mScrollSensitivity = Float.valueOf(sharedPreferences.getString(key, getString(R.string.pref_scroll_sensitivity_default)));
             mServer.UpdateSettings(R.string.pref_scroll_sensitivity_key, mScrollSensitivity);
+        } else if (key.equals(getString(R.string.pref_update_mode_key))) {
+            mPushUpdates = sharedPreferences.getString(key, getString(R.string.pref_update_mode_default)).equals(getString(R.string.pref_update_mode_push_value));
+            mServer.UpdateSettings(R.string.pref_update_mode_key, mPushUpdates);
+        } else if (key.equals(getString(R.string.pref_coalesce_window_key))) {
+            mCoalesceWindowMillis = Integer.valueOf(sharedPreferences.getString(key, getString(R.string.pref_coalesce_window_default)));
+            mServer.UpdateSettings(R.string.pref_coalesce_window_key, mCoalesceWindowMillis);
+        } else if (key.equals(getString(R.string.pref_min_gap_key))) {
+            mMinGapMillis = Integer.valueOf(sharedPreferences.getString(key, getString(R.string.pref_min_gap_default)));
+            mServer.UpdateSettings(R.string.pref_min_gap_key, mMinGapMillis);
+        } else if (key.equals(getString(R.string.pref_udp_event_loop_key))) {
+            // Only used when the server is created, so it applies on the next connection
+            mUdpEventLoop = sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.pref_udp_event_loop_default));
+        } else if (key.equals(getString(R.string.pref_record_motion_key))) {
+            if (sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.pref_record_motion_default)))
+                startMotionRecording();
+            else
+                stopMotionRecording();
+        } else if (key.equals(getString(R.string.pref_metrics_overlay_key))) {
+            showMetricsOverlay(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.pref_metrics_overlay_default)));
+        } else if (key.equals(getString(R.string.pref_trace_sampling_key))) {
+            setTraceSampling(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.pref_trace_sampling_default)));
+        }
+    }
+
+    /**
+     * Turn sampled packet tracing on or off for the servers
+     * @param on true to log one in every mTraceSamplingEvery packets
+     */
+    private void setTraceSampling(boolean on) {
+        Logger.setTraceSampling(on ? mTraceSamplingEvery : 0);
+    }
+
+    /**
+     * Show or hide the debug overlay with the server metrics (refreshed while showing)
+     * @param show true to show the overlay
+     */
+    private void showMetricsOverlay(boolean show) {
+        mMetricsOverlayHandler.removeCallbacks(mMetricsOverlayUpdater);
+        if (show) {
+            mMetricsOverlayTextView.setVisibility(View.VISIBLE);
+            mMetricsOverlayUpdater.run();
+        } else {
+            mMetricsOverlayTextView.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Start writing touch samples to a new log in the app's files directory (motion-<time>.bin)
+     */
+    private void startMotionRecording() {
+        if (mMotionRecorder != null)
+            return;
+        File log = new File(getFilesDir(), "motion-" + System.currentTimeMillis() + ".bin");
+        try {
+            mMotionRecorder = new MotionRecorder(new FileOutputStream(log));
+            Logger.d(TAG, "Recording touch samples to " + log.getAbsolutePath());
+        } catch (IOException e) {
+            Logger.e(TAG, "Unable to start recording touch samples to " + log.getAbsolutePath());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finish the current touch sample log, if recording
+     */
+    private void stopMotionRecording() {
+        if (mMotionRecorder == null)
+            return;
+        try {
+            mMotionRecorder.close();
+        } catch (IOException e) {
+            Logger.e(TAG, "Unable to finish touch sample log");
+            e.printStackTrace();
+        }
+        mMotionRecorder = null;
+    }
+
+    /**
+     * Append a touch sample to the log, stops recording if the log can't be written
+     * @param action MotionRecorder.mActionDown, mActionMove or mActionUp
+     * @param eventMillis time of the sample (uptime in milliseconds, as in MotionEvent)
+     * @param x horizontal coordinate on the touchpad TextView
+     * @param y vertical coordinate on the touchpad TextView
+     * @param pointerCount number of fingers down
+     */
+    private void recordMotion(byte action, long eventMillis, float x, float y, int pointerCount) {
+        // Samples off the touchpad never count as movement, so leave them out of the log
+        if (action == MotionRecorder.mActionMove && (x < 0 || y < 0 || x > mTouchpadWidth || y > mTouchpadHeight))
+            return;
+        try {
+            mMotionRecorder.record(eventMillis * 1000000L, action, x, y, pointerCount, getMoveType());
+        } catch (IOException e) {
+            Logger.e(TAG, "Unable to write touch sample, stopped recording");
+            e.printStackTrace();
+            stopMotionRecording();
         }
     }
 
@@ -194,6 +337,10 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
         mPrecision = Integer.valueOf(sharedPreferences.getString(getString(R.string.pref_precision_key), getString(R.string.pref_precision_default)));
         mScrollInverted = sharedPreferences.getString(getString(R.string.pref_scroll_direction_key), getString(R.string.pref_scroll_direction_default)).equals(getString(R.string.pref_scroll_inverted_value));
         mScrollSensitivity = Float.valueOf(sharedPreferences.getString(getString(R.string.pref_scroll_sensitivity_key), getString(R.string.pref_scroll_sensitivity_default)));
+        mPushUpdates = sharedPreferences.getString(getString(R.string.pref_update_mode_key), getString(R.string.pref_update_mode_default)).equals(getString(R.string.pref_update_mode_push_value));
+        mCoalesceWindowMillis = Integer.valueOf(sharedPreferences.getString(getString(R.string.pref_coalesce_window_key), getString(R.string.pref_coalesce_window_default)));
+        mMinGapMillis = Integer.valueOf(sharedPreferences.getString(getString(R.string.pref_min_gap_key), getString(R.string.pref_min_gap_default)));
+        mUdpEventLoop = sharedPreferences.getBoolean(getString(R.string.pref_udp_event_loop_key), getResources().getBoolean(R.bool.pref_udp_event_loop_default));
     }
 
     /**
@@ -449,11 +596,14 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
                     mTouchDownTime = System.currentTimeMillis();
                     mTouchDownPos.set(x1, y1);
                     mTouchDown = true;
+                    // Start relative movement from the new touch point (prevents a jump if the user touches down in a different spot)
+                    mTouchSampler.touchDown(event.getX(), event.getY());
 
-                    Log.d(TAG, String.format("ACTION_DOWN: %d %d", x1, y1));
+                    Logger.d(TAG, String.format("ACTION_DOWN: %d %d", x1, y1));
                     break;
                 case MotionEvent.ACTION_MOVE:
-                    // Log.d(TAG, String.format("ACTION_MOVE: %d %d", x, y));
+                    if (Logger.shouldTrace())
+                        Logger.trace(TAG, "ACTION_MOVE: " + x1 + " " + y1);
                     break;
                 case MotionEvent.ACTION_UP:
                     // Check if user tapped (for tap-to-click)
@@ -468,10 +618,8 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
                         }
                     }
                     mTouchDown = false;
-                    // Need to buffer an absolute position next time relative difference needs to be calculated
-                    mBufferAbsPos = true;
 
-                    Log.d(TAG, String.format("ACTION_UP: %d %d", x1, y1));
+                    Logger.d(TAG, String.format("ACTION_UP: %d %d", x1, y1));
                     break;
             }
 
@@ -480,13 +628,32 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
                 // Get coordinates of 2nd finger down (index 1)
                 int y2 = (int) event.getY(1);
                 // Check if two fingers are horizontally aligned (within threshold)
-                // Log.d(TAG, "Scrolling activated.");
+                // Logger.d(TAG, "Scrolling activated.");
                 mScrollActivated = (Math.abs(y2 - y1) <= mScrollVerticalDiffThreshold);
             } else {
                 mScrollActivated = false;
             }
 
-            updateAbsolutePosition(x1, y1);
+            // Android batches the samples since the last event into the history, so feed those first
+            boolean moved = false;
+            int pointerCount = event.getPointerCount();
+            for (int i = 0; i < event.getHistorySize(); i++) {
+                if (mMotionRecorder != null)
+                    recordMotion(MotionRecorder.mActionMove, event.getHistoricalEventTime(i), event.getHistoricalX(i), event.getHistoricalY(i), pointerCount);
+                moved |= mTouchSampler.sample(event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+            if (mMotionRecorder != null)
+                recordMotion(toRecorderAction(event.getActionMasked()), event.getEventTime(), event.getX(), event.getY(), pointerCount);
+            moved |= mTouchSampler.sample(event.getX(), event.getY());
+            if (!mTouchDown)
+                mTouchSampler.touchUp();
+            mAbsPos.set((int) mTouchSampler.getX(), (int) mTouchSampler.getY());
+
+            // Wake up any sessions waiting to push movement
+            if (moved) {
+                for (MotionDispatcher dispatcher : mMotionDispatchers)
+                    dispatcher.signal();
+            }
             if (tapClickOccurred)
                 displayClick((TextView) v, getString(R.string.action_left_click_full));
             else
@@ -497,16 +664,17 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
     }
 
     /**
-     * Update mAbsPos variable if the new position is different enough from the previous position
-     * defined by the mMovementThreshold
-     * @param x horizontal coordinate on the touchpad TextView
-     * @param y vertical coordinate on the touchpad TextView
+     * @param actionMasked action of a touchpad MotionEvent
+     * @return matching MotionRecorder action (anything but down and up counts as a move)
      */
-    private void updateAbsolutePosition(int x, int y) {
-        if (Math.abs(x - mAbsPos.x) >= mPrecision || Math.abs(y - mAbsPos.y) >= mPrecision) {
-            if ((0 <= x && 0 <= y) &&(x <= mTouchpadWidth && y <= mTouchpadHeight)) {
-                mAbsPos.set(x, y);
-            }
+    private static byte toRecorderAction(int actionMasked) {
+        switch (actionMasked) {
+            case MotionEvent.ACTION_DOWN:
+                return MotionRecorder.mActionDown;
+            case MotionEvent.ACTION_UP:
+                return MotionRecorder.mActionUp;
+            default:
+                return MotionRecorder.mActionMove;
         }
     }
 
@@ -544,69 +712,84 @@ public class MouseActivity extends AppCompatActivity implements SharedPreference
     }
 
     /**
-     * Function to get the relative position of the last user's touch.  Should behave similar to a
-     * laptop trackpad.
-     * @return position difference from last touch down
+     * Create a cursor into the relative movement of the user's touch. Should behave similar to a
+     * laptop trackpad. Each consumer (session) needs its own cursor, so that every session gets all
+     * of the movement; Cursor.consume() returns the packed difference since its last call.
+     * @return new cursor for a single consumer thread
      */
-    public Point getRelativePosition() {
-        Point relativeDiff = new Point(0, 0);
-        // Only calculate relative difference if user has been touching and dragging across touchpad
-        if (mTouchDown) {
-            // If true, then don't calculate the relative difference (let the absolute position buffer for one round)
-            // This prevents a jump in position if the user lifts and touches down in a different spot
-            if (mBufferAbsPos)
-                mBufferAbsPos = false;
-            else
-                relativeDiff.set(mAbsPos.x - mLastRelPos.x, mAbsPos.y - mLastRelPos.y);
-        }
-        mLastRelPos.set(mAbsPos.x, mAbsPos.y);
-        return relativeDiff;
+    @Override
+    public MotionAccumulator.Cursor newMotionCursor() {
+        return mMotion.newCursor();
+    }
+
+    /**
+     * Register a session's dispatcher so it is signalled whenever the touchpad moves
+     * @param dispatcher to signal on new movement
+     */
+    @Override
+    public void addMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotionDispatchers.add(dispatcher);
+    }
+
+    /**
+     * Stop signalling a session's dispatcher (when the session ends)
+     * @param dispatcher to remove
+     */
+    @Override
+    public void removeMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotionDispatchers.remove(dispatcher);
     }
 
     /**
      * Get the move type: relative or scrolling movement
-     * @return move type in String form
+     * @return move type as its one byte protocol character
      */
-    public String getMoveType() {
+    @Override
+    public byte getMoveType() {
         if (mScrollActivated)
-            return getString(R.string.protocol_move_scrolling);
+            return mMoveTypeScrolling;
         else
-            return getString(R.string.protocol_move_relative);
+            return mMoveTypeRelative;
     }
 
     /**
-     * Creates a SecretKeySpec from the user's password
-     * @param password from the user
-     * @return 128 bit (16 B) secret key
-     * @throws UnsupportedEncodingException for message digest's encoding
-     * @throws NoSuchAlgorithmException for secret key algorithm
+     * @return refresh rate of the display in frames per second
      */
-    public SecretKeySpec makeKeyFromPassword(String password) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        byte[] key = password.getBytes("UTF-8");
-        MessageDigest sha = MessageDigest.getInstance("SHA-256");
-        // Copy only 128 bits (16 B) from digest to use for secret key
-        return new SecretKeySpec(Arrays.copyOf(sha.digest(key), 16), "AES");
+    @Override
+    public float getRefreshRate() {
+        return mRefreshRate;
     }
 
     /**
-     * Creates a SecretKeySpec from the user's password and salt
-     * @param password from the user
-     * @param salt to add to password
-     * @return 128 bit (16 B) secret key
-     * @throws UnsupportedEncodingException for message digest's encoding
-     * @throws NoSuchAlgorithmException for secret key algorithm
+     * @return registry the servers record their metrics in
      */
-    public SecretKeySpec makeKeyFromPassword(String password, byte[] salt) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        byte[] key = password.getBytes("UTF-8");
+    @Override
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
 
-        // Append salt to key
-        byte[] keyAndSalt = new byte[key.length + salt.length];
-        System.arraycopy(key, 0, keyAndSalt, 0, key.length);
-        System.arraycopy(salt, 0, keyAndSalt, key.length, salt.length);
+    /**
+     * @return highest protocol version secure servers may negotiate on this device
+     */
+    @Override
+    public byte getMaxSecureProtocolVersion() {
+        // AES-GCM needs GCMParameterSpec, which is only available from KitKat on (and later versions build on it)
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? NetworkHelpers.mProtocolVersionBatch : NetworkHelpers.mProtocolVersionLegacy;
+    }
 
-        MessageDigest sha = MessageDigest.getInstance("SHA-256");
-        // Copy only 128 bits (16 B) from digest to use for secret key
-        return new SecretKeySpec(Arrays.copyOf(sha.digest(keyAndSalt), 16), "AES");
+    /**
+     * Stop the activity when its server can't continue, and tell the user why
+     * @param message describing the error for the user
+     */
+    @Override
+    public void onServerError(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+                finish();
+            }
+        });
     }
 
     /**
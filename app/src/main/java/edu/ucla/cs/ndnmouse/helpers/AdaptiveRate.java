@@ -0,0 +1,213 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Picks how often one session should send move updates, instead of a fixed 20 ms interval. Fast
+ * motion goes up to one update per display frame, slow motion stays at the base interval, and once
+ * the touchpad has been idle for a while the interval stretches out (the worker may then just wait
+ * for the touchpad to signal). Heartbeats are used as link feedback: beats that never arrive count
+ * as loss, and beats that arrive later than usual show growing delay. Either one backs the rate off
+ * until the link recovers.
+ *
+ * The worker calls onPoll() every time it wakes up, and whoever receives heartbeats calls
+ * onHeartbeat(), possibly from another thread. Times are System.nanoTime() values passed in by the
+ * caller.
+ */
+public class AdaptiveRate {
+
+    // Why the current interval was picked (exposed with the interval as a metric)
+    public static final int mReasonMotion = 0;
+    public static final int mReasonFastMotion = 1;
+    public static final int mReasonIdle = 2;
+    public static final int mReasonCongested = 3;
+
+    public static final int mBaseIntervalMillis = 20;           // Interval during normal motion (the old fixed interval)
+    public static final int mIdleIntervalMillis = 100;          // Longest interval while the touchpad is idle
+    static final long mIdleAfterNanos = 500 * 1000000L;         // No movement for this long counts as idle
+    static final double mFastPixelsPerSecond = 800;             // Touchpad speed that counts as fast motion
+    static final long mVelocityTimeConstantNanos = 100 * 1000000L;  // How quickly the speed estimate forgets old movement
+    static final double mCongestedLoss = 0.05;                  // Heartbeat loss that counts as congested
+    static final double mHeavyLoss = 0.2;                       // Heartbeat loss that backs off even further
+    static final long mCongestedLatenessNanos = 50 * 1000000L;  // Average heartbeat lateness that counts as congested
+
+    private final long mFrameIntervalNanos;     // Shortest interval, one display frame
+    private long mIntervalNanos;                // Currently chosen interval
+    private int mReason = mReasonMotion;        // Why mIntervalNanos was chosen
+
+    private double mVelocity;                   // Smoothed touchpad speed, in pixels per second
+    private long mLastPollNanos;                // Time of the previous onPoll() (0 before the first one)
+    private long mLastMotionNanos;              // Time movement was last seen
+
+    private long mLastHeartbeatNanos;           // Arrival of the previous heartbeat (0 before the first one)
+    private long mHeartbeatGapNanos;            // Smoothed time between heartbeats (0 until the next gap sets it)
+    private boolean mHeartbeatIdle;             // Whether the touchpad was idle at the previous heartbeat
+    private double mLoss;                       // Smoothed fraction of heartbeats lost
+    private long mLatenessNanos;                // Smoothed time heartbeats arrive later than usual
+
+    /**
+     * Constructor
+     * @param refreshRate of the display in frames per second (the fastest useful update rate)
+     */
+    public AdaptiveRate(float refreshRate) {
+        if (refreshRate <= 0)
+            refreshRate = 60;
+        mFrameIntervalNanos = Math.min((long) (1000000000L / refreshRate), mBaseIntervalMillis * 1000000L);
+        mIntervalNanos = mBaseIntervalMillis * 1000000L;
+        mLastMotionNanos = System.nanoTime();
+    }
+
+    /**
+     * Called each time the worker wakes up, with whatever movement it consumed
+     * @param position packed relative movement since the last poll (0 if none)
+     * @param nowNanos current time
+     * @return true if the reason for the interval changed
+     */
+    public synchronized boolean onPoll(long position, long nowNanos) {
+        // Exponentially decaying average of the speed, so it doesn't depend on how often we poll
+        if (0 != mLastPollNanos) {
+            long elapsed = nowNanos - mLastPollNanos;
+            if (elapsed > 0) {
+                double distance = Math.abs(MotionAccumulator.getX(position)) + Math.abs(MotionAccumulator.getY(position));
+                double decay = Math.exp(-(double) elapsed / mVelocityTimeConstantNanos);
+                mVelocity = mVelocity * decay + (distance * (1 - decay)) / (elapsed / 1e9);
+            }
+        }
+        mLastPollNanos = nowNanos;
+        if (0 != position)
+            mLastMotionNanos = nowNanos;
+        return choose(nowNanos);
+    }
+
+    /**
+     * Called whenever a heartbeat arrives from the client. Clients don't heartbeat at a fixed period:
+     * the PC clients send one each second while no updates arrive, but only every few seconds while
+     * they do. So when the touchpad starts moving or goes idle, the gap is taken as a new cadence
+     * rather than as loss, and the next gap becomes the baseline. Long gaps still pull the baseline
+     * up slowly, so a cadence the touchpad doesn't explain is learned after a few beats.
+     * @param nowNanos arrival time
+     * @return true if the reason for the interval changed
+     */
+    public synchronized boolean onHeartbeat(long nowNanos) {
+        boolean idle = nowNanos - mLastMotionNanos >= mIdleAfterNanos;
+        if (0 != mLastHeartbeatNanos) {
+            long gap = nowNanos - mLastHeartbeatNanos;
+            boolean motionStarted = mHeartbeatIdle && mLastMotionNanos > mLastHeartbeatNanos;
+            if (motionStarted || (idle && !mHeartbeatIdle)) {
+                // The client changes its cadence with ours, so start over with the next gap
+                mHeartbeatGapNanos = 0;
+            } else if (0 == mHeartbeatGapNanos) {
+                mHeartbeatGapNanos = gap;
+            } else {
+                if (gap > mHeartbeatGapNanos * 3 / 2) {
+                    // Beats in between never arrived
+                    long missed = Math.max(1, Math.round((double) gap / mHeartbeatGapNanos) - 1);
+                    mLoss = mLoss * 7 / 8 + (missed / (missed + 1.0)) / 8;
+                } else {
+                    mLoss = mLoss * 7 / 8;
+                    mLatenessNanos = mLatenessNanos * 7 / 8 + Math.max(0, gap - mHeartbeatGapNanos) / 8;
+                }
+                mHeartbeatGapNanos = mHeartbeatGapNanos * 7 / 8 + gap / 8;
+            }
+        }
+        mLastHeartbeatNanos = nowNanos;
+        mHeartbeatIdle = idle;
+        return choose(nowNanos);
+    }
+
+    /**
+     * Pick the interval from the latest motion and link feedback
+     * @param nowNanos current time
+     * @return true if the reason changed
+     */
+    private boolean choose(long nowNanos) {
+        int lastReason = mReason;
+        long base = mBaseIntervalMillis * 1000000L;
+        if (mLoss >= mCongestedLoss || mLatenessNanos >= mCongestedLatenessNanos) {
+            mReason = mReasonCongested;
+            mIntervalNanos = (mLoss >= mHeavyLoss) ? base * 4 : base * 2;
+        } else if (nowNanos - mLastMotionNanos >= mIdleAfterNanos) {
+            // Stretch the interval gradually, so a short pause doesn't cost much latency
+            mReason = mReasonIdle;
+            mIntervalNanos = Math.min(Math.max(mIntervalNanos, base) * 2, mIdleIntervalMillis * 1000000L);
+        } else if (mVelocity >= mFastPixelsPerSecond) {
+            mReason = mReasonFastMotion;
+            mIntervalNanos = mFrameIntervalNanos;
+        } else {
+            mReason = mReasonMotion;
+            mIntervalNanos = base;
+        }
+        return lastReason != mReason;
+    }
+
+    /**
+     * @return time to wait before the next update, in nanoseconds
+     */
+    public synchronized long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    /**
+     * @return time to wait before the next update, in milliseconds (rounded up)
+     */
+    public synchronized int getIntervalMillis() {
+        return (int) ((mIntervalNanos + 999999) / 1000000);
+    }
+
+    /**
+     * @return why the current interval was picked (one of the mReason constants)
+     */
+    public synchronized int getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return true if the touchpad has been idle long enough that the worker may wait for a signal
+     */
+    public synchronized boolean isIdle() {
+        return mReasonIdle == mReason;
+    }
+
+    /**
+     * @return smoothed touchpad speed, in pixels per second
+     */
+    public synchronized double getVelocity() {
+        return mVelocity;
+    }
+
+    /**
+     * @return smoothed fraction of heartbeats lost
+     */
+    public synchronized double getLoss() {
+        return mLoss;
+    }
+
+    /**
+     * Push mode sends as soon as there is movement, so only the link feedback applies there: while
+     * congested, the minimum gap between updates is raised to the backed off interval.
+     * @param minGapMillis minimum gap from the settings
+     * @return minimum gap to use
+     */
+    public synchronized int limitMinGap(int minGapMillis) {
+        if (mReasonCongested != mReason)
+            return minGapMillis;
+        return Math.max(minGapMillis, getIntervalMillis());
+    }
+
+    /**
+     * @param reason one of the mReason constants
+     * @return short name for logs and metrics
+     */
+    public static String getReasonName(int reason) {
+        switch (reason) {
+            case mReasonMotion:
+                return "motion";
+            case mReasonFastMotion:
+                return "fast motion";
+            case mReasonIdle:
+                return "idle";
+            case mReasonCongested:
+                return "congested";
+            default:
+                return "unknown";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Builds batches, which let one packet carry several messages (the latest movement plus clicks, key
+ * presses and typed text), so they cost one packet and one encryption instead of one each:
+ *
+ *      | type (1 B) | length (1 B) | message | length (1 B) | message | ...
+ *
+ * The type is protocol_batch (P) for string messages and BinaryProtocol.mOpBatch for binary ones. A
+ * batch holding a single message is sent as that bare message, so it costs nothing extra. The writer
+ * reuses one buffer, so each sending thread needs its own (not thread safe).
+ */
+public class BatchWriter {
+
+    private final byte mType;                   // First byte of every batch
+    private final byte[] mBuffer;               // Batch being built (reused for every batch)
+    private int mMaxLength;                     // Most bytes the current batch may take
+    private int mLength;                        // Bytes of the current batch so far (type byte included)
+    private int mCount;                         // Messages in the current batch
+
+    /**
+     * Constructor
+     * @param type first byte of every batch
+     * @param capacity most bytes a batch can take
+     */
+    public BatchWriter(byte type, int capacity) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("Invalid batch capacity: " + capacity);
+        mType = type;
+        mBuffer = new byte[capacity];
+        reset(capacity);
+    }
+
+    /**
+     * Start a new, empty batch
+     * @param maxLength most bytes the batch may take (e.g. what fits one encrypted packet), capped at
+     * the capacity
+     */
+    public void reset(int maxLength) {
+        mMaxLength = Math.min(maxLength, mBuffer.length);
+        mLength = 1;
+        mCount = 0;
+    }
+
+    /**
+     * @return most message bytes that still fit the current batch
+     */
+    public int getRoom() {
+        return Math.max(0, Math.min(NetworkHelpers.mMaxBatchedMessageBytes, mMaxLength - mLength - 1));
+    }
+
+    /**
+     * Add a message to the current batch if it fits
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0)
+     * @return true if added, false if it doesn't fit (the batch is left as it was)
+     */
+    public boolean append(byte[] msg, int msgLength) {
+        if (msgLength > getRoom())
+            return false;
+        mLength += NetworkHelpers.appendBatchedMessage(msg, msgLength, mBuffer, mLength);
+        mCount++;
+        return true;
+    }
+
+    /**
+     * @return number of messages in the current batch
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return true if the current batch has no messages
+     */
+    public boolean isEmpty() {
+        return 0 == mCount;
+    }
+
+    /**
+     * Finish the current batch in the buffer, and start a new empty one with the same max length
+     * @return number of bytes to send from the start of getBuffer() (the bare message if the batch
+     * had only one, 0 if it had none), valid until the next message is appended
+     */
+    public int finish() {
+        int length;
+        if (0 == mCount) {
+            length = 0;
+        } else if (1 == mCount) {
+            // Move the only message to the front, dropping the type and length bytes
+            length = mLength - 2;
+            System.arraycopy(mBuffer, 2, mBuffer, 0, length);
+        } else {
+            mBuffer[0] = mType;
+            length = mLength;
+        }
+        reset(mMaxLength);
+        return length;
+    }
+
+    /**
+     * @return buffer holding the finished batch (reused, only valid until the next message is appended)
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+}
@@ -0,0 +1,125 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary form of the mouse protocol (protocol version 3 and up). Every message starts with a
+ * one byte opcode, followed by fixed size arguments:
+ *
+ *      move/scroll:    | opcode | x (4 B) | y (4 B) |
+ *      click:          | opcode | button (1 B) | state (1 B) |
+ *      key:            | opcode | key (1 B) | state (1 B) |
+ *      type:           | opcode | UTF-8 text |
+ *      control:        | opcode |
+ *      batch:          | opcode | length (1 B) | message | length (1 B) | message | ...   (see BatchWriter)
+ *
+ * All opcodes are below printable ASCII, so a receiver can tell binary messages apart from legacy
+ * string messages by their first byte. Legacy commands (e.g. C_left_D) are translated once with
+ * encodeCommand(), so nothing needs to be looked up or parsed on the hot path.
+ */
+public class BinaryProtocol {
+
+    // Movement
+    public static final byte mOpMoveRelative = 0x01;
+    public static final byte mOpMoveAbsolute = 0x02;
+    public static final byte mOpMoveScrolling = 0x03;
+    // Commands
+    public static final byte mOpClick = 0x04;
+    public static final byte mOpKey = 0x05;
+    public static final byte mOpType = 0x06;
+    // Control
+    public static final byte mOpOpenAck = 0x08;     // Only used by clients that already switched (OPEN itself is always legacy)
+    public static final byte mOpHeartbeat = 0x09;
+    public static final byte mOpHeartbeatAck = 0x0A;
+    public static final byte mOpClose = 0x0B;
+    public static final byte mOpSeq = 0x0C;
+    public static final byte mOpSeqAck = 0x0D;
+    // Several messages in one packet (protocol version 5 and up)
+    public static final byte mOpBatch = 0x0E;
+    private static final byte mOpLimit = 0x20;      // First byte value that is not an opcode (space)
+
+    // Button, key and state arguments, in the order of the legacy names
+    private static final String[] mButtons = {"left", "right"};
+    private static final String[] mKeys = {"up", "down", "left", "right", "space", "return", "bspace", "esc"};
+    private static final String mStates = "DUF";    // Down, up, full (down and up)
+
+    private static final byte[] mMoveOpcodes = new byte[128];   // Legacy move type byte -> opcode
+    static {
+        mMoveOpcodes['M'] = mOpMoveRelative;
+        mMoveOpcodes['A'] = mOpMoveAbsolute;
+        mMoveOpcodes['S'] = mOpMoveScrolling;
+    }
+
+    private static final Charset mCharset = Charset.forName("UTF-8");
+
+    /**
+     * @param first byte of a received message
+     * @return true if the message is in binary form, false if it is a legacy string message
+     */
+    public static boolean isBinary(byte first) {
+        return first >= 0 && first < mOpLimit;
+    }
+
+    /**
+     * Translate a legacy move type byte (see protocol_move_* in strings.xml) to its opcode
+     * @param legacyMoveType M, A or S
+     * @return move opcode, or 0 if unknown
+     */
+    public static byte getMoveOpcode(byte legacyMoveType) {
+        return legacyMoveType >= 0 ? mMoveOpcodes[legacyMoveType] : 0;
+    }
+
+    /**
+     * Translate a legacy click or key command (e.g. C_left_D or K_bspace_U) to binary form
+     * @param legacyCommand command string from strings.xml
+     * @return encoded binary command
+     * @throws IllegalArgumentException if the command is not a known click or key command
+     */
+    public static byte[] encodeCommand(String legacyCommand) {
+        String[] parts = legacyCommand.split("_");
+        if (3 != parts.length || 1 != parts[2].length())
+            throw new IllegalArgumentException("Unknown command: " + legacyCommand);
+
+        byte opcode;
+        int argument;
+        if ("C".equals(parts[0])) {
+            opcode = mOpClick;
+            argument = indexOf(mButtons, parts[1]);
+        } else if ("K".equals(parts[0])) {
+            opcode = mOpKey;
+            argument = indexOf(mKeys, parts[1]);
+        } else {
+            throw new IllegalArgumentException("Unknown command: " + legacyCommand);
+        }
+        int state = mStates.indexOf(parts[2].charAt(0));
+        if (argument < 0 || state < 0)
+            throw new IllegalArgumentException("Unknown command: " + legacyCommand);
+        return new byte[] {opcode, (byte) argument, (byte) state};
+    }
+
+    /**
+     * Encode a custom type message in binary form
+     * @param text to type on clients
+     * @return encoded binary command
+     */
+    public static byte[] encodeTypedMessage(String text) {
+        byte[] textBytes = text.getBytes(mCharset);
+        byte[] msg = new byte[1 + textBytes.length];
+        msg[0] = mOpType;
+        System.arraycopy(textBytes, 0, msg, 1, textBytes.length);
+        return msg;
+    }
+
+    /**
+     * @param names to search
+     * @param name to look for
+     * @return index of name, or -1 if not found
+     */
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * Session key for a UDP client's address and port. DatagramPacket.getSocketAddress() builds a new
+ * InetSocketAddress on every call, so the receiving thread instead keeps one mutable key, points it
+ * at each packet's sender to look up the session, and only stores a copy() when it adds a session.
+ * Keys stored in a map must never be changed again.
+ */
+public final class ClientAddress {
+
+    private InetAddress mAddress;   // Client's IP address
+    private int mPort;              // Client's port number
+
+    /**
+     * Constructor for a reusable lookup key (point it at a sender with set() before use)
+     */
+    public ClientAddress() {}
+
+    /**
+     * @param address of the client
+     * @param port of the client
+     */
+    public ClientAddress(InetAddress address, int port) {
+        mAddress = address;
+        mPort = port;
+    }
+
+    /**
+     * Point this key at a packet's sender (doesn't allocate)
+     * @param packet that was received
+     * @return this key
+     */
+    public ClientAddress set(DatagramPacket packet) {
+        mAddress = packet.getAddress();
+        mPort = packet.getPort();
+        return this;
+    }
+
+    /**
+     * @return an unchanging copy of this key, for storing in a map
+     */
+    public ClientAddress copy() {
+        return new ClientAddress(mAddress, mPort);
+    }
+
+    public InetAddress getAddress() {
+        return mAddress;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ClientAddress))
+            return false;
+        ClientAddress other = (ClientAddress) o;
+        return mPort == other.mPort && (null == mAddress ? null == other.mAddress : mAddress.equals(other.mAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (null == mAddress ? 0 : mAddress.hashCode()) + mPort;
+    }
+
+    @Override
+    public String toString() {
+        return (null == mAddress ? "?" : mAddress.getHostAddress()) + ":" + mPort;
+    }
+}
@@ -0,0 +1,142 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classifies control messages received from clients (OPEN, heartbeat and CLOSE) straight from the
+ * received bytes. Legacy string messages are compared against pre-encoded constants, and binary
+ * messages (see BinaryProtocol) are dispatched on their opcode, so the receive loops never have to
+ * build a String or look up a resource per packet.
+ */
+public class ControlMessages {
+
+    // Message types returned by classify()
+    public static final int mUnknown = 0;
+    public static final int mOpen = 1;
+    public static final int mHeartbeat = 2;
+    public static final int mClose = 3;
+
+    private final byte[] mOpenRequest;          // Pre-encoded legacy control messages
+    private final byte[] mHeartbeatRequest;
+    private final byte[] mClosingRequest;
+
+    /**
+     * Constructor
+     * @param openRequest legacy opening message (protocol_opening_request)
+     * @param heartbeatRequest legacy heartbeat message (protocol_heartbeat_request)
+     * @param closingRequest legacy closing message (protocol_closing_request)
+     */
+    public ControlMessages(String openRequest, String heartbeatRequest, String closingRequest) {
+        mOpenRequest = openRequest.getBytes();
+        mHeartbeatRequest = heartbeatRequest.getBytes();
+        mClosingRequest = closingRequest.getBytes();
+    }
+
+    /**
+     * Find out what kind of control message was received
+     * @param buf holding the message
+     * @param offset where the message starts in buf
+     * @param length number of message bytes
+     * @return mOpen, mHeartbeat, mClose or mUnknown
+     */
+    public int classify(byte[] buf, int offset, int length) {
+        if (length <= 0)
+            return mUnknown;
+
+        // Binary clients send their control messages as a single opcode (OPEN is always legacy)
+        byte first = buf[offset];
+        if (BinaryProtocol.isBinary(first)) {
+            switch (first) {
+                case BinaryProtocol.mOpHeartbeat:
+                    return mHeartbeat;
+                case BinaryProtocol.mOpClose:
+                    return mClose;
+                default:
+                    return mUnknown;
+            }
+        }
+
+        if (NetworkHelpers.startsWith(buf, offset, length, mOpenRequest))
+            return mOpen;
+        if (NetworkHelpers.startsWith(buf, offset, length, mHeartbeatRequest))
+            return mHeartbeat;
+        if (NetworkHelpers.startsWith(buf, offset, length, mClosingRequest))
+            return mClose;
+        return mUnknown;
+    }
+
+    /**
+     * Find out what kind of control message was received
+     * @param buf holding the message between its position and limit (neither is changed)
+     * @return mOpen, mHeartbeat, mClose or mUnknown
+     */
+    public int classify(ByteBuffer buf) {
+        if (buf.hasArray())
+            return classify(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (!buf.hasRemaining())
+            return mUnknown;
+
+        byte first = buf.get(buf.position());
+        if (BinaryProtocol.isBinary(first)) {
+            switch (first) {
+                case BinaryProtocol.mOpHeartbeat:
+                    return mHeartbeat;
+                case BinaryProtocol.mOpClose:
+                    return mClose;
+                default:
+                    return mUnknown;
+            }
+        }
+
+        if (NetworkHelpers.startsWith(buf, mOpenRequest))
+            return mOpen;
+        if (NetworkHelpers.startsWith(buf, mHeartbeatRequest))
+            return mHeartbeat;
+        if (NetworkHelpers.startsWith(buf, mClosingRequest))
+            return mClose;
+        return mUnknown;
+    }
+
+    /**
+     * Checks if an opening message carries a protocol version (older clients send a bare OPEN,
+     * and a null byte is treated as padding)
+     * @param buf holding the opening message
+     * @param offset where the message starts in buf
+     * @param length number of message bytes
+     * @return true if a version byte follows OPEN
+     */
+    public boolean isVersionRequested(byte[] buf, int offset, int length) {
+        return length > mOpenRequest.length && 0 != buf[offset + mOpenRequest.length];
+    }
+
+    /**
+     * Gets the protocol version a client asked for in its opening message
+     * @param buf holding the opening message
+     * @param offset where the message starts in buf
+     * @param length number of message bytes
+     * @return requested version, or legacy if there was none
+     */
+    public byte getRequestedVersion(byte[] buf, int offset, int length) {
+        if (!isVersionRequested(buf, offset, length))
+            return NetworkHelpers.mProtocolVersionLegacy;
+        return NetworkHelpers.getRequestedVersion(buf, offset, length, mOpenRequest.length);
+    }
+
+    /**
+     * Gets the protocol version a client asked for in its opening message
+     * @param buf holding the opening message between its position and limit (neither is changed)
+     * @return requested version, or 0 if there was none
+     */
+    public byte getRequestedVersion(ByteBuffer buf) {
+        if (buf.remaining() <= mOpenRequest.length)
+            return 0;
+        return buf.get(buf.position() + mOpenRequest.length);
+    }
+
+    /**
+     * @return pre-encoded legacy opening message
+     */
+    public byte[] getOpenRequest() {
+        return mOpenRequest;
+    }
+}
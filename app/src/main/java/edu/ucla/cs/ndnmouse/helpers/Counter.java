@@ -0,0 +1,40 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counter (or gauge, with set()) for the metrics registry. Safe to update from any thread.
+ */
+public class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    /**
+     * Add one
+     */
+    public void inc() {
+        mValue.incrementAndGet();
+    }
+
+    /**
+     * @param delta amount to add
+     */
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    /**
+     * Replace the value (for counters used as gauges)
+     * @param value new value
+     */
+    public void set(long value) {
+        mValue.set(value);
+    }
+
+    /**
+     * @return current value
+     */
+    public long get() {
+        return mValue.get();
+    }
+}
@@ -0,0 +1,43 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * A command to send to clients, encoded once in both the legacy string form and the binary form,
+ * so servers can pick the right one per session without encoding anything while sending.
+ */
+public class EncodedCommand {
+
+    private final byte[] mLegacy;   // Legacy string form (e.g. C_left_D)
+    private final byte[] mBinary;   // Binary form (see BinaryProtocol)
+
+    private EncodedCommand(byte[] legacy, byte[] binary) {
+        mLegacy = legacy;
+        mBinary = binary;
+    }
+
+    /**
+     * Encode a click or key command
+     * @param legacyCommand command string from strings.xml (e.g. C_left_D)
+     * @return encoded command
+     */
+    public static EncodedCommand fromCommand(String legacyCommand) {
+        return new EncodedCommand(legacyCommand.getBytes(), BinaryProtocol.encodeCommand(legacyCommand));
+    }
+
+    /**
+     * Encode a custom type message
+     * @param legacyPrefix type command prefix from strings.xml
+     * @param text to type on clients
+     * @return encoded command
+     */
+    public static EncodedCommand fromTypedMessage(String legacyPrefix, String text) {
+        return new EncodedCommand((legacyPrefix + text).getBytes(), BinaryProtocol.encodeTypedMessage(text));
+    }
+
+    /**
+     * @param binary true for a session that negotiated the binary protocol
+     * @return encoded bytes for the session (shared, do not modify)
+     */
+    public byte[] get(boolean binary) {
+        return binary ? mBinary : mLegacy;
+    }
+}
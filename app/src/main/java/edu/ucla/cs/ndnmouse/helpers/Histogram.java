@@ -0,0 +1,97 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram for the metrics registry. Values go into power of two buckets (bucket b holds
+ * values below 2^b), so recording is a few atomic adds and percentiles are accurate to within a
+ * factor of two, which is plenty for telling 50 us from 5 ms. Safe to record from any thread.
+ */
+public class Histogram {
+
+    private static final int mBuckets = 64;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(mBuckets);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value to record (negative values count as 0)
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mCounts.incrementAndGet(Math.min(mBuckets - 1, 64 - Long.numberOfLeadingZeros(value)));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry until the max is at least this value
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Take a consistent enough copy of the histogram (updates racing with this may be half counted)
+     * @return summary of the values recorded so far
+     */
+    public Summary summarize() {
+        long count = mCount.get();
+        long sum = mSum.get();
+        long max = mMax.get();
+        long[] counts = new long[mBuckets];
+        long total = 0;
+        for (int i = 0; i < mBuckets; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Summary(count, (0 == count) ? 0 : sum / count, percentile(counts, total, 0.5, max),
+                percentile(counts, total, 0.99, max), max);
+    }
+
+    /**
+     * @return upper bound of the bucket holding the given percentile (capped at the max)
+     */
+    private static long percentile(long[] counts, long total, double fraction, long max) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < mBuckets; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(max, (i >= 63) ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+        return max;
+    }
+
+    /**
+     * Values of a histogram at one point in time
+     */
+    public static class Summary {
+        public final long mCount;       // Number of recorded values
+        public final long mMean;        // Average value
+        public final long mP50;         // Median (upper bound of its bucket)
+        public final long mP99;         // 99th percentile (upper bound of its bucket)
+        public final long mMax;         // Largest value
+
+        Summary(long count, long mean, long p50, long p99, long max) {
+            mCount = count;
+            mMean = mean;
+            mP50 = p50;
+            mP99 = p99;
+            mMax = max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + mMean + " p50=" + mP50 + " p99=" + mP99 + " max=" + mMax;
+        }
+    }
+}
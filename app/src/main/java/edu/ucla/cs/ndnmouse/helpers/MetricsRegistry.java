@@ -0,0 +1,126 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Named counters, histograms and labels that servers update while they run, and that the UI reads
+ * as a snapshot (e.g. for the debug overlay). Names are paths like "udp/10.0.0.2:54321/sent", so
+ * everything belonging to a session can be removed together when it ends.
+ *
+ * Looking up an instrument by name is a map lookup, so hot paths should look them up once (see
+ * SessionMetrics) and keep the reference. Updating an instrument is lock-free.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicReference<String>> mLabels = new ConcurrentHashMap<>();
+
+    /**
+     * @param name of the counter
+     * @return the counter with this name (created if needed)
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (null == counter) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (null == counter)
+                counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * @param name of the histogram
+     * @return the histogram with this name (created if needed)
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (null == histogram) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (null == histogram)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Labels hold short text values, like why an update rate was chosen
+     * @param name of the label
+     * @return the label with this name (created if needed, initially empty)
+     */
+    public AtomicReference<String> label(String name) {
+        AtomicReference<String> label = mLabels.get(name);
+        if (null == label) {
+            AtomicReference<String> created = new AtomicReference<>("");
+            label = mLabels.putIfAbsent(name, created);
+            if (null == label)
+                label = created;
+        }
+        return label;
+    }
+
+    /**
+     * Remove every instrument whose name starts with the prefix (e.g. when a session ends)
+     * @param prefix of the names to remove
+     */
+    public void removeAll(String prefix) {
+        removeAll(mCounters, prefix);
+        removeAll(mHistograms, prefix);
+        removeAll(mLabels, prefix);
+    }
+
+    private static void removeAll(Map<String, ?> instruments, String prefix) {
+        for (String name : instruments.keySet()) {
+            if (name.startsWith(prefix))
+                instruments.remove(name);
+        }
+    }
+
+    /**
+     * @return copy of all current values, sorted by name
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet())
+            snapshot.mCounters.put(entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet())
+            snapshot.mHistograms.put(entry.getKey(), entry.getValue().summarize());
+        for (Map.Entry<String, AtomicReference<String>> entry : mLabels.entrySet())
+            snapshot.mLabels.put(entry.getKey(), entry.getValue().get());
+        return snapshot;
+    }
+
+    /**
+     * All metric values at one point in time
+     */
+    public static class Snapshot {
+        public final SortedMap<String, Long> mCounters = new TreeMap<>();
+        public final SortedMap<String, Histogram.Summary> mHistograms = new TreeMap<>();
+        public final SortedMap<String, String> mLabels = new TreeMap<>();
+
+        /**
+         * @return one line per metric, sorted by name (for logs and the debug overlay)
+         */
+        public String format() {
+            SortedMap<String, String> lines = new TreeMap<>();
+            for (Map.Entry<String, Long> entry : mCounters.entrySet())
+                lines.put(entry.getKey(), String.valueOf(entry.getValue()));
+            for (Map.Entry<String, Histogram.Summary> entry : mHistograms.entrySet())
+                lines.put(entry.getKey(), entry.getValue().toString());
+            for (Map.Entry<String, String> entry : mLabels.entrySet())
+                lines.put(entry.getKey(), entry.getValue());
+
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, String> line : lines.entrySet())
+                text.append(line.getKey()).append(": ").append(line.getValue()).append('\n');
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free accumulator of relative touchpad movement. The UI thread adds dx/dy deltas to a running
+ * total packed into a single AtomicLong (x in the high 32 bits, y in the low 32 bits), and every
+ * consumer owns a Cursor that remembers the last total it saw. That way each session receives the
+ * full movement stream, without locks, torn x/y pairs, or allocating on every read.
+ *
+ * Totals are allowed to wrap around, since differences of wrapped ints are still correct.
+ */
+public class MotionAccumulator {
+
+    private final AtomicLong mTotal = new AtomicLong();    // Packed running totals of all movement so far
+
+    /**
+     * Add relative movement (called by the producer, normally the UI thread)
+     * @param dx horizontal pixels moved
+     * @param dy vertical pixels moved
+     */
+    public void add(int dx, int dy) {
+        if (dx == 0 && dy == 0)
+            return;
+        long current, next;
+        do {
+            current = mTotal.get();
+            next = pack(getX(current) + dx, getY(current) + dy);
+        } while (!mTotal.compareAndSet(current, next));
+    }
+
+    /**
+     * Create a cursor for a new consumer. It starts at the current total, so it only sees movement
+     * that happens after it was created.
+     * @return new cursor owned by the caller
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Pack x and y into one long
+     * @param x horizontal value
+     * @param y vertical value
+     * @return packed value
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param packed value from pack() or Cursor.consume()
+     * @return horizontal value
+     */
+    public static int getX(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /**
+     * @param packed value from pack() or Cursor.consume()
+     * @return vertical value
+     */
+    public static int getY(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Read position of a single consumer. Not thread safe: each consumer thread needs its own cursor.
+     */
+    public class Cursor {
+
+        private long mLastTotal;    // Total the last time this cursor consumed
+
+        private Cursor() {
+            mLastTotal = mTotal.get();
+        }
+
+        /**
+         * Get all movement since the last call, and advance the cursor past it
+         * @return packed dx/dy (see getX and getY), or 0 if there was no movement
+         */
+        public long consume() {
+            long total = mTotal.get();
+            long last = mLastTotal;
+            if (total == last)
+                return 0;
+            mLastTotal = total;
+            return pack(getX(total) - getX(last), getY(total) - getY(last));
+        }
+    }
+}
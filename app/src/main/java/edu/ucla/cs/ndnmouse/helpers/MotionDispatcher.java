@@ -0,0 +1,178 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Per-session dispatcher that wakes a worker as soon as the touchpad has new movement, instead of
+ * having the worker poll on a fixed interval. Signals that arrive during the coalescing window are
+ * folded into the same update, and consecutive updates are always kept at least a minimum gap apart.
+ *
+ * Workers with their own thread block in awaitMotion(). Event loops that serve many sessions on one
+ * thread instead set a signal listener (to wake up their selector) and call pollMotion().
+ */
+public class MotionDispatcher {
+
+    private final Object mLock = new Object();
+    private boolean mMotionPending = false;     // Set by the touch listener, cleared when an update is dispatched
+    private boolean mClosed = false;            // Set when the session ends so a waiting worker can exit
+    private volatile long mCoalesceWindowNanos; // How long to wait for more movement before dispatching
+    private volatile long mMinGapNanos;         // Minimum time between two dispatched updates
+    private long mLastDispatchNanos;            // Time of the last dispatched update (only touched by the worker)
+    private long mSignalNanos;                  // Time the pending movement was first signalled
+    private int mSignalCount;                   // Signals since the last drainSignalCount() (for metrics)
+    private volatile Runnable mSignalListener;  // Optional callback whenever movement becomes pending
+
+    /**
+     * Constructor
+     * @param coalesceWindowMillis number of milliseconds to gather more movement before dispatching
+     * @param minGapMillis minimum number of milliseconds between two dispatched updates
+     */
+    public MotionDispatcher(int coalesceWindowMillis, int minGapMillis) {
+        setCoalesceWindow(coalesceWindowMillis);
+        setMinGap(minGapMillis);
+        mLastDispatchNanos = System.nanoTime() - mMinGapNanos;
+    }
+
+    /**
+     * Called by the producer (touchpad listener) whenever there is new movement
+     */
+    public void signal() {
+        boolean becamePending = false;
+        synchronized (mLock) {
+            mSignalCount++;
+            if (!mMotionPending) {
+                mMotionPending = true;
+                mSignalNanos = System.nanoTime();
+                mLock.notify();
+                becamePending = true;
+            }
+        }
+
+        // Only notify the listener once per pending update, not for every touch event
+        Runnable listener = mSignalListener;
+        if (becamePending && null != listener)
+            listener.run();
+    }
+
+    /**
+     * Set a callback to run (on the producer's thread) whenever movement becomes pending
+     * @param listener to run, or null to remove it
+     */
+    public void setSignalListener(Runnable listener) {
+        mSignalListener = listener;
+    }
+
+    /**
+     * Wakes up the waiting worker for good, so it can shut down
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until movement has been signalled, then waits out the coalescing window and minimum gap
+     * @return true if an update should be sent now, false if the dispatcher was closed
+     * @throws InterruptedException if the worker thread is interrupted while waiting
+     */
+    public boolean awaitMotion() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mMotionPending && !mClosed)
+                mLock.wait();
+            if (mClosed)
+                return false;
+        }
+
+        // Give more movement a chance to arrive, but never send sooner than the minimum gap allows
+        long now = System.nanoTime();
+        long readyAt = Math.max(now + mCoalesceWindowNanos, mLastDispatchNanos + mMinGapNanos);
+        long waitNanos = readyAt - now;
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+
+        // Clear the pending flag before the caller reads the position, so later movement signals again
+        synchronized (mLock) {
+            mMotionPending = false;
+            if (mClosed)
+                return false;
+        }
+        mLastDispatchNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Non-blocking version of awaitMotion() for event loops. Checks if an update is due, and if so
+     * clears the pending flag (so the caller must send the update right away).
+     * @return 0 if an update should be sent now, the number of nanoseconds until one is due, or -1 if
+     * there is no pending movement (or the dispatcher was closed)
+     */
+    public long pollMotion() {
+        synchronized (mLock) {
+            if (mClosed || !mMotionPending)
+                return -1;
+
+            long now = System.nanoTime();
+            long readyAt = Math.max(mSignalNanos + mCoalesceWindowNanos, mLastDispatchNanos + mMinGapNanos);
+            if (readyAt > now)
+                return readyAt - now;
+            mMotionPending = false;
+            mLastDispatchNanos = now;
+            return 0;
+        }
+    }
+
+    /**
+     * Blocks until movement has been signalled or the timeout runs out, without any coalescing. Used
+     * by polling workers while the touchpad is idle, so they wake up right away when it is touched.
+     * @param timeoutNanos longest time to wait
+     * @return false if the dispatcher was closed
+     * @throws InterruptedException if the worker thread is interrupted while waiting
+     */
+    public boolean awaitSignal(long timeoutNanos) throws InterruptedException {
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long waitNanos;
+            while (!mMotionPending && !mClosed && (waitNanos = deadline - System.nanoTime()) > 0)
+                mLock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            mMotionPending = false;
+            return !mClosed;
+        }
+    }
+
+    /**
+     * Non-blocking version of awaitSignal() for event loops
+     * @return true if movement was signalled since the last call (and clears it)
+     */
+    public boolean takeSignal() {
+        synchronized (mLock) {
+            boolean pending = mMotionPending;
+            mMotionPending = false;
+            return pending;
+        }
+    }
+
+    /**
+     * @return number of movement signals since the last call (the touch events folded into one update)
+     */
+    public int drainSignalCount() {
+        synchronized (mLock) {
+            int count = mSignalCount;
+            mSignalCount = 0;
+            return count;
+        }
+    }
+
+    /**
+     * @param coalesceWindowMillis number of milliseconds to gather more movement before dispatching
+     */
+    public void setCoalesceWindow(int coalesceWindowMillis) {
+        mCoalesceWindowNanos = Math.max(0, coalesceWindowMillis) * 1000000L;
+    }
+
+    /**
+     * @param minGapMillis minimum number of milliseconds between two dispatched updates
+     */
+    public void setMinGap(int minGapMillis) {
+        mMinGapNanos = Math.max(0, minGapMillis) * 1000000L;
+    }
+}
@@ -0,0 +1,78 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes raw touch samples to a compact binary log, so a session on the touchpad can be replayed
+ * later with MotionReplay (same workload for comparing update intervals, coalescing and transports).
+ * Log format (big endian):
+ *
+ *      header:     | magic (4 B) | version (1 B) |
+ *      sample:     | time since last sample in microseconds (4 B) | x * 16 (4 B) | y * 16 (4 B) |
+ *                  | action (1 B) | pointer count (1 B) | move type (1 B) |
+ *
+ * Coordinates are fixed point with 4 fraction bits, since the touchpad reports sub-pixel positions
+ * and TouchSampler carries the fractions. Version 1 logs kept whole pixels (2 B each), MotionReplay
+ * still reads them.
+ *
+ * Not thread safe, samples should be recorded from the UI thread only.
+ */
+public class MotionRecorder {
+
+    static final int mMagic = 0x4E4D5452;       // "NMTR"
+    static final byte mFormatVersion = 2;
+    static final byte mFormatVersionWholePixels = 1;    // Older logs with whole-pixel coordinates
+    static final int mSampleBytes = 15;
+    static final float mFixedPointScale = 16;           // Coordinate units per pixel
+
+    // Sample actions
+    public static final byte mActionDown = 0;
+    public static final byte mActionMove = 1;
+    public static final byte mActionUp = 2;
+
+    private final DataOutputStream mOut;
+    private long mLastSampleNanos;              // Time of the previous sample (0 before the first one)
+
+    /**
+     * Constructor, writes the log header
+     * @param out stream to write the log to (buffered here, closed by close())
+     * @throws IOException for error writing the header
+     */
+    public MotionRecorder(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(mMagic);
+        mOut.writeByte(mFormatVersion);
+    }
+
+    /**
+     * Append a touch sample to the log
+     * @param eventNanos time of the sample (any monotonic clock, e.g. System.nanoTime)
+     * @param action mActionDown, mActionMove or mActionUp
+     * @param x horizontal coordinate on the touchpad (sub-pixel, kept to 1/16 pixel)
+     * @param y vertical coordinate on the touchpad (sub-pixel, kept to 1/16 pixel)
+     * @param pointerCount number of fingers down
+     * @param moveType relative or scrolling movement (protocol byte)
+     * @throws IOException for error writing the sample
+     */
+    public void record(long eventNanos, byte action, float x, float y, int pointerCount, byte moveType) throws IOException {
+        long deltaMicros = (0 == mLastSampleNanos) ? 0 : (eventNanos - mLastSampleNanos) / 1000;
+        mLastSampleNanos = eventNanos;
+        mOut.writeInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, deltaMicros)));
+        mOut.writeInt(Math.round(x * mFixedPointScale));
+        mOut.writeInt(Math.round(y * mFixedPointScale));
+        mOut.writeByte(action);
+        mOut.writeByte(pointerCount);
+        mOut.writeByte(moveType);
+    }
+
+    /**
+     * Flush the remaining samples and close the log
+     * @throws IOException for error writing or closing
+     */
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
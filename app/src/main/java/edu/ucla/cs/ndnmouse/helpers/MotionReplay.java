@@ -0,0 +1,86 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns a log written by MotionRecorder back into movement, as steps of a ScriptedMotionSource. The
+ * samples go through the same TouchSampler as on the touchpad, at the same sub-pixel positions (to
+ * 1/16 pixel), so movement only counts while a finger is down, and changes smaller than the
+ * precision are carried until they count. Playing the
+ * source in real time then replays the recording at its original timing, or faster. The load
+ * generator does this against its in-process UDP server with --local and --replay.
+ */
+public class MotionReplay {
+
+    /**
+     * Read a recorded log and append its movement to a scripted source
+     * @param in stream holding the log (closed when done)
+     * @param target source to append the steps to
+     * @param precision min change in pixels to count as movement (same as the touchpad setting)
+     * @param speed playback speed, 1 for the original timing, 2 for twice as fast, ...
+     * @return number of steps appended
+     * @throws IOException if the log can't be read or is not a motion log
+     */
+    public static int load(InputStream in, ScriptedMotionSource target, int precision, double speed) throws IOException {
+        if (speed <= 0)
+            throw new IllegalArgumentException("Replay speed must be positive");
+
+        DataInputStream log = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (log.readInt() != MotionRecorder.mMagic)
+                throw new IOException("Not a motion log");
+            byte version = log.readByte();
+            if (version != MotionRecorder.mFormatVersion && version != MotionRecorder.mFormatVersionWholePixels)
+                throw new IOException("Unsupported motion log version " + version);
+            boolean wholePixels = (version == MotionRecorder.mFormatVersionWholePixels);
+
+            MotionAccumulator motion = new MotionAccumulator();
+            MotionAccumulator.Cursor cursor = motion.newCursor();
+            TouchSampler sampler = new TouchSampler(motion, precision);
+            sampler.setBounds(Short.MAX_VALUE, Short.MAX_VALUE);     // Only samples on the touchpad were logged
+
+            int steps = 0;
+            double pendingMicros = 0;       // Time since the last step, scaled by speed
+            while (true) {
+                int deltaMicros;
+                try {
+                    deltaMicros = log.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                float x, y;
+                if (wholePixels) {
+                    x = log.readShort();
+                    y = log.readShort();
+                } else {
+                    x = log.readInt() / MotionRecorder.mFixedPointScale;
+                    y = log.readInt() / MotionRecorder.mFixedPointScale;
+                }
+                byte action = log.readByte();
+                log.readByte();     // Pointer count, already reflected in the move type
+                byte moveType = log.readByte();
+                pendingMicros += deltaMicros / speed;
+
+                if (action == MotionRecorder.mActionDown)
+                    sampler.touchDown(x, y);
+                if (sampler.sample(x, y)) {
+                    // Keep the sub-millisecond rest for the next step, so long replays don't drift
+                    int delayMillis = (int) (pendingMicros / 1000);
+                    pendingMicros -= delayMillis * 1000.0;
+                    long position = cursor.consume();
+                    target.addStep(MotionAccumulator.getX(position), MotionAccumulator.getY(position), moveType, delayMillis);
+                    steps++;
+                }
+                if (action == MotionRecorder.mActionUp)
+                    sampler.touchUp();
+            }
+            return steps;
+        } finally {
+            log.close();
+        }
+    }
+}
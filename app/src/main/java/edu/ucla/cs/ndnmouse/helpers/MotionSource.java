@@ -0,0 +1,33 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Where the servers get their movement from: the touchpad of MouseActivity, or a ScriptedMotionSource
+ * when running headless (tests, benchmarks, load tests).
+ */
+public interface MotionSource {
+
+    /**
+     * Create a cursor into the relative movement. Each consumer (session) needs its own cursor, so
+     * that every session gets all of the movement.
+     * @return new cursor for a single consumer thread
+     */
+    MotionAccumulator.Cursor newMotionCursor();
+
+    /**
+     * Register a session's dispatcher so it is signalled whenever there is new movement
+     * @param dispatcher to signal on new movement
+     */
+    void addMotionDispatcher(MotionDispatcher dispatcher);
+
+    /**
+     * Stop signalling a session's dispatcher (when the session ends)
+     * @param dispatcher to remove
+     */
+    void removeMotionDispatcher(MotionDispatcher dispatcher);
+
+    /**
+     * Get the move type: relative or scrolling movement
+     * @return move type as its one byte protocol character
+     */
+    byte getMoveType();
+}
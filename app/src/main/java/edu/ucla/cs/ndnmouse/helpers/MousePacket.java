@@ -23,17 +23,18 @@ import javax.crypto.spec.SecretKeySpec;
  * -----------------------------------------------------------------
  * <~~~~~~~~~ plaintext ~~~~~~~~~~~><~~~~~~~~~ ciphertext ~~~~~~~~~>
  *
+ * Each MousePacket allocates its own buffers, so servers use a per-session MousePacketCipher instead.
 */
 public class MousePacket {
 
     private static final String TAG = MousePacket.class.getSimpleName();
 
     private SecretKeySpec mKey;
-    private static Cipher mCipher;
+    private Cipher mCipher;
 
     public final static int mPacketBytes = 32;
-    private final static int mIvBytes = 16;
-    private final static int mSeqNumBytes = 4;
+    final static int mIvBytes = 16;
+    final static int mSeqNumBytes = 4;
     private byte[] mPayload;
     private byte[] mEncryptedPayload;
     private IvParameterSpec mIv;
@@ -84,8 +85,7 @@ public class MousePacket {
         // Get and init cipher algorithm
         try {
             // Padding is handled by my own custom PKCS5 padding function (see NetworkerHelpers.PKCS5Pad)
-            if (null == mCipher)
-                mCipher = Cipher.getInstance("AES/CBC/NoPadding");
+            mCipher = Cipher.getInstance("AES/CBC/NoPadding");
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             e.printStackTrace();
         }
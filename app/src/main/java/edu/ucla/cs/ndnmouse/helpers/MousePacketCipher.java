@@ -0,0 +1,161 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-session crypto context for legacy AES-CBC mouse packets (same wire format as MousePacket). Each
+ * context owns its own encrypt and decrypt Cipher instances and key, so sessions never share a
+ * Cipher across threads, and it works on preallocated buffers instead of building a new
+ * MousePacket (and several arrays) for every message.
+ *
+ * Encryption may be called from several threads of the same session, so it is synchronized.
+ * Decryption keeps its result in the context, so it must only be used by one thread (the receiver).
+ */
+public class MousePacketCipher implements PacketCipher {
+
+    private final SecretKeySpec mKey;           // Session key, kept so every init reuses the same key object
+    private final Cipher mEncryptCipher;        // Only used for outgoing packets
+    private final Cipher mDecryptCipher;        // Only used for incoming packets
+    private final SecureRandom mRandom;         // Source of the random IV for each outgoing packet
+
+    private final byte[] mEncryptIv = new byte[MousePacket.mIvBytes];           // Reused IV for outgoing packets
+    private final byte[] mPlaintext = new byte[MousePacket.mPacketBytes];       // Reused seq num + message + padding for outgoing packets
+    private final byte[] mDecrypted = new byte[MousePacket.mPacketBytes];       // Decrypted payload of the last incoming packet
+    private int mDecryptedLength;                                               // Unpadded length of mDecrypted
+
+    /**
+     * Constructor
+     * @param key to encrypt and decrypt this session's packets with
+     * @throws NoSuchAlgorithmException if AES/CBC is not available
+     * @throws NoSuchPaddingException if NoPadding is not available
+     */
+    public MousePacketCipher(SecretKeySpec key) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        mKey = key;
+        // Padding is handled by our own PKCS5 padding (see NetworkHelpers.PKCS5Pad), same as MousePacket
+        mEncryptCipher = Cipher.getInstance("AES/CBC/NoPadding");
+        mDecryptCipher = Cipher.getInstance("AES/CBC/NoPadding");
+        mRandom = new SecureRandom();
+    }
+
+    @Override
+    public byte getVersion() {
+        return NetworkHelpers.mProtocolVersionLegacy;
+    }
+
+    /**
+     * Get the size of the encrypted packet for a message
+     * @param messageLength number of message bytes
+     * @return number of bytes the encrypted packet will take (IV included)
+     */
+    public static int getPacketLength(int messageLength) {
+        return MousePacket.mIvBytes + getPaddedLength(MousePacket.mSeqNumBytes + messageLength);
+    }
+
+    /**
+     * Encrypt a message into a caller-owned buffer, ready to send out on the network
+     * @param msg buffer holding the message
+     * @param msgOffset where the message starts in msg
+     * @param msgLength number of message bytes
+     * @param seqNum for the particular server/client session
+     * @param out buffer to write the encrypted packet into (needs getPacketLength(msgLength) of room)
+     * @param outOffset where the packet starts in out
+     * @return number of bytes written to out
+     * @throws InvalidAlgorithmParameterException for encryption
+     * @throws InvalidKeyException for encryption
+     * @throws ShortBufferException if out is too small
+     * @throws BadPaddingException for encryption
+     * @throws IllegalBlockSizeException for encryption
+     */
+    @Override
+    public synchronized int encrypt(byte[] msg, int msgOffset, int msgLength, int seqNum, byte[] out, int outOffset) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        int payloadLength = MousePacket.mSeqNumBytes + msgLength;
+        int paddedLength = getPaddedLength(payloadLength);
+        if (paddedLength > mPlaintext.length)
+            throw new IllegalBlockSizeException("Message too long for a mouse packet");
+
+        // Assemble seq num + message + PKCS5 padding
+        NetworkHelpers.writeInt(seqNum, mPlaintext, 0);
+        System.arraycopy(msg, msgOffset, mPlaintext, MousePacket.mSeqNumBytes, msgLength);
+        byte padChar = (byte) (paddedLength - payloadLength);
+        for (int i = payloadLength; i < paddedLength; i++)
+            mPlaintext[i] = padChar;
+
+        // Prepend a new random IV, then encrypt right behind it
+        mRandom.nextBytes(mEncryptIv);
+        System.arraycopy(mEncryptIv, 0, out, outOffset, MousePacket.mIvBytes);
+        mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(mEncryptIv));
+        return MousePacket.mIvBytes + mEncryptCipher.doFinal(mPlaintext, 0, paddedLength, out, outOffset + MousePacket.mIvBytes);
+    }
+
+    /**
+     * Decrypt an incoming packet. The result stays in this context until the next decrypt.
+     * @param packet buffer holding the encrypted packet
+     * @param offset where the packet starts in packet
+     * @param length number of packet bytes
+     * @return number of decrypted message bytes (without seq num)
+     * @throws InvalidAlgorithmParameterException for decryption
+     * @throws InvalidKeyException for decryption
+     * @throws ShortBufferException if the packet is too long
+     * @throws BadPaddingException if the padding is invalid (most likely a wrong key)
+     * @throws IllegalBlockSizeException if the packet is not a whole number of blocks
+     */
+    @Override
+    public int decrypt(byte[] packet, int offset, int length) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        int encryptedLength = length - MousePacket.mIvBytes;
+        if (encryptedLength <= 0 || encryptedLength > mDecrypted.length)
+            throw new IllegalBlockSizeException("Invalid mouse packet length");
+
+        mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(packet, offset, MousePacket.mIvBytes));
+        int decryptedLength = mDecryptCipher.doFinal(packet, offset + MousePacket.mIvBytes, encryptedLength, mDecrypted, 0);
+
+        // Remove PKCS5 padding, there must be at least a full seq num left over
+        int padChar = mDecrypted[decryptedLength - 1];
+        if (padChar <= 0 || decryptedLength - padChar < MousePacket.mSeqNumBytes)
+            throw new BadPaddingException("Invalid mouse packet padding");
+        mDecryptedLength = decryptedLength - padChar;
+        return mDecryptedLength - MousePacket.mSeqNumBytes;
+    }
+
+    @Override
+    public int getDecryptedSeqNum() {
+        return NetworkHelpers.readInt(mDecrypted, 0);
+    }
+
+    @Override
+    public byte[] getDecryptedBuffer() {
+        return mDecrypted;
+    }
+
+    @Override
+    public String getDecryptedMessage() {
+        return new String(mDecrypted, MousePacket.mSeqNumBytes, mDecryptedLength - MousePacket.mSeqNumBytes);
+    }
+
+    /**
+     * @return key of this session
+     */
+    public SecretKeySpec getKey() {
+        return mKey;
+    }
+
+    /**
+     * PKCS5 padded length, extended to pad up to the full mouse packet payload (same as NetworkHelpers.PKCS5Pad)
+     * @param length of the unpadded data
+     * @return length after padding
+     */
+    private static int getPaddedLength(int length) {
+        int maxPad = MousePacket.mPacketBytes - MousePacket.mIvBytes;
+        return length + (maxPad - length % maxPad);
+    }
+}
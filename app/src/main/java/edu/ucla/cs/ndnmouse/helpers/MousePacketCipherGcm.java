@@ -0,0 +1,181 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-session crypto context for authenticated AES-GCM mouse packets. Packet format:
+ *
+ *      | version (1 B) | seq num (4 B) | ciphertext (message length) | tag (16 B) |
+ *      |---------cleartext, authenticated---------|
+ *
+ * The 12 byte nonce is never sent: it is built from the session ID, the direction of the packet and
+ * the seq num, so no random IV is needed per packet. Seq nums only move forward in each direction,
+ * so a nonce is never reused with the same key (as long as a session stays under 2^31 packets).
+ * Each session's key and ID mix the IV of the client's opening packet with a fresh nonce that the
+ * server sends in the OPEN-ACK (see makeSessionSalt and makeSessionId). Otherwise a replayed OPEN
+ * would get the same key and session ID again, while the server's seq nums restart at 1.
+ * Tampered or wrongly keyed packets are rejected by the tag check.
+ *
+ * Requires GCMParameterSpec (API 19+). Encryption is synchronized, decryption must only be used by
+ * one thread (the receiver), same as MousePacketCipher.
+ */
+public class MousePacketCipherGcm implements PacketCipher {
+
+    private static final int mTagBits = 128;
+    private static final int mTagBytes = mTagBits / 8;
+    private static final int mNonceBytes = 12;
+    public static final int mSessionIdBytes = 7;                                // Session ID part of the nonce
+    public static final int mServerNonceBytes = 8;                              // Server's fresh randomness, appended to the OPEN-ACK
+    private static final int mHeaderBytes = 1 + MousePacket.mSeqNumBytes;      // Version + seq num
+    private static final int mMaxMessageBytes = MousePacket.mPacketBytes - MousePacket.mSeqNumBytes;  // Same limit as legacy packets
+
+    public static final byte mDirectionToClient = 0;     // Nonce direction of packets sent by the server
+    public static final byte mDirectionToServer = 1;     // Nonce direction of packets sent by the client
+
+    private final SecretKeySpec mKey;           // Session key, kept so every init reuses the same key object
+    private final Cipher mEncryptCipher;        // Only used for outgoing packets
+    private final Cipher mDecryptCipher;        // Only used for incoming packets
+    private final byte mOutgoingDirection;      // Direction byte for nonces of packets we send
+    private final byte mIncomingDirection;      // Direction byte for nonces of packets we receive
+
+    private final byte[] mEncryptNonce = new byte[mNonceBytes];     // Session ID + direction, seq num filled in per packet
+    private final byte[] mDecryptNonce = new byte[mNonceBytes];
+    private final byte[] mDecrypted = new byte[MousePacket.mSeqNumBytes + mMaxMessageBytes];   // Seq num + message of the last incoming packet
+    private int mDecryptedLength;                                                              // Message length in mDecrypted
+
+    /**
+     * Constructor
+     * @param key to encrypt and decrypt this session's packets with
+     * @param sessionId bytes identifying the session (the first mSessionIdBytes are used)
+     * @param outgoingDirection mDirectionToClient for servers, mDirectionToServer for clients
+     * @throws NoSuchAlgorithmException if AES/GCM is not available
+     * @throws NoSuchPaddingException if NoPadding is not available
+     */
+    public MousePacketCipherGcm(SecretKeySpec key, byte[] sessionId, byte outgoingDirection) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        mKey = key;
+        mEncryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        mDecryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        mOutgoingDirection = outgoingDirection;
+        mIncomingDirection = mDirectionToClient == outgoingDirection ? mDirectionToServer : mDirectionToClient;
+
+        System.arraycopy(sessionId, 0, mEncryptNonce, 0, mSessionIdBytes);
+        System.arraycopy(sessionId, 0, mDecryptNonce, 0, mSessionIdBytes);
+        mEncryptNonce[mSessionIdBytes] = mOutgoingDirection;
+        mDecryptNonce[mSessionIdBytes] = mIncomingDirection;
+    }
+
+    /**
+     * Build the salt of a session's key from the randomness of both sides
+     * @param openIv IV of the client's opening packet
+     * @param serverNonce sent by the server in the OPEN-ACK (mServerNonceBytes)
+     * @return salt for SessionKeyService.getSessionKey()
+     */
+    public static byte[] makeSessionSalt(byte[] openIv, byte[] serverNonce) {
+        byte[] salt = Arrays.copyOf(openIv, openIv.length + serverNonce.length);
+        System.arraycopy(serverNonce, 0, salt, openIv.length, serverNonce.length);
+        return salt;
+    }
+
+    /**
+     * Build a session's ID from the randomness of both sides
+     * @param openIv IV of the client's opening packet
+     * @param serverNonce sent by the server in the OPEN-ACK (mServerNonceBytes)
+     * @return session ID for the constructor
+     */
+    public static byte[] makeSessionId(byte[] openIv, byte[] serverNonce) {
+        byte[] sessionId = new byte[mSessionIdBytes];
+        for (int i = 0; i < mSessionIdBytes; i++)
+            sessionId[i] = (byte) (openIv[i] ^ serverNonce[i]);
+        return sessionId;
+    }
+
+    @Override
+    public byte getVersion() {
+        return NetworkHelpers.mProtocolVersionGcm;
+    }
+
+    /**
+     * Get the size of the encrypted packet for a message
+     * @param messageLength number of message bytes
+     * @return number of bytes the encrypted packet will take (header and tag included)
+     */
+    public static int getPacketLength(int messageLength) {
+        return mHeaderBytes + messageLength + mTagBytes;
+    }
+
+    /**
+     * @throws IllegalBlockSizeException if the message is too long
+     * @throws ShortBufferException if out is too small
+     */
+    @Override
+    public synchronized int encrypt(byte[] msg, int msgOffset, int msgLength, int seqNum, byte[] out, int outOffset) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        if (msgLength > mMaxMessageBytes)
+            throw new IllegalBlockSizeException("Message too long for a mouse packet");
+
+        // Write cleartext header, then encrypt the message right behind it
+        out[outOffset] = NetworkHelpers.mProtocolVersionGcm;
+        NetworkHelpers.writeInt(seqNum, out, outOffset + 1);
+        NetworkHelpers.writeInt(seqNum, mEncryptNonce, mNonceBytes - MousePacket.mSeqNumBytes);
+
+        mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(mTagBits, mEncryptNonce));
+        mEncryptCipher.updateAAD(out, outOffset, mHeaderBytes);
+        return mHeaderBytes + mEncryptCipher.doFinal(msg, msgOffset, msgLength, out, outOffset + mHeaderBytes);
+    }
+
+    /**
+     * @throws IllegalBlockSizeException if the packet has an invalid length
+     * @throws BadPaddingException if the packet is not a GCM packet, or fails the tag check (AEADBadTagException)
+     */
+    @Override
+    public int decrypt(byte[] packet, int offset, int length) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        int messageLength = length - mHeaderBytes - mTagBytes;
+        if (messageLength < 0 || messageLength > mMaxMessageBytes)
+            throw new IllegalBlockSizeException("Invalid mouse packet length");
+        if (NetworkHelpers.mProtocolVersionGcm != packet[offset])
+            throw new AEADBadTagException("Invalid mouse packet version");
+
+        // Nonce comes from the seq num in the (authenticated) header
+        System.arraycopy(packet, offset + 1, mDecryptNonce, mNonceBytes - MousePacket.mSeqNumBytes, MousePacket.mSeqNumBytes);
+        mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(mTagBits, mDecryptNonce));
+        mDecryptCipher.updateAAD(packet, offset, mHeaderBytes);
+        mDecryptedLength = mDecryptCipher.doFinal(packet, offset + mHeaderBytes, length - mHeaderBytes, mDecrypted, mMessageOffset);
+
+        // Only keep the seq num once the tag has been verified
+        System.arraycopy(packet, offset + 1, mDecrypted, 0, MousePacket.mSeqNumBytes);
+        return mDecryptedLength;
+    }
+
+    @Override
+    public int getDecryptedSeqNum() {
+        return NetworkHelpers.readInt(mDecrypted, 0);
+    }
+
+    @Override
+    public byte[] getDecryptedBuffer() {
+        return mDecrypted;
+    }
+
+    @Override
+    public String getDecryptedMessage() {
+        return new String(mDecrypted, mMessageOffset, mDecryptedLength);
+    }
+
+    /**
+     * @return key of this session
+     */
+    public SecretKeySpec getKey() {
+        return mKey;
+    }
+}
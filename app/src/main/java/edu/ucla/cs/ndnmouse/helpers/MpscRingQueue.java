@@ -0,0 +1,109 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, backed by a ring of slots that
+ * each carry a sequence number (the bounded queue design by Dmitry Vyukov). Producers claim a slot
+ * with one CAS on the tail, and publish into it by advancing the slot's sequence. The consumer never
+ * needs a CAS. Nothing is allocated after construction, and a full queue rejects instead of growing.
+ *
+ * @param <E> type of the queued elements
+ */
+public class MpscRingQueue<E> {
+
+    private final AtomicReferenceArray<E> mSlots;       // Queued elements
+    private final AtomicLongArray mSequences;           // Per-slot sequence: tells producers and the consumer whose turn it is
+    private final int mMask;                            // Capacity - 1 (capacity is a power of two)
+    private final AtomicLong mTail = new AtomicLong();  // Next position producers will claim
+    private long mHead;                                 // Next position the consumer will take (consumer only)
+
+    /**
+     * Constructor
+     * @param capacity minimum number of elements the queue can hold (rounded up to a power of two)
+     */
+    public MpscRingQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        mSlots = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        mMask = size - 1;
+        for (int i = 0; i < size; i++)
+            mSequences.set(i, i);
+    }
+
+    /**
+     * Add an element (safe to call from any thread)
+     * @param element to add (not null)
+     * @return true if added, false if the queue is full
+     */
+    public boolean offer(E element) {
+        if (null == element)
+            throw new NullPointerException();
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) tail & mMask;
+            long diff = mSequences.get(index) - tail;
+            if (0 == diff) {
+                // Slot is free for this position, try to claim it
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mSlots.lazySet(index, element);
+                    mSequences.set(index, tail + 1);    // Publish to the consumer
+                    return true;
+                }
+            } else if (diff < 0) {
+                // Consumer hasn't freed this slot yet, so the queue is full
+                return false;
+            }
+            // Otherwise another producer claimed this position first, try again
+        }
+    }
+
+    /**
+     * Take the oldest element (only the single consumer thread may call this)
+     * @return oldest element, or null if the queue is empty
+     */
+    public E poll() {
+        long head = mHead;
+        int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1)
+            return null;
+
+        E element = mSlots.get(index);
+        mSlots.lazySet(index, null);
+        mSequences.set(index, head + mMask + 1);    // Free the slot for the producers' next lap
+        mHead = head + 1;
+        return element;
+    }
+
+    /**
+     * Look at the oldest element without taking it (only the single consumer thread may call this)
+     * @return oldest element, or null if the queue is empty
+     */
+    public E peek() {
+        int index = (int) mHead & mMask;
+        if (mSequences.get(index) != mHead + 1)
+            return null;
+        return mSlots.get(index);
+    }
+
+    /**
+     * @return true if there is nothing for the consumer to take right now
+     */
+    public boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * @return number of elements the queue can hold
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+}
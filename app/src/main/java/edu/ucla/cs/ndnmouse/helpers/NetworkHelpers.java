@@ -1,14 +1,11 @@
 package edu.ucla.cs.ndnmouse.helpers;
 
-import android.app.Application;
-import android.app.admin.SystemUpdatePolicy;
-import android.content.res.Resources;
-import android.support.annotation.NonNull;
-import android.util.Log;
-
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -27,22 +24,79 @@ public class NetworkHelpers {
     private static final String TAG = NetworkHelpers.class.getSimpleName();
 
     private static final int mAesBlockSize = 16;
-    private static final int mMoveMessageBytes = 10;
+    public static final int mMoveMessageBytes = 9;      // Move type (1 B) + x (4 B) + y (4 B)
+    public static final int mSessionMessageBytes = 13;  // Message type (1 B) + session ID (4 B) + next seq num (8 B)
+    public static final int mMaxBatchedMessageBytes = 255;  // Longest message a batch can carry (1 B length)
     private static final int mIvBytes = mAesBlockSize;
     private static SecureRandom mRandom;
 
+    // Protocol versions, negotiated by an optional byte right after the OPEN message. Each version
+    // includes the features of the ones below it (plain UDP sessions just skip the encryption).
+    public static final byte mProtocolVersionLegacy = 1;    // AES-CBC with random IV and padding (MousePacketCipher)
+    public static final byte mProtocolVersionGcm = 2;       // AES-GCM with counter-derived nonces (MousePacketCipherGcm)
+    public static final byte mProtocolVersionBinary = 3;    // Binary opcodes instead of strings (BinaryProtocol), GCM for secure sessions
+    public static final byte mProtocolVersionHkdf = 4;      // Secure session keys from HKDF instead of a salted SHA-256 (SessionKeyService)
+    public static final byte mProtocolVersionBatch = 5;     // Several commands (and movement) per packet in binary batches (BatchWriter)
+
     /**
      * Converts integer to 4 byte big endian (in order to send via network)
      * @param i integer to convert
      * @return byte array (size 4) of the converted integer
      */
-    @NonNull
     static byte[] intToBytes(int i) {
         ByteBuffer buf = ByteBuffer.allocate(4);
         buf.putInt(i);
         return buf.array();
     }
 
+    /**
+     * Writes integer as 4 byte big endian into an existing buffer (no allocation)
+     * @param i integer to write
+     * @param buf to write into
+     * @param offset in buf of the first byte to write
+     */
+    static void writeInt(int i, byte[] buf, int offset) {
+        buf[offset] = (byte) (i >>> 24);
+        buf[offset + 1] = (byte) (i >>> 16);
+        buf[offset + 2] = (byte) (i >>> 8);
+        buf[offset + 3] = (byte) i;
+    }
+
+    /**
+     * Reads 4 byte big endian integer from an existing buffer (no allocation)
+     * @param buf to read from
+     * @param offset in buf of the first byte to read
+     * @return converted integer
+     */
+    static int readInt(byte[] buf, int offset) {
+        return (buf[offset] << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Gets the protocol version a client asked for in its opening message. Clients that predate
+     * versioning send the bare OPEN message, so they get the legacy version.
+     * @param payload decrypted opening payload (message starts at msgOffset)
+     * @param msgOffset where the message starts in payload
+     * @param msgLength number of message bytes
+     * @param openLength length of the bare OPEN message
+     * @return requested protocol version
+     */
+    public static byte getRequestedVersion(byte[] payload, int msgOffset, int msgLength, int openLength) {
+        if (msgLength <= openLength)
+            return mProtocolVersionLegacy;
+        return payload[msgOffset + openLength];
+    }
+
+    /**
+     * Picks the protocol version for a session: the highest one both sides support
+     * @param requested version the client asked for
+     * @param supported highest version this server supports
+     * @return negotiated version (never below legacy)
+     */
+    public static byte negotiateVersion(byte requested, byte supported) {
+        return (byte) Math.max(mProtocolVersionLegacy, Math.min(requested, supported));
+    }
+
     /**
      * Converts big endian byte array (assumed to be size 4) to integer.
      * @param ibytes array of bytes to convert (must be size 4)
@@ -58,7 +112,7 @@ public class NetworkHelpers {
      * @param maxPad the maximum number of bytes that can be padded
      * @return resulting padded data
      */
-    private static byte[] PKCS5Pad(byte[] data, int maxPad) {
+    static byte[] PKCS5Pad(byte[] data, int maxPad) {
         byte padChar = (byte) (maxPad - data.length % maxPad);
         int newLen = data.length + padChar;
         byte[] newData = Arrays.copyOf(data, newLen);
@@ -80,8 +134,7 @@ public class NetworkHelpers {
      * @param data to be unpadded
      * @return resulting unpadded data
      */
-    @NonNull
-    private static byte[] PKCS5Unpad(byte[] data) throws NegativeArraySizeException {
+    static byte[] PKCS5Unpad(byte[] data) throws NegativeArraySizeException {
         byte padChar = data[data.length-1];
         if (data.length - padChar <= 0)
             throw new NegativeArraySizeException();
@@ -117,6 +170,41 @@ public class NetworkHelpers {
         return new byte[0];
     }
 
+    /**
+     * Creates a SecretKeySpec from the user's password
+     * @param password from the user
+     * @return 128 bit (16 B) secret key
+     * @throws UnsupportedEncodingException for message digest's encoding
+     * @throws NoSuchAlgorithmException for secret key algorithm
+     */
+    public static SecretKeySpec makeKeyFromPassword(String password) throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        byte[] key = password.getBytes("UTF-8");
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        // Copy only 128 bits (16 B) from digest to use for secret key
+        return new SecretKeySpec(Arrays.copyOf(sha.digest(key), 16), "AES");
+    }
+
+    /**
+     * Creates a SecretKeySpec from the user's password and salt
+     * @param password from the user
+     * @param salt to add to password
+     * @return 128 bit (16 B) secret key
+     * @throws UnsupportedEncodingException for message digest's encoding
+     * @throws NoSuchAlgorithmException for secret key algorithm
+     */
+    public static SecretKeySpec makeKeyFromPassword(String password, byte[] salt) throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        byte[] key = password.getBytes("UTF-8");
+
+        // Append salt to key
+        byte[] keyAndSalt = new byte[key.length + salt.length];
+        System.arraycopy(key, 0, keyAndSalt, 0, key.length);
+        System.arraycopy(salt, 0, keyAndSalt, key.length, salt.length);
+
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        // Copy only 128 bits (16 B) from digest to use for secret key
+        return new SecretKeySpec(Arrays.copyOf(sha.digest(keyAndSalt), 16), "AES");
+    }
+
     /**
      * Encrypts data using user key and specified IV
      * @param message to encrypt
@@ -129,9 +217,7 @@ public class NetworkHelpers {
      * @throws IllegalBlockSizeException during encryption
      */
     static byte[] encryptData(byte[] message, Cipher cipher, SecretKeySpec key, IvParameterSpec iv) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
-        Log.d(TAG, "Encrypt data BEFORE: " + new String(message));
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-        // Log.d(TAG, "Encrypt data AFTER: " + Arrays.toString(encrypted));
         return cipher.doFinal(NetworkHelpers.PKCS5Pad(message, MousePacket.mPacketBytes - mIvBytes));
     }
 
@@ -147,9 +233,7 @@ public class NetworkHelpers {
      * @throws IllegalBlockSizeException during encryption
      */
     static byte[] decryptData(byte[] encrypted, Cipher cipher, SecretKeySpec key, IvParameterSpec iv) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException, NegativeArraySizeException {
-        // Log.d(TAG, "Decrypt data BEFORE: " + Arrays.toString(encrypted));
         cipher.init(Cipher.DECRYPT_MODE, key, iv);
-        // Log.d(TAG, "Decrypt data AFTER: " + new String(cipher.doFinal(encrypted)));
         return NetworkHelpers.PKCS5Unpad(cipher.doFinal(encrypted));
     }
 
@@ -177,13 +261,110 @@ public class NetworkHelpers {
      * @return byte array with message
      */
     public static byte[] buildMoveMessage(String moveType, int x, int y) {
-        byte[] xBytes = intToBytes(x);
-        byte[] yBytes = intToBytes(y);
-        byte[] moveTypeBytes = moveType.getBytes();
-        byte[] msg = new byte[xBytes.length + yBytes.length + moveTypeBytes.length];
-        System.arraycopy(moveTypeBytes, 0, msg, 0, moveTypeBytes.length);
-        System.arraycopy(xBytes, 0, msg, moveTypeBytes.length, xBytes.length);
-        System.arraycopy(yBytes, 0, msg, moveTypeBytes.length + xBytes.length, yBytes.length);
+        byte[] msg = new byte[mMoveMessageBytes];
+        writeMoveMessage((byte) moveType.charAt(0), x, y, msg, 0);
         return msg;
     }
+
+    /**
+     * Writes a mouse protocol move message (same format as buildMoveMessage) into a caller-owned
+     * buffer, so sending an update doesn't need to allocate anything
+     * @param moveType one byte representing move type
+     * @param x pixels
+     * @param y pixels
+     * @param buf to write the message into (needs mMoveMessageBytes of room after offset)
+     * @param offset in buf where the message starts
+     * @return number of bytes written
+     */
+    public static int writeMoveMessage(byte moveType, int x, int y, byte[] buf, int offset) {
+        buf[offset] = moveType;
+        writeInt(x, buf, offset + 1);
+        writeInt(y, buf, offset + 5);
+        return mMoveMessageBytes;
+    }
+
+    /**
+     * Writes a mouse protocol move message (same format as buildMoveMessage) at the buffer's
+     * current position, advancing the position past it
+     * @param moveType one byte representing move type
+     * @param x pixels
+     * @param y pixels
+     * @param buf to write the message into
+     * @return number of bytes written
+     */
+    public static int writeMoveMessage(byte moveType, int x, int y, ByteBuffer buf) {
+        buf.put(moveType).putInt(x).putInt(y);
+        return mMoveMessageBytes;
+    }
+
+    /**
+     * Writes an NDN session message, which tells a consumer of seq-numbered updates which session
+     * and seq num to fetch next
+     * Format of message:  R<session-4B><next-seq-8B>
+     * @param type one byte representing the message type
+     * @param sessionId of the server
+     * @param nextSeqNum seq num of the next update the server will produce
+     * @param buf to write the message into (needs mSessionMessageBytes of room after offset)
+     * @param offset in buf where the message starts
+     * @return number of bytes written
+     */
+    public static int writeSessionMessage(byte type, int sessionId, long nextSeqNum, byte[] buf, int offset) {
+        ByteBuffer.wrap(buf, offset, mSessionMessageBytes).put(type).putInt(sessionId).putLong(nextSeqNum);
+        return mSessionMessageBytes;
+    }
+
+    /**
+     * Appends a message to a batch, which lets one update carry several messages. The caller writes
+     * the batch's type byte first, then appends each message after it.
+     * Format of batch:  P<len-1B><msg><len-1B><msg>...
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0, at most mMaxBatchedMessageBytes)
+     * @param buf to append the message to (needs 1 + msgLength of room after offset)
+     * @param offset in buf where the appended message starts
+     * @return number of bytes written
+     */
+    public static int appendBatchedMessage(byte[] msg, int msgLength, byte[] buf, int offset) {
+        if (msgLength > mMaxBatchedMessageBytes)
+            throw new IllegalArgumentException("Message too long for a batch: " + msgLength);
+        buf[offset] = (byte) msgLength;
+        System.arraycopy(msg, 0, buf, offset + 1, msgLength);
+        return 1 + msgLength;
+    }
+
+    /**
+     * Checks if a received message starts with a pre-encoded protocol message, without decoding it
+     * into a String first
+     * @param buf holding the message
+     * @param offset where the message starts in buf
+     * @param length number of message bytes
+     * @param prefix pre-encoded bytes to look for
+     * @return true if the message starts with prefix
+     */
+    public static boolean startsWith(byte[] buf, int offset, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[offset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a received message starts with a pre-encoded protocol message, without decoding it
+     * into a String first
+     * @param buf holding the message between its position and limit (neither is changed)
+     * @param prefix pre-encoded bytes to look for
+     * @return true if the message starts with prefix
+     */
+    public static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+        if (buf.remaining() < prefix.length)
+            return false;
+        int start = buf.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(start + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
 }
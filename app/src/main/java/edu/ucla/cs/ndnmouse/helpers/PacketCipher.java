@@ -0,0 +1,60 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Per-session crypto context for one secure packet mode (see MousePacketCipher and
+ * MousePacketCipherGcm). The decrypted payload always starts with the 4 byte seq num, followed by
+ * the message, so servers can handle every mode the same way.
+ */
+public interface PacketCipher {
+
+    int mMaxPacketBytes = 64;                           // Room for an encrypted packet of any mode
+    int mMessageOffset = MousePacket.mSeqNumBytes;      // Where the message starts in the decrypted payload
+
+    /**
+     * @return protocol version of this packet mode (see NetworkHelpers.mProtocolVersion*)
+     */
+    byte getVersion();
+
+    /**
+     * Encrypt a message into a caller-owned buffer, ready to send out on the network
+     * @param msg buffer holding the message
+     * @param msgOffset where the message starts in msg
+     * @param msgLength number of message bytes
+     * @param seqNum for the particular server/client session
+     * @param out buffer to write the encrypted packet into
+     * @param outOffset where the packet starts in out
+     * @return number of bytes written to out
+     * @throws GeneralSecurityException for error during encryption
+     */
+    int encrypt(byte[] msg, int msgOffset, int msgLength, int seqNum, byte[] out, int outOffset) throws GeneralSecurityException;
+
+    /**
+     * Decrypt an incoming packet. The result stays in this context until the next decrypt.
+     * @param packet buffer holding the encrypted packet
+     * @param offset where the packet starts in packet
+     * @param length number of packet bytes
+     * @return number of decrypted message bytes (without seq num)
+     * @throws GeneralSecurityException if the packet is malformed or fails verification
+     */
+    int decrypt(byte[] packet, int offset, int length) throws GeneralSecurityException;
+
+    /**
+     * @return seq num of the last decrypted packet
+     */
+    int getDecryptedSeqNum();
+
+    /**
+     * Gets the buffer holding the last decrypted payload: seq num, then the message (as long as
+     * the last decrypt() returned)
+     * @return decrypted payload buffer (owned by this context, do not modify)
+     */
+    byte[] getDecryptedBuffer();
+
+    /**
+     * Gets the last decrypted mouse command message
+     * @return String message
+     */
+    String getDecryptedMessage();
+}
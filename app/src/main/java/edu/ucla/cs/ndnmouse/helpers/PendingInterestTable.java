@@ -0,0 +1,190 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Producer-side table of update interests that arrived while there was nothing to reply with. Instead
+ * of letting them time out (after which the client only re-expresses them late), they are kept until
+ * the next movement or command and then answered right away, oldest first. Interests that outlived
+ * their lifetime are dropped, since the network has forgotten them by then. The table is bounded, so
+ * a client keeping many interests outstanding can't grow it without limit (the oldest gets dropped).
+ *
+ * Only the face's thread uses the table (not thread safe).
+ *
+ * @param <T> type of the pending interests
+ */
+public class PendingInterestTable<T> {
+
+    private final ArrayDeque<Entry<T>> mEntries = new ArrayDeque<>();   // Pending interests, in arrival order
+    private final int mCapacity;                // Most interests kept pending
+    private int mExpired;                       // Interests dropped for outliving their lifetime (since the last drain)
+    private int mOverflowed;                    // Interests dropped because the table was full (since the last drain)
+
+    /**
+     * Constructor
+     * @param capacity most interests kept pending
+     */
+    public PendingInterestTable(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid pending interest table capacity: " + capacity);
+        mCapacity = capacity;
+    }
+
+    /**
+     * Keep an interest pending until there is something to reply with
+     * @param interest to keep
+     * @param arrivalNanos time the interest arrived
+     * @param expiryNanos time the interest expires in the network
+     */
+    public void add(T interest, long arrivalNanos, long expiryNanos) {
+        if (mEntries.size() >= mCapacity) {
+            mEntries.pollFirst();
+            mOverflowed++;
+        }
+        mEntries.addLast(new Entry<>(interest, arrivalNanos, expiryNanos));
+    }
+
+    /**
+     * Take the oldest interest that is still alive
+     * @param nowNanos current time
+     * @return the interest and its arrival time, or null if none are pending
+     */
+    public Entry<T> poll(long nowNanos) {
+        expire(nowNanos);
+        return mEntries.pollFirst();
+    }
+
+    /**
+     * Look at the oldest interest that is still alive without taking it
+     * @param nowNanos current time
+     * @return the interest and its arrival time, or null if none are pending
+     */
+    public Entry<T> peek(long nowNanos) {
+        expire(nowNanos);
+        return mEntries.peekFirst();
+    }
+
+    /**
+     * Take the oldest interest that is still alive and matches, keeping the others in order
+     * @param nowNanos current time
+     * @param matcher picks the interest
+     * @return the interest and its arrival time, or null if no pending interest matches
+     */
+    public Entry<T> poll(long nowNanos, Matcher<? super T> matcher) {
+        expire(nowNanos);
+        for (Iterator<Entry<T>> it = mEntries.iterator(); it.hasNext(); ) {
+            Entry<T> entry = it.next();
+            if (matcher.matches(entry.mInterest)) {
+                it.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param matcher picks the interest
+     * @return true if any pending interest matches (expired ones included, until expire() is called)
+     */
+    public boolean contains(Matcher<? super T> matcher) {
+        for (Entry<T> entry : mEntries) {
+            if (matcher.matches(entry.mInterest))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the interests that outlived their lifetime
+     * @param nowNanos current time
+     */
+    public void expire(long nowNanos) {
+        // Lifetimes differ per interest, so check them all (the table is small)
+        int size = mEntries.size();
+        for (int i = 0; i < size; i++) {
+            Entry<T> entry = mEntries.pollFirst();
+            if (entry.mExpiryNanos - nowNanos > 0)
+                mEntries.addLast(entry);
+            else
+                mExpired++;
+        }
+    }
+
+    /**
+     * @param nowNanos current time
+     * @return nanoseconds until the next pending interest expires, or -1 if none are pending
+     */
+    public long getNextExpiryNanos(long nowNanos) {
+        long next = -1;
+        for (Entry<T> entry : mEntries) {
+            long left = Math.max(0, entry.mExpiryNanos - nowNanos);
+            if (next < 0 || left < next)
+                next = left;
+        }
+        return next;
+    }
+
+    /**
+     * @return number of pending interests
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return true if no interests are pending
+     */
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * @return number of interests dropped for outliving their lifetime since the last call
+     */
+    public int drainExpired() {
+        int expired = mExpired;
+        mExpired = 0;
+        return expired;
+    }
+
+    /**
+     * @return number of interests dropped because the table was full since the last call
+     */
+    public int drainOverflowed() {
+        int overflowed = mOverflowed;
+        mOverflowed = 0;
+        return overflowed;
+    }
+
+    /**
+     * Drop all pending interests
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Picks pending interests for poll() and contains()
+     * @param <T> type of the pending interests
+     */
+    public interface Matcher<T> {
+        boolean matches(T interest);
+    }
+
+    /**
+     * A pending interest, when it arrived and when it expires
+     */
+    public static class Entry<T> {
+
+        public final T mInterest;
+        public final long mArrivalNanos;
+        final long mExpiryNanos;
+
+        Entry(T interest, long arrivalNanos, long expiryNanos) {
+            mInterest = interest;
+            mArrivalNanos = arrivalNanos;
+            mExpiryNanos = expiryNanos;
+        }
+    }
+}
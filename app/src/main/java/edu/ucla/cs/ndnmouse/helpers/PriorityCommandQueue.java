@@ -0,0 +1,62 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Bounded lock-free queue of encoded commands for many producers (the UI) and a single consumer (the
+ * server's thread), with two priorities. Urgent commands (clicks and key presses) are taken before
+ * normal ones (typed text), and each priority keeps its own order. Backed by one MpscRingQueue per
+ * priority, so neither side ever takes a lock, and a full queue rejects instead of growing.
+ */
+public class PriorityCommandQueue {
+
+    private final MpscRingQueue<byte[]> mUrgent;    // Clicks and key presses
+    private final MpscRingQueue<byte[]> mNormal;    // Typed text
+
+    /**
+     * Constructor
+     * @param capacity minimum number of commands each priority can hold
+     */
+    public PriorityCommandQueue(int capacity) {
+        mUrgent = new MpscRingQueue<>(capacity);
+        mNormal = new MpscRingQueue<>(capacity);
+    }
+
+    /**
+     * Add a command (safe to call from any thread)
+     * @param command encoded command (not null, not modified afterwards)
+     * @param urgent true for clicks and key presses, false for typed text
+     * @return true if added, false if that priority is full
+     */
+    public boolean offer(byte[] command, boolean urgent) {
+        return (urgent ? mUrgent : mNormal).offer(command);
+    }
+
+    /**
+     * Take the next command, urgent ones first (only the single consumer thread may call this)
+     * @return next command, or null if the queue is empty
+     */
+    public byte[] poll() {
+        return poll(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Take the next command if it fits, urgent ones first (only the single consumer thread may call
+     * this). A command that doesn't fit stays at the head, so the order within a priority holds.
+     * @param maxLength most bytes the command may have
+     * @return next command, or null if the queue is empty or the next command is too long
+     */
+    public byte[] poll(int maxLength) {
+        MpscRingQueue<byte[]> queue = mUrgent.isEmpty() ? mNormal : mUrgent;
+        byte[] command = queue.peek();
+        if (null == command || command.length > maxLength)
+            return null;
+        // Still the same command, since only this thread takes from the queue
+        return queue.poll();
+    }
+
+    /**
+     * @return true if there is nothing for the consumer to take right now
+     */
+    public boolean isEmpty() {
+        return mUrgent.isEmpty() && mNormal.isEmpty();
+    }
+}
@@ -0,0 +1,14 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Looks up protocol messages, commands and NDN prefixes by their string resource ID. An activity
+ * already provides this through Context.getString, headless code can back it with a map.
+ */
+public interface ProtocolStrings {
+
+    /**
+     * @param resId string resource ID (R.string.*)
+     * @return the string
+     */
+    String getString(int resId);
+}
@@ -0,0 +1,70 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Sliding anti-replay window over a session's incoming seq nums, like the one IPsec uses (RFC 4303).
+ * It remembers the highest seq num accepted so far, plus a 64 bit bitmap of which of the 64 seq nums
+ * below it were seen. A packet is accepted if it is newer than the highest, or falls inside the
+ * window and wasn't seen yet. So packets that UDP reordered still get through, while every seq num
+ * is accepted at most once. Checking and sliding are O(1).
+ *
+ * Seq nums are non-negative ints that wrap from Integer.MAX_VALUE back to 0 (same as the senders),
+ * and are compared with serial number arithmetic (RFC 1982), so the window keeps working across the
+ * wrap. Seq num 0 is taken by the opening message, so a new window starts out having seen it.
+ */
+public class ReplayWindow {
+
+    public static final int mWindowSize = 64;          // Seq nums below the highest that are still tracked
+    private static final int mSeqNumMask = Integer.MAX_VALUE;  // Seq nums use 31 bits
+    private static final int mHalfRange = 1 << 30;     // Seq nums up to this far ahead count as newer
+
+    private int mHighest = 0;                           // Highest seq num accepted so far
+    private long mSeen = 1;                             // Bit i set if seq num (mHighest - i) was accepted
+
+    /**
+     * Check a seq num from an authenticated packet, and mark it as seen if it is accepted
+     * @param seqNum of the packet
+     * @return true if the packet is new, false if it is a replay or too old for the window
+     */
+    public synchronized boolean accept(int seqNum) {
+        if (seqNum < 0)
+            return false;
+        int ahead = (seqNum - mHighest) & mSeqNumMask;
+        if (0 == ahead)
+            return false;
+
+        if (ahead < mHalfRange) {
+            // Newer than anything so far: slide the window up
+            mSeen = (ahead < mWindowSize) ? (mSeen << ahead) | 1 : 1;
+            mHighest = seqNum;
+            return true;
+        }
+
+        // Older: only accept it once, and only while it is inside the window
+        int behind = (mSeqNumMask - ahead) + 1;
+        if (behind >= mWindowSize)
+            return false;
+        long bit = 1L << behind;
+        if (0 != (mSeen & bit))
+            return false;
+        mSeen |= bit;
+        return true;
+    }
+
+    /**
+     * @return highest seq num accepted so far
+     */
+    public synchronized int getHighest() {
+        return mHighest;
+    }
+
+    /**
+     * Check if one seq num comes after another, taking the wrap into account
+     * @param seqNum to check
+     * @param than seq num to compare to
+     * @return true if seqNum is newer
+     */
+    public static boolean isNewer(int seqNum, int than) {
+        int ahead = (seqNum - than) & mSeqNumMask;
+        return 0 != ahead && ahead < mHalfRange;
+    }
+}
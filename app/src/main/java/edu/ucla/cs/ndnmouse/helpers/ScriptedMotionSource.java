@@ -0,0 +1,231 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Motion source that plays back a fixed script of movement steps instead of touches, so the servers
+ * can be driven headless (unit tests, benchmarks, load tests). The same script always produces the
+ * same movement, and it can be replayed from the start with rewind().
+ *
+ * Steps can be played one at a time with advance() (deterministic, no threads), or in real time on a
+ * background thread with start()/stop(), which waits each step's delay first. A play listener is told
+ * when each step was played, so load tests can measure the latency from input to update.
+ */
+public class ScriptedMotionSource implements MotionSource {
+
+    private final MotionAccumulator mMotion = new MotionAccumulator();     // Relative movement shared with all sessions
+    private final List<MotionDispatcher> mMotionDispatchers = new CopyOnWriteArrayList<>();  // Per-session dispatchers to wake on new movement
+    private final List<Step> mSteps = new ArrayList<>();                    // The script
+    private final byte mDefaultMoveType;        // Move type before the first step
+    private volatile byte mMoveType;            // Move type of the last played step
+    private int mNextStep;                      // Index of the next step to play
+    private volatile Thread mPlayer;            // Background player, null when not playing
+    private volatile PlayListener mPlayListener;    // Told about every played step, or null
+    private long mTotalX;                       // Horizontal movement played so far (guarded by mTotalLock)
+    private long mTotalY;                       // Vertical movement played so far (guarded by mTotalLock)
+    private final Object mTotalLock = new Object();
+
+    /**
+     * Told about every step as it is played, before any session is woken up for it
+     */
+    public interface PlayListener {
+        /**
+         * Called on the thread that played the step
+         * @param totalX horizontal movement played so far, including this step
+         * @param totalY vertical movement played so far, including this step
+         * @param playedNanos when the step was played (System.nanoTime())
+         */
+        void onStepPlayed(long totalX, long totalY, long playedNanos);
+    }
+
+    /**
+     * One movement of the script
+     */
+    public static class Step {
+        final int mDx;                  // Horizontal pixels moved
+        final int mDy;                  // Vertical pixels moved
+        final byte mMoveType;           // Relative or scrolling movement (protocol byte)
+        final int mDelayMillis;         // Wait before this step when playing in real time
+
+        public Step(int dx, int dy, byte moveType, int delayMillis) {
+            mDx = dx;
+            mDy = dy;
+            mMoveType = moveType;
+            mDelayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param defaultMoveType move type before the first step (normally relative movement)
+     */
+    public ScriptedMotionSource(byte defaultMoveType) {
+        mDefaultMoveType = defaultMoveType;
+        mMoveType = defaultMoveType;
+    }
+
+    /**
+     * Append a step to the script
+     * @param dx horizontal pixels moved
+     * @param dy vertical pixels moved
+     * @param moveType relative or scrolling movement (protocol byte)
+     * @param delayMillis wait before this step when playing in real time
+     * @return this source, to chain more steps
+     */
+    public synchronized ScriptedMotionSource addStep(int dx, int dy, byte moveType, int delayMillis) {
+        mSteps.add(new Step(dx, dy, moveType, delayMillis));
+        return this;
+    }
+
+    /**
+     * Append a full circle, split into equal steps (a steady stream of small movements, like a drag)
+     * @param radius of the circle in pixels
+     * @param steps number of steps to split the circle into
+     * @param moveType relative or scrolling movement (protocol byte)
+     * @param intervalMillis wait before each step when playing in real time
+     * @return this source, to chain more steps
+     */
+    public synchronized ScriptedMotionSource addCircle(int radius, int steps, byte moveType, int intervalMillis) {
+        int lastX = radius, lastY = 0;
+        for (int i = 1; i <= steps; i++) {
+            double angle = 2 * Math.PI * i / steps;
+            int x = (int) Math.round(radius * Math.cos(angle));
+            int y = (int) Math.round(radius * Math.sin(angle));
+            mSteps.add(new Step(x - lastX, y - lastY, moveType, intervalMillis));
+            lastX = x;
+            lastY = y;
+        }
+        return this;
+    }
+
+    /**
+     * @return number of steps in the script
+     */
+    public synchronized int size() {
+        return mSteps.size();
+    }
+
+    /**
+     * @return total time to play the script once in real time, in milliseconds
+     */
+    public synchronized long getDurationMillis() {
+        long duration = 0;
+        for (Step step : mSteps)
+            duration += step.mDelayMillis;
+        return duration;
+    }
+
+    /**
+     * Play the next step right away: add its movement and wake all sessions
+     * @return false if the script is over (nothing was played)
+     */
+    public synchronized boolean advance() {
+        if (mNextStep >= mSteps.size())
+            return false;
+        play(mSteps.get(mNextStep++));
+        return true;
+    }
+
+    /**
+     * Start the script over from the first step (movement already played stays consumed)
+     */
+    public synchronized void rewind() {
+        mNextStep = 0;
+        mMoveType = mDefaultMoveType;
+    }
+
+    /**
+     * Play the script in real time on a background thread
+     * @param loop true to rewind and start over whenever the script ends
+     */
+    public synchronized void start(final boolean loop) {
+        if (null != mPlayer)
+            return;
+        mPlayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (Thread.currentThread() == mPlayer) {
+                        Step step = nextStep(loop);
+                        if (null == step)
+                            break;
+                        if (step.mDelayMillis > 0)
+                            Thread.sleep(step.mDelayMillis);
+                        play(step);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped while waiting for the next step
+                }
+            }
+        });
+        mPlayer.start();
+    }
+
+    /**
+     * Stop playing in real time (the script position is kept)
+     */
+    public synchronized void stop() {
+        Thread player = mPlayer;
+        mPlayer = null;
+        if (null != player)
+            player.interrupt();
+    }
+
+    /**
+     * @param loop true to rewind when the script is over
+     * @return next step to play (advancing past it), or null if the script is over
+     */
+    private synchronized Step nextStep(boolean loop) {
+        if (mNextStep >= mSteps.size()) {
+            if (!loop || mSteps.isEmpty())
+                return null;
+            mNextStep = 0;
+        }
+        return mSteps.get(mNextStep++);
+    }
+
+    private void play(Step step) {
+        mMoveType = step.mMoveType;
+        // Listener first, so the step is known before any session can send it out
+        synchronized (mTotalLock) {
+            mTotalX += step.mDx;
+            mTotalY += step.mDy;
+            PlayListener listener = mPlayListener;
+            if (null != listener)
+                listener.onStepPlayed(mTotalX, mTotalY, System.nanoTime());
+            mMotion.add(step.mDx, step.mDy);
+        }
+        for (MotionDispatcher dispatcher : mMotionDispatchers)
+            dispatcher.signal();
+    }
+
+    /**
+     * Set a listener to tell about every played step
+     * @param listener to call, or null to remove it
+     */
+    public void setPlayListener(PlayListener listener) {
+        mPlayListener = listener;
+    }
+
+    @Override
+    public MotionAccumulator.Cursor newMotionCursor() {
+        return mMotion.newCursor();
+    }
+
+    @Override
+    public void addMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotionDispatchers.add(dispatcher);
+    }
+
+    @Override
+    public void removeMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotionDispatchers.remove(dispatcher);
+    }
+
+    @Override
+    public byte getMoveType() {
+        return mMoveType;
+    }
+}
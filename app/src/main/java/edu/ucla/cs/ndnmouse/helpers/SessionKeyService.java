@@ -0,0 +1,182 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the keys of secure sessions from the user's password, doing the work that only depends on
+ * the password once, and caching the keys of recent salts (each session is salted with the IV of its
+ * opening packet) in a bounded LRU.
+ *
+ * Two derivations exist:
+ *  - Legacy: SHA-256(password + salt), cut to 128 bits, same as NetworkHelpers.makeKeyFromPassword()
+ *    and the Python clients. The digest of the password is computed once and cloned for each salt.
+ *  - HKDF (protocol version mProtocolVersionHkdf and up): HKDF-SHA256 (RFC 5869) with the password as
+ *    input key material. The extract step runs once, and each session key is one HMAC expanding the
+ *    pseudorandom key with the salt.
+ *
+ * The opening message and OPEN-ACK always use the legacy keys, since the client doesn't know the
+ * negotiated version yet. All methods are thread safe.
+ */
+public class SessionKeyService {
+
+    private static final int mKeyBytes = 16;                    // AES-128
+    static final int mCacheSize = 64;                           // Most session keys kept around
+    private static final byte[] mHkdfSalt = bytes("ndnMouse HKDF salt");     // Fixed salt for the extract step
+    private static final byte[] mHkdfInfo = bytes("ndnMouse session key");   // Context for the expand step (the session salt is appended)
+
+    private static final byte mKindLegacy = 0;                  // Cache key prefixes, so both derivations of one salt can be cached
+    private static final byte mKindHkdf = 1;
+
+    private final byte[] mPassword;                             // UTF-8 bytes of the password
+    private SecretKeySpec mOpenKey;                             // Legacy key of the opening message (derived on first use)
+    private MessageDigest mPasswordDigest;                      // SHA-256 that has already seen the password (cloned for each salt)
+    private Mac mExpandMac;                                     // HMAC keyed with the HKDF pseudorandom key
+    private final LinkedHashMap<ByteBuffer, SecretKeySpec> mCache = new LinkedHashMap<ByteBuffer, SecretKeySpec>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SecretKeySpec> eldest) {
+            return size() > mCacheSize;
+        }
+    };
+    private long mHits;                                         // Keys found in the cache
+    private long mMisses;                                       // Keys that had to be derived
+
+    /**
+     * Constructor (cheap: nothing is derived until the first key is needed, or prewarm() is called)
+     * @param password from the user
+     * @throws UnsupportedEncodingException if UTF-8 is missing
+     */
+    public SessionKeyService(String password) throws UnsupportedEncodingException {
+        mPassword = password.getBytes("UTF-8");
+    }
+
+    /**
+     * Derive the password's base keys and load the crypto providers that sessions use, so the first
+     * connection doesn't pay for it. Call from the server's thread when it starts.
+     * @throws GeneralSecurityException if a required algorithm is missing
+     */
+    public synchronized void prewarm() throws GeneralSecurityException {
+        getOpenKey();
+        getPasswordDigest();
+        getExpandMac();
+
+        // Providers are loaded and initialized on first use
+        SecretKeySpec key = new SecretKeySpec(new byte[mKeyBytes], "AES");
+        Cipher.getInstance("AES/CBC/NoPadding").init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[mKeyBytes]));
+        try {
+            Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            // Not available before KitKat, where sessions never negotiate GCM anyway
+        }
+    }
+
+    /**
+     * @return legacy key of the opening message, SHA-256 of the password
+     * @throws GeneralSecurityException if SHA-256 is missing
+     */
+    public synchronized SecretKeySpec getOpenKey() throws GeneralSecurityException {
+        if (null == mOpenKey)
+            mOpenKey = new SecretKeySpec(Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(mPassword), mKeyBytes), "AES");
+        return mOpenKey;
+    }
+
+    /**
+     * Get the key for a session
+     * @param salt of the session (the IV of its opening packet)
+     * @param version negotiated for the session (use mProtocolVersionLegacy for the OPEN-ACK)
+     * @return 128 bit (16 B) session key
+     * @throws GeneralSecurityException if SHA-256 or HMAC-SHA256 is missing
+     */
+    public synchronized SecretKeySpec getSessionKey(byte[] salt, byte version) throws GeneralSecurityException {
+        boolean hkdf = version >= NetworkHelpers.mProtocolVersionHkdf;
+        byte[] cacheKey = new byte[salt.length + 1];
+        cacheKey[0] = hkdf ? mKindHkdf : mKindLegacy;
+        System.arraycopy(salt, 0, cacheKey, 1, salt.length);
+        ByteBuffer wrapped = ByteBuffer.wrap(cacheKey);
+
+        SecretKeySpec key = mCache.get(wrapped);
+        if (null != key) {
+            mHits++;
+            return key;
+        }
+        mMisses++;
+        key = hkdf ? deriveHkdf(salt) : deriveLegacy(salt);
+        mCache.put(wrapped, key);
+        return key;
+    }
+
+    /**
+     * @return number of session keys found in the cache
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return number of session keys that had to be derived
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private SecretKeySpec deriveLegacy(byte[] salt) throws GeneralSecurityException {
+        MessageDigest sha;
+        try {
+            sha = (MessageDigest) getPasswordDigest().clone();
+        } catch (CloneNotSupportedException e) {
+            // Some providers can't clone, so hash the password again
+            sha = MessageDigest.getInstance("SHA-256");
+            sha.update(mPassword);
+        }
+        sha.update(salt);
+        return new SecretKeySpec(Arrays.copyOf(sha.digest(), mKeyBytes), "AES");
+    }
+
+    private SecretKeySpec deriveHkdf(byte[] salt) throws GeneralSecurityException {
+        // Output is shorter than one HMAC block, so a single round of the expand step is enough
+        Mac mac = getExpandMac();
+        mac.update(mHkdfInfo);
+        mac.update(salt);
+        mac.update((byte) 1);
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), mKeyBytes), "AES");
+    }
+
+    private MessageDigest getPasswordDigest() throws NoSuchAlgorithmException {
+        if (null == mPasswordDigest) {
+            mPasswordDigest = MessageDigest.getInstance("SHA-256");
+            mPasswordDigest.update(mPassword);
+        }
+        return mPasswordDigest;
+    }
+
+    private Mac getExpandMac() throws GeneralSecurityException {
+        if (null == mExpandMac) {
+            // Extract: the pseudorandom key is HMAC(salt, password)
+            Mac extract = Mac.getInstance("HmacSHA256");
+            extract.init(new SecretKeySpec(mHkdfSalt, "HmacSHA256"));
+            byte[] prk = extract.doFinal(mPassword);
+            mExpandMac = Mac.getInstance("HmacSHA256");
+            mExpandMac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        }
+        return mExpandMac;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The instruments one server session updates, looked up once from the registry so the packet paths
+ * only pay for the atomic updates. All names share the session's prefix, and close() removes them.
+ */
+public class SessionMetrics {
+
+    private final MetricsRegistry mRegistry;
+    private final String mPrefix;                   // Path of this session, e.g. "udp/10.0.0.2:54321/"
+
+    public final Counter mPacketsSent;              // Every packet sent to the client (updates, commands, acks)
+    public final Counter mPacketsReceived;          // Every packet received from the client
+    public final Histogram mCoalescedDeltas;        // Touch events folded into each sent move update
+    public final Histogram mMessagesPerPacket;      // Messages (movement and commands) each batched packet carried
+    public final Histogram mEncryptNanos;           // Time to encrypt one packet
+    public final Histogram mDecryptNanos;           // Time to decrypt one packet
+    public final Histogram mHeartbeatGapMillis;     // Time between heartbeats from the client
+    public final Histogram mHeartbeatAckNanos;      // Time from receiving a heartbeat to sending its ack
+    public final Counter mDrops;                    // Bad messages counted against the session
+    public final Counter mDropTrips;                // Times the bad message limit ended the session
+    public final Counter mReplays;                  // Messages rejected by the replay window (duplicates or too old)
+    public final Counter mIntervalMillis;           // Update interval picked by the adaptive rate
+    public final AtomicReference<String> mRateReason;   // Why that interval was picked
+
+    private long mLastHeartbeatNanos;               // Arrival of the previous heartbeat (receiving thread only)
+
+    /**
+     * Constructor
+     * @param registry to register the instruments in
+     * @param prefix path shared by all of this session's names (should end with '/')
+     */
+    public SessionMetrics(MetricsRegistry registry, String prefix) {
+        mRegistry = registry;
+        mPrefix = prefix;
+        mPacketsSent = registry.counter(prefix + "sent");
+        mPacketsReceived = registry.counter(prefix + "received");
+        mCoalescedDeltas = registry.histogram(prefix + "coalesced");
+        mMessagesPerPacket = registry.histogram(prefix + "messages_per_packet");
+        mEncryptNanos = registry.histogram(prefix + "encrypt_ns");
+        mDecryptNanos = registry.histogram(prefix + "decrypt_ns");
+        mHeartbeatGapMillis = registry.histogram(prefix + "heartbeat_gap_ms");
+        mHeartbeatAckNanos = registry.histogram(prefix + "heartbeat_ack_ns");
+        mDrops = registry.counter(prefix + "drops");
+        mDropTrips = registry.counter(prefix + "drop_trips");
+        mReplays = registry.counter(prefix + "replays");
+        mIntervalMillis = registry.counter(prefix + "interval_ms");
+        mRateReason = registry.label(prefix + "rate_reason");
+    }
+
+    /**
+     * Record a heartbeat's arrival
+     * @param nowNanos arrival time
+     */
+    public void onHeartbeat(long nowNanos) {
+        if (0 != mLastHeartbeatNanos)
+            mHeartbeatGapMillis.record((nowNanos - mLastHeartbeatNanos) / 1000000);
+        mLastHeartbeatNanos = nowNanos;
+    }
+
+    /**
+     * Publish the update interval and reason currently picked by the adaptive rate
+     * @param rate of this session
+     */
+    public void onRate(AdaptiveRate rate) {
+        mIntervalMillis.set(rate.getIntervalMillis());
+        mRateReason.set(AdaptiveRate.getReasonName(rate.getReason()));
+    }
+
+    /**
+     * Remove all of this session's metrics from the registry
+     */
+    public void close() {
+        mRegistry.removeAll(mPrefix);
+    }
+}
@@ -0,0 +1,192 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map of server sessions (keyed by the client's address and port) that also evicts
+ * sessions whose client went silent. Every session remembers when its client was last seen, and a
+ * timer wheel checks it once the idle timeout could have run out. Seeing the client again doesn't
+ * touch the wheel: when the check comes around and the client was seen in the meantime, the session
+ * is just scheduled again for the new deadline. So keeping a session alive costs one volatile write.
+ *
+ * The receiving thread owns the registry and is the only one that may call put() and expire().
+ * Lookups, touch(), remove() and iterating over sessions() are safe from any thread (iterating never
+ * throws ConcurrentModificationException, and sees sessions added or removed meanwhile or not).
+ *
+ * @param <K> type of the session key (e.g. InetSocketAddress)
+ * @param <S> type of the sessions
+ */
+public class SessionRegistry<K, S> {
+
+    private final ConcurrentHashMap<K, Entry<K, S>> mEntries = new ConcurrentHashMap<>();   // Current sessions by client
+    private final TimerWheel<Entry<K, S>> mWheel;       // Idle timeout checks (owning thread only)
+    private final ArrayList<Entry<K, S>> mDue = new ArrayList<>();   // Reused for the checks that came up (owning thread only)
+    private final long mIdleTimeoutNanos;               // Sessions not seen for this long are evicted
+
+    // Live view of the sessions, for fanning out commands
+    private final Collection<S> mSessions = new AbstractCollection<S>() {
+        @Override
+        public Iterator<S> iterator() {
+            final Iterator<Entry<K, S>> entries = mEntries.values().iterator();
+            return new Iterator<S>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public S next() {
+                    return entries.next().mSession;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param idleTimeoutMillis milliseconds a client may stay silent before its session is evicted
+     * @param tickMillis resolution of the idle checks (sessions are evicted up to this much late)
+     */
+    public SessionRegistry(int idleTimeoutMillis, int tickMillis) {
+        mIdleTimeoutNanos = idleTimeoutMillis * 1000000L;
+        // One turn of the wheel covers the idle timeout, so most checks land in their own turn
+        int slotCount = Math.max(1, (idleTimeoutMillis + tickMillis - 1) / tickMillis + 1);
+        mWheel = new TimerWheel<>(tickMillis * 1000000L, slotCount, System.nanoTime());
+    }
+
+    /**
+     * @param key of the client
+     * @return its session, or null if there is none
+     */
+    public S get(K key) {
+        Entry<K, S> entry = mEntries.get(key);
+        return (null != entry) ? entry.mSession : null;
+    }
+
+    /**
+     * Add a session for a client that was just seen (owning thread only)
+     * @param key of the client
+     * @param session to add
+     * @param nowNanos current time
+     * @return the session it replaced, or null if there was none (the caller should end it)
+     */
+    public S put(K key, S session, long nowNanos) {
+        Entry<K, S> entry = new Entry<>(key, session, nowNanos);
+        Entry<K, S> replaced = mEntries.put(key, entry);
+        mWheel.schedule(entry, nowNanos + mIdleTimeoutNanos);
+        return (null != replaced) ? replaced.mSession : null;
+    }
+
+    /**
+     * Record that a client was seen, which keeps its session from being evicted
+     * @param key of the client
+     * @param nowNanos current time
+     * @return false if the client has no session
+     */
+    public boolean touch(K key, long nowNanos) {
+        Entry<K, S> entry = mEntries.get(key);
+        if (null == entry)
+            return false;
+        entry.mLastSeenNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * Remove a client's session (its idle check is dropped when it comes up)
+     * @param key of the client
+     * @return the removed session, or null if there was none (the caller should end it)
+     */
+    public S remove(K key) {
+        Entry<K, S> entry = mEntries.remove(key);
+        return (null != entry) ? entry.mSession : null;
+    }
+
+    /**
+     * Evict the sessions whose clients have been silent for longer than the idle timeout (owning
+     * thread only). Cheap to call on every loop iteration, since it only does work once per tick.
+     * @param nowNanos current time
+     * @param evicted list to add the evicted sessions to (the caller should end them)
+     * @return number of evicted sessions
+     */
+    public int expire(long nowNanos, List<? super S> evicted) {
+        if (0 == mWheel.advance(nowNanos, mDue))
+            return 0;
+
+        int count = 0;
+        for (int i = 0; i < mDue.size(); i++) {
+            Entry<K, S> entry = mDue.get(i);
+            // Skip checks of sessions that were removed or replaced since
+            if (entry != mEntries.get(entry.mKey))
+                continue;
+            long deadline = entry.mLastSeenNanos + mIdleTimeoutNanos;
+            if (deadline - nowNanos > 0) {
+                // Seen since this check was scheduled
+                mWheel.schedule(entry, deadline);
+            } else if (mEntries.remove(entry.mKey, entry)) {
+                evicted.add(entry.mSession);
+                count++;
+            }
+        }
+        mDue.clear();
+        return count;
+    }
+
+    /**
+     * @return time the next idle check is due (the longest the owning thread should block for)
+     */
+    public long getNextCheckNanos() {
+        return mWheel.getNextTickNanos();
+    }
+
+    /**
+     * @return live view of all current sessions (safe to iterate from any thread, but read-only)
+     */
+    public Collection<S> sessions() {
+        return mSessions;
+    }
+
+    /**
+     * @return number of current sessions
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Remove all sessions (the caller should end them first)
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * A session and when its client was last seen
+     */
+    private static class Entry<K, S> {
+
+        final K mKey;
+        final S mSession;
+        volatile long mLastSeenNanos;
+
+        Entry(K key, S session, long lastSeenNanos) {
+            mKey = key;
+            mSession = session;
+            mLastSeenNanos = lastSeenNanos;
+        }
+    }
+}
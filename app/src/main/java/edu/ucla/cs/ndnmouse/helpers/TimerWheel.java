@@ -0,0 +1,122 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel: a ring of slots, one per tick, where each timeout is dropped into the slot of
+ * the tick it expires on. Scheduling is O(1), and advancing only visits the slots of the ticks that
+ * passed, so the owner can check it on every loop iteration. Timeouts further out than one turn of
+ * the wheel simply stay in their slot until the turn they are due. Deadlines are rounded up to whole
+ * ticks, so a timeout fires up to one tick late but never early.
+ *
+ * Times are System.nanoTime() values passed in by the caller. Only one thread may use a wheel.
+ *
+ * @param <T> type of the scheduled items
+ */
+public class TimerWheel<T> {
+
+    private final long mTickNanos;                          // Length of one tick
+    private final long mStartNanos;                         // Time of tick 0
+    private final ArrayList<ArrayList<Timeout<T>>> mSlots;  // Scheduled timeouts, by tick modulo the number of slots
+    private long mNextTick;                                 // First tick that hasn't been processed yet
+    private int mSize;                                      // Number of scheduled timeouts
+
+    /**
+     * Constructor
+     * @param tickNanos length of one tick (the timer resolution)
+     * @param slotCount number of ticks in one turn of the wheel
+     * @param nowNanos current time
+     */
+    public TimerWheel(long tickNanos, int slotCount, long nowNanos) {
+        if (tickNanos <= 0 || slotCount <= 0)
+            throw new IllegalArgumentException("Invalid timer wheel size: " + slotCount + " ticks of " + tickNanos + " ns");
+        mTickNanos = tickNanos;
+        mStartNanos = nowNanos;
+        mSlots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++)
+            mSlots.add(new ArrayList<Timeout<T>>());
+        mNextTick = 1;
+    }
+
+    /**
+     * Schedule an item to expire at (or up to one tick after) the deadline
+     * @param item to hand back from advance() once due
+     * @param deadlineNanos time the item expires
+     */
+    public void schedule(T item, long deadlineNanos) {
+        long tick = Math.max(mNextTick, ceilTick(deadlineNanos));
+        mSlots.get((int) (tick % mSlots.size())).add(new Timeout<>(item, tick));
+        mSize++;
+    }
+
+    /**
+     * Process every tick up to now, and collect the items that expired
+     * @param nowNanos current time
+     * @param expired list to add the expired items to
+     * @return number of expired items
+     */
+    public int advance(long nowNanos, List<? super T> expired) {
+        long nowTick = (nowNanos - mStartNanos) / mTickNanos;
+        if (nowTick < mNextTick)
+            return 0;
+
+        // After a long gap, one pass over all slots finds everything that is due
+        long lastTick = Math.min(nowTick, mNextTick + mSlots.size() - 1);
+        int count = 0;
+        for (long tick = mNextTick; tick <= lastTick; tick++) {
+            ArrayList<Timeout<T>> slot = mSlots.get((int) (tick % mSlots.size()));
+            // Remove the due timeouts in place, keeping the ones that belong to a later turn
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Timeout<T> timeout = slot.get(i);
+                if (timeout.mTick <= nowTick) {
+                    expired.add(timeout.mItem);
+                    count++;
+                } else {
+                    slot.set(kept++, timeout);
+                }
+            }
+            for (int i = slot.size() - 1; i >= kept; i--)
+                slot.remove(i);
+        }
+        mNextTick = nowTick + 1;
+        mSize -= count;
+        return count;
+    }
+
+    /**
+     * @return time the next tick is due (the longest an owner should wait before calling advance())
+     */
+    public long getNextTickNanos() {
+        return mStartNanos + mNextTick * mTickNanos;
+    }
+
+    /**
+     * @return number of scheduled timeouts
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private long ceilTick(long nanos) {
+        long offset = nanos - mStartNanos;
+        if (offset <= 0)
+            return 0;
+        return (offset + mTickNanos - 1) / mTickNanos;
+    }
+
+    /**
+     * A scheduled item and the tick it expires on
+     */
+    private static class Timeout<T> {
+
+        final T mItem;
+        final long mTick;
+
+        Timeout(T item, long tick) {
+            mItem = item;
+            mTick = tick;
+        }
+    }
+}
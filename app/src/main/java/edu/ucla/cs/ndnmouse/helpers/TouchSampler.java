@@ -0,0 +1,120 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Turns absolute touchpad samples into relative movement for a MotionAccumulator. Every sample is
+ * fed in, including the historical ones that Android batches into a single MotionEvent, and
+ * movement is kept as floats: changes below the precision, and the fractions of a pixel left over
+ * when whole pixels are added, are carried forward to the next sample instead of being dropped. So
+ * the sum of what gets added always follows the finger's path within one pixel.
+ *
+ * Only the producer touches this, normally the UI thread (not thread safe).
+ */
+public class TouchSampler {
+
+    private final MotionAccumulator mMotion;    // Where whole pixels of movement are added
+    private int mPrecision;                     // Min pending change in pixels before it is added
+    private int mWidth;                         // Pixel width of the touchpad (samples outside are ignored)
+    private int mHeight;                        // Pixel height of the touchpad (samples outside are ignored)
+    private boolean mTouchDown = false;         // Movement only counts while touching down
+    private float mLastX;                       // Last sample on the touchpad
+    private float mLastY;
+    private float mPendingX;                    // Movement since the last add (below precision or a fraction of a pixel)
+    private float mPendingY;
+
+    /**
+     * Constructor
+     * @param motion accumulator to add movement to
+     * @param precision min change in pixels to count as a movement update
+     */
+    public TouchSampler(MotionAccumulator motion, int precision) {
+        mMotion = motion;
+        mPrecision = precision;
+    }
+
+    /**
+     * @param precision min change in pixels to count as a movement update
+     */
+    public void setPrecision(int precision) {
+        mPrecision = precision;
+    }
+
+    /**
+     * @param width pixel width of the touchpad
+     * @param height pixel height of the touchpad
+     */
+    public void setBounds(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Start relative movement from a new touch point (prevents a jump if the user touches down in a
+     * different spot)
+     * @param x horizontal coordinate on the touchpad
+     * @param y vertical coordinate on the touchpad
+     */
+    public void touchDown(float x, float y) {
+        mTouchDown = true;
+        mPendingX = 0;
+        mPendingY = 0;
+        if (isOnTouchpad(x, y)) {
+            mLastX = x;
+            mLastY = y;
+        }
+    }
+
+    /**
+     * Stop counting movement. Whatever is still pending is below the precision, so it is dropped
+     * (otherwise a tap would nudge the cursor right before its click).
+     */
+    public void touchUp() {
+        mTouchDown = false;
+        mPendingX = 0;
+        mPendingY = 0;
+    }
+
+    /**
+     * Feed one sample of the finger's position, in the order they happened
+     * @param x horizontal coordinate on the touchpad
+     * @param y vertical coordinate on the touchpad
+     * @return true if movement was added to the accumulator
+     */
+    public boolean sample(float x, float y) {
+        if (!isOnTouchpad(x, y))
+            return false;
+        if (mTouchDown) {
+            mPendingX += x - mLastX;
+            mPendingY += y - mLastY;
+        }
+        mLastX = x;
+        mLastY = y;
+        if (Math.abs(mPendingX) < mPrecision && Math.abs(mPendingY) < mPrecision)
+            return false;
+
+        // Add whole pixels, and keep the fractions for the next update
+        int dx = (int) mPendingX;
+        int dy = (int) mPendingY;
+        mPendingX -= dx;
+        mPendingY -= dy;
+        mMotion.add(dx, dy);
+        return true;
+    }
+
+    /**
+     * @return horizontal coordinate of the last sample on the touchpad
+     */
+    public float getX() {
+        return mLastX;
+    }
+
+    /**
+     * @return vertical coordinate of the last sample on the touchpad
+     */
+    public float getY() {
+        return mLastY;
+    }
+
+    private boolean isOnTouchpad(float x, float y) {
+        return (0 <= x && 0 <= y) && (x <= mWidth && y <= mHeight);
+    }
+}
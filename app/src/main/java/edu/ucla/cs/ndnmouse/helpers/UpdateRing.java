@@ -0,0 +1,85 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+/**
+ * Bounded ring of the most recent updates, indexed by their seq num. Every added update gets the next
+ * seq num, and once the ring is full each new update overwrites the oldest one. The NDN server keeps
+ * its encoded seq-numbered data here, so a consumer that missed some can fetch them again.
+ *
+ * Seq nums are longs counting up from the first one, so they never wrap. Only the face's thread uses
+ * the ring (not thread safe).
+ *
+ * @param <T> type of the updates
+ */
+public class UpdateRing<T> {
+
+    private final Object[] mSlots;              // Updates, each at (seq num % capacity)
+    private final long mFirstSeqNum;            // Seq num of the first update ever added
+    private long mNextSeqNum;                   // Seq num the next added update gets
+
+    /**
+     * Constructor
+     * @param capacity number of recent updates kept
+     * @param firstSeqNum seq num of the first update
+     */
+    public UpdateRing(int capacity, long firstSeqNum) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid update ring capacity: " + capacity);
+        if (firstSeqNum < 0)
+            throw new IllegalArgumentException("Invalid first seq num: " + firstSeqNum);
+        mSlots = new Object[capacity];
+        mFirstSeqNum = firstSeqNum;
+        mNextSeqNum = firstSeqNum;
+    }
+
+    /**
+     * Add the next update, dropping the oldest one if the ring is full
+     * @param update to add (not null)
+     * @return seq num of the update
+     */
+    public long add(T update) {
+        if (null == update)
+            throw new NullPointerException();
+        long seqNum = mNextSeqNum++;
+        mSlots[(int) (seqNum % mSlots.length)] = update;
+        return seqNum;
+    }
+
+    /**
+     * @param seqNum of the update
+     * @return the update, or null if it wasn't added yet or was already dropped
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long seqNum) {
+        if (seqNum < getOldestSeqNum() || seqNum >= mNextSeqNum)
+            return null;
+        return (T) mSlots[(int) (seqNum % mSlots.length)];
+    }
+
+    /**
+     * @return seq num the next added update gets
+     */
+    public long getNextSeqNum() {
+        return mNextSeqNum;
+    }
+
+    /**
+     * @return seq num of the oldest update still kept (equals getNextSeqNum() while empty)
+     */
+    public long getOldestSeqNum() {
+        return Math.max(mFirstSeqNum, mNextSeqNum - mSlots.length);
+    }
+
+    /**
+     * @return number of updates kept
+     */
+    public int size() {
+        return (int) (mNextSeqNum - getOldestSeqNum());
+    }
+
+    /**
+     * @return most updates kept
+     */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+}
@@ -0,0 +1,98 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.ucla.cs.ndnmouse.helpers.EncodedCommand;
+import edu.ucla.cs.ndnmouse.helpers.MpscRingQueue;
+
+/**
+ * Dedicated sender stage for clicks, key presses and typed messages. The UI thread (or any other
+ * producer) hands over already encoded commands through a bounded lock-free queue, and a single
+ * sender thread drains it and fans the commands out to every client, all that queued up at once
+ * together (so clients that take batches get them in as few packets as fit). This replaces starting
+ * a new AsyncTask for every command, which queued commands up behind each other on the serial executor.
+ */
+class CommandSender implements Runnable {
+
+    private static final String TAG = CommandSender.class.getSimpleName();
+    private static final int mQueueCapacity = 256;      // Max commands waiting to be sent. May require tuning.
+
+    /**
+     * Receives every command, on the sender thread
+     */
+    interface Target {
+        /**
+         * Send encoded commands to all current clients
+         * @param commands encoded in every protocol form, in order (shared, do not modify)
+         */
+        void sendToClients(List<EncodedCommand> commands);
+    }
+
+    private final MpscRingQueue<EncodedCommand> mQueue = new MpscRingQueue<>(mQueueCapacity);
+    private final ArrayList<EncodedCommand> mBurst = new ArrayList<>();    // Commands taken from the queue at once (sender thread only)
+    private final Target mTarget;
+    private volatile boolean mIsRunning = false;    // Helps start and stop the sender thread
+    private volatile Thread mThread;                // Sender thread (parked while the queue is empty)
+
+    /**
+     * Constructor
+     * @param target to send every command to
+     */
+    CommandSender(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * Spins the sender off into its own background thread
+     */
+    void start() {
+        mIsRunning = true;
+        mThread = new Thread(this);
+        mThread.start();
+    }
+
+    /**
+     * Stops the sender thread (commands still in the queue are dropped)
+     */
+    void stop() {
+        mIsRunning = false;
+        Thread thread = mThread;
+        if (null != thread)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queue a command to be sent to all clients
+     * @param command encoded command
+     * @return true if queued, false if the queue was full and the command was dropped
+     */
+    boolean send(EncodedCommand command) {
+        if (!mQueue.offer(command)) {
+            Logger.e(TAG, "Command queue full, dropping command!");
+            return false;
+        }
+        Thread thread = mThread;
+        if (null != thread)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (mIsRunning) {
+            EncodedCommand command;
+            while (mBurst.size() < mQueueCapacity && null != (command = mQueue.poll()))
+                mBurst.add(command);
+            if (!mBurst.isEmpty()) {
+                mTarget.sendToClients(mBurst);
+                mBurst.clear();
+            } else {
+                // Producers unpark us after every offer, so a command can't slip in unnoticed
+                LockSupport.park(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+import android.util.Log;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.ucla.cs.ndnmouse.BuildConfig;
+
+/**
+ * Logging facade for the app. Verbose and debug logs only print in debug builds, and release builds
+ * strip those calls entirely (see the assumenosideeffects rules in proguard-rules.pro), so they may
+ * stay on the connection paths. Per-packet logs must not pay even that, so they go through the
+ * sampled trace instead:
+ *
+ *      if (Logger.shouldTrace())
+ *          Logger.trace(TAG, "Sending update: " + ...);
+ *
+ * Tracing is off by default and then costs one volatile read per packet. When turned on (in debug
+ * and release builds alike), only one in every N packets is logged.
+ *
+ * Off the device (servers running headless in unit tests or the load generator), android.util.Log
+ * isn't available, so messages are printed to stdout and stderr instead.
+ */
+public final class Logger {
+
+    private static volatile int mTraceEvery = 0;                        // Log one in this many packets (0 = tracing off)
+    private static final AtomicInteger mTraceCounter = new AtomicInteger();    // Packets seen while tracing
+    private static final boolean mOnAndroid = "Dalvik".equals(System.getProperty("java.vm.name"));  // False on a plain JVM (ART also reports Dalvik)
+
+    private Logger() {}
+
+    public static void v(String tag, String msg) {
+        if (!BuildConfig.DEBUG)
+            return;
+        if (mOnAndroid)
+            Log.v(tag, msg);
+        else
+            print('V', tag, msg, null);
+    }
+
+    public static void d(String tag, String msg) {
+        if (!BuildConfig.DEBUG)
+            return;
+        if (mOnAndroid)
+            Log.d(tag, msg);
+        else
+            print('D', tag, msg, null);
+    }
+
+    public static void i(String tag, String msg) {
+        if (mOnAndroid)
+            Log.i(tag, msg);
+        else
+            print('I', tag, msg, null);
+    }
+
+    public static void w(String tag, String msg) {
+        if (mOnAndroid)
+            Log.w(tag, msg);
+        else
+            print('W', tag, msg, null);
+    }
+
+    public static void e(String tag, String msg) {
+        if (mOnAndroid)
+            Log.e(tag, msg);
+        else
+            print('E', tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        if (mOnAndroid)
+            Log.e(tag, msg, tr);
+        else
+            print('E', tag, msg, tr);
+    }
+
+    /**
+     * Print a log message in logcat's brief format (JVM only), warnings and errors to stderr
+     * @param level V, D, I, W or E
+     * @param tag of the logging class
+     * @param msg to log
+     * @param tr exception to log with its stack trace, or null
+     */
+    private static void print(char level, String tag, String msg, Throwable tr) {
+        PrintStream out = ('W' == level || 'E' == level) ? System.err : System.out;
+        out.println(level + "/" + tag + ": " + msg);
+        if (null != tr)
+            tr.printStackTrace(out);
+    }
+
+    /**
+     * @return true in debug builds (use to skip building expensive debug messages)
+     */
+    public static boolean isDebugEnabled() {
+        return BuildConfig.DEBUG;
+    }
+
+    /**
+     * Turn sampled packet tracing on or off
+     * @param every log one in this many packets, or 0 to turn tracing off
+     */
+    public static void setTraceSampling(int every) {
+        mTraceEvery = Math.max(0, every);
+    }
+
+    /**
+     * Check before building a per-packet trace message
+     * @return true if this packet was sampled and should be traced
+     */
+    public static boolean shouldTrace() {
+        int every = mTraceEvery;
+        return 0 != every && 0 == mTraceCounter.incrementAndGet() % every;
+    }
+
+    /**
+     * Describe a message's type for a trace without logging its body (which may hold typed text)
+     * @param message whose first byte is the binary opcode or the text message type
+     * @return printable text type character, or the opcode's number
+     */
+    public static String describeType(byte[] message) {
+        if (0 == message.length)
+            return "none";
+        byte type = message[0];
+        return (type > ' ' && type <= '~') ? String.valueOf((char) type) : Integer.toString(type & 0xFF);
+    }
+
+    /**
+     * Log a sampled packet trace (only call when shouldTrace() returned true)
+     * @param tag of the logging class
+     * @param msg describing the packet
+     */
+    public static void trace(String tag, String msg) {
+        i(tag, "[trace] " + msg);
+    }
+}
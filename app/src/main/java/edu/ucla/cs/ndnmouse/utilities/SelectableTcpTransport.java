@@ -0,0 +1,143 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+import net.named_data.jndn.encoding.ElementListener;
+import net.named_data.jndn.encoding.ElementReader;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.transport.TcpTransport;
+import net.named_data.jndn.transport.Transport;
+import net.named_data.jndn.util.Common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP transport to NFD that works like jNDN's TcpTransport, except that its socket is registered with
+ * a selector. The face's thread can then block in awaitEvents() until NFD sends something or another
+ * thread calls wakeup(), instead of calling processEvents() on a fixed interval.
+ *
+ * Everything but wakeup() must be called from the face's thread.
+ */
+class SelectableTcpTransport extends Transport {
+
+    private SocketChannel mChannel;                 // Non-blocking connection to NFD
+    private volatile Selector mSelector;            // Wakes the face's thread when NFD sends something (or on wakeup())
+    private ElementReader mElementReader;           // Splits the received bytes into NDN packets for the face
+    private final ByteBuffer mInputBuffer = ByteBuffer.allocate(Common.MAX_NDN_PACKET_SIZE);   // Reused for every read
+    private String mLocalCheckedHost;               // Host that mIsLocal was checked for
+    private boolean mIsLocal;                       // True if mLocalCheckedHost is this device
+
+    @Override
+    public boolean isLocal(Transport.ConnectionInfo connectionInfo) throws IOException {
+        String host = ((TcpTransport.ConnectionInfo) connectionInfo).getHost();
+        if (!host.equals(mLocalCheckedHost)) {
+            mIsLocal = TcpTransport.getIsLocal(host);
+            mLocalCheckedHost = host;
+        }
+        return mIsLocal;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public void connect(Transport.ConnectionInfo connectionInfo, ElementListener elementListener, Runnable onConnected) throws IOException {
+        close();
+
+        TcpTransport.ConnectionInfo tcpInfo = (TcpTransport.ConnectionInfo) connectionInfo;
+        mChannel = SocketChannel.open(new InetSocketAddress(tcpInfo.getHost(), tcpInfo.getPort()));
+        mChannel.configureBlocking(false);
+        Selector selector = Selector.open();
+        mChannel.register(selector, SelectionKey.OP_READ);
+        mSelector = selector;
+        mElementReader = new ElementReader(elementListener);
+
+        if (null != onConnected)
+            onConnected.run();
+    }
+
+    @Override
+    public void send(ByteBuffer data) throws IOException {
+        if (null == mChannel)
+            throw new IOException("Cannot send because the socket is not open. Use connect.");
+
+        while (data.hasRemaining())
+            mChannel.write(data);
+    }
+
+    /**
+     * Read everything NFD has sent so far and pass it on to the face (never blocks)
+     * @throws IOException if NFD closed the connection
+     * @throws EncodingException for a malformed packet
+     */
+    @Override
+    public void processEvents() throws IOException, EncodingException {
+        if (!getIsConnected())
+            return;
+
+        while (true) {
+            mInputBuffer.clear();
+            int bytesRead = mChannel.read(mInputBuffer);
+            if (bytesRead < 0) {
+                // Otherwise the selector would report the closed socket as readable forever
+                close();
+                throw new IOException("NFD closed the connection.");
+            }
+            if (0 == bytesRead)
+                return;
+
+            mInputBuffer.flip();
+            mElementReader.onReceivedData(mInputBuffer);
+        }
+    }
+
+    /**
+     * Blocks until NFD sends something, wakeup() is called, or the timeout runs out
+     * @param timeoutNanos longest time to wait (0 to only check)
+     * @throws IOException for selector error
+     */
+    void awaitEvents(long timeoutNanos) throws IOException {
+        Selector selector = mSelector;
+        if (null == selector)
+            return;
+
+        if (timeoutNanos > 0)
+            selector.select(Math.max(1, timeoutNanos / 1000000));
+        else
+            selector.selectNow();
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Make a current or the next awaitEvents() return right away (safe from any thread)
+     */
+    void wakeup() {
+        Selector selector = mSelector;
+        if (null != selector)
+            selector.wakeup();
+    }
+
+    @Override
+    public boolean getIsConnected() {
+        return null != mChannel && mChannel.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (null != mChannel)
+                mChannel.close();
+        } finally {
+            mChannel = null;
+            Selector selector = mSelector;
+            mSelector = null;
+            if (null != selector)
+                selector.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+import edu.ucla.cs.ndnmouse.helpers.MetricsRegistry;
+import edu.ucla.cs.ndnmouse.helpers.MotionSource;
+import edu.ucla.cs.ndnmouse.helpers.ProtocolStrings;
+
+/**
+ * Everything a server needs from whoever runs it: movement, protocol strings, and somewhere to
+ * report errors that stop the server
+ */
+public interface ServerHost extends MotionSource, ProtocolStrings {
+
+    /**
+     * Called when the server can't continue (e.g. NFD is not running, or keys can't be created).
+     * May be called from any thread.
+     * @param message describing the error for the user
+     */
+    void onServerError(String message);
+
+    /**
+     * @return refresh rate of the display in frames per second (caps how often updates are useful)
+     */
+    float getRefreshRate();
+
+    /**
+     * @return registry the server records its metrics in (read by the debug overlay)
+     */
+    MetricsRegistry getMetrics();
+
+    /**
+     * @return highest protocol version secure servers may negotiate, since the device's crypto limits
+     * it (AES-GCM needs API 19), e.g. NetworkHelpers.mProtocolVersionBatch
+     */
+    byte getMaxSecureProtocolVersion();
+}
@@ -1,12 +1,5 @@
 package edu.ucla.cs.ndnmouse.utilities;
 
-import android.graphics.Point;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
-import android.widget.Toast;
-
 import net.named_data.jndn.Data;
 import net.named_data.jndn.Face;
 import net.named_data.jndn.Interest;
@@ -20,49 +13,107 @@ import net.named_data.jndn.security.SecurityException;
 import net.named_data.jndn.security.identity.IdentityManager;
 import net.named_data.jndn.security.identity.MemoryIdentityStorage;
 import net.named_data.jndn.security.identity.MemoryPrivateKeyStorage;
+import net.named_data.jndn.transport.TcpTransport;
 import net.named_data.jndn.util.Blob;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.HashMap;
-import java.util.LinkedList;
 
-import edu.ucla.cs.ndnmouse.MouseActivity;
 import edu.ucla.cs.ndnmouse.R;
+import edu.ucla.cs.ndnmouse.helpers.AdaptiveRate;
+import edu.ucla.cs.ndnmouse.helpers.BatchWriter;
+import edu.ucla.cs.ndnmouse.helpers.Counter;
+import edu.ucla.cs.ndnmouse.helpers.Histogram;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
 import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PendingInterestTable;
+import edu.ucla.cs.ndnmouse.helpers.PriorityCommandQueue;
+import edu.ucla.cs.ndnmouse.helpers.SessionMetrics;
+import edu.ucla.cs.ndnmouse.helpers.UpdateRing;
 
 public class ServerNDN implements Runnable, Server {
 
     private static final String TAG = ServerNDN.class.getSimpleName();
-    MouseActivity mMouseActivity;                           // Reference to calling activity
+    ServerHost mHost;                                       // Provides movement and strings, and handles errors
 
     Face mFace;                                             // Reference to the NDN face we will use to serve interests
+    private final SelectableTcpTransport mTransport = new SelectableTcpTransport();  // Face's connection to NFD, lets the face loop block until there is work
     // private final int mPort = 6363;                      // Default NFD port
-    private boolean mServerIsRunning = false;               // Controls if server thread is spinning or not
+    private volatile boolean mServerIsRunning = false;      // Controls if server thread is spinning or not
     float mMoveSensitivity;                                 // Sensitivity multiplier for relative movement
     boolean mScrollInverted;                                // Inverts the two-finger scroll direction if true
     float mScrollSensitivity;                               // Sensitivity multiplier for scrolling movement
-    private final static int mUpdateIntervalMillis = 20;    // Number of milliseconds to wait before sending next update. May require tuning.
     final static double mFreshnessPeriod = 0;               // Number of milliseconds data is considered fresh. May require tuning.
+    private static final int mMaxPendingInterests = 16;     // Most update interests kept waiting for movement or commands
+    private static final double mDefaultInterestLifetimeMillis = 4000;  // Lifetime of interests that don't set one (NDN default)
+    final static double mSeqFreshnessPeriod = 1000;         // Seq-numbered data never changes, so caches may keep serving it for retransmissions
+    private static final int mRecentUpdates = 64;           // Seq-numbered updates kept for retransmission (also the furthest a consumer may fetch ahead)
+    private static final long mMaxWaitMillis = 1000;        // Longest the face loop blocks, so the face's own timers (e.g. prefix registration timeouts) still run
+    private static final int mMaxQueuedCommands = 128;      // Commands of each priority waiting for an interest
+    private static final int mMaxContentBytes = 256;        // Most update content a batch may fill (before encryption)
 
-    private Handler mPrefixErrorHandler;                            // Handles work for the UI thread (toast) when there is an error setting up prefixes
     HashMap<String, Long> mRegisteredPrefixIds = new HashMap<String, Long>();  // Keeps track of all registered prefix IDs
     boolean mPrefixRegisterError = false;                           // Tracks error during prefix registration
-    final LinkedList<String> mCommandQueue = new LinkedList<>();    // Holds a queue of all incoming clicks that need to be sent out to client
+    private final PriorityCommandQueue mCommandQueue = new PriorityCommandQueue(mMaxQueuedCommands);  // Clicks and key presses (urgent) and typed text, waiting for an interest
+    private final HashMap<Integer, byte[]> mEncodedCommands = new HashMap<>();  // Commands encoded once per string resource (UI thread only)
     private KeyChain mKeyChain;                                     // Keychain reference (server identity)
+    final MotionAccumulator.Cursor mMotionCursor;                   // Server's own read position in the movement stream
+    final byte[] mMoveBuffer = new byte[NetworkHelpers.mMoveMessageBytes];  // Reused for every move message
+    private final BatchWriter mBatch;                               // Packs movement and commands into one update (face thread only)
+    private final Counter mCommandsDropped;                         // Commands dropped because the queue was full
+    final byte mMoveTypeScrolling;                                  // Protocol byte for scrolling movement (cached from strings.xml)
+    final AdaptiveRate mRate;                                       // Tracks how fast the touchpad moves (shown in the metrics)
+    private final MotionDispatcher mDispatcher = new MotionDispatcher(0, 0);  // Wakes the idle face loop on movement or commands
+    final SessionMetrics mMetrics;                                  // Interest and data counts, timings and rate (all consumers share one)
+    final Histogram mInterestToDataNanos;                           // Time from an update interest arriving to its data being put
+    private final PendingInterestTable<Interest> mPendingInterests = new PendingInterestTable<>(mMaxPendingInterests);  // Update interests with nothing to reply yet (face thread only)
+    private final Counter mPendingExpired;                          // Pending interests that timed out before anything happened
+    private final Counter mPendingOverflowed;                       // Pending interests dropped because the table was full
+    private volatile boolean mAwaitingMotion;                       // Set while pending interests wait, so new movement or commands wake the face loop
+
+    // Seq-numbered updates, named /ndnmouse/update/<session>/<seq> (face thread only)
+    private final int mSessionId;                                   // Random per server, so consumers notice a restart (never 0, which asks for it)
+    private final int mUpdatePrefixSize;                            // Number of components in /ndnmouse/update
+    private final UpdateRing<Data> mRecentData = new UpdateRing<>(mRecentUpdates, 0);  // Recently produced seq-numbered data, served again on request
+    private final PendingInterestTable<Long> mPendingSeqNums = new PendingInterestTable<>(mMaxPendingInterests);  // Seq nums that were asked for but not produced yet
+    private final SeqNumMatcher mSeqNumMatcher = new SeqNumMatcher();   // Picks pending interests for one seq num
+    private final byte[] mSessionBuffer = new byte[NetworkHelpers.mSessionMessageBytes];  // Reused for every session message
+    private final byte mSessionMessageType;                         // Protocol byte for session messages (cached from strings.xml)
+    private final Counter mRetransmissions;                         // Seq-numbered data served again from the ring
+    private final Counter mResyncs;                                 // Session messages sent for unknown sessions or dropped seq nums
 
-    public ServerNDN(MouseActivity activity, float moveSensitivity, boolean scrollInverted, float scrollSensitivity) {
-        mMouseActivity = activity;
+    // Wakes up the face loop when pending interests can be answered
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            if (mAwaitingMotion)
+                mTransport.wakeup();
+        }
+    };
+
+    public ServerNDN(ServerHost host, float moveSensitivity, boolean scrollInverted, float scrollSensitivity) {
+        mHost = host;
+        mMotionCursor = host.newMotionCursor();
+        mRate = new AdaptiveRate(host.getRefreshRate());
+        mMetrics = new SessionMetrics(host.getMetrics(), "ndn/");
+        mInterestToDataNanos = host.getMetrics().histogram("ndn/interest_to_data_ns");
+        mPendingExpired = host.getMetrics().counter("ndn/pending_expired");
+        mPendingOverflowed = host.getMetrics().counter("ndn/pending_overflowed");
+        mRetransmissions = host.getMetrics().counter("ndn/retransmissions");
+        mResyncs = host.getMetrics().counter("ndn/resyncs");
+        mCommandsDropped = host.getMetrics().counter("ndn/commands_dropped");
+        mSessionId = new SecureRandom().nextInt(Integer.MAX_VALUE) + 1;
+        mUpdatePrefixSize = new Name(host.getString(R.string.ndn_prefix_mouse_update)).size();
+        mSessionMessageType = (byte) host.getString(R.string.protocol_update_session).charAt(0);
+        mMoveTypeScrolling = (byte) host.getString(R.string.protocol_move_scrolling).charAt(0);
+        mBatch = new BatchWriter((byte) host.getString(R.string.protocol_batch).charAt(0), mMaxContentBytes);
         mMoveSensitivity = moveSensitivity;
         mScrollInverted = scrollInverted;
         mScrollSensitivity = scrollSensitivity;
-
-        // Makes a toast to alert user to restart NFD
-        mPrefixErrorHandler = new Handler(Looper.getMainLooper()) {
-            @Override
-            public void handleMessage(Message msg) {
-                Toast.makeText(mMouseActivity.getApplicationContext(), "NFD doesn't appear to be running correctly. Please restart NFD and try again.", Toast.LENGTH_LONG).show();
-            }
-        };
+        mDispatcher.setSignalListener(mWakeup);
     }
 
     @Override
@@ -71,13 +122,14 @@ public class ServerNDN implements Runnable, Server {
         Thread thread = new Thread(this);
         // thread.setPriority(Thread.MAX_PRIORITY);
         thread.start();
-        Log.d(TAG, "Started NDN server...");
+        Logger.d(TAG, "Started NDN server...");
     }
 
     @Override
     public void stop() {
         mServerIsRunning = false;
-        Log.d(TAG, "Stopped NDN server...");
+        mTransport.wakeup();
+        Logger.d(TAG, "Stopped NDN server...");
     }
 
     @Override
@@ -87,23 +139,26 @@ public class ServerNDN implements Runnable, Server {
             registerPrefixes();
 
             if (!mPrefixRegisterError) {
+                mHost.addMotionDispatcher(mDispatcher);
                 while (mServerIsRunning) {
                     mFace.processEvents();
-                    Thread.sleep(mUpdateIntervalMillis);
+                    satisfyPendingInterests();
+                    waitForNextEvents();
                 }
+                mHost.removeMotionDispatcher(mDispatcher);
+                mPendingInterests.clear();
+                mPendingSeqNums.clear();
             } else {
-                Log.e(TAG, "One or more prefixes failed to register!");
-                mMouseActivity.finish();
-                // Make a toast notifying user to restart NFD
-                Message message = mPrefixErrorHandler.obtainMessage();
-                message.sendToTarget();
+                Logger.e(TAG, "One or more prefixes failed to register!");
+                // Notify user to restart NFD
+                mHost.onServerError("NFD doesn't appear to be running correctly. Please restart NFD and try again.");
             }
-        } catch (IOException|SecurityException|InterruptedException e) {
+        } catch (IOException|SecurityException e) {
             e.printStackTrace();
-            Log.e(TAG, "Web server was interrupted and is now closed.", e);
+            Logger.e(TAG, "Web server was interrupted and is now closed.", e);
         } catch (EncodingException e) {
             e.printStackTrace();
-            Log.e(TAG, "Failed to encode/decode.");
+            Logger.e(TAG, "Failed to encode/decode.");
         }
 
         // Shutdown the Face
@@ -111,6 +166,378 @@ public class ServerNDN implements Runnable, Server {
             mFace.shutdown();
             mFace = null;
         }
+        mMetrics.close();
+    }
+
+    /**
+     * Blocks until NFD sends something (such as a new interest), or until pending interests can be
+     * answered because there is new movement or a command. Nothing runs while the touchpad and the
+     * client are both idle, apart from a check every mMaxWaitMillis for the face's own timers.
+     * @throws IOException for selector error
+     */
+    private void waitForNextEvents() throws IOException {
+        mMetrics.onRate(mRate);
+        long waitNanos = mMaxWaitMillis * 1000000;
+        if (!mPendingInterests.isEmpty() || !mPendingSeqNums.isEmpty()) {
+            // Set the flag before checking for a signal, so a producer either sees it or gets seen
+            mAwaitingMotion = true;
+            if (mDispatcher.takeSignal()) {
+                mAwaitingMotion = false;
+                return;
+            }
+            // No need to wait past the next pending interest's expiry
+            long now = System.nanoTime();
+            if (!mPendingInterests.isEmpty())
+                waitNanos = Math.min(waitNanos, mPendingInterests.getNextExpiryNanos(now));
+            if (!mPendingSeqNums.isEmpty())
+                waitNanos = Math.min(waitNanos, mPendingSeqNums.getNextExpiryNanos(now));
+        } else {
+            // Without pending interests, movement waits for the next interest to pick it up
+            mDispatcher.takeSignal();
+        }
+        mTransport.awaitEvents(waitNanos);
+        mAwaitingMotion = false;
+    }
+
+    /**
+     * Answer an update interest right away if there is a command or movement, otherwise keep it in
+     * the pending interest table until there is (face thread only). Interests named
+     * /ndnmouse/update/<session>/<seq> ask for one seq-numbered update instead.
+     * @param interest for /ndnmouse/update
+     */
+    void onUpdateInterest(Interest interest) {
+        if (Logger.shouldTrace())
+            Logger.trace(TAG, "Got interest: " + interest.getName());
+        long interestNanos = System.nanoTime();
+        mMetrics.mPacketsReceived.inc();
+        if (interest.getName().size() == mUpdatePrefixSize + 2) {
+            onSeqNumInterest(interest, interestNanos);
+            return;
+        }
+        if (replyToUpdate(interest, interestNanos))
+            return;
+
+        mPendingInterests.add(interest, interestNanos, getExpiryNanos(interest, interestNanos));
+        mPendingOverflowed.add(mPendingInterests.drainOverflowed());
+    }
+
+    /**
+     * Serve a seq-numbered update: from the ring if it was already produced, or as soon as it is
+     * produced if it is one of the next ones. Interests for another session (such as session 0, which
+     * consumers use to start) or for a dropped seq num get a session message instead, telling the
+     * consumer where to continue.
+     * @param interest for /ndnmouse/update/<session>/<seq>
+     * @param interestNanos arrival time of the interest
+     */
+    private void onSeqNumInterest(Interest interest, long interestNanos) {
+        Name name = interest.getName();
+        long seqNum = -1;
+        if (name.get(-1).isSequenceNumber()) {
+            try {
+                seqNum = name.get(-1).toSequenceNumber();
+            } catch (EncodingException e) {
+                // Treated like an unknown session below
+            }
+        }
+        long nextSeqNum = mRecentData.getNextSeqNum();
+        if (mSessionId != name.get(-2).toNumber() || seqNum < 0 || seqNum < mRecentData.getOldestSeqNum()) {
+            putSessionMessage(interest);
+            return;
+        }
+
+        if (seqNum < nextSeqNum) {
+            // Consumer missed it, so send it again
+            putData(mRecentData.get(seqNum), interestNanos);
+            mRetransmissions.inc();
+            return;
+        }
+        if (seqNum - nextSeqNum >= mRecentUpdates) {
+            // Too far ahead: it would be dropped from the ring before the consumer got to it
+            Logger.e(TAG, "Ignoring interest too far ahead: " + name.toUri());
+            return;
+        }
+
+        mPendingSeqNums.add(seqNum, interestNanos, getExpiryNanos(interest, interestNanos));
+        mPendingOverflowed.add(mPendingSeqNums.drainOverflowed());
+        produceSeqNumUpdates();
+    }
+
+    /**
+     * Produce the next seq-numbered updates for as long as they are asked for and there are commands
+     * or movement to send (face thread only)
+     */
+    private void produceSeqNumUpdates() {
+        long now = System.nanoTime();
+        mPendingSeqNums.expire(now);
+        mPendingExpired.add(mPendingSeqNums.drainExpired());
+        while (true) {
+            long seqNum = mRecentData.getNextSeqNum();
+            mSeqNumMatcher.mSeqNum = seqNum;
+            if (!mPendingSeqNums.contains(mSeqNumMatcher))
+                return;
+            Blob content = takeUpdateContent(true);
+            if (null == content)
+                return;
+
+            Data data = new Data(makeSeqNumName(seqNum));
+            data.getMetaInfo().setFreshnessPeriod(mSeqFreshnessPeriod);
+            data.setContent(content);
+            mRecentData.add(data);
+
+            // One data satisfies every interest for this name, so drop the other pending ones too
+            long interestNanos = mPendingSeqNums.poll(now, mSeqNumMatcher).mArrivalNanos;
+            while (mPendingSeqNums.contains(mSeqNumMatcher))
+                mPendingSeqNums.poll(now, mSeqNumMatcher);
+            putData(data, interestNanos);
+        }
+    }
+
+    /**
+     * @param seqNum of the update
+     * @return name of a seq-numbered update in this session
+     */
+    private Name makeSeqNumName(long seqNum) {
+        Name name = new Name(mHost.getString(R.string.ndn_prefix_mouse_update));
+        name.append(Name.Component.fromNumber(mSessionId));
+        return name.appendSequenceNumber(seqNum);
+    }
+
+    /**
+     * Tell a consumer of seq-numbered updates the current session and the next seq num
+     * @param interest to reply to
+     */
+    private void putSessionMessage(Interest interest) {
+        int length = NetworkHelpers.writeSessionMessage(mSessionMessageType, mSessionId, mRecentData.getNextSeqNum(), mSessionBuffer, 0);
+        Blob content = makeContent(mSessionBuffer, length);
+        if (null == content)
+            return;
+        Data data = new Data(interest.getName());
+        data.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
+        data.setContent(content);
+        try {
+            mFace.putData(data);
+            mResyncs.inc();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.e(TAG, "Failed to put data.");
+        }
+    }
+
+    /**
+     * @param interest that arrived
+     * @param interestNanos arrival time of the interest
+     * @return time the interest expires in the network
+     */
+    private static long getExpiryNanos(Interest interest, long interestNanos) {
+        double lifetimeMillis = interest.getInterestLifetimeMilliseconds();
+        if (lifetimeMillis < 0)
+            lifetimeMillis = mDefaultInterestLifetimeMillis;
+        return interestNanos + (long) (lifetimeMillis * 1000000);
+    }
+
+    /**
+     * Answer pending interests, oldest first, for as long as there are commands or movement to send
+     * (face thread only)
+     */
+    private void satisfyPendingInterests() {
+        produceSeqNumUpdates();
+
+        long now = System.nanoTime();
+        mPendingInterests.expire(now);
+        mPendingExpired.add(mPendingInterests.drainExpired());
+        PendingInterestTable.Entry<Interest> pending;
+        while (null != (pending = mPendingInterests.peek(now))) {
+            // Only take it once there is content, so it keeps waiting otherwise
+            Blob content = takeUpdateContent(acceptsBatch(pending.mInterest));
+            if (null == content)
+                break;
+            mPendingInterests.poll(now);
+            putUpdate(pending.mInterest, content, pending.mArrivalNanos);
+        }
+    }
+
+    /**
+     * Reply to an update interest with the next commands and the latest movement
+     * @param interest to reply to
+     * @param interestNanos arrival time of the interest
+     * @return false if there was nothing to reply with
+     */
+    private boolean replyToUpdate(Interest interest, long interestNanos) {
+        Blob content = takeUpdateContent(acceptsBatch(interest));
+        if (null == content)
+            return false;
+        putUpdate(interest, content, interestNanos);
+        return true;
+    }
+
+    /**
+     * Consumers that only ask for the bare /ndnmouse/update name predate batches, so they get one
+     * message per update. Pipelined (/ndnmouse/update/<i>) and seq-numbered names accept batches.
+     * @param interest for an update
+     * @return true if the update may be a batch
+     */
+    private boolean acceptsBatch(Interest interest) {
+        return interest.getName().size() > mUpdatePrefixSize;
+    }
+
+    /**
+     * Put an update data packet out the face
+     * @param interest to reply to
+     * @param content of the data
+     * @param interestNanos arrival time of the interest
+     */
+    private void putUpdate(Interest interest, Blob content, long interestNanos) {
+        Data replyData = new Data(interest.getName());
+        replyData.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
+        replyData.setContent(content);
+        putData(replyData, interestNanos);
+    }
+
+    /**
+     * Put update data out the face
+     * @param data to put
+     * @param interestNanos arrival time of the interest it answers
+     */
+    private void putData(Data data, long interestNanos) {
+        try {
+            mFace.putData(data);
+            onDataSent(interestNanos);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.e(TAG, "Failed to put data.");
+        }
+    }
+
+    /**
+     * Take the content for the next update data. A single message is a pending command first (clicks
+     * and key presses before typed text), then the movement since the last update. A batch carries
+     * the movement first, then as many pending commands as fit, so a burst of commands never holds
+     * back the pointer. A batch with only one message is sent as that message.
+     * @param batch true if the consumer accepts batches
+     * @return data content, or null if there is nothing to send
+     */
+    private Blob takeUpdateContent(boolean batch) {
+        if (!batch) {
+            Blob content = takeCommandContent();
+            return (null != content) ? content : takeMoveContent();
+        }
+
+        long position = consumeMotion();
+        mBatch.reset(getMaxContentBytes());
+        if (0 != position) {
+            int moveLength = writeMoveUpdate(position, mMoveBuffer, 0);
+            mBatch.append(mMoveBuffer, moveLength);
+        }
+        byte[] command;
+        while (null != (command = mCommandQueue.poll(mBatch.getRoom()))) {
+            traceCommand(command);
+            mBatch.append(command, command.length);
+        }
+
+        if (mBatch.isEmpty()) {
+            // Nothing fit a batch, so a long command (if any) goes out on its own
+            return takeCommandContent();
+        }
+        mMetrics.mMessagesPerPacket.record(mBatch.getCount());
+        int length = mBatch.finish();
+        return makeContent(mBatch.getBuffer(), length);
+    }
+
+    /**
+     * Take the next pending command as a single message
+     * @return data content, or null if no commands are pending
+     */
+    private Blob takeCommandContent() {
+        byte[] command = mCommandQueue.poll();
+        if (null == command)
+            return null;
+        traceCommand(command);
+        mMetrics.mMessagesPerPacket.record(1);
+        return makeContent(command, command.length);
+    }
+
+    /**
+     * Take the movement since the last update as a single move message
+     * @return data content, or null if there was no movement
+     */
+    private Blob takeMoveContent() {
+        long position = consumeMotion();
+        // Skip update if no relative movement since last update
+        if (0 == position)
+            return null;
+
+        // Build move message in the reusable buffer
+        mMetrics.mMessagesPerPacket.record(1);
+        int length = writeMoveUpdate(position, mMoveBuffer, 0);
+        return makeContent(mMoveBuffer, length);
+    }
+
+    /**
+     * Trace only the command's type and length, since the body may hold typed text
+     * @param command being sent
+     */
+    private static void traceCommand(byte[] command) {
+        if (Logger.shouldTrace())
+            Logger.trace(TAG, "Sending command: type " + Logger.describeType(command) + ", " + command.length + " bytes");
+    }
+
+    /**
+     * @return most bytes of content a batch may fill before makeContent()
+     */
+    int getMaxContentBytes() {
+        return mMaxContentBytes;
+    }
+
+    /**
+     * Turn a message into data content
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0)
+     * @return data content (a copy, so the buffer can be reused), or null if it couldn't be made
+     */
+    Blob makeContent(byte[] msg, int msgLength) {
+        return new Blob(ByteBuffer.wrap(msg, 0, msgLength), true);
+    }
+
+    /**
+     * Get all movement since the last update, and let the adaptive rate see it
+     * @return packed relative movement from the motion cursor (0 if none)
+     */
+    long consumeMotion() {
+        long position = mMotionCursor.consume();
+        if (mRate.onPoll(position, System.nanoTime()))
+            logRate();
+        if (0 != position)
+            mMetrics.mCoalescedDeltas.record(mDispatcher.drainSignalCount());
+        return position;
+    }
+
+    /**
+     * Count an update data packet that was put, and how long after its interest arrived
+     * @param interestNanos arrival time of the interest
+     */
+    void onDataSent(long interestNanos) {
+        mMetrics.mPacketsSent.inc();
+        mInterestToDataNanos.record(System.nanoTime() - interestNanos);
+    }
+
+    /**
+     * Matches pending interests for one seq num (reused, so polling doesn't allocate)
+     */
+    private static class SeqNumMatcher implements PendingInterestTable.Matcher<Long> {
+
+        long mSeqNum;                           // Seq num to match
+
+        @Override
+        public boolean matches(Long seqNum) {
+            return seqNum == mSeqNum;
+        }
+    }
+
+    /**
+     * Log the chosen interval and why, whenever the reason changes
+     */
+    void logRate() {
+        Logger.d(TAG, "Update interval is now " + mRate.getIntervalMillis() + " ms (" + AdaptiveRate.getReasonName(mRate.getReason()) + ")");
     }
 
     /**
@@ -118,7 +545,7 @@ public class ServerNDN implements Runnable, Server {
      * @throws SecurityException for KeyChain getDefaultCertificate
      */
     private void setupFace() throws SecurityException {
-        mFace = new Face();
+        mFace = new Face(mTransport, new TcpTransport.ConnectionInfo("localhost"));
 
         MemoryIdentityStorage identityStorage = new MemoryIdentityStorage();
         MemoryPrivateKeyStorage privateKeyStorage = new MemoryPrivateKeyStorage();
@@ -129,8 +556,8 @@ public class ServerNDN implements Runnable, Server {
         try {
             mKeyChain.getDefaultCertificateName();
         } catch (SecurityException e) {
-            mKeyChain.createIdentityAndCertificate(new Name(mMouseActivity.getString(R.string.ndn_prefix_identity)));
-            mKeyChain.getIdentityManager().setDefaultIdentity(new Name(mMouseActivity.getString(R.string.ndn_prefix_identity)));
+            mKeyChain.createIdentityAndCertificate(new Name(mHost.getString(R.string.ndn_prefix_identity)));
+            mKeyChain.getIdentityManager().setDefaultIdentity(new Name(mHost.getString(R.string.ndn_prefix_identity)));
         }
 
         // Set KeyChain and certificate
@@ -144,78 +571,50 @@ public class ServerNDN implements Runnable, Server {
      */
     void registerPrefixes() throws IOException, SecurityException {
         // Prefix for all updates
-        Name prefix_move = new Name(mMouseActivity.getString(R.string.ndn_prefix_mouse_update));
+        Name prefix_move = new Name(mHost.getString(R.string.ndn_prefix_mouse_update));
         long prefixId = mFace.registerPrefix(prefix_move,
                 new OnInterestCallback() {
                     @Override
                     public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
-
-                        // Log.d(TAG, "Got interest: " + interest.getName());
-                        Data replyData = new Data(interest.getName());
-                        replyData.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
-
-                        // Check if any pending commands in command queue first
-                        String replyString = null;
-                        synchronized (mCommandQueue) {
-                            // If no click has occurred, return let the interest timeout
-                            if (!mCommandQueue.isEmpty())
-                                // Build reply string and set data contents
-                                replyString = mCommandQueue.remove();
-                        }
-
-                        // Set replyData if there was a pending command
-                        if (null != replyString) {
-                            // Log.d(TAG, "Sending update: " + replyString);
-                            replyData.setContent(new Blob(replyString));
-
-                        // Otherwise build replyData using the latest mouse movement (if any)
-                        } else {
-                            Point position = mMouseActivity.getRelativePosition();
-                            // Skip update if no relative movement since last update
-                            if (position.equals(0, 0))
-                                return;
-
-                            String moveType = mMouseActivity.getMoveType();
-                            boolean scrollActivated = moveType.equals(mMouseActivity.getString(R.string.protocol_move_scrolling));
-
-                            // Find scaled x and y position according to appropriate sensitivity
-                            int scaledX, scaledY;
-                            if (scrollActivated) {
-                                scaledX = (int) (position.x * mScrollSensitivity);
-                                scaledY = (int) (position.y * mScrollSensitivity);
-                                if (!mScrollInverted) {
-                                    scaledX = -scaledX;
-                                    scaledY = -scaledY;
-                                }
-                            } else {
-                                scaledX = (int) (position.x * mMoveSensitivity);
-                                scaledY = (int) (position.y * mMoveSensitivity);
-                            }
-
-                            // Build reply message and set data contents
-                            byte[] reply = NetworkHelpers.buildMoveMessage(moveType, scaledX, scaledY);
-                            // Log.d(TAG, "Sending update: " + replyString);
-                            replyData.setContent(new Blob(reply));
-                        }
-
-                        // Send data out face
-                        try {
-                            face.putData(replyData);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            Log.e(TAG, "Failed to put data.");
-                        }
+                        onUpdateInterest(interest);
                     }
                 },
                 new OnRegisterFailed() {
                     @Override
                     public void onRegisterFailed(Name name) {
-                        mRegisteredPrefixIds.remove(mMouseActivity.getString(R.string.ndn_prefix_mouse_update));
+                        mRegisteredPrefixIds.remove(mHost.getString(R.string.ndn_prefix_mouse_update));
                         mPrefixRegisterError = true;
-                        Log.e(TAG, "Failed to register prefix: " + name.toUri());
+                        Logger.e(TAG, "Failed to register prefix: " + name.toUri());
                     }
                 });
-        mRegisteredPrefixIds.put(mMouseActivity.getString(R.string.ndn_prefix_mouse_update), prefixId);
+        mRegisteredPrefixIds.put(mHost.getString(R.string.ndn_prefix_mouse_update), prefixId);
+    }
+
+    /**
+     * Scale the relative movement by the appropriate sensitivity, and write it as a move message
+     * @param position packed relative movement from the motion cursor
+     * @param buf to write the move message into
+     * @param offset in buf where the message starts
+     * @return number of bytes written
+     */
+    int writeMoveUpdate(long position, byte[] buf, int offset) {
+        byte moveType = mHost.getMoveType();
+        boolean scrollActivated = (moveType == mMoveTypeScrolling);
+
+        // Find scaled x and y position according to appropriate sensitivity
+        int scaledX, scaledY;
+        if (scrollActivated) {
+            scaledX = (int) (MotionAccumulator.getX(position) * mScrollSensitivity);
+            scaledY = (int) (MotionAccumulator.getY(position) * mScrollSensitivity);
+            if (!mScrollInverted) {
+                scaledX = -scaledX;
+                scaledY = -scaledY;
+            }
+        } else {
+            scaledX = (int) (MotionAccumulator.getX(position) * mMoveSensitivity);
+            scaledY = (int) (MotionAccumulator.getY(position) * mMoveSensitivity);
+        }
+        return NetworkHelpers.writeMoveMessage(moveType, scaledX, scaledY, buf, offset);
     }
 
     /**
@@ -224,7 +623,12 @@ public class ServerNDN implements Runnable, Server {
      * @throws IOException for face IO error
      */
     public void executeCommand(int command) {
-        mCommandQueue.add(mMouseActivity.getString(command));
+        byte[] encoded = mEncodedCommands.get(command);
+        if (null == encoded) {
+            encoded = mHost.getString(command).getBytes();
+            mEncodedCommands.put(command, encoded);
+        }
+        queueCommand(encoded, true);
     }
 
     /**
@@ -233,7 +637,20 @@ public class ServerNDN implements Runnable, Server {
      * @throws IOException from sending out socket/face
      */
     public void executeTypedMessage(String message) {
-        mCommandQueue.add(mMouseActivity.getString(R.string.action_custom_type) + message);
+        queueCommand((mHost.getString(R.string.action_custom_type) + message).getBytes(), false);
+    }
+
+    /**
+     * Queue an encoded command for the next update interests, and wake the face loop if any are waiting
+     * @param command encoded command
+     * @param urgent true for clicks and key presses, false for typed text
+     */
+    private void queueCommand(byte[] command, boolean urgent) {
+        if (!mCommandQueue.offer(command, urgent)) {
+            Logger.e(TAG, "Command queue full, dropping command!");
+            mCommandsDropped.inc();
+        }
+        mDispatcher.signal();
     }
 
     /**
@@ -252,9 +669,14 @@ public class ServerNDN implements Runnable, Server {
             case R.string.pref_scroll_sensitivity_key:
                 mScrollSensitivity = (Float) value;
                 break;
+            case R.string.pref_update_mode_key:
+            case R.string.pref_coalesce_window_key:
+            case R.string.pref_min_gap_key:
+                // Updates are pulled by interests in NDN, so push settings only apply to UDP servers
+                break;
             default:
-                Log.e(TAG, "Error: setting to update not recognized!");
+                Logger.e(TAG, "Error: setting to update not recognized!");
         }
-        Log.d(TAG, "Updated " + mMouseActivity.getString(key) + " with new value " + value);
+        Logger.d(TAG, "Updated " + mHost.getString(key) + " with new value " + value);
     }
 }
@@ -1,7 +1,5 @@
 package edu.ucla.cs.ndnmouse.utilities;
 
-import android.graphics.Point;
-import android.util.Log;
 
 import net.named_data.jndn.Data;
 import net.named_data.jndn.Face;
@@ -16,18 +14,15 @@ import net.named_data.jndn.util.Blob;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.NoSuchPaddingException;
 
-import edu.ucla.cs.ndnmouse.MouseActivity;
 import edu.ucla.cs.ndnmouse.R;
 import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
 import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
 
 public class ServerNDNSecure extends ServerNDN {
@@ -36,27 +31,28 @@ public class ServerNDNSecure extends ServerNDN {
 
     // private String mPassword;
     private byte[] mSalt;
-    private SecretKeySpec mKey;
+    private MousePacketCipher mPacketCipher;    // Crypto context for the session (all callbacks run on the face's thread)
+    private final byte[] mPacketBuffer = new byte[PacketCipher.mMaxPacketBytes];  // Reused for every encrypted reply
     private int mSeqNum;
     private static final int mMaxSeqNum = Integer.MAX_VALUE;
 
     /**
      * Constructor for server
-     * @param activity of the caller (so we can get position points)
+     * @param host providing movement and strings (normally MouseActivity)
      * @param moveSensitivity multiplier for scaling movement
      * @param password from user
      */
-    public ServerNDNSecure(MouseActivity activity, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, String password) {
-        super(activity, moveSensitivity, scrollInverted, scrollSensitivity);
+    public ServerNDNSecure(ServerHost host, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, String password) {
+        super(host, moveSensitivity, scrollInverted, scrollSensitivity);
 
         // mPassword = password;
         mSalt = NetworkHelpers.getNewIV().getIV();
         try {
-            mKey = mMouseActivity.makeKeyFromPassword(password, mSalt);
-        } catch (UnsupportedEncodingException | NoSuchAlgorithmException e) {
+            mPacketCipher = new MousePacketCipher(NetworkHelpers.makeKeyFromPassword(password, mSalt));
+        } catch (UnsupportedEncodingException | NoSuchAlgorithmException | NoSuchPaddingException e) {
             e.printStackTrace();
-            Log.e(TAG, "Error: failed to create KeySpec! Aborting...");
-            mMouseActivity.finish();
+            Logger.e(TAG, "Error: failed to create KeySpec! Aborting...");
+            mHost.onServerError("Failed to create a key from the password.");
         }
         mSeqNum = 0;
     }
@@ -69,91 +65,17 @@ public class ServerNDNSecure extends ServerNDN {
      */
     @Override
     void registerPrefixes() throws IOException, SecurityException {
-        // Prefix for all updates
-        Name prefix_move = new Name(mMouseActivity.getString(R.string.ndn_prefix_mouse_update));
-        long prefixId = mFace.registerPrefix(prefix_move,
-                new OnInterestCallback() {
-                    @Override
-                    public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
-
-                        // Log.d(TAG, "Got interest: " + interest.getName());
-                        Data replyData = new Data(interest.getName());
-                        replyData.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
-
-                        // Check if any pending commands in command queue first
-                        byte[] msg = null;
-                        synchronized (mCommandQueue) {
-                            // If no click has occurred, return let the interest timeout
-                            if (!mCommandQueue.isEmpty())
-                                // Build reply string and set data contents
-                                msg = (mCommandQueue.remove()).getBytes();
-                        }
-
-                        // If there was no pending command, then send the latest mouse movement (if any)
-                        if (null == msg) {
-                            Point position = mMouseActivity.getRelativePosition();
-                            // Skip update if no relative movement since last update
-                            if (position.equals(0, 0))
-                                return;
-
-                            String moveType = mMouseActivity.getMoveType();
-                            boolean scrollActivated = moveType.equals(mMouseActivity.getString(R.string.protocol_move_scrolling));
-
-                            // Find scaled x and y position according to appropriate sensitivity
-                            int scaledX, scaledY;
-                            if (scrollActivated) {
-                                scaledX = (int) (position.x * mScrollSensitivity);
-                                scaledY = (int) (position.y * mScrollSensitivity);
-                                if (!mScrollInverted) {
-                                    scaledX = -scaledX;
-                                    scaledY = -scaledY;
-                                }
-                            } else {
-                                scaledX = (int) (position.x * mMoveSensitivity);
-                                scaledY = (int) (position.y * mMoveSensitivity);
-                            }
-
-                            // Build reply message and set data contents
-                            msg = NetworkHelpers.buildMoveMessage(moveType, scaledX, scaledY);
-                            // Log.d(TAG, "Sending update: " + msg);
-                        }
-
-                        try {
-                            // Encrypt reply
-                            MousePacket mousePacket = new MousePacket(msg, getNextSeqNum(), mKey);
-                            byte[] encryptedReply = mousePacket.getEncryptedPacket();
-
-                            // Set content of data
-                            replyData.setContent(new Blob(encryptedReply));
-
-                            // Send data out face
-                            face.putData(replyData);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            Log.e(TAG, "Failed to put data.");
-                        } catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-                            Log.e(TAG, "Error during data encryption!");
-                        }
-                    }
-                },
-                new OnRegisterFailed() {
-                    @Override
-                    public void onRegisterFailed(Name name) {
-                        mRegisteredPrefixIds.remove(mMouseActivity.getString(R.string.ndn_prefix_mouse_update));
-                        mPrefixRegisterError = true;
-                        Log.e(TAG, "Failed to register prefix: " + name.toUri());
-                    }
-                });
-        mRegisteredPrefixIds.put(mMouseActivity.getString(R.string.ndn_prefix_mouse_update), prefixId);
+        // Prefix for all updates (replies are encrypted by takeUpdateContent())
+        super.registerPrefixes();
 
         // Prefix for seq num updates (special interest for cases of desync only)
-        Name prefix_update_seq = new Name(mMouseActivity.getString(R.string.ndn_prefix_update_seq));
-        prefixId = mFace.registerPrefix(prefix_update_seq,
+        Name prefix_update_seq = new Name(mHost.getString(R.string.ndn_prefix_update_seq));
+        long prefixId = mFace.registerPrefix(prefix_update_seq,
                 new OnInterestCallback() {
                     @Override
                     public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
 
-                        Log.d(TAG, "Got interest: " + interest.getName());
+                        Logger.d(TAG, "Got interest: " + interest.getName());
 
                         // Interest name format: /ndnmouse/seq/<iv><seq-num>SEQ
                         //                      |----cleartext----|-ciphertext-|
@@ -164,72 +86,70 @@ public class ServerNDNSecure extends ServerNDN {
                             byte[] interestData = new byte[interestDataByteBuf.remaining()];
                             interestDataByteBuf.get(interestData);
 
-                            // Use MousePacket to decrypt message
-                            MousePacket interestMousePacket = new MousePacket(interestData, mKey);
-                            int syncSeqNum = interestMousePacket.getSeqNum();
-                            String interestMsg = interestMousePacket.getMessage();
+                            // Use the session cipher to decrypt message
+                            long decryptStart = System.nanoTime();
+                            mPacketCipher.decrypt(interestData, 0, interestData.length);
+                            mMetrics.mDecryptNanos.record(System.nanoTime() - decryptStart);
+                            int syncSeqNum = mPacketCipher.getDecryptedSeqNum();
+                            String interestMsg = mPacketCipher.getDecryptedMessage();
 
                             // Verify decrypted message is as expected, otherwise return
-                            if (!interestMsg.startsWith(mMouseActivity.getString(R.string.protocol_update_seq_request))) {
-                                Log.e(TAG, "Invalid seq num update command!");
+                            if (!interestMsg.startsWith(mHost.getString(R.string.protocol_update_seq_request))) {
+                                Logger.e(TAG, "Invalid seq num update command!");
                                 return;
                             }
 
                             // If requested seq num larger than current seq num, then update server's seq num
                             mSeqNum = Math.max(syncSeqNum, mSeqNum);
-                            Log.d(TAG, "Setting server seq num to " + mSeqNum);
+                            Logger.d(TAG, "Setting server seq num to " + mSeqNum);
 
                             Data replyData = new Data(interest.getName());
                             replyData.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
 
                             // Build reply string and set data contents
-                            byte[] msg = (mMouseActivity.getString(R.string.protocol_update_seq_reply)).getBytes();
-                            // Log.d(TAG, "Sending update seq reply: " + replyString);
-
-                            // Encrypt reply
-                            MousePacket mousePacket = new MousePacket(msg, getNextSeqNum(), mKey);
-                            byte[] encryptedReply = mousePacket.getEncryptedPacket();
+                            byte[] msg = (mHost.getString(R.string.protocol_update_seq_reply)).getBytes();
+                            // Logger.d(TAG, "Sending update seq reply: " + replyString);
 
-                            // Set content of data
-                            replyData.setContent(new Blob(encryptedReply));
+                            // Encrypt reply and set content of data
+                            replyData.setContent(encryptReply(msg, msg.length));
 
                             // Send data out face
                             face.putData(replyData);
 
                         } catch (IOException e) {
                             e.printStackTrace();
-                            Log.e(TAG, "Failed to put data.");
-                        } catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+                            Logger.e(TAG, "Failed to put data.");
+                        } catch (GeneralSecurityException e) {
                             e.printStackTrace();
-                            Log.e(TAG, "Error during data encryption!");
+                            Logger.e(TAG, "Error during data encryption!");
                         }
                     }
                 },
                 new OnRegisterFailed() {
                     @Override
                     public void onRegisterFailed(Name name) {
-                        mRegisteredPrefixIds.remove(mMouseActivity.getString(R.string.ndn_prefix_update_seq));
+                        mRegisteredPrefixIds.remove(mHost.getString(R.string.ndn_prefix_update_seq));
                         mPrefixRegisterError = true;
-                        Log.e(TAG, "Failed to register prefix: " + name.toUri());
+                        Logger.e(TAG, "Failed to register prefix: " + name.toUri());
                     }
                 });
-        mRegisteredPrefixIds.put(mMouseActivity.getString(R.string.ndn_prefix_update_seq), prefixId);
+        mRegisteredPrefixIds.put(mHost.getString(R.string.ndn_prefix_update_seq), prefixId);
 
         // Prefix for providing server's password salt
-        Name prefix_salt = new Name(mMouseActivity.getString(R.string.ndn_prefix_salt));
+        Name prefix_salt = new Name(mHost.getString(R.string.ndn_prefix_salt));
         prefixId = mFace.registerPrefix(prefix_salt,
                 new OnInterestCallback() {
                     @Override
                     public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
 
-                        Log.d(TAG, "Got interest: " + interest.getName());
+                        Logger.d(TAG, "Got interest: " + interest.getName());
 
                         // Salt sent in cleartext
                         try {
                             Data replyData = new Data(interest.getName());
                             replyData.getMetaInfo().setFreshnessPeriod(mFreshnessPeriod);
 
-                            // Log.d(TAG, "Sending salt reply: " + replyString);
+                            // Logger.d(TAG, "Sending salt reply: " + replyString);
 
                             // Set content of data
                             replyData.setContent(new Blob(mSalt));
@@ -239,19 +159,58 @@ public class ServerNDNSecure extends ServerNDN {
 
                         } catch (IOException e) {
                             e.printStackTrace();
-                            Log.e(TAG, "Failed to put data.");
+                            Logger.e(TAG, "Failed to put data.");
                         }
                     }
                 },
                 new OnRegisterFailed() {
                     @Override
                     public void onRegisterFailed(Name name) {
-                        mRegisteredPrefixIds.remove(mMouseActivity.getString(R.string.ndn_prefix_salt));
+                        mRegisteredPrefixIds.remove(mHost.getString(R.string.ndn_prefix_salt));
                         mPrefixRegisterError = true;
-                        Log.e(TAG, "Failed to register prefix: " + name.toUri());
+                        Logger.e(TAG, "Failed to register prefix: " + name.toUri());
                     }
                 });
-        mRegisteredPrefixIds.put(mMouseActivity.getString(R.string.ndn_prefix_salt), prefixId);
+        mRegisteredPrefixIds.put(mHost.getString(R.string.ndn_prefix_salt), prefixId);
+    }
+
+    /**
+     * @return most message bytes that fit one encrypted packet
+     */
+    @Override
+    int getMaxContentBytes() {
+        // Legacy packets pad at least one byte into the rest of the payload
+        return MousePacket.mPacketBytes - PacketCipher.mMessageOffset - 1;
+    }
+
+    /**
+     * Encrypt a message with the session cipher
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0)
+     * @return encrypted packet, or null if encryption failed
+     */
+    @Override
+    Blob makeContent(byte[] msg, int msgLength) {
+        try {
+            return encryptReply(msg, msgLength);
+        } catch (GeneralSecurityException e) {
+            Logger.e(TAG, "Error during data encryption!");
+            return null;
+        }
+    }
+
+    /**
+     * Encrypt a reply with the session cipher, using the reusable packet buffer
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0)
+     * @return encrypted packet, ready to be used as data content
+     * @throws GeneralSecurityException for error during encryption
+     */
+    private Blob encryptReply(byte[] msg, int msgLength) throws GeneralSecurityException {
+        long encryptStart = System.nanoTime();
+        int length = mPacketCipher.encrypt(msg, 0, msgLength, getNextSeqNum(), mPacketBuffer, 0);
+        mMetrics.mEncryptNanos.record(System.nanoTime() - encryptStart);
+        return new Blob(ByteBuffer.wrap(mPacketBuffer, 0, length), true);
     }
 
     /**
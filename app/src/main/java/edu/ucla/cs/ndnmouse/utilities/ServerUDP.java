@@ -1,30 +1,40 @@
 package edu.ucla.cs.ndnmouse.utilities;
 
-import android.graphics.Point;
-import android.os.AsyncTask;
-import android.util.Log;
-
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
-import edu.ucla.cs.ndnmouse.MouseActivity;
 import edu.ucla.cs.ndnmouse.R;
-import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.AdaptiveRate;
+import edu.ucla.cs.ndnmouse.helpers.BatchWriter;
+import edu.ucla.cs.ndnmouse.helpers.BinaryProtocol;
+import edu.ucla.cs.ndnmouse.helpers.ClientAddress;
+import edu.ucla.cs.ndnmouse.helpers.ControlMessages;
+import edu.ucla.cs.ndnmouse.helpers.Counter;
+import edu.ucla.cs.ndnmouse.helpers.EncodedCommand;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
 import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.SessionMetrics;
+import edu.ucla.cs.ndnmouse.helpers.SessionRegistry;
 
 /**
  * Class to provide UDP communication with the PC client
  */
-public class ServerUDP implements Runnable, Server {
+public class ServerUDP implements Runnable, Server, CommandSender.Target {
 
     private static final String TAG = ServerUDP.class.getSimpleName();
-    MouseActivity mMouseActivity;                   // Reference to calling activity
+    ServerHost mHost;                               // Provides movement and strings, and handles errors
 
     DatagramSocket mSocket;                         // UDP socket used to send and receive
     final int mPort;                                // Port number (always 10888)
@@ -32,22 +42,60 @@ public class ServerUDP implements Runnable, Server {
     float mMoveSensitivity;                         // Sensitivity multiplier for relative movement
     boolean mScrollInverted;                        // Inverts the two-finger scroll direction if true
     float mScrollSensitivity;                       // Sensitivity multiplier for scrolling movement
-
-    private HashMap<InetAddress, WorkerThread> mClientThreads;    // Holds all active worker threads that are servicing clients
+    boolean mPushUpdates;                           // Push updates as soon as there is movement (otherwise poll on a fixed interval)
+    int mCoalesceWindowMillis;                      // Milliseconds to gather more movement before pushing an update
+    int mMinGapMillis;                              // Minimum milliseconds between two pushed updates
+    final byte mMoveTypeScrolling;                  // Protocol byte for scrolling movement (cached from strings.xml)
+
+    // The PC clients send a heartbeat every few seconds, even while updates keep arriving, so the
+    // timeout allows several of them to get lost before a live client is evicted
+    static final int mSessionIdleTimeoutMillis = 30000; // Clients silent for this long are evicted
+    static final int mSessionTickMillis = 1000;         // Resolution of the idle checks (and longest receive wait)
+    private static final int mMaxBatchBytes = PacketCipher.mMaxPacketBytes;  // Most bytes batched into one plain packet (no bigger than clients receive)
+
+    private final SessionRegistry<ClientAddress, WorkerThread> mClientThreads;   // Holds all active worker threads that are servicing clients, by address and port
+    final ArrayList<WorkerThread> mEvicted = new ArrayList<>();    // Reused for the sessions evicted on one check (server thread only)
+    final Counter mEvictions;                       // Sessions evicted for going silent (outlives the sessions)
+    final CommandSender mCommandSender = new CommandSender(this);  // Sends clicks, key presses and typed messages on its own thread
+    private final HashMap<Integer, EncodedCommand> mEncodedCommands = new HashMap<>();  // Commands encoded once per string resource (UI thread only)
+    final byte[] mOpenAck;                          // Pre-encoded protocol messages (so acks don't look up strings)
+    final byte[] mHeartbeatAck;
+    static final byte[] mBinaryHeartbeatAck = {BinaryProtocol.mOpHeartbeatAck};
+    final byte[] mNoSession;                        // Tells a client without a session to reopen (the CLOSE message)
+    static final byte[] mBinaryNoSession = {BinaryProtocol.mOpClose};
+    final DatagramPacket mNoSessionPacket = new DatagramPacket(new byte[0], 0);    // Reused to send it (server thread only)
+    final ControlMessages mControlMessages;         // Classifies OPEN, heartbeat and CLOSE from the received bytes
+    final byte[] mReceiveBuffer = new byte[PacketCipher.mMaxPacketBytes];   // Reused for every received packet (server thread only)
+    final DatagramPacket mReceivePacket = new DatagramPacket(mReceiveBuffer, mReceiveBuffer.length);
+    final ClientAddress mReceiveKey = new ClientAddress();  // Reused to look up the sender's session without allocating (server thread only)
 
     /**
      * Constructor for server
-     * @param activity of the caller (so we can get position points)
+     * @param host providing movement and strings (normally MouseActivity)
      * @param port number for server to listen on
      * @param moveSensitivity multiplier for scaling movement
+     * @param pushUpdates true to push updates as soon as there is movement, false to poll on a fixed interval
+     * @param coalesceWindowMillis milliseconds to gather more movement before pushing an update
+     * @param minGapMillis minimum milliseconds between two pushed updates
      */
-    public ServerUDP(MouseActivity activity, int port, float moveSensitivity, boolean scrollInverted, float scrollSensitivity) {
-        mMouseActivity = activity;
+    public ServerUDP(ServerHost host, int port, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, boolean pushUpdates, int coalesceWindowMillis, int minGapMillis) {
+        mHost = host;
         mPort = port;
-        mClientThreads = new HashMap<>();
+        mClientThreads = new SessionRegistry<>(mSessionIdleTimeoutMillis, mSessionTickMillis);
+        mEvictions = host.getMetrics().counter("udp/evictions");
         mMoveSensitivity = moveSensitivity;
         mScrollInverted = scrollInverted;
         mScrollSensitivity = scrollSensitivity;
+        mPushUpdates = pushUpdates;
+        mCoalesceWindowMillis = coalesceWindowMillis;
+        mMinGapMillis = minGapMillis;
+        mMoveTypeScrolling = (byte) host.getString(R.string.protocol_move_scrolling).charAt(0);
+        mControlMessages = new ControlMessages(host.getString(R.string.protocol_opening_request),
+                host.getString(R.string.protocol_heartbeat_request),
+                host.getString(R.string.protocol_closing_request));
+        mOpenAck = host.getString(R.string.protocol_open_ack).getBytes();
+        mHeartbeatAck = host.getString(R.string.protocol_heartbeat_ack).getBytes();
+        mNoSession = host.getString(R.string.protocol_closing_request).getBytes();
     }
 
     /**
@@ -55,9 +103,10 @@ public class ServerUDP implements Runnable, Server {
      */
     public void start() {
         mServerIsRunning = true;
+        mCommandSender.start();
         Thread thread = new Thread(this);
         thread.start();
-        Log.d(TAG, "Started UDP server... " + getIPAddress(true) + ":" + mPort);
+        Logger.d(TAG, "Started UDP server... " + getIPAddress(true) + ":" + mPort);
     }
 
     /**
@@ -65,68 +114,82 @@ public class ServerUDP implements Runnable, Server {
      */
     public void stop() {
         mServerIsRunning = false;
-        Log.d(TAG, "Stopped UDP server...");
+        Logger.d(TAG, "Stopped UDP server...");
     }
 
     @Override
     public void run() {
         try {
-            // Create a new UDP socket
+            // Create a new UDP socket (receive wakes up every tick, so silent clients get evicted)
             mSocket = new DatagramSocket(mPort);
+            mSocket.setSoTimeout(mSessionTickMillis);
             while (mServerIsRunning) {
-                byte[] buf = new byte[MousePacket.mPacketBytes];
-                // Get incoming packet
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                mSocket.receive(packet);  // Blocks program flow
+                evictSilentClients(mClientThreads);
 
-                // Get data from packet
-                byte[] data = packet.getData();
-
-                // Trim null bytes off end
-                String msg = new String(data);
-                try {
-                    msg = msg.substring(0, msg.indexOf('\0'));
-                } catch (StringIndexOutOfBoundsException e) {
-                    Log.e(TAG, "Invalid message: Bad null byte padding!");
+                // Get incoming packet (reset the length, receive shrinks it to the last packet's size)
+                mReceivePacket.setLength(mReceiveBuffer.length);
+                if (!receive())
                     continue;
-                }
-
-                // If new client...
-                if (msg.startsWith(mMouseActivity.getString(R.string.protocol_opening_request))) {
-                    // If client is already being serviced, kill its worker and start a new one
-                    if (mClientThreads.containsKey(packet.getAddress())) {
-                        mClientThreads.get(packet.getAddress()).stop();
-                        mClientThreads.remove(packet.getAddress());
-                    }
-
-                    // Start a new worker thread for the client
-                    WorkerThread worker = new WorkerThread(mSocket, packet);
-                    worker.start();
-                    mClientThreads.put(packet.getAddress(), worker);
-                    Log.d(TAG, "Number of clients: " + mClientThreads.size());
-                }
-
-                // Otherwise if existing client is requesting heartbeat...
-                else if (msg.startsWith(mMouseActivity.getString(R.string.protocol_heartbeat_request))) {
-                    if (mClientThreads.containsKey(packet.getAddress()))
-                        mClientThreads.get(packet.getAddress()).sendAck(false);
-
-                // Otherwise if existing client no longer wants updates...
-                } else if (msg.startsWith(mMouseActivity.getString(R.string.protocol_closing_request))) {
-                    // Look up its thread and stop it
-                    if (mClientThreads.containsKey(packet.getAddress())) {
-                        mClientThreads.get(packet.getAddress()).stop();
-                        mClientThreads.remove(packet.getAddress());
-                    }
+                ClientAddress addr = mReceiveKey.set(mReceivePacket);
+                int length = mReceivePacket.getLength();
+
+                WorkerThread worker;
+                switch (mControlMessages.classify(mReceiveBuffer, 0, length)) {
+                    // If new client...
+                    case ControlMessages.mOpen:
+                        // If client is already being serviced, kill its worker and start a new one
+                        worker = mClientThreads.remove(addr);
+                        if (null != worker)
+                            worker.stop();
+
+                        // Pick the message format from the optional version byte after OPEN
+                        boolean versionRequested = mControlMessages.isVersionRequested(mReceiveBuffer, 0, length);
+                        byte requestedVersion = mControlMessages.getRequestedVersion(mReceiveBuffer, 0, length);
+                        byte version = NetworkHelpers.negotiateVersion(requestedVersion, NetworkHelpers.mProtocolVersionBatch);
+
+                        // Start a new worker thread for the client (it only keeps the packet's address and port)
+                        worker = new WorkerThread(mSocket, mReceivePacket, version, versionRequested);
+                        worker.mMetrics.mPacketsReceived.inc();
+                        // Register before starting, so commands reach the session as soon as the client has its OPEN-ACK
+                        mClientThreads.put(addr.copy(), worker, System.nanoTime());
+                        worker.start();
+                        Logger.d(TAG, "Number of clients: " + mClientThreads.size());
+                        break;
+
+                    // Otherwise if existing client is requesting heartbeat...
+                    case ControlMessages.mHeartbeat:
+                        worker = mClientThreads.get(addr);
+                        if (null != worker) {
+                            long receivedNanos = System.nanoTime();
+                            mClientThreads.touch(addr, receivedNanos);
+                            worker.mMetrics.mPacketsReceived.inc();
+                            worker.onHeartbeat(receivedNanos);
+                            worker.sendAck(false);
+                            worker.mMetrics.mHeartbeatAckNanos.record(System.nanoTime() - receivedNanos);
+                        } else {
+                            // Client was evicted (or the server restarted), so tell it to reopen right away
+                            byte[] noSession = BinaryProtocol.isBinary(mReceiveBuffer[0]) ? mBinaryNoSession : mNoSession;
+                            sendNoSession(addr, noSession, noSession.length);
+                        }
+                        break;
+
+                    // Otherwise if existing client no longer wants updates...
+                    case ControlMessages.mClose:
+                        // Look up its thread and stop it
+                        worker = mClientThreads.remove(addr);
+                        if (null != worker)
+                            worker.stop();
+                        break;
                 }
             }
         } catch (IOException e) {
-            Log.e(TAG, "Web server was interrupted and is now closed.", e);
+            Logger.e(TAG, "Web server was interrupted and is now closed.", e);
         }
 
         // Shutdown stuff
+        mCommandSender.stop();
         // Stop all client threads
-        for (WorkerThread client : mClientThreads.values()) {
+        for (WorkerThread client : mClientThreads.sessions()) {
             client.stop();
         }
         mClientThreads.clear();
@@ -137,12 +200,68 @@ public class ServerUDP implements Runnable, Server {
         }
     }
 
+    /**
+     * Receive the next packet into mReceivePacket, waiting at most one tick
+     * @return false if no packet arrived in time
+     * @throws IOException for error during socket receiving
+     */
+    boolean receive() throws IOException {
+        try {
+            mSocket.receive(mReceivePacket);  // Blocks program flow
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answer a client that has no session (e.g. it was evicted while silent), so it reopens at once
+     * instead of waiting for its heartbeats to time out. The answer is no bigger than what the client
+     * sent, so spoofed packets can't be amplified (server thread only).
+     * @param addr of the client
+     * @param msg telling the client to reopen
+     * @param msgLength number of message bytes (message starts at 0)
+     * @throws IOException for error during socket sending
+     */
+    void sendNoSession(ClientAddress addr, byte[] msg, int msgLength) throws IOException {
+        if (msgLength > mReceivePacket.getLength())
+            return;
+        mNoSessionPacket.setData(msg, 0, msgLength);
+        mNoSessionPacket.setAddress(addr.getAddress());
+        mNoSessionPacket.setPort(addr.getPort());
+        mSocket.send(mNoSessionPacket);
+        Logger.d(TAG, "Told client without a session to reopen: " + addr);
+    }
+
+    /**
+     * Stop the workers of clients that have gone silent for longer than the idle timeout, so dead
+     * PCs don't keep a thread and keep getting updates (server thread only)
+     * @param clients registry of the server's workers
+     */
+    <W extends WorkerThread> void evictSilentClients(SessionRegistry<ClientAddress, W> clients) {
+        if (0 == clients.expire(System.nanoTime(), mEvicted))
+            return;
+        for (int i = 0; i < mEvicted.size(); i++) {
+            WorkerThread worker = mEvicted.get(i);
+            worker.stop();
+            mEvictions.inc();
+            Logger.i(TAG, "Evicted silent client " + worker.mReplyAddr + ":" + worker.mReplyPort);
+        }
+        mEvicted.clear();
+        Logger.d(TAG, "Number of clients: " + clients.size());
+    }
+
     /**
      * Send a command to all current clients
      * @param command string for the type of click or keypress
      */
     public void executeCommand(int command) {
-        new SendMessageToClients().execute(mMouseActivity.getString(command));
+        EncodedCommand encoded = mEncodedCommands.get(command);
+        if (null == encoded) {
+            encoded = EncodedCommand.fromCommand(mHost.getString(command));
+            mEncodedCommands.put(command, encoded);
+        }
+        mCommandSender.send(encoded);
     }
 
     /**
@@ -150,30 +269,23 @@ public class ServerUDP implements Runnable, Server {
      * @param message string to type on clients
      */
     public void executeTypedMessage(String message) {
-        new SendMessageToClients().execute(mMouseActivity.getString(R.string.action_custom_type) + message);
+        mCommandSender.send(EncodedCommand.fromTypedMessage(mHost.getString(R.string.action_custom_type), message));
     }
 
     /**
-     * AsyncTask helper to send messages at all clients
-     * Needed so we don't send datagrams from the main UI thread
+     * Fan encoded commands out to all current clients (called on the command sender thread)
+     * @param commands encoded in every protocol form, in order
      */
-    private class SendMessageToClients extends AsyncTask<String, Void, Void> {
-        @Override
-        protected Void doInBackground(String... commands) {
-            for (String command : commands) {
-                for (WorkerThread client : mClientThreads.values()) {
-                    if (null != client.mReplyAddr && 0 != client.mReplyPort) {
-                        byte[] msg = command.getBytes();
-                        DatagramPacket packet = new DatagramPacket(msg, msg.length, client.mReplyAddr, client.mReplyPort);
-                        try {
-                            mSocket.send(packet);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+    @Override
+    public void sendToClients(List<EncodedCommand> commands) {
+        for (WorkerThread client : getClientThreads()) {
+            if (null != client.mReplyAddr && 0 != client.mReplyPort) {
+                try {
+                    client.sendCommands(commands);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
-            return null;
         }
     }
 
@@ -229,10 +341,38 @@ public class ServerUDP implements Runnable, Server {
             case R.string.pref_scroll_sensitivity_key:
                 mScrollSensitivity = (Float) value;
                 break;
+            case R.string.pref_update_mode_key:
+                mPushUpdates = (Boolean) value;
+                break;
+            case R.string.pref_coalesce_window_key:
+                mCoalesceWindowMillis = (Integer) value;
+                updateDispatchers();
+                break;
+            case R.string.pref_min_gap_key:
+                mMinGapMillis = (Integer) value;
+                updateDispatchers();
+                break;
             default:
-                Log.e(TAG, "Error: setting to update not recognized!");
+                Logger.e(TAG, "Error: setting to update not recognized!");
+        }
+        Logger.d(TAG, "Updated " + mHost.getString(key) + " with new value " + value);
+    }
+
+    /**
+     * Pass the latest coalescing settings on to the motion dispatchers of all current clients
+     */
+    void updateDispatchers() {
+        for (WorkerThread client : getClientThreads()) {
+            client.mDispatcher.setCoalesceWindow(mCoalesceWindowMillis);
+            client.mDispatcher.setMinGap(client.mRate.limitMinGap(mMinGapMillis));
         }
-        Log.d(TAG, "Updated " + mMouseActivity.getString(key) + " with new value " + value);
+    }
+
+    /**
+     * @return all worker threads currently servicing clients
+     */
+    Collection<? extends WorkerThread> getClientThreads() {
+        return mClientThreads.sessions();
     }
 
     /**
@@ -245,18 +385,42 @@ public class ServerUDP implements Runnable, Server {
         private final DatagramSocket mSocket;   // Shared UDP socket for all worker threads
         final InetAddress mReplyAddr;           // Client's address this will reply to
         final int mReplyPort;                   // Client's port this will reply to
-        final static int mUpdateIntervalMillis = 20;    // Number of milliseconds to wait before sending next update. May require tuning.
+        final byte mVersion;                    // Protocol version negotiated at OPEN
+        final boolean mVersionRequested;        // If client sent a version at OPEN (so it expects one in the OPEN-ACK)
+        final boolean mBinary;                  // If this session uses binary opcodes instead of strings
+        final boolean mBatches;                 // If this session takes several commands per packet
+        final MotionDispatcher mDispatcher;     // Wakes this worker when there is new movement (push mode, or polling while idle)
+        final AdaptiveRate mRate;               // Picks the polling interval from motion and heartbeats
+        final SessionMetrics mMetrics;          // Packet counts, timings and rate of this session
+        final MotionAccumulator.Cursor mMotionCursor;   // This worker's own read position in the movement stream
+        final byte[] mMoveBuffer = new byte[NetworkHelpers.mMoveMessageBytes];    // Reused for every move message
+        private final DatagramPacket mMovePacket;       // Reused for every move update (wraps mMoveBuffer)
+        private final DatagramPacket mCommandPacket;    // Reused for every command (command sender thread only)
+        private final BatchWriter mBatch = new BatchWriter(BinaryProtocol.mOpBatch, mMaxBatchBytes);  // Packs movement and commands into one packet (command sender thread only)
+        final Object mMotionLock = new Object();        // Held while taking movement and writing it out, by the worker or a batch on the command sender
 
         /**
          * Constructor
          * @param socket shared UDP socket from that parent is managing
          * @param packet initial packet that client uses to establish a connection with the server
+         * @param version negotiated protocol version for this session
+         * @param versionRequested if the client sent a version at OPEN
          */
-        WorkerThread(DatagramSocket socket, DatagramPacket packet) {
+        WorkerThread(DatagramSocket socket, DatagramPacket packet, byte version, boolean versionRequested) {
             mSocket = socket;
             // Get address and port to send reply to
             mReplyAddr = packet.getAddress();
             mReplyPort = packet.getPort();
+            mVersion = version;
+            mVersionRequested = versionRequested;
+            mBinary = version >= NetworkHelpers.mProtocolVersionBinary;
+            mBatches = version >= NetworkHelpers.mProtocolVersionBatch;
+            mDispatcher = new MotionDispatcher(mCoalesceWindowMillis, mMinGapMillis);
+            mRate = new AdaptiveRate(mHost.getRefreshRate());
+            mMetrics = new SessionMetrics(mHost.getMetrics(), "udp/" + mReplyAddr.getHostAddress() + ":" + mReplyPort + "/");
+            mMotionCursor = mHost.newMotionCursor();
+            mMovePacket = new DatagramPacket(mMoveBuffer, mMoveBuffer.length, mReplyAddr, mReplyPort);
+            mCommandPacket = new DatagramPacket(new byte[0], 0, mReplyAddr, mReplyPort);
         }
 
         /**
@@ -264,10 +428,11 @@ public class ServerUDP implements Runnable, Server {
          */
         void start() {
             mWorkerIsRunning = true;
+            mHost.addMotionDispatcher(mDispatcher);
             Thread thread = new Thread(this);
             // thread.setPriority(Thread.MAX_PRIORITY);
             thread.start();
-            Log.d(TAG, "Started worker thread for client " + mReplyAddr + ":" + mReplyPort);
+            Logger.d(TAG, "Started worker thread for client " + mReplyAddr + ":" + mReplyPort);
         }
 
         /**
@@ -275,7 +440,43 @@ public class ServerUDP implements Runnable, Server {
          */
         void stop() {
             mWorkerIsRunning = false;
-            Log.d(TAG, "Stopped worker thread for client " + mReplyAddr + ":" + mReplyPort);
+            mHost.removeMotionDispatcher(mDispatcher);
+            mDispatcher.close();
+            mMetrics.close();
+            Logger.d(TAG, "Stopped worker thread for client " + mReplyAddr + ":" + mReplyPort);
+        }
+
+        /**
+         * Feed a heartbeat from the client to the adaptive rate, since its timing tells about the link
+         * @param nowNanos arrival time of the heartbeat
+         */
+        void onHeartbeat(long nowNanos) {
+            mMetrics.onHeartbeat(nowNanos);
+            if (mRate.onHeartbeat(nowNanos))
+                logRate();
+            mMetrics.onRate(mRate);
+            mDispatcher.setMinGap(mRate.limitMinGap(mMinGapMillis));
+        }
+
+        /**
+         * Get all movement since the last update, and let the adaptive rate see it
+         * @return packed relative movement from the motion cursor (0 if none)
+         */
+        long consumeMotion() {
+            long position = mMotionCursor.consume();
+            if (mRate.onPoll(position, System.nanoTime()))
+                logRate();
+            mMetrics.onRate(mRate);
+            if (0 != position)
+                mMetrics.mCoalescedDeltas.record(mDispatcher.drainSignalCount());
+            return position;
+        }
+
+        /**
+         * Log the chosen update interval and why, whenever the reason changes
+         */
+        void logRate() {
+            Logger.d(TAG, "Update interval for client " + mReplyAddr + ":" + mReplyPort + " is now " + mRate.getIntervalMillis() + " ms (" + AdaptiveRate.getReasonName(mRate.getReason()) + ")");
         }
 
         /**
@@ -286,50 +487,168 @@ public class ServerUDP implements Runnable, Server {
         void sendAck(boolean openAck) throws IOException {
             byte[] reply;
             if (openAck)
-                reply = (mMouseActivity.getString(R.string.protocol_open_ack)).getBytes();
+                reply = getOpenAck();
             else
-                reply = (mMouseActivity.getString(R.string.protocol_heartbeat_ack)).getBytes();
+                reply = mBinary ? mBinaryHeartbeatAck : mHeartbeatAck;
             DatagramPacket replyPacket = new DatagramPacket(reply, reply.length, mReplyAddr, mReplyPort);
-            Log.d(TAG, "Sending ACK: " + new String(reply));
+            if (Logger.shouldTrace())
+                Logger.trace(TAG, "Sending ACK to " + mReplyAddr + ":" + mReplyPort + ": " + Arrays.toString(reply));
             mSocket.send(replyPacket);
+            mMetrics.mPacketsSent.inc();
+        }
+
+        /**
+         * Build the OPEN-ACK, which is always in legacy form since the client doesn't know the
+         * negotiated version yet. A client that asked for a version gets the chosen one appended.
+         * @return open ack message
+         */
+        byte[] getOpenAck() {
+            if (!mVersionRequested)
+                return mOpenAck;
+            byte[] reply = Arrays.copyOf(mOpenAck, mOpenAck.length + 1);
+            reply[mOpenAck.length] = mVersion;
+            return reply;
+        }
+
+        /**
+         * Send commands to client, packed into as few batches as they fit if the session takes them,
+         * the first one led by the movement the worker hasn't sent yet (so a click lands where the
+         * pointer went first). Called on the command sender thread.
+         * @param commands encoded commands, in order (shared between clients, not modified)
+         * @throws IOException for error during socket sending
+         */
+        void sendCommands(List<EncodedCommand> commands) throws IOException {
+            if (!mBatches) {
+                for (int i = 0; i < commands.size(); i++) {
+                    byte[] command = commands.get(i).get(mBinary);
+                    sendCommand(command, command.length);
+                }
+                return;
+            }
+
+            mBatch.reset(getMaxBatchBytes());
+            synchronized (mMotionLock) {
+                long position = consumeMotion();
+                if (0 != position) {
+                    int length = writeMoveUpdate(position, mMoveBuffer, 0);
+                    mBatch.append(mMoveBuffer, length);
+                }
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                byte[] command = commands.get(i).get(true);
+                if (mBatch.append(command, command.length))
+                    continue;
+                sendBatch();
+                // Too long for any batch, so it goes out on its own
+                if (!mBatch.append(command, command.length))
+                    sendCommand(command, command.length);
+            }
+            sendBatch();
+        }
+
+        /**
+         * Send the batch built so far (if it has any messages)
+         * @throws IOException for error during socket sending
+         */
+        private void sendBatch() throws IOException {
+            if (mBatch.isEmpty())
+                return;
+            mMetrics.mMessagesPerPacket.record(mBatch.getCount());
+            int length = mBatch.finish();
+            sendCommand(mBatch.getBuffer(), length);
+        }
+
+        /**
+         * @return most bytes of commands one batch may take
+         */
+        int getMaxBatchBytes() {
+            return mMaxBatchBytes;
+        }
+
+        /**
+         * Send a command (or a batch of them) to client: can either be from executeCommand or
+         * executeTypedMessage
+         * @param msg buffer holding the encoded command (not modified)
+         * @param msgLength number of bytes to send (command starts at 0)
+         * @throws IOException for error during socket sending
+         */
+        void sendCommand(byte[] msg, int msgLength) throws IOException {
+            mCommandPacket.setData(msg, 0, msgLength);
+            mSocket.send(mCommandPacket);
+            mMetrics.mPacketsSent.inc();
+        }
+
+        /**
+         * Scale the relative movement by the appropriate sensitivity, and write it as a move message
+         * @param position packed relative movement from the motion cursor
+         * @param buf to write the move message into
+         * @param offset in buf where the message starts
+         * @return number of bytes written
+         */
+        int writeMoveUpdate(long position, byte[] buf, int offset) {
+            byte moveType = mHost.getMoveType();
+            boolean scrollActivated = (moveType == mMoveTypeScrolling);
+            if (mBinary)
+                moveType = BinaryProtocol.getMoveOpcode(moveType);
+
+            // Find scaled x and y position according to appropriate sensitivity
+            int scaledX, scaledY;
+            if (scrollActivated) {
+                scaledX = (int) (MotionAccumulator.getX(position) * mScrollSensitivity);
+                scaledY = (int) (MotionAccumulator.getY(position) * mScrollSensitivity);
+                if (!mScrollInverted) {
+                    scaledX = -scaledX;
+                    scaledY = -scaledY;
+                }
+            } else {
+                scaledX = (int) (MotionAccumulator.getX(position) * mMoveSensitivity);
+                scaledY = (int) (MotionAccumulator.getY(position) * mMoveSensitivity);
+            }
+            return NetworkHelpers.writeMoveMessage(moveType, scaledX, scaledY, buf, offset);
+        }
+
+        /**
+         * Send relative movement to client as a move update (called by the worker with mMotionLock held)
+         * @param position packed relative movement from the motion cursor
+         * @throws IOException for error during socket sending
+         */
+        void sendMoveUpdate(long position) throws IOException {
+            // Build move message in the reusable buffer and send it
+            writeMoveUpdate(position, mMoveBuffer, 0);
+            if (Logger.shouldTrace())
+                Logger.trace(TAG, "Sending update to " + mReplyAddr + ":" + mReplyPort + ": " + Arrays.toString(mMoveBuffer));
+            mSocket.send(mMovePacket);
+            mMetrics.mPacketsSent.inc();
+        }
+
+        /**
+         * Blocks until the next update should be sent. In push mode this waits for the touchpad to
+         * signal movement, otherwise it sleeps the interval picked by the adaptive rate (and while
+         * the touchpad is idle, it wakes up early as soon as there is movement).
+         * @return true if the worker should send an update, false if it should stop
+         * @throws InterruptedException if the worker thread is interrupted while waiting
+         */
+        boolean waitForNextUpdate() throws InterruptedException {
+            if (mPushUpdates)
+                return mDispatcher.awaitMotion() && mWorkerIsRunning;
+            long intervalNanos = mRate.getIntervalNanos();
+            if (mRate.isIdle())
+                return mDispatcher.awaitSignal(intervalNanos) && mWorkerIsRunning;
+            Thread.sleep(intervalNanos / 1000000, (int) (intervalNanos % 1000000));
+            return mWorkerIsRunning;
         }
 
         @Override
         public void run() {
             try {
                 sendAck(true);
-                while (mWorkerIsRunning) {
-                    // Don't send too many updates (may require tuning)
-                    Thread.sleep(mUpdateIntervalMillis);
-                    Point position = mMouseActivity.getRelativePosition();
-                    // Skip update if no relative movement since last update
-                    if (position.equals(0, 0))
-                        continue;
-
-                    String moveType = mMouseActivity.getMoveType();
-                    boolean scrollActivated = moveType.equals(mMouseActivity.getString(R.string.protocol_move_scrolling));
-
-                    // Find scaled x and y position according to appropriate sensitivity
-                    int scaledX, scaledY;
-                    if (scrollActivated) {
-                        scaledX = (int) (position.x * mScrollSensitivity);
-                        scaledY = (int) (position.y * mScrollSensitivity);
-                        if (!mScrollInverted) {
-                            scaledX = -scaledX;
-                            scaledY = -scaledY;
-                        }
-                    } else {
-                        scaledX = (int) (position.x * mMoveSensitivity);
-                        scaledY = (int) (position.y * mMoveSensitivity);
+                while (waitForNextUpdate()) {
+                    // Skip update if no relative movement since last update (or a batch already took it)
+                    synchronized (mMotionLock) {
+                        long position = consumeMotion();
+                        if (0 != position)
+                            sendMoveUpdate(position);
                     }
-
-                    // Build move message
-                    byte[] msg = NetworkHelpers.buildMoveMessage(moveType, scaledX, scaledY);
-                    Log.d(TAG, "Sending update: " + new String(msg) + ", x = " + scaledX + ", y = " + scaledY);
-
-                    // Build and send datagram packet
-                    DatagramPacket packet = new DatagramPacket(msg, msg.length, mReplyAddr, mReplyPort);
-                    mSocket.send(packet);
                 }
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
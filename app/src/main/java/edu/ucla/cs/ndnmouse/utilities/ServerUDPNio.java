@@ -0,0 +1,689 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.ucla.cs.ndnmouse.R;
+import edu.ucla.cs.ndnmouse.helpers.AdaptiveRate;
+import edu.ucla.cs.ndnmouse.helpers.BatchWriter;
+import edu.ucla.cs.ndnmouse.helpers.BinaryProtocol;
+import edu.ucla.cs.ndnmouse.helpers.ControlMessages;
+import edu.ucla.cs.ndnmouse.helpers.Counter;
+import edu.ucla.cs.ndnmouse.helpers.EncodedCommand;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MpscRingQueue;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.SessionMetrics;
+import edu.ucla.cs.ndnmouse.helpers.SessionRegistry;
+
+/**
+ * Class to provide UDP communication with the PC client, using a single event loop thread for all
+ * clients (same protocol as ServerUDP). A non-blocking DatagramChannel and a Selector handle
+ * receiving, heartbeat acks, commands and timed motion updates for every session, so attaching more
+ * PCs doesn't cost another thread.
+ */
+public class ServerUDPNio implements Runnable, Server {
+
+    private static final String TAG = ServerUDPNio.class.getSimpleName();
+    private ServerHost mHost;                       // Provides movement and strings, and handles errors
+
+    private final int mPort;                        // Port number (always 10888)
+    private volatile boolean mServerIsRunning = false;  // Helps start and stop the event loop
+    private float mMoveSensitivity;                 // Sensitivity multiplier for relative movement
+    private boolean mScrollInverted;                // Inverts the two-finger scroll direction if true
+    private float mScrollSensitivity;               // Sensitivity multiplier for scrolling movement
+    private volatile boolean mPushUpdates;          // Push updates as soon as there is movement (otherwise poll on a fixed interval)
+    private volatile int mCoalesceWindowMillis;     // Milliseconds to gather more movement before pushing an update
+    private volatile int mMinGapMillis;             // Minimum milliseconds between two pushed updates
+    private volatile boolean mDispatchersChanged;   // Tells the event loop to pass new coalescing settings to every session
+    private final byte mMoveTypeScrolling;          // Protocol byte for scrolling movement (cached from strings.xml)
+
+    private volatile Selector mSelector;            // Wakes the event loop for incoming packets, commands and movement
+    private DatagramChannel mChannel;               // Non-blocking UDP channel shared by all sessions
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(MousePacket.mPacketBytes);  // Reused for every incoming packet
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocateDirect(MousePacket.mPacketBytes * 4);  // Reused for every outgoing packet
+
+    private final SessionRegistry<InetSocketAddress, Session> mSessions = new SessionRegistry<>(ServerUDP.mSessionIdleTimeoutMillis, ServerUDP.mSessionTickMillis);   // Sessions by client address and port (evicts silent clients)
+    private final ArrayList<Session> mSessionList = new ArrayList<>();          // Same sessions, for iterating without an iterator (event loop only)
+    private final ArrayList<Session> mEvicted = new ArrayList<>();              // Reused for the sessions evicted on one check (event loop only)
+    private final Counter mEvictions;               // Sessions evicted for going silent (outlives the sessions)
+    private final Counter mSendFailures;            // Sends to a single client that failed (outlives the sessions)
+    private final ArrayList<Session> mFailedSessions = new ArrayList<>();  // Sessions to end after too many failed sends in a row (event loop only)
+    private static final int mMaxSendFailures = 3;  // Failed sends in a row that end a session
+    private final MpscRingQueue<EncodedCommand> mPendingCommands = new MpscRingQueue<>(256);   // Encoded commands waiting for the event loop
+    private final HashMap<Integer, EncodedCommand> mEncodedCommands = new HashMap<>();   // Commands encoded once per string resource (UI thread only)
+    private final ArrayList<EncodedCommand> mCommandBurst = new ArrayList<>();  // Commands taken from the queue in one pass (event loop only)
+    private final BatchWriter mBatch = new BatchWriter(BinaryProtocol.mOpBatch, PacketCipher.mMaxPacketBytes);  // Packs a session's movement and commands into one packet, no bigger than clients receive (event loop only)
+    private final byte[] mMoveBuffer = new byte[NetworkHelpers.mMoveMessageBytes];  // Reused for every move message (event loop only)
+
+    // Pre-encoded protocol messages, so the event loop never has to look up or encode strings
+    private final ControlMessages mControlMessages; // Classifies OPEN, heartbeat and CLOSE from the received bytes
+    private final byte[] mOpenAck;
+    private final byte[] mHeartbeatAck;
+    private static final byte[] mBinaryHeartbeatAck = {BinaryProtocol.mOpHeartbeatAck};
+    private final byte[] mNoSession;                // Tells a client without a session to reopen (the CLOSE message)
+    private static final byte[] mBinaryNoSession = {BinaryProtocol.mOpClose};
+
+    // Wakes up the event loop whenever a session has new movement
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            Selector selector = mSelector;
+            if (null != selector)
+                selector.wakeup();
+        }
+    };
+
+    /**
+     * Constructor for server
+     * @param host providing movement and strings (normally MouseActivity)
+     * @param port number for server to listen on
+     * @param moveSensitivity multiplier for scaling movement
+     * @param pushUpdates true to push updates as soon as there is movement, false to poll on a fixed interval
+     * @param coalesceWindowMillis milliseconds to gather more movement before pushing an update
+     * @param minGapMillis minimum milliseconds between two pushed updates
+     */
+    public ServerUDPNio(ServerHost host, int port, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, boolean pushUpdates, int coalesceWindowMillis, int minGapMillis) {
+        mHost = host;
+        mPort = port;
+        mMoveSensitivity = moveSensitivity;
+        mScrollInverted = scrollInverted;
+        mScrollSensitivity = scrollSensitivity;
+        mPushUpdates = pushUpdates;
+        mCoalesceWindowMillis = coalesceWindowMillis;
+        mMinGapMillis = minGapMillis;
+        mMoveTypeScrolling = (byte) host.getString(R.string.protocol_move_scrolling).charAt(0);
+
+        mControlMessages = new ControlMessages(host.getString(R.string.protocol_opening_request),
+                host.getString(R.string.protocol_heartbeat_request),
+                host.getString(R.string.protocol_closing_request));
+        mOpenAck = host.getString(R.string.protocol_open_ack).getBytes();
+        mHeartbeatAck = host.getString(R.string.protocol_heartbeat_ack).getBytes();
+        mNoSession = host.getString(R.string.protocol_closing_request).getBytes();
+        mEvictions = host.getMetrics().counter("udp/evictions");
+        mSendFailures = host.getMetrics().counter("udp/send_failures");
+    }
+
+    /**
+     * Starts server by spinning it off as a background thread
+     */
+    public void start() {
+        mServerIsRunning = true;
+        Thread thread = new Thread(this);
+        thread.start();
+        Logger.d(TAG, "Started UDP event loop server... " + ServerUDP.getIPAddress(true) + ":" + mPort);
+    }
+
+    /**
+     * Stops the event loop, which then ends all sessions and closes the channel
+     */
+    public void stop() {
+        mServerIsRunning = false;
+        mWakeup.run();
+        Logger.d(TAG, "Stopped UDP event loop server...");
+    }
+
+    @Override
+    public void run() {
+        try {
+            mSelector = Selector.open();
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().bind(new InetSocketAddress(mPort));
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+
+            while (mServerIsRunning) {
+                if (mDispatchersChanged) {
+                    mDispatchersChanged = false;
+                    updateDispatchers();
+                }
+
+                evictSilentSessions();
+
+                // Send any motion that is due, and find out how long we may sleep until the next one
+                // (at most until the next idle check)
+                long waitNanos = flushMotion();
+                long checkNanos = Math.max(0, mSessions.getNextCheckNanos() - System.nanoTime());
+                if (waitNanos < 0 || waitNanos > checkNanos)
+                    waitNanos = checkNanos;
+                if (waitNanos > 0)
+                    mSelector.select(Math.max(1, waitNanos / 1000000));
+                else
+                    mSelector.selectNow();
+                mSelector.selectedKeys().clear();
+
+                receivePackets();
+                sendPendingCommands();
+                dropFailedSessions();
+            }
+        } catch (IOException e) {
+            // Only the selector or the channel itself failing gets here (failed sends to one client
+            // just end that client's session), so every session is lost
+            Logger.e(TAG, "Web server was interrupted and is now closed.", e);
+            if (mServerIsRunning)
+                mHost.onServerError("The UDP server stopped unexpectedly. Please restart it and try again.");
+        }
+
+        // Shutdown stuff
+        // End all sessions
+        for (int i = 0; i < mSessionList.size(); i++)
+            mSessionList.get(i).stop();
+        mSessions.clear();
+        mSessionList.clear();
+        // Close the channel and selector
+        try {
+            if (null != mChannel)
+                mChannel.close();
+            if (null != mSelector)
+                mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mChannel = null;
+        mSelector = null;
+    }
+
+    /**
+     * Handles every packet waiting on the channel, until it would block
+     * @throws IOException for error during socket receiving, or if the channel is closed
+     */
+    private void receivePackets() throws IOException {
+        SocketAddress sender;
+        mReceiveBuffer.clear();
+        while (null != (sender = mChannel.receive(mReceiveBuffer))) {
+            mReceiveBuffer.flip();
+            InetSocketAddress clientAddr = (InetSocketAddress) sender;
+            Session session;
+
+            switch (mControlMessages.classify(mReceiveBuffer)) {
+                // If new client...
+                case ControlMessages.mOpen:
+                    // If client is already being serviced, end its session and start a new one
+                    removeSession(clientAddr);
+
+                    // Pick the message format from the optional version byte after OPEN (a null byte means none)
+                    byte requestedVersion = mControlMessages.getRequestedVersion(mReceiveBuffer);
+                    boolean versionRequested = 0 != requestedVersion;
+                    byte version = NetworkHelpers.mProtocolVersionLegacy;
+                    if (versionRequested)
+                        version = NetworkHelpers.negotiateVersion(requestedVersion, NetworkHelpers.mProtocolVersionBatch);
+
+                    session = new Session(clientAddr, version);
+                    session.mMetrics.mPacketsReceived.inc();
+                    mSessions.put(clientAddr, session, System.nanoTime());
+                    mSessionList.add(session);
+                    session.start();
+                    sendOpenAck(session, versionRequested);
+                    Logger.d(TAG, "Number of clients: " + mSessionList.size());
+                    break;
+
+                // Otherwise if existing client is requesting heartbeat...
+                case ControlMessages.mHeartbeat:
+                    session = mSessions.get(clientAddr);
+                    if (null != session) {
+                        long receivedNanos = System.nanoTime();
+                        mSessions.touch(clientAddr, receivedNanos);
+                        session.mMetrics.mPacketsReceived.inc();
+                        session.onHeartbeat(receivedNanos);
+                        send(session.mBinary ? mBinaryHeartbeatAck : mHeartbeatAck, session);
+                        session.mMetrics.mHeartbeatAckNanos.record(System.nanoTime() - receivedNanos);
+                    } else {
+                        // Client was evicted (or the server restarted), so tell it to reopen right away
+                        // (the answer is the same size as the heartbeat, so spoofed ones can't be amplified)
+                        boolean binary = BinaryProtocol.isBinary(mReceiveBuffer.get(mReceiveBuffer.position()));
+                        mSendBuffer.clear();
+                        mSendBuffer.put(binary ? mBinaryNoSession : mNoSession);
+                        mSendBuffer.flip();
+                        if (sendBuffer(clientAddr))
+                            Logger.d(TAG, "Told client without a session to reopen: " + clientAddr);
+                    }
+                    break;
+
+                // Otherwise if existing client no longer wants updates...
+                case ControlMessages.mClose:
+                    removeSession(clientAddr);
+                    break;
+            }
+            mReceiveBuffer.clear();
+        }
+    }
+
+    /**
+     * Sends every command queued up by executeCommand/executeTypedMessage to all sessions. Sessions
+     * that negotiated batches get them packed together with their latest movement.
+     * @throws IOException if the channel is closed
+     */
+    private void sendPendingCommands() throws IOException {
+        EncodedCommand command;
+        while (null != (command = mPendingCommands.poll()))
+            mCommandBurst.add(command);
+        if (mCommandBurst.isEmpty())
+            return;
+
+        for (int i = 0; i < mSessionList.size(); i++) {
+            Session session = mSessionList.get(i);
+            if (session.mBatches) {
+                session.sendBatches(mCommandBurst);
+            } else {
+                for (int j = 0; j < mCommandBurst.size(); j++)
+                    send(mCommandBurst.get(j).get(session.mBinary), session);
+            }
+        }
+        mCommandBurst.clear();
+    }
+
+    /**
+     * Sends a move update to every session that has one due
+     * @return nanoseconds until the next update may be due, 0 to check again right away, or -1 if
+     * there is nothing to wait for (until the next signal or packet)
+     * @throws IOException if the channel is closed
+     */
+    private long flushMotion() throws IOException {
+        long waitNanos = -1;
+        if (mPushUpdates) {
+            for (int i = 0; i < mSessionList.size(); i++) {
+                Session session = mSessionList.get(i);
+                long due = session.mDispatcher.pollMotion();
+                if (0 == due)
+                    session.sendMoveUpdate();
+                else if (due > 0 && (waitNanos < 0 || due < waitNanos))
+                    waitNanos = due;
+            }
+        } else {
+            // Polling: send whatever moved on each session's adaptive interval (idle sessions also
+            // poll early when the touchpad signals, since the signal listener wakes up the selector)
+            long now = System.nanoTime();
+            for (int i = 0; i < mSessionList.size(); i++) {
+                Session session = mSessionList.get(i);
+                boolean signalled = session.mRate.isIdle() && session.mDispatcher.takeSignal();
+                if (now - session.mNextPollNanos >= 0 || signalled) {
+                    session.sendMoveUpdate();
+                    session.mNextPollNanos = now + session.mRate.getIntervalNanos();
+                }
+                long due = Math.max(1, session.mNextPollNanos - now);
+                if (waitNanos < 0 || due < waitNanos)
+                    waitNanos = due;
+            }
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Send a whole message to a session, using the reusable send buffer
+     * @param msg bytes to send
+     * @param session to send to
+     * @throws IOException if the channel is closed
+     */
+    private void send(byte[] msg, Session session) throws IOException {
+        send(msg, msg.length, session);
+    }
+
+    /**
+     * Send a message to a session, using the reusable send buffer
+     * @param msg buffer holding the message
+     * @param msgLength number of message bytes (message starts at 0)
+     * @param session to send to
+     * @throws IOException if the channel is closed
+     */
+    private void send(byte[] msg, int msgLength, Session session) throws IOException {
+        mSendBuffer.clear();
+        mSendBuffer.put(msg, 0, msgLength);
+        mSendBuffer.flip();
+        sendBuffer(session);
+    }
+
+    /**
+     * Send the OPEN-ACK, which is always in legacy form since the client doesn't know the negotiated
+     * version yet. A client that asked for a version gets the chosen one appended.
+     * @param session to send to
+     * @param versionRequested if the client sent a version at OPEN
+     * @throws IOException if the channel is closed
+     */
+    private void sendOpenAck(Session session, boolean versionRequested) throws IOException {
+        mSendBuffer.clear();
+        mSendBuffer.put(mOpenAck);
+        if (versionRequested)
+            mSendBuffer.put(session.mVersion);
+        mSendBuffer.flip();
+        sendBuffer(session);
+    }
+
+    /**
+     * Send the reusable send buffer to a session. A failed send only counts against that session (it
+     * ends after a few in a row), so one unreachable client can't stop the event loop for the rest.
+     * @param session to send to
+     * @throws IOException if the channel itself is closed
+     */
+    private void sendBuffer(Session session) throws IOException {
+        if (sendBuffer(session.mAddress)) {
+            session.mMetrics.mPacketsSent.inc();
+            session.mFailedSends = 0;
+        } else if (++session.mFailedSends == mMaxSendFailures) {
+            // Ended once the current pass over the sessions is done
+            mFailedSessions.add(session);
+        }
+    }
+
+    /**
+     * Send the reusable send buffer to a client
+     * @param addr of the client
+     * @return false if sending to this client failed
+     * @throws IOException if the channel itself is closed
+     */
+    private boolean sendBuffer(InetSocketAddress addr) throws IOException {
+        try {
+            mChannel.send(mSendBuffer, addr);
+            return true;
+        } catch (ClosedChannelException e) {
+            throw e;
+        } catch (IOException e) {
+            mSendFailures.inc();
+            Logger.w(TAG, "Failed to send to client " + addr + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * End the sessions that failed too many sends in a row
+     */
+    private void dropFailedSessions() {
+        if (mFailedSessions.isEmpty())
+            return;
+        for (int i = 0; i < mFailedSessions.size(); i++) {
+            Session session = mFailedSessions.get(i);
+            // Skip sessions that were already closed, or replaced by a new OPEN from the same client
+            if (session == mSessions.get(session.mAddress)) {
+                removeSession(session.mAddress);
+                Logger.i(TAG, "Dropped unreachable client " + session.mAddress);
+            }
+        }
+        mFailedSessions.clear();
+        Logger.d(TAG, "Number of clients: " + mSessionList.size());
+    }
+
+    /**
+     * End the sessions of clients that have gone silent for longer than the idle timeout, so dead
+     * PCs stop getting updates
+     */
+    private void evictSilentSessions() {
+        if (0 == mSessions.expire(System.nanoTime(), mEvicted))
+            return;
+        for (int i = 0; i < mEvicted.size(); i++) {
+            Session session = mEvicted.get(i);
+            session.stop();
+            mSessionList.remove(session);
+            mEvictions.inc();
+            Logger.i(TAG, "Evicted silent client " + session.mAddress);
+        }
+        mEvicted.clear();
+        Logger.d(TAG, "Number of clients: " + mSessionList.size());
+    }
+
+    /**
+     * End a session if there is one for this address
+     * @param addr of the client
+     */
+    private void removeSession(InetSocketAddress addr) {
+        Session session = mSessions.remove(addr);
+        if (null != session) {
+            session.stop();
+            mSessionList.remove(session);
+        }
+    }
+
+    /**
+     * Send a command to all current clients
+     * @param command string for the type of click or keypress
+     */
+    public void executeCommand(int command) {
+        EncodedCommand encoded = mEncodedCommands.get(command);
+        if (null == encoded) {
+            encoded = EncodedCommand.fromCommand(mHost.getString(command));
+            mEncodedCommands.put(command, encoded);
+        }
+        queueCommand(encoded);
+    }
+
+    /**
+     * Send a custom type message to all current clients
+     * @param message string to type on clients
+     */
+    public void executeTypedMessage(String message) {
+        queueCommand(EncodedCommand.fromTypedMessage(mHost.getString(R.string.action_custom_type), message));
+    }
+
+    /**
+     * Hand an encoded command over to the event loop
+     * @param command encoded in every protocol form
+     */
+    private void queueCommand(EncodedCommand command) {
+        if (!mPendingCommands.offer(command))
+            Logger.e(TAG, "Command queue full, dropping command!");
+        mWakeup.run();
+    }
+
+    /**
+     * This is called whenever settings are updated, so the server can change its behavior on the fly
+     *
+     * @param key of the setting being updated
+     * @param value of the updated setting (generic type)
+     */
+    public <T> void UpdateSettings(int key, T value) {
+        switch (key) {
+            case R.string.pref_sensitivity_key:
+                mMoveSensitivity = (Float) value;
+                break;
+            case R.string.pref_scroll_direction_key:
+                mScrollInverted = (Boolean) value;
+                break;
+            case R.string.pref_scroll_sensitivity_key:
+                mScrollSensitivity = (Float) value;
+                break;
+            case R.string.pref_update_mode_key:
+                mPushUpdates = (Boolean) value;
+                break;
+            case R.string.pref_coalesce_window_key:
+                mCoalesceWindowMillis = (Integer) value;
+                mDispatchersChanged = true;
+                break;
+            case R.string.pref_min_gap_key:
+                mMinGapMillis = (Integer) value;
+                mDispatchersChanged = true;
+                break;
+            default:
+                Logger.e(TAG, "Error: setting to update not recognized!");
+        }
+        mWakeup.run();
+        Logger.d(TAG, "Updated " + mHost.getString(key) + " with new value " + value);
+    }
+
+    /**
+     * Pass the latest coalescing settings on to the motion dispatchers of all current sessions
+     * (event loop only)
+     */
+    private void updateDispatchers() {
+        for (int i = 0; i < mSessionList.size(); i++) {
+            Session session = mSessionList.get(i);
+            session.mDispatcher.setCoalesceWindow(mCoalesceWindowMillis);
+            session.mDispatcher.setMinGap(session.mRate.limitMinGap(mMinGapMillis));
+        }
+    }
+
+    /**
+     * State of one client session. Unlike ServerUDP.WorkerThread it has no thread of its own: the
+     * event loop does all of its work.
+     */
+    private class Session {
+
+        final InetSocketAddress mAddress;               // Client's address and port to send to
+        final MotionDispatcher mDispatcher;             // Tracks when this session's next update is due
+        final AdaptiveRate mRate;                       // Picks the polling interval from motion and heartbeats
+        long mNextPollNanos;                            // Time of the next update when polling
+        final SessionMetrics mMetrics;                  // Packet counts, timings and rate of this session
+        final MotionAccumulator.Cursor mMotionCursor;   // This session's own read position in the movement stream
+        final byte mVersion;                            // Protocol version negotiated at OPEN
+        final boolean mBinary;                          // If this session uses binary opcodes instead of strings
+        final boolean mBatches;                         // If this session takes several messages per packet
+        int mFailedSends;                               // Sends to this client that failed in a row
+
+        /**
+         * Constructor
+         * @param address of the client that sent the opening message
+         * @param version negotiated protocol version for this session
+         */
+        Session(InetSocketAddress address, byte version) {
+            mAddress = address;
+            mVersion = version;
+            mBinary = version >= NetworkHelpers.mProtocolVersionBinary;
+            mBatches = version >= NetworkHelpers.mProtocolVersionBatch;
+            mDispatcher = new MotionDispatcher(mCoalesceWindowMillis, mMinGapMillis);
+            mDispatcher.setSignalListener(mWakeup);
+            mRate = new AdaptiveRate(mHost.getRefreshRate());
+            mMetrics = new SessionMetrics(mHost.getMetrics(), "udp/" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/");
+            mNextPollNanos = System.nanoTime();
+            mMotionCursor = mHost.newMotionCursor();
+        }
+
+        /**
+         * Feed a heartbeat from the client to the adaptive rate, since its timing tells about the link
+         * @param nowNanos arrival time of the heartbeat
+         */
+        void onHeartbeat(long nowNanos) {
+            mMetrics.onHeartbeat(nowNanos);
+            if (mRate.onHeartbeat(nowNanos))
+                logRate();
+            mMetrics.onRate(mRate);
+            mDispatcher.setMinGap(mRate.limitMinGap(mMinGapMillis));
+        }
+
+        /**
+         * Log the chosen update interval and why, whenever the reason changes
+         */
+        void logRate() {
+            Logger.d(TAG, "Update interval for client " + mAddress + " is now " + mRate.getIntervalMillis() + " ms (" + AdaptiveRate.getReasonName(mRate.getReason()) + ")");
+        }
+
+        /**
+         * Start receiving movement signals
+         */
+        void start() {
+            mHost.addMotionDispatcher(mDispatcher);
+            Logger.d(TAG, "Started session for client " + mAddress);
+        }
+
+        /**
+         * Stop receiving movement signals
+         */
+        void stop() {
+            mHost.removeMotionDispatcher(mDispatcher);
+            mDispatcher.close();
+            mMetrics.close();
+            Logger.d(TAG, "Stopped session for client " + mAddress);
+        }
+
+        /**
+         * Send the relative movement since the last update as a move message (skipped if there was
+         * no movement)
+         * @throws IOException if the channel is closed
+         */
+        void sendMoveUpdate() throws IOException {
+            long position = consumeMotion();
+            if (0 == position)
+                return;
+            int length = writeMoveUpdate(position, mMoveBuffer, 0);
+            send(mMoveBuffer, length, this);
+        }
+
+        /**
+         * Send commands packed into as few batches as they fit, the first one led by the movement
+         * since the last update (so a click lands where the pointer went first)
+         * @param commands to send, in order
+         * @throws IOException if the channel is closed
+         */
+        void sendBatches(ArrayList<EncodedCommand> commands) throws IOException {
+            mBatch.reset(PacketCipher.mMaxPacketBytes);
+            long position = consumeMotion();
+            if (0 != position) {
+                int length = writeMoveUpdate(position, mMoveBuffer, 0);
+                mBatch.append(mMoveBuffer, length);
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                byte[] command = commands.get(i).get(true);
+                if (mBatch.append(command, command.length))
+                    continue;
+                sendBatch();
+                // Too long for any batch, so it goes out on its own
+                if (!mBatch.append(command, command.length))
+                    send(command, this);
+            }
+            sendBatch();
+        }
+
+        /**
+         * Send the batch built so far (if it has any messages)
+         * @throws IOException if the channel is closed
+         */
+        private void sendBatch() throws IOException {
+            if (mBatch.isEmpty())
+                return;
+            mMetrics.mMessagesPerPacket.record(mBatch.getCount());
+            int length = mBatch.finish();
+            send(mBatch.getBuffer(), length, this);
+        }
+
+        /**
+         * Get all movement since the last update, and let the adaptive rate see it
+         * @return packed relative movement from the motion cursor (0 if none)
+         */
+        long consumeMotion() {
+            long position = mMotionCursor.consume();
+            if (mRate.onPoll(position, System.nanoTime()))
+                logRate();
+            mMetrics.onRate(mRate);
+            if (0 != position)
+                mMetrics.mCoalescedDeltas.record(mDispatcher.drainSignalCount());
+            return position;
+        }
+
+        /**
+         * Scale the relative movement by the appropriate sensitivity, and write it as a move message
+         * @param position packed relative movement from the motion cursor
+         * @param buf to write the move message into
+         * @param offset in buf where the message starts
+         * @return number of bytes written
+         */
+        int writeMoveUpdate(long position, byte[] buf, int offset) {
+            byte moveType = mHost.getMoveType();
+            boolean scrollActivated = (moveType == mMoveTypeScrolling);
+            if (mBinary)
+                moveType = BinaryProtocol.getMoveOpcode(moveType);
+
+            // Find scaled x and y position according to appropriate sensitivity
+            int scaledX, scaledY;
+            if (scrollActivated) {
+                scaledX = (int) (MotionAccumulator.getX(position) * mScrollSensitivity);
+                scaledY = (int) (MotionAccumulator.getY(position) * mScrollSensitivity);
+                if (!mScrollInverted) {
+                    scaledX = -scaledX;
+                    scaledY = -scaledY;
+                }
+            } else {
+                scaledX = (int) (MotionAccumulator.getX(position) * mMoveSensitivity);
+                scaledY = (int) (MotionAccumulator.getY(position) * mMoveSensitivity);
+            }
+
+            return NetworkHelpers.writeMoveMessage(moveType, scaledX, scaledY, buf, offset);
+        }
+    }
+}
@@ -1,154 +1,181 @@
 package edu.ucla.cs.ndnmouse.utilities;
 
-import android.graphics.Point;
-import android.os.AsyncTask;
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import edu.ucla.cs.ndnmouse.MouseActivity;
-import edu.ucla.cs.ndnmouse.R;
+import edu.ucla.cs.ndnmouse.helpers.ClientAddress;
+import edu.ucla.cs.ndnmouse.helpers.ControlMessages;
+import edu.ucla.cs.ndnmouse.helpers.Counter;
 import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipherGcm;
 import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.ReplayWindow;
+import edu.ucla.cs.ndnmouse.helpers.SessionKeyService;
+import edu.ucla.cs.ndnmouse.helpers.SessionRegistry;
 
 public class ServerUDPSecure extends ServerUDP {
 
     private static final String TAG = ServerUDPSecure.class.getSimpleName();
 
-    private String mPassword;
+    private SessionKeyService mKeys;        // Derives (and caches) the open key and session keys from the user password
     private SecretKeySpec mOpenKey; // Hashed user password to be used for encryption on the opening message only
-    private HashMap<InetAddress, WorkerThreadSecure> mClientThreads;    // Holds all active worker threads that are servicing clients
+    private MousePacketCipher mOpenCipher;  // Decrypts opening messages (only used by the receiving thread)
+    private final byte mMaxProtocolVersion; // Highest secure protocol version this device can offer at OPEN
+    private final SessionRegistry<ClientAddress, WorkerThreadSecure> mClientThreads;   // Holds all active worker threads that are servicing clients, by address and port
     private static final int mWorkerDropCounterTheshold = 3;
     private static final int mMaxSeqNum = Integer.MAX_VALUE;
+    private final Counter mDropTrips;       // Sessions ended for sending too many bad messages (outlives the sessions)
+    private final SecureRandom mRandom = new SecureRandom();    // Server nonces of GCM sessions
+    private static final int mNoSessionIvBytes = 6;    // Bytes of the session check's IV echoed in the reopen answer
+    private final byte[] mNoSessionMessage;     // Reused reopen answer: CLOSE, then the start of the session check's IV (server thread only)
+    private final byte[] mNoSessionBuffer = new byte[MousePacket.mPacketBytes];   // Reused for the encrypted reopen answer (server thread only)
 
     /**
      * Constructor for server
-     * @param activity of the caller (so we can get position points)
+     * @param host providing movement and strings (normally MouseActivity)
      * @param port number for server to listen on
      * @param moveSensitivity multiplier for scaling movement
+     * @param pushUpdates true to push updates as soon as there is movement, false to poll on a fixed interval
+     * @param coalesceWindowMillis milliseconds to gather more movement before pushing an update
+     * @param minGapMillis minimum milliseconds between two pushed updates
      * @param password from user
      */
-    public ServerUDPSecure(MouseActivity activity, int port, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, String password) {
-        super(activity, port, moveSensitivity, scrollInverted, scrollSensitivity);
+    public ServerUDPSecure(ServerHost host, int port, float moveSensitivity, boolean scrollInverted, float scrollSensitivity, boolean pushUpdates, int coalesceWindowMillis, int minGapMillis, String password) {
+        super(host, port, moveSensitivity, scrollInverted, scrollSensitivity, pushUpdates, coalesceWindowMillis, minGapMillis);
 
-        mPassword = password;
+        mMaxProtocolVersion = host.getMaxSecureProtocolVersion();
         try {
-            mOpenKey = mMouseActivity.makeKeyFromPassword(password);
-        } catch (UnsupportedEncodingException | NoSuchAlgorithmException e) {
+            mKeys = new SessionKeyService(password);
+            mOpenKey = mKeys.getOpenKey();
+            mOpenCipher = new MousePacketCipher(mOpenKey);
+        } catch (UnsupportedEncodingException | GeneralSecurityException e) {
             e.printStackTrace();
-            Log.e(TAG, "Error: failed to create KeySpec! Aborting...");
-            mMouseActivity.finish();
+            Logger.e(TAG, "Error: failed to create KeySpec! Aborting...");
+            mHost.onServerError("Failed to create a key from the password.");
         }
-        mClientThreads = new HashMap<>();
+        mNoSessionMessage = Arrays.copyOf(mNoSession, mNoSession.length + mNoSessionIvBytes);
+        mClientThreads = new SessionRegistry<>(mSessionIdleTimeoutMillis, mSessionTickMillis);
+        mDropTrips = host.getMetrics().counter("udp/drop_trips");
     }
 
     @Override
     public void run() {
         try {
-            // Create a new UDP socket
+            // Derive the password's base keys and load the crypto providers before the first client shows up
+            try {
+                mKeys.prewarm();
+            } catch (GeneralSecurityException e) {
+                Logger.e(TAG, "Error: failed to prewarm session keys!", e);
+            }
+
+            // Create a new UDP socket (receive wakes up every tick, so silent clients get evicted)
             mSocket = new DatagramSocket(mPort);
+            mSocket.setSoTimeout(mSessionTickMillis);
             while (mServerIsRunning) {
-                byte[] buf = new byte[MousePacket.mPacketBytes];
-                // Get incoming packet
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                mSocket.receive(packet);  // Blocks program flow
-
-                // Get data from packet
-                byte[] data = packet.getData();
-                // Log.d(TAG, "Incoming data: " + Arrays.toString(data));
+                evictSilentClients(mClientThreads);
+
+                // Get incoming packet (reset the length, receive shrinks it to the last packet's size)
+                mReceivePacket.setLength(mReceiveBuffer.length);
+                if (!receive())
+                    continue;
+                ClientAddress addr = mReceiveKey.set(mReceivePacket);
+
+                if (Logger.shouldTrace())
+                    Logger.trace(TAG, "Incoming data from " + addr + ": " + mReceivePacket.getLength() + " bytes");
+                WorkerThreadSecure worker = mClientThreads.get(addr);
                 try {
                     // If existing client sent us a message...
-                    if (mClientThreads.containsKey(packet.getAddress())) {
-                        WorkerThreadSecure worker = mClientThreads.get(packet.getAddress());
-                        MousePacket mousePacket = new MousePacket(data, worker.getKey());
-
-                        // Use mouse packet to decrypt the message and get the seq num
-                        String msg = mousePacket.getMessage();
-                        int clientSeqNum = mousePacket.getSeqNum();
-
-                        // If existing client is requesting heartbeat...
-                        if (msg.startsWith(mMouseActivity.getString(R.string.protocol_heartbeat_request))) {
-                            if (mClientThreads.containsKey(packet.getAddress())) {
-                                // Only acknowledge if seq num is valid
-                                if (clientSeqNum > worker.getSeqNum()) {
-                                    worker.setSeqNum(clientSeqNum);
+                    if (null != worker) {
+                        PacketCipher packetCipher = worker.getPacketCipher();
+
+                        // Use the session's cipher to decrypt the message and get the seq num
+                        worker.mMetrics.mPacketsReceived.inc();
+                        long decryptStart = System.nanoTime();
+                        int msgLength = packetCipher.decrypt(mReceiveBuffer, 0, mReceivePacket.getLength());
+                        worker.mMetrics.mDecryptNanos.record(System.nanoTime() - decryptStart);
+                        int clientSeqNum = packetCipher.getDecryptedSeqNum();
+
+                        switch (mControlMessages.classify(packetCipher.getDecryptedBuffer(), PacketCipher.mMessageOffset, msgLength)) {
+                            // If existing client is requesting heartbeat...
+                            case ControlMessages.mHeartbeat:
+                                // Only acknowledge if seq num wasn't seen before (reordered heartbeats are fine)
+                                if (worker.acceptSeqNum(clientSeqNum)) {
+                                    long receivedNanos = System.nanoTime();
+                                    mClientThreads.touch(addr, receivedNanos);
+                                    worker.onHeartbeat(receivedNanos);
                                     worker.sendAck(false);
+                                    worker.mMetrics.mHeartbeatAckNanos.record(System.nanoTime() - receivedNanos);
                                 }
-                            }
-                        // If existing client no longer wants updates...
-                        } else if (msg.startsWith(mMouseActivity.getString(R.string.protocol_closing_request))) {
-                            // Look up its thread and stop it
-                            if (mClientThreads.containsKey(packet.getAddress())) {
-                                // Only stop worker thread if seq num is valid
-                                if (clientSeqNum > worker.getSeqNum()) {
+                                break;
+                            // If existing client no longer wants updates...
+                            case ControlMessages.mClose:
+                                // Only stop worker thread if seq num wasn't seen before
+                                if (worker.acceptSeqNum(clientSeqNum)) {
                                     worker.stop();
-                                    mClientThreads.remove(packet.getAddress());
+                                    mClientThreads.remove(addr);
                                 }
-                            }
-                        // Otherwise existing client sent bad message, increment their drop counter
-                        } else {
-                            // If client sent too many bad messages, drop its session
-                            if (++worker.mDropCounter >= mWorkerDropCounterTheshold) {
-                                worker.stop();
-                                mClientThreads.remove(packet.getAddress());
-                            }
+                                break;
+                            // Otherwise existing client sent bad message, increment their drop counter
+                            default:
+                                countBadMessage(addr, worker);
                         }
 
                     // Otherwise must be a new client...
                     } else {
-                        MousePacket mousePacket = new MousePacket(data, mOpenKey);
-
-                        // Use mouse packet to decrypt the message and get the seq num
-                        String msg = mousePacket.getMessage();
-                        int clientSeqNum = mousePacket.getSeqNum();
-
-                        if (msg.startsWith(mMouseActivity.getString(R.string.protocol_opening_request))) {
+                        // Use the opening cipher to decrypt the message and get the seq num
+                        int msgLength = mOpenCipher.decrypt(mReceiveBuffer, 0, mReceivePacket.getLength());
+                        int clientSeqNum = mOpenCipher.getDecryptedSeqNum();
+                        byte[] msg = mOpenCipher.getDecryptedBuffer();
+
+                        int type = mControlMessages.classify(msg, PacketCipher.mMessageOffset, msgLength);
+                        if (ControlMessages.mHeartbeat == type) {
+                            // Session check from a client we have no session for (e.g. evicted while silent), so it should reopen
+                            sendNoSession(addr, clientSeqNum);
+                        } else if (ControlMessages.mOpen == type) {
                             // If seq num not correct, throw out packet and loop
                             if (0 != clientSeqNum)
                                 continue;
 
-                            // Start a new worker thread for the client
-                            WorkerThreadSecure worker = new WorkerThreadSecure(mSocket, packet);
+                            // Pick the packet mode from the optional version byte after OPEN
+                            boolean versionRequested = mControlMessages.isVersionRequested(msg, PacketCipher.mMessageOffset, msgLength);
+                            byte requestedVersion = mControlMessages.getRequestedVersion(msg, PacketCipher.mMessageOffset, msgLength);
+                            byte version = NetworkHelpers.negotiateVersion(requestedVersion, mMaxProtocolVersion);
+
+                            // Start a new worker thread for the client (it only keeps the packet's address, port and IV)
+                            worker = new WorkerThreadSecure(mSocket, mReceivePacket, version, versionRequested);
+                            worker.mMetrics.mPacketsReceived.inc();
+                            // Register before starting, so commands reach the session as soon as the client has its OPEN-ACK
+                            mClientThreads.put(addr.copy(), worker, System.nanoTime());
                             worker.start();
-                            mClientThreads.put(packet.getAddress(), worker);
-                            Log.d(TAG, "Number of clients: " + mClientThreads.size());
-                        }
-                    }
-                } catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | NegativeArraySizeException | NoSuchAlgorithmException e) {
-                    // Existing client sent bad message, increment their drop counter
-                    if (mClientThreads.containsKey(packet.getAddress())) {
-                        WorkerThreadSecure worker = mClientThreads.get(packet.getAddress());
-                        // If client sent too many bad messages, drop its session
-                        if (++worker.mDropCounter >= mWorkerDropCounterTheshold) {
-                            worker.stop();
-                            mClientThreads.remove(packet.getAddress());
+                            Logger.d(TAG, "Number of clients: " + mClientThreads.size());
                         }
                     }
-                    Log.e(TAG, "Error during data decrypt!");
+                } catch (GeneralSecurityException e) {
+                    // Existing client sent bad message, increment their drop counter (nobody else gets an answer)
+                    if (null != worker)
+                        countBadMessage(addr, worker);
+                    Logger.e(TAG, "Error during data decrypt!");
                 }
             }
         } catch (IOException e) {
-            Log.e(TAG, "Web server was interrupted and is now closed.", e);
+            Logger.e(TAG, "Web server was interrupted and is now closed.", e);
         }
 
         // Shutdown stuff
+        mCommandSender.stop();
         // Stop all client threads
-        for (WorkerThread client : mClientThreads.values()) {
+        for (WorkerThread client : mClientThreads.sessions()) {
             client.stop();
         }
         mClientThreads.clear();
@@ -160,67 +187,147 @@ public class ServerUDPSecure extends ServerUDP {
     }
 
     /**
-     * Send a command to all current clients
-     * @param command identifier for the type of click
+     * Count a bad message against a session, and drop the session if it sent too many. A session
+     * check is not counted: the client sends one along with a heartbeat after a missed ack, and that
+     * heartbeat gets the answer (server thread only).
+     * @param addr of the client
+     * @param worker servicing the client
      */
-    @Override
-    public void executeCommand(int command) {
-        new SendMessageToClients().execute(mMouseActivity.getString(command));
+    private void countBadMessage(ClientAddress addr, WorkerThreadSecure worker) {
+        if (isSessionCheck())
+            return;
+        if (worker.countBadMessage()) {
+            worker.stop();
+            mClientThreads.remove(addr);
+        }
     }
 
     /**
-     * Send a custom type message to all current clients
-     * @param message string to type on clients
+     * A session check is a heartbeat encrypted under the open key, the only key a client still shares
+     * with us once we lost its session (server thread only)
+     * @return true if the received packet is a session check
      */
-    @Override
-    public void executeTypedMessage(String message) {
-        new SendMessageToClients().execute(mMouseActivity.getString(R.string.action_custom_type) + message);
+    private boolean isSessionCheck() {
+        try {
+            int msgLength = mOpenCipher.decrypt(mReceiveBuffer, 0, mReceivePacket.getLength());
+            return ControlMessages.mHeartbeat == mControlMessages.classify(mOpenCipher.getDecryptedBuffer(), PacketCipher.mMessageOffset, msgLength);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
     }
 
     /**
-     * AsyncTask helper to send messages at all clients
-     * Needed so we don't send datagrams from the main UI thread
+     * Answer a session check from a client that has no session with a CLOSE encrypted under the open
+     * key, so it reopens at once. The answer carries the check's seq num and the start of its IV, and
+     * the client only takes an answer to the check it just sent, so a captured answer can't be
+     * replayed to force reopens (server thread only).
+     * @param addr of the client
+     * @param clientSeqNum of the session check
+     * @throws IOException for error during socket sending
      */
-    private class SendMessageToClients extends AsyncTask<String, Void, Void> {
-        @Override
-        protected Void doInBackground(String... commands) {
-            for (String command : commands) {
-                for (WorkerThreadSecure client : mClientThreads.values()) {
-                    if (null != client.mReplyAddr && 0 != client.mReplyPort) {
-                        try {
-                            client.sendCommand(command);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
-            return null;
+    private void sendNoSession(ClientAddress addr, int clientSeqNum) throws IOException {
+        // The IV leads the received packet
+        System.arraycopy(mReceiveBuffer, 0, mNoSessionMessage, mNoSession.length, mNoSessionIvBytes);
+        try {
+            int length = mOpenCipher.encrypt(mNoSessionMessage, 0, mNoSessionMessage.length, clientSeqNum, mNoSessionBuffer, 0);
+            sendNoSession(addr, mNoSessionBuffer, length);
+        } catch (GeneralSecurityException e) {
+            Logger.e(TAG, "Error during data encryption!", e);
         }
     }
 
+    /**
+     * @return all worker threads currently servicing clients
+     */
+    @Override
+    Collection<? extends WorkerThread> getClientThreads() {
+        return mClientThreads.sessions();
+    }
+
     /**
      * Server parent thread spins off worker threads to do the actual transmissions
      */
     private class WorkerThreadSecure extends WorkerThread {
 
-        private int mSeqNum;
-        private SecretKeySpec mKey;     // Hashed and salted user password to be used for encryption on everything else
+        private int mSeqNum;                            // Last seq num this server sent (outgoing only)
+        private final ReplayWindow mReplayWindow = new ReplayWindow();  // Seq nums received from the client (incoming only)
+        private final PacketCipher mPacketCipher;       // Session's own crypto context (negotiated mode), keyed with the hashed and salted user password
+        private final MousePacketCipher mOpenAckCipher; // Legacy crypto context for the OPEN-ACK, which is sent before switching modes
+        private final byte[] mServerNonce;              // Fresh randomness mixed into a GCM session's key and ID (null for legacy sessions)
         private int mDropCounter;
 
+        // Each sending thread gets its own reusable packet buffer, since they may encrypt at the same time
+        private final byte[] mUpdateBuffer = new byte[PacketCipher.mMaxPacketBytes];   // Worker thread (movement)
+        private final DatagramPacket mUpdatePacket;
+        private final byte[] mAckBuffer = new byte[PacketCipher.mMaxPacketBytes];      // Receiving thread (acks)
+        private final DatagramPacket mAckPacket;
+        private final byte[] mCommandBuffer = new byte[PacketCipher.mMaxPacketBytes];  // Command sender
+        private final DatagramPacket mCommandPacket;
+
         /**
          * Constructor
          * @param socket shared UDP socket from that parent is managing
          * @param packet initial packet that client uses to establish a connection with the server
+         * @param version negotiated secure protocol version for this session
+         * @param versionRequested if the client sent a version at OPEN
          */
-        WorkerThreadSecure(DatagramSocket socket, DatagramPacket packet) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-            super(socket, packet);
+        WorkerThreadSecure(DatagramSocket socket, DatagramPacket packet, byte version, boolean versionRequested) throws GeneralSecurityException {
+            super(socket, packet, version, versionRequested);
             mSeqNum = 0;
             mDropCounter = 0;
 
-            // Generate the salted password key from the opening IV (to be used for the rest of the session)
+            // Get the salted password keys from the opening IV (the OPEN-ACK always uses the legacy key,
+            // the rest of the session uses the key of the negotiated version)
             IvParameterSpec passwordSalt = MousePacket.getEncryptedPacketIV(packet.getData());
-            mKey = mMouseActivity.makeKeyFromPassword(mPassword, passwordSalt.getIV());
+            SecretKeySpec openAckKey = mKeys.getSessionKey(passwordSalt.getIV(), NetworkHelpers.mProtocolVersionLegacy);
+            mOpenAckCipher = new MousePacketCipher(openAckKey);
+            // GCM sessions mix a fresh server nonce (sent in the OPEN-ACK) into the key and session ID,
+            // so a replayed OPEN can't bring back a key whose nonces were already used
+            if (version >= NetworkHelpers.mProtocolVersionGcm) {
+                mServerNonce = new byte[MousePacketCipherGcm.mServerNonceBytes];
+                mRandom.nextBytes(mServerNonce);
+                byte[] openIv = passwordSalt.getIV();
+                mPacketCipher = new MousePacketCipherGcm(mKeys.getSessionKey(MousePacketCipherGcm.makeSessionSalt(openIv, mServerNonce), version),
+                        MousePacketCipherGcm.makeSessionId(openIv, mServerNonce), MousePacketCipherGcm.mDirectionToClient);
+            } else {
+                mServerNonce = null;
+                mPacketCipher = mOpenAckCipher;
+            }
+
+            mUpdatePacket = new DatagramPacket(mUpdateBuffer, mUpdateBuffer.length, mReplyAddr, mReplyPort);
+            mAckPacket = new DatagramPacket(mAckBuffer, mAckBuffer.length, mReplyAddr, mReplyPort);
+            mCommandPacket = new DatagramPacket(mCommandBuffer, mCommandBuffer.length, mReplyAddr, mReplyPort);
+        }
+
+        /**
+         * Count a bad message (undecryptable, or not a valid control message) against this session
+         * @return true if the session sent too many and should be dropped
+         */
+        boolean countBadMessage() {
+            mMetrics.mDrops.inc();
+            if (++mDropCounter < mWorkerDropCounterTheshold)
+                return false;
+            mDropTrips.inc();
+            return true;
+        }
+
+        /**
+         * Encrypt a message into one of this session's reusable packets, and send it out
+         * @param msg buffer holding the message
+         * @param msgLength number of message bytes (message starts at 0)
+         * @param cipher crypto context to encrypt with
+         * @param buf reusable buffer backing packet
+         * @param packet reusable datagram to send
+         * @throws IOException for error during socket sending
+         * @throws GeneralSecurityException for error during encryption
+         */
+        private void sendEncrypted(byte[] msg, int msgLength, PacketCipher cipher, byte[] buf, DatagramPacket packet) throws IOException, GeneralSecurityException {
+            long encryptStart = System.nanoTime();
+            int length = cipher.encrypt(msg, 0, msgLength, getNextSeqNum(), buf, 0);
+            mMetrics.mEncryptNanos.record(System.nanoTime() - encryptStart);
+            packet.setData(buf, 0, length);
+            mSocket.send(packet);
+            mMetrics.mPacketsSent.inc();
         }
 
         /**
@@ -231,112 +338,116 @@ public class ServerUDPSecure extends ServerUDP {
         @Override
         void sendAck(boolean openAck) throws IOException {
             byte[] msg;
-            if (openAck)
-                msg = (mMouseActivity.getString(R.string.protocol_open_ack)).getBytes();
-            else
-                msg = (mMouseActivity.getString(R.string.protocol_heartbeat_ack)).getBytes();
+            PacketCipher cipher;
+            if (openAck) {
+                // Tells a versioned client which mode the rest of the session uses
+                msg = getOpenAck();
+                cipher = mOpenAckCipher;
+            } else {
+                msg = mBinary ? mBinaryHeartbeatAck : mHeartbeatAck;
+                cipher = mPacketCipher;
+            }
 
             try {
-                // Create mouse packet from message, and send out encrypted reply
-                MousePacket mousePacket = new MousePacket(msg, getNextSeqNum(), mKey);
-                byte[] encryptedReply = mousePacket.getEncryptedPacket();
-                DatagramPacket replyPacket = new DatagramPacket(encryptedReply, encryptedReply.length, mReplyAddr, mReplyPort);
-                mSocket.send(replyPacket);
-            } catch (InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | ShortBufferException | IllegalBlockSizeException e) {
+                // Encrypt message with the session cipher, and send out encrypted reply
+                sendEncrypted(msg, msg.length, cipher, mAckBuffer, mAckPacket);
+            } catch (GeneralSecurityException e) {
                 e.printStackTrace();
-                Log.e(TAG, "Error during data encryption!");
+                Logger.e(TAG, "Error during data encryption!");
             }
         }
 
+        /**
+         * Build the OPEN-ACK, followed by the server nonce for GCM sessions
+         * @return open ack message
+         */
         @Override
-        public void run() {
-            try {
-                sendAck(true);
-                while (mWorkerIsRunning) {
-                    // Don't send too many updates (may require tuning)
-                    Thread.sleep(mUpdateIntervalMillis);
-                    Point position = mMouseActivity.getRelativePosition();
-                    // Skip update if no relative movement since last update
-                    if (position.equals(0, 0))
-                        continue;
-
-                    String moveType = mMouseActivity.getMoveType();
-                    boolean scrollActivated = moveType.equals(mMouseActivity.getString(R.string.protocol_move_scrolling));
-
-                    // Find scaled x and y position according to appropriate sensitivity
-                    int scaledX, scaledY;
-                    if (scrollActivated) {
-                        scaledX = (int) (position.x * mScrollSensitivity);
-                        scaledY = (int) (position.y * mScrollSensitivity);
-                        if (!mScrollInverted) {
-                            scaledX = -scaledX;
-                            scaledY = -scaledY;
-                        }
-                    } else {
-                        scaledX = (int) (position.x * mMoveSensitivity);
-                        scaledY = (int) (position.y * mMoveSensitivity);
-                    }
+        byte[] getOpenAck() {
+            byte[] openAck = super.getOpenAck();
+            if (null == mServerNonce)
+                return openAck;
+            byte[] reply = Arrays.copyOf(openAck, openAck.length + mServerNonce.length);
+            System.arraycopy(mServerNonce, 0, reply, openAck.length, mServerNonce.length);
+            return reply;
+        }
 
-                    // Build move message, create mouse packet from it, and send out encrypted reply
-                    byte[] msg = NetworkHelpers.buildMoveMessage(moveType, scaledX, scaledY);
-                    try {
-                        MousePacket mousePacket = new MousePacket(msg, getNextSeqNum(), mKey);
-                        byte[] encryptedMsg = mousePacket.getEncryptedPacket();
-                        Log.d(TAG, "Sending update: " + Arrays.toString(encryptedMsg));
-                        DatagramPacket packet = new DatagramPacket(encryptedMsg, encryptedMsg.length, mReplyAddr, mReplyPort);
-                        mSocket.send(packet);
-
-                    } catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-                        e.printStackTrace();
-                        Log.e(TAG, "Error during data encryption!");
-                    }
-                }
-            } catch (InterruptedException | IOException e) {
+        /**
+         * Send relative movement to client as an encrypted move update (called by the worker with
+         * mMotionLock held)
+         * @param position packed relative movement from the motion cursor
+         * @throws IOException for error during socket sending
+         */
+        @Override
+        void sendMoveUpdate(long position) throws IOException {
+            // Build move message in the reusable buffer, encrypt it into the reusable packet, and send it out
+            int length = writeMoveUpdate(position, mMoveBuffer, 0);
+            try {
+                sendEncrypted(mMoveBuffer, length, mPacketCipher, mUpdateBuffer, mUpdatePacket);
+                if (Logger.shouldTrace())
+                    Logger.trace(TAG, "Sending update to " + mReplyAddr + ":" + mReplyPort + ": " + Arrays.toString(Arrays.copyOf(mUpdateBuffer, mUpdatePacket.getLength())));
+            } catch (GeneralSecurityException e) {
                 e.printStackTrace();
-                Log.e(TAG, "Error during socket send!");
+                Logger.e(TAG, "Error during data encryption!");
             }
         }
 
         /**
-         * Send a command to client: can either be from executeCommand or executeTypedMessage
-         * @param command string for the type of click or keypress
+         * @return most message bytes that fit one encrypted packet (batches need version 5, so the
+         * session uses GCM, which has no padding)
+         */
+        @Override
+        int getMaxBatchBytes() {
+            return MousePacket.mPacketBytes - PacketCipher.mMessageOffset;
+        }
+
+        /**
+         * Send a command (or a batch of them) to client: can either be from executeCommand or
+         * executeTypedMessage
+         * @param msg buffer holding the encoded command (not modified)
+         * @param msgLength number of bytes to send (command starts at 0)
          * @throws IOException from sending out socket/face
          */
-        void sendCommand(String command) throws IOException {
-            // Build reply message, create mouse packet from it, and send out encrypted reply
-            byte[] data = command.getBytes();
+        @Override
+        void sendCommand(byte[] msg, int msgLength) throws IOException {
+            // Encrypt command into the reusable command packet, and send it out
             try {
-                MousePacket mousePacket = new MousePacket(data, getNextSeqNum(), mKey);
-                byte[] encryptedData = mousePacket.getEncryptedPacket();
-                DatagramPacket packet = new DatagramPacket(encryptedData, encryptedData.length, mReplyAddr, mReplyPort);
-                mSocket.send(packet);
-            } catch (InvalidAlgorithmParameterException | InvalidKeyException | ShortBufferException | BadPaddingException | IllegalBlockSizeException e) {
+                sendEncrypted(msg, msgLength, mPacketCipher, mCommandBuffer, mCommandPacket);
+            } catch (GeneralSecurityException e) {
                 e.printStackTrace();
-                Log.e(TAG, "Error encrypting mouse command!");
+                Logger.e(TAG, "Error encrypting mouse command!");
             }
         }
 
         /**
-         * Sequence number helpers
-         * @return sequence number for this specific server/client session
+         * Check the seq num of a message from the client against the replay window
+         * @param clientSeqNum of the decrypted message
+         * @return true if the message is new, false if it is a replay (or too old to tell)
          */
-        int getSeqNum() {
-            return mSeqNum;
+        boolean acceptSeqNum(int clientSeqNum) {
+            if (!mReplayWindow.accept(clientSeqNum)) {
+                mMetrics.mReplays.inc();
+                return false;
+            }
+            skipSeqNum(clientSeqNum);
+            return true;
         }
 
         /**
-         * Set the sequence number for this specific server/client session
-         * @param newSeqNum to set mSeqNum to
+         * The Python client numbers its messages one past the newest seq num it got from us, and only
+         * takes replies numbered above that. So our outgoing seq nums have to move past the client's,
+         * but never back (that would reuse seq nums, and with them GCM nonces).
+         * @param clientSeqNum accepted from the client
          */
-        void setSeqNum(int newSeqNum) {
-            mSeqNum = newSeqNum;
+        private synchronized void skipSeqNum(int clientSeqNum) {
+            if (ReplayWindow.isNewer(clientSeqNum, mSeqNum))
+                mSeqNum = clientSeqNum;
         }
 
         /**
          * Get the next unused seq number. Handle if it overflows.
          * @return next unused seq number for server
          */
-        private int getNextSeqNum() {
+        private synchronized int getNextSeqNum() {
             if (mSeqNum == mMaxSeqNum) {
                 mSeqNum = 0;
             } else {
@@ -346,11 +457,11 @@ public class ServerUDPSecure extends ServerUDP {
         }
 
         /**
-         * Get the worker's general encryption key
-         * @return key of worker
+         * Get the worker's crypto context (for decrypting only on the receiving thread)
+         * @return packet cipher of worker
          */
-        SecretKeySpec getKey() {
-            return mKey;
+        PacketCipher getPacketCipher() {
+            return mPacketCipher;
         }
     }
 }
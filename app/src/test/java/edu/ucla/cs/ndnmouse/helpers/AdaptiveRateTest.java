@@ -0,0 +1,143 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the adaptive update rate
+ */
+public class AdaptiveRateTest {
+
+    private static final long mMillis = 1000000L;
+
+    /**
+     * Poll every intervalMillis with the same movement each time
+     * @return time of the last poll
+     */
+    private static long drag(AdaptiveRate rate, long start, int polls, int intervalMillis, int dx) {
+        long now = start;
+        for (int i = 0; i < polls; i++) {
+            now += intervalMillis * mMillis;
+            rate.onPoll(MotionAccumulator.pack(dx, 0), now);
+        }
+        return now;
+    }
+
+    /**
+     * Poll every 20 ms for the given time, with a heartbeat every heartbeatMillis
+     * @param dx movement per poll (0 for an idle touchpad)
+     * @return time of the last poll
+     */
+    private static long run(AdaptiveRate rate, long start, int millis, int heartbeatMillis, int dx) {
+        long now = start;
+        for (int elapsed = 20; elapsed <= millis; elapsed += 20) {
+            now += 20 * mMillis;
+            rate.onPoll(MotionAccumulator.pack(dx, 0), now);
+            if (0 == elapsed % heartbeatMillis)
+                rate.onHeartbeat(now);
+        }
+        return now;
+    }
+
+    @Test
+    public void onPoll_fastMotionUsesDisplayFrames() {
+        AdaptiveRate rate = new AdaptiveRate(60);
+        drag(rate, System.nanoTime(), 50, 10, 20);    // 2000 pixels per second
+        assertEquals(AdaptiveRate.mReasonFastMotion, rate.getReason());
+        assertEquals(17, rate.getIntervalMillis());
+        assertTrue(Math.abs(2000 - rate.getVelocity()) < 100);
+    }
+
+    @Test
+    public void onPoll_slowMotionUsesBaseInterval() {
+        AdaptiveRate rate = new AdaptiveRate(60);
+        drag(rate, System.nanoTime(), 30, 20, 4);     // 200 pixels per second
+        assertEquals(AdaptiveRate.mReasonMotion, rate.getReason());
+        assertEquals(AdaptiveRate.mBaseIntervalMillis, rate.getIntervalMillis());
+    }
+
+    @Test
+    public void onPoll_idleStretchesIntervalThenRecovers() {
+        AdaptiveRate rate = new AdaptiveRate(60);
+        long now = drag(rate, System.nanoTime(), 10, 20, 4);
+        for (int i = 0; i < 40; i++) {
+            now += 20 * mMillis;
+            rate.onPoll(0, now);
+        }
+        assertTrue(rate.isIdle());
+        assertEquals(AdaptiveRate.mIdleIntervalMillis, rate.getIntervalMillis());
+
+        // First movement after the pause goes straight back to normal updates
+        rate.onPoll(MotionAccumulator.pack(4, 0), now + 20 * mMillis);
+        assertFalse(rate.isIdle());
+        assertEquals(AdaptiveRate.mBaseIntervalMillis, rate.getIntervalMillis());
+    }
+
+    @Test
+    public void onHeartbeat_lossBacksOffUntilLinkRecovers() {
+        AdaptiveRate rate = new AdaptiveRate(60);
+        long now = drag(rate, System.nanoTime(), 10, 20, 4);
+        for (int i = 0; i < 5; i++) {
+            now += 1000 * mMillis;
+            rate.onHeartbeat(now);
+        }
+        assertNotEquals(AdaptiveRate.mReasonCongested, rate.getReason());
+        assertEquals(5, rate.limitMinGap(5));
+
+        // Every other beat goes missing
+        for (int i = 0; i < 5; i++) {
+            now += 2000 * mMillis;
+            rate.onHeartbeat(now);
+        }
+        assertEquals(AdaptiveRate.mReasonCongested, rate.getReason());
+        assertTrue(rate.getIntervalMillis() > AdaptiveRate.mBaseIntervalMillis);
+        assertEquals(rate.getIntervalMillis(), rate.limitMinGap(5));
+
+        for (int i = 0; i < 40; i++) {
+            now += 1000 * mMillis;
+            rate.onHeartbeat(now);
+        }
+        assertEquals(AdaptiveRate.mReasonIdle, rate.getReason());
+    }
+
+    @Test
+    public void onHeartbeat_idleToMotionCadenceIsNotLoss() {
+        // The PC client heartbeats every second while idle, but only every 5 s while updates arrive
+        AdaptiveRate rate = new AdaptiveRate(60);
+        long now = run(rate, System.nanoTime(), 20000, 1000, 0);
+        assertEquals(AdaptiveRate.mReasonIdle, rate.getReason());
+        now = run(rate, now, 30000, 5000, 4);
+        assertEquals(AdaptiveRate.mReasonMotion, rate.getReason());
+        assertTrue(rate.getLoss() < AdaptiveRate.mCongestedLoss);
+        assertEquals(5, rate.limitMinGap(5));
+
+        // Back to idle and moving again
+        now = run(rate, now, 10000, 1000, 0);
+        now = run(rate, now, 30000, 5000, 4);
+        assertEquals(AdaptiveRate.mReasonMotion, rate.getReason());
+        assertTrue(rate.getLoss() < AdaptiveRate.mCongestedLoss);
+
+        // Losing every other beat at the motion cadence still counts
+        run(rate, now, 30000, 10000, 4);
+        assertEquals(AdaptiveRate.mReasonCongested, rate.getReason());
+    }
+
+    @Test
+    public void onHeartbeat_lateBeatsBackOff() {
+        AdaptiveRate rate = new AdaptiveRate(60);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            now += 1000 * mMillis;
+            rate.onHeartbeat(now);
+        }
+        // Beats keep arriving 400 ms late (but not lost)
+        for (int i = 0; i < 10; i++) {
+            now += 1400 * mMillis;
+            rate.onHeartbeat(now);
+            now += 1000 * mMillis;
+            rate.onHeartbeat(now);
+        }
+        assertEquals(AdaptiveRate.mReasonCongested, rate.getReason());
+    }
+}
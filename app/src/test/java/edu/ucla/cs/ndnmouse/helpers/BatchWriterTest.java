@@ -0,0 +1,57 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the batch writer
+ */
+public class BatchWriterTest {
+
+    @Test
+    public void finish_framesSeveralMessages() {
+        BatchWriter batch = new BatchWriter((byte) 'P', 16);
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.finish());
+
+        assertTrue(batch.append("M1".getBytes(), 2));
+        assertTrue(batch.append("C_L".getBytes(), 3));
+        assertEquals(2, batch.getCount());
+        int length = batch.finish();
+        assertArrayEquals(new byte[] {'P', 2, 'M', '1', 3, 'C', '_', 'L'}, Arrays.copyOf(batch.getBuffer(), length));
+
+        // Finishing starts a new, empty batch
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void finish_singleMessageIsBare() {
+        BatchWriter batch = new BatchWriter((byte) 'P', 16);
+        assertTrue(batch.append("Thi".getBytes(), 3));
+        int length = batch.finish();
+        assertArrayEquals("Thi".getBytes(), Arrays.copyOf(batch.getBuffer(), length));
+    }
+
+    @Test
+    public void append_onlyWhatFits() {
+        BatchWriter batch = new BatchWriter((byte) 'P', 64);
+        batch.reset(8);
+        // Type byte plus one length byte leave 6 message bytes
+        assertEquals(6, batch.getRoom());
+        assertFalse(batch.append(new byte[7], 7));
+        assertTrue(batch.append(new byte[3], 3));
+        assertEquals(2, batch.getRoom());
+        assertFalse(batch.append(new byte[3], 3));
+        assertTrue(batch.append(new byte[2], 2));
+        assertEquals(0, batch.getRoom());
+        assertEquals(8, batch.finish());
+
+        // Max length is kept for the next batch, but never beyond the capacity
+        assertEquals(6, batch.getRoom());
+        batch.reset(1000);
+        assertEquals(62, batch.getRoom());
+    }
+}
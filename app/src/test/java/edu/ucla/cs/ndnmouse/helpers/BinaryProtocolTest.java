@@ -0,0 +1,58 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the binary opcode protocol
+ */
+public class BinaryProtocolTest {
+
+    @Test
+    public void encodeCommand_clicksAndKeys() throws Exception {
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpClick, 0, 0}, BinaryProtocol.encodeCommand("C_left_D"));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpClick, 1, 1}, BinaryProtocol.encodeCommand("C_right_U"));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpClick, 0, 2}, BinaryProtocol.encodeCommand("C_left_F"));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpKey, 6, 1}, BinaryProtocol.encodeCommand("K_bspace_U"));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpKey, 7, 0}, BinaryProtocol.encodeCommand("K_esc_D"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeCommand_rejectsUnknown() throws Exception {
+        BinaryProtocol.encodeCommand("K_tab_D");
+    }
+
+    @Test
+    public void encodeTypedMessage_format() throws Exception {
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpType, 'h', 'i'}, BinaryProtocol.encodeTypedMessage("hi"));
+    }
+
+    @Test
+    public void isBinary_separatesLegacyMessages() throws Exception {
+        for (String legacy : new String[] {"OPEN", "HEART", "CLOSE", "SEQ", "M", "S", "C_left_D", "K_up_U", "T"})
+            assertFalse(legacy, BinaryProtocol.isBinary((byte) legacy.charAt(0)));
+        for (byte opcode = BinaryProtocol.mOpMoveRelative; opcode <= BinaryProtocol.mOpSeqAck; opcode++)
+            assertTrue(BinaryProtocol.isBinary(opcode));
+        assertFalse(BinaryProtocol.isBinary((byte) 0xFF));
+    }
+
+    @Test
+    public void getMoveOpcode_mapsLegacyMoveTypes() throws Exception {
+        assertEquals(BinaryProtocol.mOpMoveRelative, BinaryProtocol.getMoveOpcode((byte) 'M'));
+        assertEquals(BinaryProtocol.mOpMoveAbsolute, BinaryProtocol.getMoveOpcode((byte) 'A'));
+        assertEquals(BinaryProtocol.mOpMoveScrolling, BinaryProtocol.getMoveOpcode((byte) 'S'));
+        assertEquals(0, BinaryProtocol.getMoveOpcode((byte) 0xFF));
+    }
+
+    @Test
+    public void encodedCommand_picksForm() throws Exception {
+        EncodedCommand command = EncodedCommand.fromCommand("C_right_D");
+        assertArrayEquals("C_right_D".getBytes(), command.get(false));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpClick, 1, 0}, command.get(true));
+
+        EncodedCommand typed = EncodedCommand.fromTypedMessage("T", "ok");
+        assertArrayEquals("Tok".getBytes(), typed.get(false));
+        assertArrayEquals(new byte[] {BinaryProtocol.mOpType, 'o', 'k'}, typed.get(true));
+    }
+}
@@ -0,0 +1,52 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the reusable client address key
+ */
+public class ClientAddressTest {
+
+    private static DatagramPacket packetFrom(String host, int port) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[1], 1);
+        packet.setAddress(InetAddress.getByName(host));
+        packet.setPort(port);
+        return packet;
+    }
+
+    @Test
+    public void set_findsSessionStoredUnderCopy() throws Exception {
+        HashMap<ClientAddress, String> sessions = new HashMap<>();
+        ClientAddress key = new ClientAddress();
+        sessions.put(key.set(packetFrom("192.168.1.5", 4000)).copy(), "first");
+        sessions.put(key.set(packetFrom("192.168.1.5", 4001)).copy(), "second");
+        sessions.put(key.set(packetFrom("192.168.1.6", 4000)).copy(), "third");
+
+        // Repointing the lookup key leaves the stored copies alone
+        assertEquals("first", sessions.get(key.set(packetFrom("192.168.1.5", 4000))));
+        assertEquals("second", sessions.get(key.set(packetFrom("192.168.1.5", 4001))));
+        assertEquals("third", sessions.get(key.set(packetFrom("192.168.1.6", 4000))));
+        assertNull(sessions.get(key.set(packetFrom("192.168.1.7", 4000))));
+        assertEquals(3, sessions.size());
+    }
+
+    @Test
+    public void set_reusesTheKey() throws Exception {
+        ClientAddress key = new ClientAddress();
+        assertSame(key, key.set(packetFrom("127.0.0.1", 10888)));
+        assertEquals(InetAddress.getByName("127.0.0.1"), key.getAddress());
+        assertEquals(10888, key.getPort());
+        assertEquals("127.0.0.1:10888", key.toString());
+
+        ClientAddress copy = key.copy();
+        assertNotSame(key, copy);
+        assertEquals(key, copy);
+        assertEquals(key.hashCode(), copy.hashCode());
+    }
+}
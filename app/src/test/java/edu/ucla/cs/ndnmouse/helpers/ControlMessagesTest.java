@@ -0,0 +1,70 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for classifying control messages straight from the received bytes
+ */
+public class ControlMessagesTest {
+
+    private final ControlMessages mMessages = new ControlMessages("OPEN", "HEARTBEAT", "CLOSE");
+
+    @Test
+    public void classify_legacyMessages() {
+        byte[] buf = new byte[MousePacket.mPacketBytes];
+        byte[] heartbeat = "HEARTBEAT".getBytes();
+        System.arraycopy(heartbeat, 0, buf, 0, heartbeat.length);
+
+        // Null byte padding after the message doesn't matter, the received length does
+        assertEquals(ControlMessages.mHeartbeat, mMessages.classify(buf, 0, buf.length));
+        assertEquals(ControlMessages.mUnknown, mMessages.classify(buf, 0, 4));
+        assertEquals(ControlMessages.mOpen, mMessages.classify("OPEN".getBytes(), 0, 4));
+        assertEquals(ControlMessages.mClose, mMessages.classify("xCLOSE".getBytes(), 1, 5));
+        assertEquals(ControlMessages.mUnknown, mMessages.classify("M 1 2".getBytes(), 0, 5));
+        assertEquals(ControlMessages.mUnknown, mMessages.classify(buf, 0, 0));
+    }
+
+    @Test
+    public void classify_binaryMessages() {
+        byte[] buf = {BinaryProtocol.mOpHeartbeat, BinaryProtocol.mOpClose, BinaryProtocol.mOpMoveRelative};
+        assertEquals(ControlMessages.mHeartbeat, mMessages.classify(buf, 0, 1));
+        assertEquals(ControlMessages.mClose, mMessages.classify(buf, 1, 1));
+        assertEquals(ControlMessages.mUnknown, mMessages.classify(buf, 2, 1));
+    }
+
+    @Test
+    public void classify_byteBufferMatchesArray() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(MousePacket.mPacketBytes);
+        direct.put("CLOSE".getBytes()).flip();
+        assertEquals(ControlMessages.mClose, mMessages.classify(direct));
+        assertEquals(0, direct.position());
+
+        direct.clear();
+        direct.put(BinaryProtocol.mOpHeartbeat).flip();
+        assertEquals(ControlMessages.mHeartbeat, mMessages.classify(direct));
+
+        ByteBuffer heap = ByteBuffer.wrap("xxOPEN".getBytes(), 2, 4);
+        assertEquals(ControlMessages.mOpen, mMessages.classify(heap));
+    }
+
+    @Test
+    public void requestedVersion_ignoresMissingOrNullByte() {
+        byte[] bare = "OPEN".getBytes();
+        assertFalse(mMessages.isVersionRequested(bare, 0, bare.length));
+        assertEquals(NetworkHelpers.mProtocolVersionLegacy, mMessages.getRequestedVersion(bare, 0, bare.length));
+
+        byte[] padded = new byte[MousePacket.mPacketBytes];
+        System.arraycopy(bare, 0, padded, 0, bare.length);
+        assertFalse(mMessages.isVersionRequested(padded, 0, padded.length));
+
+        padded[bare.length] = NetworkHelpers.mProtocolVersionBinary;
+        assertTrue(mMessages.isVersionRequested(padded, 0, padded.length));
+        assertEquals(NetworkHelpers.mProtocolVersionBinary, mMessages.getRequestedVersion(padded, 0, padded.length));
+        assertEquals(NetworkHelpers.mProtocolVersionBinary, mMessages.getRequestedVersion(ByteBuffer.wrap(padded)));
+        assertEquals(0, mMessages.getRequestedVersion(ByteBuffer.wrap(bare)));
+    }
+}
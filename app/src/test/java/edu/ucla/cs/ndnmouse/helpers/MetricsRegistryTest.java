@@ -0,0 +1,89 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the metrics registry, its counters and histograms
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void counter_isSharedByName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("udp/a/sent").inc();
+        registry.counter("udp/a/sent").add(2);
+        assertSame(registry.counter("udp/a/sent"), registry.counter("udp/a/sent"));
+        assertEquals(3L, (long) registry.snapshot().mCounters.get("udp/a/sent"));
+    }
+
+    @Test
+    public void histogram_summarizesPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i * 1000);
+        Histogram.Summary summary = histogram.summarize();
+        assertEquals(100, summary.mCount);
+        assertEquals(50500, summary.mMean);
+        assertEquals(100000, summary.mMax);
+        // Buckets are powers of two, so percentiles are within a factor of two
+        assertTrue(summary.mP50 >= 50000 && summary.mP50 < 100000);
+        assertTrue(summary.mP99 >= 99000 && summary.mP99 <= 100000);
+    }
+
+    @Test
+    public void histogram_emptyAndZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.summarize().mP99);
+        histogram.record(0);
+        histogram.record(-5);
+        Histogram.Summary summary = histogram.summarize();
+        assertEquals(2, summary.mCount);
+        assertEquals(0, summary.mMax);
+    }
+
+    @Test
+    public void removeAll_endsOneSession() {
+        MetricsRegistry registry = new MetricsRegistry();
+        SessionMetrics first = new SessionMetrics(registry, "udp/10.0.0.2:1000/");
+        SessionMetrics second = new SessionMetrics(registry, "udp/10.0.0.3:1000/");
+        first.mPacketsSent.inc();
+        second.mPacketsSent.inc();
+        second.mEncryptNanos.record(1500);
+        registry.counter("udp/drop_trips").inc();
+
+        first.close();
+        MetricsRegistry.Snapshot snapshot = registry.snapshot();
+        assertFalse(snapshot.mCounters.containsKey("udp/10.0.0.2:1000/sent"));
+        assertTrue(snapshot.mCounters.containsKey("udp/10.0.0.3:1000/sent"));
+        assertEquals(1, snapshot.mHistograms.get("udp/10.0.0.3:1000/encrypt_ns").mCount);
+        assertTrue(snapshot.format().contains("udp/drop_trips: 1\n"));
+    }
+
+    @Test
+    public void counter_isLockFreeAcrossThreads() throws InterruptedException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        registry.counter("sent").inc();
+                        registry.histogram("latency").record(i);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, registry.counter("sent").get());
+        assertEquals(40000, registry.histogram("latency").getCount());
+    }
+}
@@ -0,0 +1,129 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the lock-free movement accumulator
+ */
+public class MotionAccumulatorTest {
+
+    @Test
+    public void pack_keepsSignedHalves() {
+        int[] values = {0, 1, -1, 75, -75, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int x : values) {
+            for (int y : values) {
+                long packed = MotionAccumulator.pack(x, y);
+                assertEquals(x, MotionAccumulator.getX(packed));
+                assertEquals(y, MotionAccumulator.getY(packed));
+            }
+        }
+    }
+
+    @Test
+    public void consume_sumsSinceLastCall() {
+        MotionAccumulator acc = new MotionAccumulator();
+        MotionAccumulator.Cursor cursor = acc.newCursor();
+        assertEquals(0, cursor.consume());
+
+        acc.add(3, -4);
+        acc.add(-10, 2);
+        acc.add(0, 0);
+        long position = cursor.consume();
+        assertEquals(-7, MotionAccumulator.getX(position));
+        assertEquals(-2, MotionAccumulator.getY(position));
+        assertEquals(0, cursor.consume());
+
+        // Movement that cancels out still reads as none
+        acc.add(5, 5);
+        acc.add(-5, -5);
+        assertEquals(0, cursor.consume());
+    }
+
+    @Test
+    public void consume_everyCursorSeesAllMovement() {
+        MotionAccumulator acc = new MotionAccumulator();
+        acc.add(100, 100);
+        MotionAccumulator.Cursor first = acc.newCursor();
+        acc.add(1, 2);
+        MotionAccumulator.Cursor second = acc.newCursor();
+        acc.add(10, 20);
+
+        // A new cursor only sees movement after it was created
+        long position = first.consume();
+        assertEquals(11, MotionAccumulator.getX(position));
+        assertEquals(22, MotionAccumulator.getY(position));
+        position = second.consume();
+        assertEquals(10, MotionAccumulator.getX(position));
+        assertEquals(20, MotionAccumulator.getY(position));
+
+        // Consuming on one cursor doesn't affect the other
+        acc.add(-1, -1);
+        assertEquals(MotionAccumulator.pack(-1, -1), first.consume());
+        acc.add(-1, -1);
+        assertEquals(MotionAccumulator.pack(-2, -2), second.consume());
+    }
+
+    @Test
+    public void consume_acrossTheWrap() {
+        MotionAccumulator acc = new MotionAccumulator();
+        MotionAccumulator.Cursor cursor = acc.newCursor();
+        // Push the running totals right up to the int limits
+        acc.add(Integer.MAX_VALUE, Integer.MIN_VALUE);
+        assertEquals(MotionAccumulator.pack(Integer.MAX_VALUE, Integer.MIN_VALUE), cursor.consume());
+
+        // Totals wrap, but the deltas read from the cursor are still exact
+        acc.add(5, -5);
+        acc.add(3, -3);
+        long position = cursor.consume();
+        assertEquals(8, MotionAccumulator.getX(position));
+        assertEquals(-8, MotionAccumulator.getY(position));
+    }
+
+    @Test
+    public void add_manyProducersLoseNothing() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final MotionAccumulator acc = new MotionAccumulator();
+        MotionAccumulator.Cursor cursor = acc.newCursor();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++)
+                        acc.add(1, -2);
+                }
+            });
+            threads[p].start();
+        }
+
+        // Consume while the producers run, and sum up what the cursor saw
+        start.countDown();
+        long x = 0, y = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads)
+                running |= thread.isAlive();
+            long position = cursor.consume();
+            x += MotionAccumulator.getX(position);
+            y += MotionAccumulator.getY(position);
+        }
+        long position = cursor.consume();
+        x += MotionAccumulator.getX(position);
+        y += MotionAccumulator.getY(position);
+        assertEquals(producers * perProducer, x);
+        assertEquals(-2L * producers * perProducer, y);
+    }
+}
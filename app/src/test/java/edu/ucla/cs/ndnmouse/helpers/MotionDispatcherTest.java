@@ -0,0 +1,72 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the non-blocking (event loop) side of the motion dispatcher
+ */
+public class MotionDispatcherTest {
+
+    @Test
+    public void pollMotion_noSignal() throws Exception {
+        MotionDispatcher dispatcher = new MotionDispatcher(0, 0);
+        assertEquals(-1, dispatcher.pollMotion());
+    }
+
+    @Test
+    public void pollMotion_waitsOutCoalesceWindow() throws Exception {
+        MotionDispatcher dispatcher = new MotionDispatcher(50, 0);
+        dispatcher.signal();
+
+        long wait = dispatcher.pollMotion();
+        assertTrue(wait > 0 && wait <= 50 * 1000000L);
+
+        Thread.sleep(60);
+        assertEquals(0, dispatcher.pollMotion());
+        // Update was dispatched, so nothing is pending anymore
+        assertEquals(-1, dispatcher.pollMotion());
+    }
+
+    @Test
+    public void pollMotion_keepsMinGap() throws Exception {
+        MotionDispatcher dispatcher = new MotionDispatcher(0, 50);
+        dispatcher.signal();
+        assertEquals(0, dispatcher.pollMotion());
+
+        dispatcher.signal();
+        assertTrue(dispatcher.pollMotion() > 0);
+    }
+
+    @Test
+    public void signal_notifiesListenerOncePerUpdate() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        MotionDispatcher dispatcher = new MotionDispatcher(0, 0);
+        dispatcher.setSignalListener(new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        });
+
+        dispatcher.signal();
+        dispatcher.signal();
+        assertEquals(1, calls.get());
+
+        assertEquals(0, dispatcher.pollMotion());
+        dispatcher.signal();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void close_stopsPolling() throws Exception {
+        MotionDispatcher dispatcher = new MotionDispatcher(0, 0);
+        dispatcher.signal();
+        dispatcher.close();
+        assertEquals(-1, dispatcher.pollMotion());
+        assertFalse(dispatcher.awaitMotion());
+    }
+}
@@ -0,0 +1,154 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for recording touch samples and replaying them as scripted movement
+ */
+public class MotionRecorderTest {
+
+    private static final byte mRelative = 'M';
+    private static final byte mScrolling = 'S';
+    private static final long mMillis = 1000000L;
+
+    /**
+     * Record a drag of 10 samples, 5 pixels right and 2 pixels down each, 8 ms apart
+     */
+    private static byte[] recordDrag() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MotionRecorder recorder = new MotionRecorder(out);
+        recorder.record(100 * mMillis, MotionRecorder.mActionDown, 50, 50, 1, mRelative);
+        for (int i = 1; i <= 10; i++)
+            recorder.record((100 + 8 * i) * mMillis, MotionRecorder.mActionMove, 50 + 5 * i, 50 + 2 * i, 1, mRelative);
+        recorder.record(200 * mMillis, MotionRecorder.mActionUp, 100, 70, 1, mRelative);
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    private static long playAll(ScriptedMotionSource source) {
+        MotionAccumulator.Cursor cursor = source.newMotionCursor();
+        int x = 0, y = 0;
+        while (source.advance()) {
+            long position = cursor.consume();
+            x += MotionAccumulator.getX(position);
+            y += MotionAccumulator.getY(position);
+        }
+        return MotionAccumulator.pack(x, y);
+    }
+
+    @Test
+    public void replay_reproducesRecordedMovement() throws IOException {
+        byte[] log = recordDrag();
+        assertEquals(5 + 12 * MotionRecorder.mSampleBytes, log.length);
+
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        assertEquals(10, MotionReplay.load(new ByteArrayInputStream(log), source, 5, 1));
+        assertEquals(80, source.getDurationMillis());
+
+        long total = playAll(source);
+        assertEquals(50, MotionAccumulator.getX(total));
+        assertEquals(20, MotionAccumulator.getY(total));
+    }
+
+    @Test
+    public void replay_appliesPrecisionAndSpeed() throws IOException {
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        // Only every other sample moves 10 pixels, so half the steps remain
+        assertEquals(5, MotionReplay.load(new ByteArrayInputStream(recordDrag()), source, 10, 4));
+        assertEquals(20, source.getDurationMillis());
+
+        long total = playAll(source);
+        assertEquals(50, MotionAccumulator.getX(total));
+        assertEquals(20, MotionAccumulator.getY(total));
+    }
+
+    @Test
+    public void replay_ignoresMovementWhileLifted() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MotionRecorder recorder = new MotionRecorder(out);
+        recorder.record(mMillis, MotionRecorder.mActionMove, 10, 10, 1, mRelative);
+        recorder.record(2 * mMillis, MotionRecorder.mActionDown, 300, 300, 2, mScrolling);
+        recorder.record(3 * mMillis, MotionRecorder.mActionMove, 300, 340, 2, mScrolling);
+        recorder.close();
+
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        assertEquals(1, MotionReplay.load(new ByteArrayInputStream(out.toByteArray()), source, 5, 1));
+        long total = playAll(source);
+        assertEquals(mScrolling, source.getMoveType());
+        assertEquals(0, MotionAccumulator.getX(total));
+        assertEquals(40, MotionAccumulator.getY(total));
+    }
+
+    @Test
+    public void replay_followsSubPixelTouchpadMovement() throws IOException {
+        // Drag of 5/16 pixel per sample from just below a whole pixel: whole-pixel coordinates would
+        // jump a pixel right away, the touchpad only moves once the fractions add up
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MotionRecorder recorder = new MotionRecorder(out);
+        MotionAccumulator touchpad = new MotionAccumulator();
+        MotionAccumulator.Cursor touchpadCursor = touchpad.newCursor();
+        TouchSampler sampler = new TouchSampler(touchpad, 1);
+        sampler.setBounds(1000, 1000);
+        List<Long> expected = new ArrayList<>();
+
+        float startX = 10.9375f, startY = 20.9375f;
+        recorder.record(mMillis, MotionRecorder.mActionDown, startX, startY, 1, mRelative);
+        sampler.touchDown(startX, startY);
+        for (int i = 1; i <= 20; i++) {
+            float x = startX + 0.3125f * i;
+            float y = startY - 0.3125f * i;
+            recorder.record((1 + i) * mMillis, MotionRecorder.mActionMove, x, y, 1, mRelative);
+            if (sampler.sample(x, y))
+                expected.add(touchpadCursor.consume());
+        }
+        recorder.close();
+
+        // Same steps as the touchpad added, one by one
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        assertEquals(expected.size(), MotionReplay.load(new ByteArrayInputStream(out.toByteArray()), source, 1, 1));
+        MotionAccumulator.Cursor cursor = source.newMotionCursor();
+        List<Long> replayed = new ArrayList<>();
+        while (source.advance())
+            replayed.add(cursor.consume());
+        assertEquals(expected, replayed);
+    }
+
+    @Test
+    public void replay_readsWholePixelLogs() throws IOException {
+        // Version 1 log: a touch down and one move of 12 right, 4 up
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream log = new DataOutputStream(out);
+        log.writeInt(MotionRecorder.mMagic);
+        log.writeByte(MotionRecorder.mFormatVersionWholePixels);
+        short[][] samples = {{100, 100, MotionRecorder.mActionDown}, {112, 96, MotionRecorder.mActionMove}};
+        for (short[] sample : samples) {
+            log.writeInt(8000);
+            log.writeShort(sample[0]);
+            log.writeShort(sample[1]);
+            log.writeByte(sample[2]);
+            log.writeByte(1);
+            log.writeByte(mRelative);
+        }
+        log.close();
+
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        assertEquals(1, MotionReplay.load(new ByteArrayInputStream(out.toByteArray()), source, 5, 1));
+        long total = playAll(source);
+        assertEquals(12, MotionAccumulator.getX(total));
+        assertEquals(-4, MotionAccumulator.getY(total));
+    }
+
+    @Test(expected = IOException.class)
+    public void replay_rejectsOtherFiles() throws IOException {
+        MotionReplay.load(new ByteArrayInputStream(new byte[] {'O', 'P', 'E', 'N', 0}), new ScriptedMotionSource(mRelative), 5, 1);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the authenticated AES-GCM packet mode and its version negotiation
+ */
+public class MousePacketCipherGcmTest {
+
+    private static final SecretKeySpec mKey = new SecretKeySpec(new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+    private static final byte[] mSessionId = {21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36};
+
+    private static MousePacketCipherGcm newServer() throws Exception {
+        return new MousePacketCipherGcm(mKey, mSessionId, MousePacketCipherGcm.mDirectionToClient);
+    }
+
+    private static MousePacketCipherGcm newClient() throws Exception {
+        return new MousePacketCipherGcm(mKey, mSessionId, MousePacketCipherGcm.mDirectionToServer);
+    }
+
+    @Test
+    public void encrypt_decryptsOnOtherSide() throws Exception {
+        byte[] msg = NetworkHelpers.buildMoveMessage("M", -75, 25);
+        byte[] out = new byte[PacketCipher.mMaxPacketBytes];
+
+        int length = newServer().encrypt(msg, 0, msg.length, 42, out, 0);
+        assertEquals(MousePacketCipherGcm.getPacketLength(msg.length), length);
+        assertEquals(NetworkHelpers.mProtocolVersionGcm, out[0]);
+
+        MousePacketCipherGcm client = newClient();
+        assertEquals(msg.length, client.decrypt(out, 0, length));
+        assertEquals(42, client.getDecryptedSeqNum());
+        assertEquals(new String(msg), client.getDecryptedMessage());
+    }
+
+    @Test
+    public void encrypt_sameSeqNumGivesSameNonce() throws Exception {
+        // Nonce is derived from the session and seq num only (no random IV per packet)
+        byte[] msg = "HEART".getBytes();
+        byte[] first = new byte[PacketCipher.mMaxPacketBytes];
+        byte[] second = new byte[PacketCipher.mMaxPacketBytes];
+        int length = newClient().encrypt(msg, 0, msg.length, 3, first, 0);
+        newClient().encrypt(msg, 0, msg.length, 3, second, 0);
+        assertArrayEquals(first, second);
+
+        // ...but the direction keeps both sides from ever sharing a nonce
+        newServer().encrypt(msg, 0, msg.length, 3, second, 0);
+        assertFalse(Arrays.equals(first, second));
+        assertEquals(MousePacketCipherGcm.getPacketLength(msg.length), length);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void decrypt_rejectsTamperedSeqNum() throws Exception {
+        byte[] msg = "CLOSE".getBytes();
+        byte[] out = new byte[PacketCipher.mMaxPacketBytes];
+        int length = newClient().encrypt(msg, 0, msg.length, 5, out, 0);
+
+        out[4]++;
+        newServer().decrypt(out, 0, length);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void decrypt_rejectsOwnDirection() throws Exception {
+        byte[] msg = "CLOSE".getBytes();
+        byte[] out = new byte[PacketCipher.mMaxPacketBytes];
+        int length = newServer().encrypt(msg, 0, msg.length, 5, out, 0);
+
+        newServer().decrypt(out, 0, length);
+    }
+
+    @Test
+    public void makeSession_replayedOpenGetsNewNonceStream() throws Exception {
+        // Two OPENs with the same IV (a replay), answered with different server nonces
+        SessionKeyService keys = new SessionKeyService("password");
+        byte[] openIv = Arrays.copyOf(mSessionId, 16);
+        byte[] firstNonce = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] secondNonce = {8, 7, 6, 5, 4, 3, 2, 1};
+        byte version = NetworkHelpers.mProtocolVersionGcm;
+
+        byte[] firstSalt = MousePacketCipherGcm.makeSessionSalt(openIv, firstNonce);
+        byte[] secondSalt = MousePacketCipherGcm.makeSessionSalt(openIv, secondNonce);
+        byte[] firstId = MousePacketCipherGcm.makeSessionId(openIv, firstNonce);
+        byte[] secondId = MousePacketCipherGcm.makeSessionId(openIv, secondNonce);
+        assertEquals(openIv.length + MousePacketCipherGcm.mServerNonceBytes, firstSalt.length);
+        assertEquals(MousePacketCipherGcm.mSessionIdBytes, firstId.length);
+        assertFalse(Arrays.equals(firstId, secondId));
+        assertNotEquals(keys.getSessionKey(firstSalt, version), keys.getSessionKey(secondSalt, version));
+
+        // The server restarts its seq nums, but the same seq num no longer encrypts the same way
+        MousePacketCipherGcm first = new MousePacketCipherGcm(keys.getSessionKey(firstSalt, version), firstId, MousePacketCipherGcm.mDirectionToClient);
+        MousePacketCipherGcm second = new MousePacketCipherGcm(keys.getSessionKey(secondSalt, version), secondId, MousePacketCipherGcm.mDirectionToClient);
+        byte[] msg = NetworkHelpers.buildMoveMessage("M", 10, 10);
+        byte[] firstOut = new byte[PacketCipher.mMaxPacketBytes];
+        byte[] secondOut = new byte[PacketCipher.mMaxPacketBytes];
+        int length = first.encrypt(msg, 0, msg.length, 1, firstOut, 0);
+        second.encrypt(msg, 0, msg.length, 1, secondOut, 0);
+        assertFalse(Arrays.equals(Arrays.copyOfRange(firstOut, 5, length), Arrays.copyOfRange(secondOut, 5, length)));
+
+        // A client that saw the matching server nonce still decrypts
+        MousePacketCipherGcm client = new MousePacketCipherGcm(keys.getSessionKey(secondSalt, version), secondId, MousePacketCipherGcm.mDirectionToServer);
+        assertEquals(msg.length, client.decrypt(secondOut, 0, length));
+    }
+
+    @Test
+    public void negotiateVersion_picksHighestShared() throws Exception {
+        byte[] open = "0000OPEN".getBytes();
+        assertEquals(NetworkHelpers.mProtocolVersionLegacy, NetworkHelpers.getRequestedVersion(open, 4, 4, 4));
+
+        byte[] versioned = "0000OPEN?".getBytes();
+        versioned[8] = NetworkHelpers.mProtocolVersionGcm;
+        byte requested = NetworkHelpers.getRequestedVersion(versioned, 4, 5, 4);
+        assertEquals(NetworkHelpers.mProtocolVersionGcm, requested);
+
+        assertEquals(NetworkHelpers.mProtocolVersionGcm, NetworkHelpers.negotiateVersion(requested, NetworkHelpers.mProtocolVersionGcm));
+        assertEquals(NetworkHelpers.mProtocolVersionLegacy, NetworkHelpers.negotiateVersion(requested, NetworkHelpers.mProtocolVersionLegacy));
+        assertEquals(NetworkHelpers.mProtocolVersionLegacy, NetworkHelpers.negotiateVersion((byte) 0, NetworkHelpers.mProtocolVersionGcm));
+    }
+}
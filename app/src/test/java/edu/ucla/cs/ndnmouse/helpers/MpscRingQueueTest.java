@@ -0,0 +1,96 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the bounded multi-producer single-consumer queue
+ */
+public class MpscRingQueueTest {
+
+    @Test
+    public void offer_pollInOrder() throws Exception {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(3);
+        assertEquals(4, queue.capacity());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(i));
+        // Full queue rejects instead of growing
+        assertFalse(queue.offer(4));
+
+        for (int i = 0; i < 4; i++)
+            assertEquals(Integer.valueOf(i), queue.poll());
+        assertNull(queue.poll());
+
+        // Slots are reused on the next lap
+        assertTrue(queue.offer(5));
+        assertFalse(queue.isEmpty());
+        assertEquals(Integer.valueOf(5), queue.poll());
+    }
+
+    @Test
+    public void peek_doesNotTake() {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(2);
+        assertNull(queue.peek());
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertEquals(Integer.valueOf(1), queue.peek());
+        assertEquals(Integer.valueOf(1), queue.peek());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.peek());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void offer_manyProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final MpscRingQueue<Integer> queue = new MpscRingQueue<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        Integer value = producer * perProducer + i;
+                        while (!queue.offer(value))
+                            Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // Every element must arrive exactly once, and in order per producer
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            Integer value = queue.poll();
+            if (null == value) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            assertEquals(next[producer]++, value % perProducer);
+            received++;
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(queue.poll());
+    }
+}
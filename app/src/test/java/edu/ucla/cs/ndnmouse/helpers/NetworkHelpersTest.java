@@ -0,0 +1,92 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the move message encoder
+ */
+public class NetworkHelpersTest {
+
+    private static final int mIterations = 100000;
+
+    @Test
+    public void writeMoveMessage_matchesBuildMoveMessage() throws Exception {
+        byte[] expected = NetworkHelpers.buildMoveMessage("M", -75, 25);
+        byte[] buf = new byte[NetworkHelpers.mMoveMessageBytes + 3];
+
+        int written = NetworkHelpers.writeMoveMessage((byte) 'M', -75, 25, buf, 3);
+        assertEquals(NetworkHelpers.mMoveMessageBytes, written);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], buf[i + 3]);
+
+        ByteBuffer byteBuf = ByteBuffer.allocate(NetworkHelpers.mMoveMessageBytes);
+        NetworkHelpers.writeMoveMessage((byte) 'M', -75, 25, byteBuf);
+        assertArrayEquals(expected, byteBuf.array());
+    }
+
+    @Test
+    public void buildMoveMessage_format() throws Exception {
+        byte[] msg = NetworkHelpers.buildMoveMessage("S", -75, 25);
+        assertArrayEquals(new byte[] {'S', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xb5, 0, 0, 0, 0x19}, msg);
+    }
+
+    @Test
+    public void writeSessionMessage_format() throws Exception {
+        byte[] buf = new byte[NetworkHelpers.mSessionMessageBytes + 1];
+        int written = NetworkHelpers.writeSessionMessage((byte) 'R', 0x01020304, 0x10000000aL, buf, 1);
+        assertEquals(NetworkHelpers.mSessionMessageBytes, written);
+        assertArrayEquals(new byte[] {0, 'R', 1, 2, 3, 4, 0, 0, 0, 1, 0, 0, 0, 0x0a}, buf);
+    }
+
+    @Test
+    public void appendBatchedMessage_format() throws Exception {
+        byte[] buf = new byte[8];
+        buf[0] = 'P';
+        int length = 1;
+        length += NetworkHelpers.appendBatchedMessage("C_L".getBytes(), 3, buf, length);
+        length += NetworkHelpers.appendBatchedMessage("Tab".getBytes(), 2, buf, length);
+        assertEquals(buf.length, length);
+        assertArrayEquals(new byte[] {'P', 3, 'C', '_', 'L', 2, 'T', 'a'}, buf);
+    }
+
+    @Test
+    public void writeMoveMessage_doesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationTracking(threadBean);
+        long threadId = Thread.currentThread().getId();
+        byte[] buf = new byte[NetworkHelpers.mMoveMessageBytes];
+        ByteBuffer byteBuf = ByteBuffer.allocateDirect(NetworkHelpers.mMoveMessageBytes);
+
+        // Warm up so the measured loop isn't affected by class loading or compilation
+        encodeMany(buf, byteBuf);
+
+        // Measuring itself may allocate, so subtract the cost of an empty measurement
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        encodeMany(buf, byteBuf);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        // Allow for a few stray bytes (e.g. from the JIT), but any per-message allocation would be far larger
+        assertTrue("Move message encoding allocated " + allocated + " bytes", allocated < mIterations);
+    }
+
+    private static void encodeMany(byte[] buf, ByteBuffer byteBuf) {
+        for (int i = 0; i < mIterations; i++) {
+            NetworkHelpers.writeMoveMessage((byte) 'M', i, -i, buf, 0);
+            byteBuf.clear();
+            NetworkHelpers.writeMoveMessage((byte) 'S', -i, i, byteBuf);
+        }
+    }
+
+    private static void assumeAllocationTracking(com.sun.management.ThreadMXBean threadBean) {
+        org.junit.Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+}
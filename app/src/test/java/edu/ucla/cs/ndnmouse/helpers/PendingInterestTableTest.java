@@ -0,0 +1,95 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the pending interest table
+ */
+public class PendingInterestTableTest {
+
+    @Test
+    public void poll_oldestAliveFirst() {
+        PendingInterestTable<String> table = new PendingInterestTable<>(4);
+        table.add("a", 0, 50);
+        table.add("b", 10, 1000);
+        table.add("c", 20, 1000);
+        assertEquals(3, table.size());
+        assertEquals(30, table.getNextExpiryNanos(20));
+
+        // "a" outlived its lifetime, so it is dropped instead of answered
+        PendingInterestTable.Entry<String> entry = table.poll(60);
+        assertEquals("b", entry.mInterest);
+        assertEquals(10, entry.mArrivalNanos);
+        assertEquals(1, table.drainExpired());
+        assertEquals(0, table.drainExpired());
+        assertEquals("c", table.poll(60).mInterest);
+        assertNull(table.poll(60));
+        assertTrue(table.isEmpty());
+        assertEquals(-1, table.getNextExpiryNanos(60));
+    }
+
+    @Test
+    public void peek_keepsEntry() {
+        PendingInterestTable<String> table = new PendingInterestTable<>(4);
+        assertNull(table.peek(0));
+        table.add("a", 0, 50);
+        table.add("b", 10, 1000);
+        assertEquals("a", table.peek(20).mInterest);
+        assertEquals(2, table.size());
+        // Expired ones are dropped first
+        assertEquals("b", table.peek(60).mInterest);
+        assertEquals(1, table.drainExpired());
+        assertEquals("b", table.poll(60).mInterest);
+    }
+
+    @Test
+    public void add_dropsOldestWhenFull() {
+        PendingInterestTable<Integer> table = new PendingInterestTable<>(2);
+        for (int i = 0; i < 5; i++)
+            table.add(i, i, 1000);
+        assertEquals(2, table.size());
+        assertEquals(3, table.drainOverflowed());
+        assertEquals(3, (int) table.poll(5).mInterest);
+        assertEquals(4, (int) table.poll(5).mInterest);
+    }
+
+    @Test
+    public void poll_onlyMatching() {
+        PendingInterestTable<Long> table = new PendingInterestTable<>(4);
+        table.add(7L, 0, 1000);
+        table.add(5L, 1, 1000);
+        table.add(7L, 2, 1000);
+        PendingInterestTable.Matcher<Long> seven = new PendingInterestTable.Matcher<Long>() {
+            @Override
+            public boolean matches(Long seqNum) {
+                return 7 == seqNum;
+            }
+        };
+
+        assertTrue(table.contains(seven));
+        assertEquals(0, table.poll(10, seven).mArrivalNanos);
+        assertEquals(2, table.poll(10, seven).mArrivalNanos);
+        assertNull(table.poll(10, seven));
+        assertFalse(table.contains(seven));
+        assertEquals(5L, (long) table.poll(10).mInterest);
+    }
+
+    @Test
+    public void expire_keepsOrderOfSurvivors() {
+        PendingInterestTable<String> table = new PendingInterestTable<>(4);
+        table.add("a", 0, 100);
+        table.add("b", 1, 10);
+        table.add("c", 2, 100);
+        table.expire(50);
+        assertEquals(2, table.size());
+        assertEquals(1, table.drainExpired());
+        assertEquals("a", table.poll(50).mInterest);
+        assertEquals("c", table.poll(50).mInterest);
+
+        table.add("d", 60, 100);
+        table.clear();
+        assertTrue(table.isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the two-priority command queue
+ */
+public class PriorityCommandQueueTest {
+
+    @Test
+    public void poll_urgentFirst() {
+        PriorityCommandQueue queue = new PriorityCommandQueue(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        byte[] text1 = "Thello".getBytes();
+        byte[] text2 = "Tworld".getBytes();
+        byte[] click = "CL".getBytes();
+        byte[] key = "KE".getBytes();
+        assertTrue(queue.offer(text1, false));
+        assertTrue(queue.offer(click, true));
+        assertTrue(queue.offer(text2, false));
+        assertTrue(queue.offer(key, true));
+        assertFalse(queue.isEmpty());
+
+        // Urgent commands jump ahead, each priority keeps its order
+        assertSame(click, queue.poll());
+        assertSame(key, queue.poll());
+        assertSame(text1, queue.poll());
+        assertSame(text2, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void poll_leavesTooLongCommand() {
+        PriorityCommandQueue queue = new PriorityCommandQueue(4);
+        byte[] text = "Tlonger text".getBytes();
+        byte[] click = "CL".getBytes();
+        assertTrue(queue.offer(text, false));
+
+        assertNull(queue.poll(text.length - 1));
+        assertFalse(queue.isEmpty());
+
+        // A short urgent command still gets out, then the long one once there is room
+        assertTrue(queue.offer(click, true));
+        assertSame(click, queue.poll(4));
+        assertNull(queue.poll(4));
+        assertSame(text, queue.poll(text.length));
+    }
+
+    @Test
+    public void offer_fullPriorityRejects() {
+        PriorityCommandQueue queue = new PriorityCommandQueue(2);
+        assertTrue(queue.offer(new byte[1], true));
+        assertTrue(queue.offer(new byte[1], true));
+        assertFalse(queue.offer(new byte[1], true));
+        // The other priority has its own room
+        assertTrue(queue.offer(new byte[1], false));
+    }
+}
@@ -0,0 +1,57 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the anti-replay window
+ */
+public class ReplayWindowTest {
+
+    @Test
+    public void accept_reorderedOnce() {
+        ReplayWindow window = new ReplayWindow();
+        // Seq num 0 belongs to the opening message
+        assertFalse(window.accept(0));
+        assertTrue(window.accept(3));
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertFalse(window.accept(3));
+        assertEquals(3, window.getHighest());
+        assertFalse(window.accept(-1));
+    }
+
+    @Test
+    public void accept_onlyInsideWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(100));
+        // Oldest seq num still tracked is 100 - 63
+        assertTrue(window.accept(100 - ReplayWindow.mWindowSize + 1));
+        assertFalse(window.accept(100 - ReplayWindow.mWindowSize));
+        assertTrue(window.accept(99));
+
+        // A big jump forgets everything before it
+        assertTrue(window.accept(1000));
+        assertFalse(window.accept(99));
+        assertTrue(window.accept(999));
+    }
+
+    @Test
+    public void accept_acrossTheWrap() {
+        ReplayWindow window = new ReplayWindow();
+        // Move up to the end of the seq num range in two big steps
+        assertTrue(window.accept((1 << 30) - 1));
+        assertTrue(window.accept(Integer.MAX_VALUE - 1));
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(0));
+        assertTrue(window.accept(Integer.MAX_VALUE));
+        assertFalse(window.accept(Integer.MAX_VALUE - 1));
+        assertEquals(1, window.getHighest());
+
+        assertTrue(ReplayWindow.isNewer(0, Integer.MAX_VALUE));
+        assertFalse(ReplayWindow.isNewer(Integer.MAX_VALUE, 0));
+        assertFalse(ReplayWindow.isNewer(5, 5));
+    }
+}
@@ -0,0 +1,110 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the headless, replayable motion source
+ */
+public class ScriptedMotionSourceTest {
+
+    private static final byte mRelative = 'M';
+    private static final byte mScrolling = 'S';
+
+    @Test
+    public void advance_playsStepsInOrder() {
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative)
+                .addStep(3, -4, mRelative, 0)
+                .addStep(10, 0, mScrolling, 0);
+        MotionAccumulator.Cursor cursor = source.newMotionCursor();
+        assertEquals(mRelative, source.getMoveType());
+
+        assertTrue(source.advance());
+        long position = cursor.consume();
+        assertEquals(3, MotionAccumulator.getX(position));
+        assertEquals(-4, MotionAccumulator.getY(position));
+
+        assertTrue(source.advance());
+        assertEquals(mScrolling, source.getMoveType());
+        assertEquals(10, MotionAccumulator.getX(cursor.consume()));
+
+        assertFalse(source.advance());
+        assertEquals(0, cursor.consume());
+    }
+
+    @Test
+    public void rewind_replaysSameMovement() {
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative).addCircle(50, 16, mRelative, 0);
+        MotionAccumulator.Cursor cursor = source.newMotionCursor();
+
+        while (source.advance());
+        long first = cursor.consume();
+        source.rewind();
+        while (source.advance());
+        assertEquals(first, cursor.consume());
+        // A full circle ends where it started
+        assertEquals(0, first);
+    }
+
+    @Test
+    public void advance_signalsDispatchers() throws Exception {
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative).addStep(1, 1, mRelative, 0);
+        MotionDispatcher dispatcher = new MotionDispatcher(0, 0);
+        source.addMotionDispatcher(dispatcher);
+
+        assertTrue(dispatcher.pollMotion() < 0);
+        source.advance();
+        assertEquals(0, dispatcher.pollMotion());
+
+        source.removeMotionDispatcher(dispatcher);
+        dispatcher.close();
+    }
+
+    @Test
+    public void start_playsInRealTime() throws Exception {
+        ScriptedMotionSource source = new ScriptedMotionSource(mRelative);
+        for (int i = 0; i < 5; i++)
+            source.addStep(2, 0, mRelative, 1);
+        MotionAccumulator.Cursor cursor = source.newMotionCursor();
+
+        source.start(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        int x = 0;
+        while (x < 10 && System.currentTimeMillis() < deadline) {
+            x += MotionAccumulator.getX(cursor.consume());
+            Thread.sleep(1);
+        }
+        source.stop();
+        assertEquals(10, x);
+    }
+
+    @Test
+    public void playListener_seesTotalsBeforeMotion() {
+        final ScriptedMotionSource source = new ScriptedMotionSource(mRelative)
+                .addStep(3, -4, mRelative, 0)
+                .addStep(5, 1, mRelative, 0);
+        final MotionAccumulator.Cursor cursor = source.newMotionCursor();
+        final long[] totals = new long[4];
+        final long[] seen = new long[2];
+        final int[] played = new int[1];
+        source.setPlayListener(new ScriptedMotionSource.PlayListener() {
+            @Override
+            public void onStepPlayed(long totalX, long totalY, long playedNanos) {
+                // Sessions only see the steps before this one
+                seen[played[0]] = cursor.consume();
+                totals[2 * played[0]] = totalX;
+                totals[2 * played[0] + 1] = totalY;
+                played[0]++;
+            }
+        });
+
+        while (source.advance());
+        assertEquals(2, played[0]);
+        assertArrayEquals(new long[] {3, -4, 8, -3}, totals);
+        assertArrayEquals(new long[] {0, MotionAccumulator.pack(3, -4)}, seen);
+        long position = cursor.consume();
+        assertEquals(5, MotionAccumulator.getX(position));
+        assertEquals(1, MotionAccumulator.getY(position));
+    }
+}
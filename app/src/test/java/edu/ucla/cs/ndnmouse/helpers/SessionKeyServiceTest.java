@@ -0,0 +1,68 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the session key service
+ */
+public class SessionKeyServiceTest {
+
+    @Test
+    public void legacyKeys_matchNetworkHelpers() throws Exception {
+        SessionKeyService keys = new SessionKeyService("p\u00e4ssword");
+        keys.prewarm();
+        byte[] salt = NetworkHelpers.getNewIV().getIV();
+
+        // Python clients and older versions derive the keys this way, so they must not change
+        assertArrayEquals(NetworkHelpers.makeKeyFromPassword("p\u00e4ssword").getEncoded(), keys.getOpenKey().getEncoded());
+        assertArrayEquals(NetworkHelpers.makeKeyFromPassword("p\u00e4ssword", salt).getEncoded(),
+                keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionLegacy).getEncoded());
+        assertArrayEquals(NetworkHelpers.makeKeyFromPassword("p\u00e4ssword", salt).getEncoded(),
+                keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionBinary).getEncoded());
+    }
+
+    @Test
+    public void hkdfKeys_followRfc5869() throws Exception {
+        SessionKeyService keys = new SessionKeyService("password");
+        byte[] salt = new byte[16];
+        Arrays.fill(salt, (byte) 7);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec("ndnMouse HKDF salt".getBytes("UTF-8"), "HmacSHA256"));
+        byte[] prk = mac.doFinal("password".getBytes("UTF-8"));
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update("ndnMouse session key".getBytes("UTF-8"));
+        mac.update(salt);
+        mac.update((byte) 1);
+        byte[] expected = Arrays.copyOf(mac.doFinal(), 16);
+
+        SecretKeySpec key = keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionHkdf);
+        assertArrayEquals(expected, key.getEncoded());
+        assertEquals("AES", key.getAlgorithm());
+        assertFalse(Arrays.equals(expected, keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionLegacy).getEncoded()));
+    }
+
+    @Test
+    public void sessionKeys_areCachedPerSalt() throws Exception {
+        SessionKeyService keys = new SessionKeyService("password");
+        byte[] salt = NetworkHelpers.getNewIV().getIV();
+        SecretKeySpec first = keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionHkdf);
+        assertSame(first, keys.getSessionKey(salt.clone(), NetworkHelpers.mProtocolVersionHkdf));
+        assertEquals(1, keys.getHits());
+        assertEquals(1, keys.getMisses());
+
+        // Least recently used keys are evicted once the cache is full
+        for (int i = 0; i < SessionKeyService.mCacheSize; i++)
+            keys.getSessionKey(NetworkHelpers.getNewIV().getIV(), NetworkHelpers.mProtocolVersionHkdf);
+        SecretKeySpec again = keys.getSessionKey(salt, NetworkHelpers.mProtocolVersionHkdf);
+        assertNotSame(first, again);
+        assertArrayEquals(first.getEncoded(), again.getEncoded());
+    }
+}
@@ -0,0 +1,128 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the session registry and its timer wheel
+ */
+public class SessionRegistryTest {
+
+    private static final long mMillis = 1000000L;
+
+    @Test
+    public void timerWheel_firesOnTheDueTick() {
+        long start = 0;
+        TimerWheel<String> wheel = new TimerWheel<>(10 * mMillis, 8, start);
+        wheel.schedule("a", 15 * mMillis);
+        wheel.schedule("b", 30 * mMillis);
+        List<String> expired = new ArrayList<>();
+
+        // Deadlines round up to the next tick
+        assertEquals(0, wheel.advance(19 * mMillis, expired));
+        assertEquals(2, wheel.size());
+        assertEquals(1, wheel.advance(20 * mMillis, expired));
+        assertEquals(Arrays.asList("a"), expired);
+        assertEquals(1, wheel.advance(30 * mMillis, expired));
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void timerWheel_keepsLaterTurns() {
+        long start = 0;
+        TimerWheel<String> wheel = new TimerWheel<>(10 * mMillis, 4, start);
+        // Lands in the same slot as tick 1, but three turns later
+        wheel.schedule("later", 130 * mMillis);
+        wheel.schedule("soon", 10 * mMillis);
+        List<String> expired = new ArrayList<>();
+
+        assertEquals(1, wheel.advance(50 * mMillis, expired));
+        assertEquals(Arrays.asList("soon"), expired);
+        assertEquals(0, wheel.advance(129 * mMillis, expired));
+        assertEquals(1, wheel.advance(130 * mMillis, expired));
+        assertEquals("later", expired.get(1));
+    }
+
+    @Test
+    public void timerWheel_catchesUpAfterLongGap() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(10 * mMillis, 4, 0);
+        for (int i = 1; i <= 10; i++)
+            wheel.schedule(i, i * 10 * mMillis);
+        List<Integer> expired = new ArrayList<>();
+
+        // Many turns of the wheel passed at once
+        assertEquals(10, wheel.advance(1000 * mMillis, expired));
+        assertEquals(0, wheel.size());
+        // Scheduling in the past fires on the next tick
+        wheel.schedule(11, 0);
+        assertEquals(1, wheel.advance(1010 * mMillis, expired));
+    }
+
+    @Test
+    public void expire_evictsSilentSessions() {
+        long now = System.nanoTime();
+        SessionRegistry<String, String> registry = new SessionRegistry<>(100, 10);
+        registry.put("pc1", "session1", now);
+        registry.put("pc2", "session2", now);
+        List<String> evicted = new ArrayList<>();
+
+        // Only pc2 keeps sending heartbeats
+        assertEquals(0, registry.expire(now + 50 * mMillis, evicted));
+        assertTrue(registry.touch("pc2", now + 60 * mMillis));
+        assertEquals(1, registry.expire(now + 130 * mMillis, evicted));
+        assertEquals(Arrays.asList("session1"), evicted);
+        assertNull(registry.get("pc1"));
+        assertEquals("session2", registry.get("pc2"));
+
+        // pc2's check was pushed out to its last heartbeat plus the timeout
+        assertEquals(0, registry.expire(now + 150 * mMillis, evicted));
+        assertEquals(1, registry.expire(now + 180 * mMillis, evicted));
+        assertEquals(0, registry.size());
+        assertFalse(registry.touch("pc2", now + 190 * mMillis));
+    }
+
+    @Test
+    public void expire_skipsRemovedAndReplacedSessions() {
+        long now = System.nanoTime();
+        SessionRegistry<String, String> registry = new SessionRegistry<>(100, 10);
+        registry.put("pc1", "old", now);
+        registry.put("pc2", "closed", now);
+        assertEquals("old", registry.put("pc1", "new", now + 80 * mMillis));
+        assertEquals("closed", registry.remove("pc2"));
+        List<String> evicted = new ArrayList<>();
+
+        // The replaced session's check comes up first, but only the new one is evicted (later)
+        assertEquals(0, registry.expire(now + 120 * mMillis, evicted));
+        assertEquals("new", registry.get("pc1"));
+        assertEquals(1, registry.expire(now + 200 * mMillis, evicted));
+        assertEquals(Arrays.asList("new"), evicted);
+    }
+
+    @Test
+    public void sessions_iterateWhileModified() {
+        long now = System.nanoTime();
+        SessionRegistry<Integer, String> registry = new SessionRegistry<>(100, 10);
+        for (int i = 0; i < 10; i++)
+            registry.put(i, "session" + i, now);
+
+        // Would throw ConcurrentModificationException on a HashMap
+        int seen = 0;
+        Iterator<String> it = registry.sessions().iterator();
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            if (seen < 10)
+                registry.remove(seen);
+            registry.put(100 + seen, "added", now);
+            seen++;
+        }
+        assertTrue(seen >= 10);
+        assertEquals(seen, registry.sessions().size());
+    }
+}
@@ -0,0 +1,72 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for turning touchpad samples into relative movement
+ */
+public class TouchSamplerTest {
+
+    private MotionAccumulator mMotion;
+    private MotionAccumulator.Cursor mCursor;
+    private TouchSampler mSampler;
+
+    @Before
+    public void setUp() {
+        mMotion = new MotionAccumulator();
+        mCursor = mMotion.newCursor();
+        mSampler = new TouchSampler(mMotion, 5);
+        mSampler.setBounds(1000, 1000);
+    }
+
+    @Test
+    public void sample_carriesMovementBelowPrecision() {
+        mSampler.touchDown(100, 100);
+        // Slow drag, 2 pixels per sample: nothing is lost, it is just added in chunks
+        for (int i = 1; i <= 10; i++)
+            mSampler.sample(100 + 2 * i, 100);
+        long position = mCursor.consume();
+        assertEquals(18, MotionAccumulator.getX(position));
+        assertFalse(mSampler.sample(122, 100));
+        assertTrue(mSampler.sample(124, 100));
+        assertEquals(6, MotionAccumulator.getX(mCursor.consume()));
+    }
+
+    @Test
+    public void sample_carriesFractionsOfPixels() {
+        mSampler.touchDown(0, 0);
+        // 100 samples of 0.3 pixels each (a fast swipe split into sub-pixel historical samples)
+        int added = 0;
+        for (int i = 1; i <= 100; i++) {
+            mSampler.sample(0.3f * i, 0.1f * i);
+            added += MotionAccumulator.getX(mCursor.consume());
+        }
+        assertTrue(Math.abs(30 - added) <= 1);
+    }
+
+    @Test
+    public void sample_ignoresMovementWhileLiftedOrOffTouchpad() {
+        assertFalse(mSampler.sample(500, 500));
+        mSampler.touchDown(500, 500);
+        assertFalse(mSampler.sample(500, 2000));
+        assertTrue(mSampler.sample(510, 490));
+        mSampler.touchUp();
+        assertFalse(mSampler.sample(800, 800));
+        long position = mCursor.consume();
+        assertEquals(10, MotionAccumulator.getX(position));
+        assertEquals(-10, MotionAccumulator.getY(position));
+    }
+
+    @Test
+    public void touchDown_doesNotJump() {
+        mSampler.touchDown(100, 100);
+        mSampler.sample(103, 100);
+        mSampler.touchUp();
+        mSampler.touchDown(900, 900);
+        assertFalse(mSampler.sample(902, 900));
+        assertEquals(0, mCursor.consume());
+    }
+}
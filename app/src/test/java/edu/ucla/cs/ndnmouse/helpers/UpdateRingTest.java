@@ -0,0 +1,40 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the ring of recent updates
+ */
+public class UpdateRingTest {
+
+    @Test
+    public void get_onlyKeptUpdates() {
+        UpdateRing<String> ring = new UpdateRing<>(3, 10);
+        assertEquals(10, ring.getNextSeqNum());
+        assertEquals(0, ring.size());
+        assertNull(ring.get(10));
+
+        assertEquals(10, ring.add("a"));
+        assertEquals(11, ring.add("b"));
+        assertEquals("a", ring.get(10));
+        assertEquals("b", ring.get(11));
+        assertNull(ring.get(9));
+        assertNull(ring.get(12));
+        assertEquals(10, ring.getOldestSeqNum());
+    }
+
+    @Test
+    public void add_overwritesOldest() {
+        UpdateRing<Integer> ring = new UpdateRing<>(4, 0);
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, ring.add(i * 100));
+        assertEquals(4, ring.size());
+        assertEquals(6, ring.getOldestSeqNum());
+        assertNull(ring.get(5));
+        for (int i = 6; i < 10; i++)
+            assertEquals(i * 100, (int) ring.get(i));
+        assertNull(ring.get(10));
+    }
+}
@@ -0,0 +1,346 @@
+package edu.ucla.cs.ndnmouse.utilities;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import edu.ucla.cs.ndnmouse.R;
+import edu.ucla.cs.ndnmouse.helpers.BinaryProtocol;
+import edu.ucla.cs.ndnmouse.helpers.EncodedCommand;
+import edu.ucla.cs.ndnmouse.helpers.MetricsRegistry;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipherGcm;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.ScriptedMotionSource;
+import edu.ucla.cs.ndnmouse.helpers.SessionKeyService;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the UDP servers headless on loopback (no device, no activity), driven by a scripted motion
+ * source, and checks what a PC client receives
+ */
+public class ServerUDPHeadlessTest {
+
+    private static final byte mMoveRelative = 'M';
+    private static final String mPassword = "password";
+    private static final int mTimeoutMillis = 2000;
+    private static final int mCoalesceMillis = 1000;
+
+    private final ScriptedHost mHost = new ScriptedHost();
+    private Server mServer;
+    private final DatagramSocket[] mClients = new DatagramSocket[2];
+
+    /**
+     * Server host backed by a scripted motion source and the protocol strings
+     */
+    private static class ScriptedHost implements ServerHost {
+        final ScriptedMotionSource mMotion = new ScriptedMotionSource(mMoveRelative);
+        final MetricsRegistry mMetrics = new MetricsRegistry();
+        final HashMap<Integer, String> mStrings = new HashMap<>();
+        volatile String mError;
+
+        ScriptedHost() {
+            mStrings.put(R.string.protocol_move_scrolling, "S");
+            mStrings.put(R.string.protocol_opening_request, "OPEN");
+            mStrings.put(R.string.protocol_open_ack, "OPEN-ACK");
+            mStrings.put(R.string.protocol_heartbeat_request, "HEART");
+            mStrings.put(R.string.protocol_heartbeat_ack, "BEAT");
+            mStrings.put(R.string.protocol_closing_request, "CLOSE");
+            mStrings.put(R.string.action_custom_type, "T");
+        }
+
+        @Override
+        public void onServerError(String message) {
+            mError = message;
+        }
+
+        @Override
+        public float getRefreshRate() {
+            return 60;
+        }
+
+        @Override
+        public MetricsRegistry getMetrics() {
+            return mMetrics;
+        }
+
+        @Override
+        public byte getMaxSecureProtocolVersion() {
+            return NetworkHelpers.mProtocolVersionBatch;
+        }
+
+        @Override
+        public String getString(int resId) {
+            return mStrings.get(resId);
+        }
+
+        @Override
+        public MotionAccumulator.Cursor newMotionCursor() {
+            return mMotion.newMotionCursor();
+        }
+
+        @Override
+        public void addMotionDispatcher(MotionDispatcher dispatcher) {
+            mMotion.addMotionDispatcher(dispatcher);
+        }
+
+        @Override
+        public void removeMotionDispatcher(MotionDispatcher dispatcher) {
+            mMotion.removeMotionDispatcher(dispatcher);
+        }
+
+        @Override
+        public byte getMoveType() {
+            return mMotion.getMoveType();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mServer)
+            mServer.stop();
+        for (DatagramSocket client : mClients) {
+            if (null != client)
+                client.close();
+        }
+        assertNull(mHost.mError);
+    }
+
+    @Test
+    public void plainServer_sendsScriptedMotion() throws Exception {
+        int port = findFreePort();
+        mServer = new ServerUDP(mHost, port, 1, false, 1, true, 0, 0);
+        mServer.start();
+        DatagramSocket client = newClient(0);
+
+        // Keep opening until the server thread is up
+        byte[] reply = new byte[PacketCipher.mMaxPacketBytes];
+        int length = 0;
+        for (int i = 0; i < 20 && 0 == length; i++) {
+            send(client, port, "OPEN".getBytes(), 4);
+            length = receive(client, reply, 100);
+        }
+        assertEquals("OPEN-ACK", new String(reply, 0, length));
+
+        mHost.mMotion.addStep(10, -5, mMoveRelative, 0).addStep(-3, 7, mMoveRelative, 0).addStep(40, 1, mMoveRelative, 0);
+        while (mHost.mMotion.advance());
+
+        // Updates may coalesce the steps, but the total movement has to arrive
+        int x = 0, y = 0;
+        while (x != 47 || y != 3) {
+            length = receive(client, reply, mTimeoutMillis);
+            assertTrue("Movement didn't arrive", length > 0);
+            assertEquals(mMoveRelative, reply[0]);
+            x += readInt(reply, 1);
+            y += readInt(reply, 5);
+        }
+        send(client, port, "CLOSE".getBytes(), 5);
+    }
+
+    @Test
+    public void batchSession_commandLeadsWithPendingMotion() throws Exception {
+        int port = findFreePort();
+        // Long coalescing window, so the worker still holds the movement when the click goes out
+        ServerUDP server = new ServerUDP(mHost, port, 1, false, 1, true, mCoalesceMillis, 0);
+        mServer = server;
+        server.start();
+        DatagramSocket client = newClient(0);
+
+        byte[] open = {'O', 'P', 'E', 'N', NetworkHelpers.mProtocolVersionBatch};
+        byte[] reply = new byte[PacketCipher.mMaxPacketBytes];
+        int length = 0;
+        for (int i = 0; i < 20 && 0 == length; i++) {
+            send(client, port, open, open.length);
+            length = receive(client, reply, 100);
+        }
+        assertEquals(9, length);
+        assertEquals(NetworkHelpers.mProtocolVersionBatch, reply[8]);
+        // The session is registered before its worker sends the OPEN-ACK, so commands can reach it now
+        assertEquals(1, server.getClientThreads().size());
+
+        mHost.mMotion.addStep(5, -6, mMoveRelative, 0);
+        mHost.mMotion.advance();
+        EncodedCommand click = EncodedCommand.fromCommand("C_left_D");
+        server.sendToClients(Collections.singletonList(click));
+
+        // One batch: the movement first, then the click
+        byte[] clickBytes = click.get(true);
+        length = receive(client, reply, mTimeoutMillis);
+        assertEquals(1 + 1 + NetworkHelpers.mMoveMessageBytes + 1 + clickBytes.length, length);
+        assertEquals(BinaryProtocol.mOpBatch, reply[0]);
+        assertEquals(NetworkHelpers.mMoveMessageBytes, reply[1]);
+        assertEquals(BinaryProtocol.mOpMoveRelative, reply[2]);
+        assertEquals(5, readInt(reply, 3));
+        assertEquals(-6, readInt(reply, 7));
+        assertEquals(clickBytes.length, reply[11]);
+        assertArrayEquals(clickBytes, Arrays.copyOfRange(reply, 12, length));
+
+        // Once the coalescing window is over, the worker finds the movement already sent
+        assertEquals(0, receive(client, reply, 2 * mCoalesceMillis));
+    }
+
+    @Test
+    public void secureServer_replayedOpenGetsFreshGcmSession() throws Exception {
+        int port = findFreePort();
+        mServer = new ServerUDPSecure(mHost, port, 1, false, 1, true, 0, 0, mPassword);
+        mServer.start();
+        SessionKeyService keys = new SessionKeyService(mPassword);
+        byte version = NetworkHelpers.mProtocolVersionGcm;
+
+        // Encrypted OPEN asking for GCM
+        byte[] open = {'O', 'P', 'E', 'N', version};
+        byte[] openPacket = new byte[PacketCipher.mMaxPacketBytes];
+        int openLength = new MousePacketCipher(keys.getOpenKey()).encrypt(open, 0, open.length, 0, openPacket, 0);
+        byte[] openIv = MousePacket.getEncryptedPacketIV(openPacket).getIV();
+        MousePacketCipher openAckCipher = new MousePacketCipher(keys.getSessionKey(openIv, NetworkHelpers.mProtocolVersionLegacy));
+
+        // The same OPEN packet from two clients (the second one replays it)
+        byte[] reply = new byte[PacketCipher.mMaxPacketBytes];
+        PacketCipher[] ciphers = new PacketCipher[2];
+        byte[][] nonces = new byte[2][];
+        for (int c = 0; c < 2; c++) {
+            DatagramSocket client = newClient(c);
+            int length = 0;
+            for (int i = 0; i < 20 && 0 == length; i++) {
+                send(client, port, openPacket, openLength);
+                length = receive(client, reply, 100);
+            }
+            int msgLength = openAckCipher.decrypt(reply, 0, length);
+            byte[] msg = Arrays.copyOfRange(openAckCipher.getDecryptedBuffer(), PacketCipher.mMessageOffset, PacketCipher.mMessageOffset + msgLength);
+            assertEquals("OPEN-ACK", new String(msg, 0, 8));
+            assertEquals(version, msg[8]);
+            assertEquals(9 + MousePacketCipherGcm.mServerNonceBytes, msg.length);
+            nonces[c] = Arrays.copyOfRange(msg, 9, msg.length);
+            ciphers[c] = new MousePacketCipherGcm(keys.getSessionKey(MousePacketCipherGcm.makeSessionSalt(openIv, nonces[c]), version),
+                    MousePacketCipherGcm.makeSessionId(openIv, nonces[c]), MousePacketCipherGcm.mDirectionToServer);
+        }
+        assertFalse(Arrays.equals(nonces[0], nonces[1]));
+
+        // Both sessions get the same movement with the same seq num, but not the same ciphertext
+        mHost.mMotion.addStep(12, -34, mMoveRelative, 0);
+        mHost.mMotion.advance();
+        byte[][] updates = new byte[2][];
+        for (int c = 0; c < 2; c++) {
+            int length = receive(mClients[c], reply, mTimeoutMillis);
+            assertTrue("Movement didn't arrive", length > 0);
+            updates[c] = Arrays.copyOf(reply, length);
+
+            int msgLength = ciphers[c].decrypt(reply, 0, length);
+            byte[] msg = ciphers[c].getDecryptedBuffer();
+            int offset = PacketCipher.mMessageOffset;
+            assertEquals(NetworkHelpers.mMoveMessageBytes, msgLength);
+            assertEquals(mMoveRelative, msg[offset]);
+            assertEquals(12, readInt(msg, offset + 1));
+            assertEquals(-34, readInt(msg, offset + 5));
+        }
+        assertEquals(ciphers[0].getDecryptedSeqNum(), ciphers[1].getDecryptedSeqNum());
+        assertFalse(Arrays.equals(updates[0], updates[1]));
+    }
+
+    @Test
+    public void secureServer_answersOnlySessionChecksWithoutSession() throws Exception {
+        int port = findFreePort();
+        mServer = new ServerUDPSecure(mHost, port, 1, false, 1, true, 0, 0, mPassword);
+        mServer.start();
+        SessionKeyService keys = new SessionKeyService(mPassword);
+        MousePacketCipher openCipher = new MousePacketCipher(keys.getOpenKey());
+        byte[] packet = new byte[PacketCipher.mMaxPacketBytes];
+        byte[] reply = new byte[PacketCipher.mMaxPacketBytes];
+
+        // Legacy session (OPEN without a version)
+        DatagramSocket client = newClient(0);
+        int openLength = openCipher.encrypt("OPEN".getBytes(), 0, 4, 0, packet, 0);
+        byte[] openIv = Arrays.copyOf(packet, 16);
+        int length = 0;
+        for (int i = 0; i < 20 && 0 == length; i++) {
+            send(client, port, packet, openLength);
+            length = receive(client, reply, 100);
+        }
+        assertTrue("No OPEN-ACK", length > 0);
+        MousePacketCipher sessionCipher = new MousePacketCipher(keys.getSessionKey(openIv, NetworkHelpers.mProtocolVersionLegacy));
+
+        // Session checks don't count against a live session, and get no answer (the heartbeat does)
+        for (int seqNum = 2; seqNum < 6; seqNum++) {
+            send(client, port, packet, openCipher.encrypt("HEART".getBytes(), 0, 5, seqNum, packet, 0));
+            assertEquals(0, receive(client, reply, 100));
+        }
+        send(client, port, packet, sessionCipher.encrypt("HEART".getBytes(), 0, 5, 6, packet, 0));
+        length = receive(client, reply, mTimeoutMillis);
+        assertEquals("BEAT", new String(Arrays.copyOfRange(reply(sessionCipher, reply, length), PacketCipher.mMessageOffset, PacketCipher.mMessageOffset + 4)));
+
+        // Without a session, packets the server can't authenticate get no answer...
+        DatagramSocket stranger = newClient(1);
+        MousePacketCipher goneCipher = new MousePacketCipher(keys.getSessionKey(new byte[16], NetworkHelpers.mProtocolVersionLegacy));
+        send(stranger, port, packet, goneCipher.encrypt("HEART".getBytes(), 0, 5, 9, packet, 0));
+        assertEquals(0, receive(stranger, reply, 200));
+        send(stranger, port, packet, openCipher.encrypt("CLOSE".getBytes(), 0, 5, 9, packet, 0));
+        assertEquals(0, receive(stranger, reply, 200));
+
+        // ...but a session check gets CLOSE bound to its seq num and IV
+        int checkLength = openCipher.encrypt("HEART".getBytes(), 0, 5, 42, packet, 0);
+        byte[] checkIv = Arrays.copyOf(packet, 16);
+        send(stranger, port, packet, checkLength);
+        length = receive(stranger, reply, mTimeoutMillis);
+        assertTrue("No reopen answer", length > 0 && length <= checkLength);
+        byte[] answer = reply(openCipher, reply, length);
+        assertEquals(42, openCipher.getDecryptedSeqNum());
+        assertEquals("CLOSE", new String(answer, PacketCipher.mMessageOffset, 5));
+        assertArrayEquals(Arrays.copyOf(checkIv, 6), Arrays.copyOfRange(answer, PacketCipher.mMessageOffset + 5, answer.length));
+    }
+
+    /**
+     * @return decrypted payload (seq num, then message) of an encrypted packet
+     */
+    private static byte[] reply(PacketCipher cipher, byte[] packet, int length) throws Exception {
+        int msgLength = cipher.decrypt(packet, 0, length);
+        return Arrays.copyOf(cipher.getDecryptedBuffer(), PacketCipher.mMessageOffset + msgLength);
+    }
+
+    private DatagramSocket newClient(int index) throws IOException {
+        mClients[index] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        return mClients[index];
+    }
+
+    private static int findFreePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return ByteBuffer.wrap(buf, offset, 4).getInt();
+    }
+
+    private static void send(DatagramSocket client, int port, byte[] buf, int length) throws IOException {
+        client.send(new DatagramPacket(buf, length, InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @return length of the received packet, or 0 if none arrived in time
+     */
+    private static int receive(DatagramSocket client, byte[] buf, int timeoutMillis) throws IOException {
+        client.setSoTimeout(timeoutMillis);
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        try {
+            client.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        }
+        return packet.getLength();
+    }
+}
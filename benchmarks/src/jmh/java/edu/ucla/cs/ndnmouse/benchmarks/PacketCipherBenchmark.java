@@ -0,0 +1,86 @@
+package edu.ucla.cs.ndnmouse.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipherGcm;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+
+/**
+ * Encrypting and decrypting one move update: a new MousePacket per message, the reusable CBC context
+ * (MousePacketCipher), and the GCM context (MousePacketCipherGcm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketCipherBenchmark {
+
+    private static final SecretKeySpec mKey = new SecretKeySpec(new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+    private static final byte[] mSessionId = {1, 2, 3, 4, 5, 6, 7};
+
+    private final byte[] mMessage = NetworkHelpers.buildMoveMessage("M", -75, 25);
+    private final byte[] mOut = new byte[PacketCipher.mMaxPacketBytes];
+    private int mSeqNum;                        // GCM must never repeat a nonce, so every encrypt gets the next one
+
+    private MousePacketCipher mCbc;
+    private MousePacketCipherGcm mGcmServer;    // Encrypts to the client
+    private MousePacketCipherGcm mGcmClient;    // Stands in for the client, so the server side can decrypt its packets
+    private byte[] mCbcPacket;
+    private byte[] mGcmPacket;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        mCbc = new MousePacketCipher(mKey);
+        mGcmServer = new MousePacketCipherGcm(mKey, mSessionId, MousePacketCipherGcm.mDirectionToClient);
+        mGcmClient = new MousePacketCipherGcm(mKey, mSessionId, MousePacketCipherGcm.mDirectionToServer);
+
+        mCbcPacket = new MousePacket(mMessage, 1, mKey).getEncryptedPacket();
+        int length = mGcmClient.encrypt(mMessage, 0, mMessage.length, 1, mOut, 0);
+        mGcmPacket = new byte[length];
+        System.arraycopy(mOut, 0, mGcmPacket, 0, length);
+    }
+
+    @Benchmark
+    public byte[] mousePacketEncrypt() throws GeneralSecurityException {
+        return new MousePacket(mMessage, ++mSeqNum, mKey).getEncryptedPacket();
+    }
+
+    @Benchmark
+    public String mousePacketDecrypt() throws GeneralSecurityException {
+        return new MousePacket(mCbcPacket, mKey).getMessage();
+    }
+
+    @Benchmark
+    public int cbcEncrypt() throws GeneralSecurityException {
+        return mCbc.encrypt(mMessage, 0, mMessage.length, ++mSeqNum, mOut, 0);
+    }
+
+    @Benchmark
+    public int cbcDecrypt() throws GeneralSecurityException {
+        return mCbc.decrypt(mCbcPacket, 0, mCbcPacket.length);
+    }
+
+    @Benchmark
+    public int gcmEncrypt() throws GeneralSecurityException {
+        return mGcmServer.encrypt(mMessage, 0, mMessage.length, ++mSeqNum, mOut, 0);
+    }
+
+    @Benchmark
+    public int gcmDecrypt() throws GeneralSecurityException {
+        return mGcmServer.decrypt(mGcmPacket, 0, mGcmPacket.length);
+    }
+}
@@ -0,0 +1,120 @@
+package edu.ucla.cs.ndnmouse.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.DatagramPacket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.ucla.cs.ndnmouse.helpers.ControlMessages;
+import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+
+/**
+ * Per-packet cost of the UDP server receive loops, before and after reusing the receive packet and
+ * classifying control messages from the raw bytes. The socket itself is left out: "receiving" copies
+ * a prepared heartbeat into the packet buffer, like DatagramSocket.receive does.
+ *
+ * The *Strings benchmarks repeat the old loop bodies of ServerUDP.run and ServerUDPSecure.run (new
+ * buffer and DatagramPacket per packet, String decoding, startsWith on resource strings).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReceivePathBenchmark {
+
+    // Same as the protocol_* strings of the app, so the baselines see what clients really send
+    private static final String mOpenRequest = "OPEN";
+    private static final String mHeartbeatRequest = "HEART";
+    private static final String mClosingRequest = "CLOSE";
+
+    private final ControlMessages mControlMessages = new ControlMessages(mOpenRequest, mHeartbeatRequest, mClosingRequest);
+
+    private byte[] mPlainWire;                  // Heartbeat as a legacy client sends it (null padded)
+    private byte[] mSecureWire;                 // Heartbeat encrypted with the session key
+    private MousePacketCipher mCipher;          // Session crypto context
+
+    private final byte[] mReceiveBuffer = new byte[PacketCipher.mMaxPacketBytes];   // Reused like the servers' receive buffer
+    private final DatagramPacket mReceivePacket = new DatagramPacket(mReceiveBuffer, mReceiveBuffer.length);
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        mPlainWire = new byte[MousePacket.mPacketBytes];
+        byte[] heartbeat = mHeartbeatRequest.getBytes();
+        System.arraycopy(heartbeat, 0, mPlainWire, 0, heartbeat.length);
+
+        SecretKeySpec key = new SecretKeySpec(new byte[] {
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        mCipher = new MousePacketCipher(key);
+        byte[] out = new byte[PacketCipher.mMaxPacketBytes];
+        int length = mCipher.encrypt(heartbeat, 0, heartbeat.length, 1, out, 0);
+        mSecureWire = new byte[length];
+        System.arraycopy(out, 0, mSecureWire, 0, length);
+    }
+
+    /**
+     * Stand-in for DatagramSocket.receive: copy the wire bytes into the packet's buffer
+     */
+    private static void receive(byte[] wire, DatagramPacket packet) {
+        System.arraycopy(wire, 0, packet.getData(), packet.getOffset(), wire.length);
+        packet.setLength(wire.length);
+    }
+
+    @Benchmark
+    public int plainStrings() {
+        byte[] buf = new byte[MousePacket.mPacketBytes];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        receive(mPlainWire, packet);
+
+        // Trim null bytes off end
+        String msg = new String(packet.getData());
+        msg = msg.substring(0, msg.indexOf('\0'));
+        if (msg.startsWith(mOpenRequest))
+            return ControlMessages.mOpen;
+        else if (msg.startsWith(mHeartbeatRequest))
+            return ControlMessages.mHeartbeat;
+        else if (msg.startsWith(mClosingRequest))
+            return ControlMessages.mClose;
+        return ControlMessages.mUnknown;
+    }
+
+    @Benchmark
+    public int plainReused() {
+        mReceivePacket.setLength(mReceiveBuffer.length);
+        receive(mPlainWire, mReceivePacket);
+        return mControlMessages.classify(mReceiveBuffer, 0, mReceivePacket.getLength());
+    }
+
+    @Benchmark
+    public int secureStrings() throws GeneralSecurityException {
+        byte[] buf = new byte[PacketCipher.mMaxPacketBytes];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        receive(mSecureWire, packet);
+
+        mCipher.decrypt(packet.getData(), 0, packet.getLength());
+        String msg = mCipher.getDecryptedMessage();
+        if (msg.startsWith(mHeartbeatRequest))
+            return ControlMessages.mHeartbeat;
+        else if (msg.startsWith(mClosingRequest))
+            return ControlMessages.mClose;
+        return ControlMessages.mUnknown;
+    }
+
+    @Benchmark
+    public int secureReused() throws GeneralSecurityException {
+        mReceivePacket.setLength(mReceiveBuffer.length);
+        receive(mSecureWire, mReceivePacket);
+
+        int msgLength = mCipher.decrypt(mReceiveBuffer, 0, mReceivePacket.getLength());
+        return mControlMessages.classify(mCipher.getDecryptedBuffer(), PacketCipher.mMessageOffset, msgLength);
+    }
+}
@@ -0,0 +1,55 @@
+package edu.ucla.cs.ndnmouse.helpers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message building and padding helpers used for every packet. Lives in the helpers package so it can
+ * reach the package-private padding methods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NetworkHelpersBenchmark {
+
+    private static final int mMaxPad = MousePacket.mPacketBytes - MousePacket.mIvBytes;
+
+    private int mX = -75;                       // Changed every op, so the message can't be constant folded
+    private final int mY = 25;
+    private final byte[] mMoveBuffer = new byte[NetworkHelpers.mMoveMessageBytes];
+    private final byte[] mPayload = "xxxxM 13 -7".getBytes();      // Seq num + short move message
+    private final byte[] mPadded = NetworkHelpers.PKCS5Pad(mPayload, mMaxPad);
+    private final byte[] mNullPadded = NetworkHelpers.padNullBytes("HEART".getBytes(), MousePacket.mPacketBytes);     // Heartbeat as a legacy client sends it
+
+    @Benchmark
+    public byte[] buildMoveMessage() {
+        return NetworkHelpers.buildMoveMessage("M", ++mX, mY);
+    }
+
+    @Benchmark
+    public byte[] writeMoveMessage() {
+        NetworkHelpers.writeMoveMessage((byte) 'M', ++mX, mY, mMoveBuffer, 0);
+        return mMoveBuffer;
+    }
+
+    @Benchmark
+    public byte[] pkcs5Pad() {
+        return NetworkHelpers.PKCS5Pad(mPayload, mMaxPad);
+    }
+
+    @Benchmark
+    public byte[] pkcs5Unpad() {
+        return NetworkHelpers.PKCS5Unpad(mPadded);
+    }
+
+    @Benchmark
+    public byte[] trimNullBytes() {
+        return NetworkHelpers.trimNullBytes(mNullPadded);
+    }
+}
@@ -0,0 +1,8 @@
+package edu.ucla.cs.ndnmouse;
+
+/**
+ * Stand-in for the build config the app generates. Release-like, so the servers don't log every packet.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
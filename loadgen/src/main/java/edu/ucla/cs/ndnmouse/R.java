@@ -0,0 +1,24 @@
+package edu.ucla.cs.ndnmouse;
+
+/**
+ * Stand-in for the resource IDs the app generates, so the load generator can compile the UDP servers.
+ * Only the IDs the servers use are here; LocalHost maps them to the same strings as the app.
+ */
+public final class R {
+
+    public static final class string {
+        public static final int protocol_move_scrolling = 1;
+        public static final int protocol_opening_request = 2;
+        public static final int protocol_open_ack = 3;
+        public static final int protocol_heartbeat_request = 4;
+        public static final int protocol_heartbeat_ack = 5;
+        public static final int protocol_closing_request = 6;
+        public static final int action_custom_type = 7;
+        public static final int pref_sensitivity_key = 8;
+        public static final int pref_scroll_direction_key = 9;
+        public static final int pref_scroll_sensitivity_key = 10;
+        public static final int pref_update_mode_key = 11;
+        public static final int pref_coalesce_window_key = 12;
+        public static final int pref_min_gap_key = 13;
+    }
+}
@@ -0,0 +1,402 @@
+package edu.ucla.cs.ndnmouse.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.ucla.cs.ndnmouse.helpers.BinaryProtocol;
+import edu.ucla.cs.ndnmouse.helpers.MousePacket;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.MousePacketCipherGcm;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.SessionKeyService;
+
+/**
+ * One emulated PC client, speaking the same UDP protocol as pc_client/ndnMouse-client-udp.py (plain,
+ * or secure with the password). It counts the updates it receives and measures heartbeat round trips,
+ * update intervals and loss. Against an in-process server it also adds up the movement it receives and
+ * looks it up in the script's timeline, for the latency from each input step to the update that
+ * carried it. All methods are called from the load generator's event loop.
+ */
+class ClientSession {
+
+    // Protocol messages (same as the protocol_* strings of the app)
+    private static final byte[] mOpenRequest = "OPEN".getBytes();
+    private static final byte[] mOpenAck = "OPEN-ACK".getBytes();
+    private static final byte[] mHeartbeatRequest = "HEART".getBytes();
+    private static final byte[] mHeartbeatAck = "BEAT".getBytes();
+    private static final byte[] mClosingRequest = "CLOSE".getBytes();
+
+    private static final long mOpenRetryNanos = 1000 * 1000000L;    // Resend OPEN if there was no OPEN-ACK by then
+
+    private static final int mStateIdle = 0;
+    private static final int mStateOpening = 1;
+    private static final int mStateOpen = 2;
+    private static final int mStateClosed = 3;
+
+    private final DatagramChannel mChannel;     // Connected to the server
+    private final SessionKeyService mKeys;      // Derives keys from the password (shared by all sessions), null for plain sessions
+    private final SecretKeySpec mOpenKey;       // Key for the opening message (secure only)
+    private final byte mRequestedVersion;       // Protocol version sent after OPEN, or 0 for a bare OPEN
+    private final long mHeartbeatNanos;         // Time between heartbeats
+    private final InputTimeline mInputs;        // Steps played by the in-process server's script, or null for a remote server
+
+    private int mState = mStateIdle;
+    private long mTimerNanos;                   // When onTimer has something to do next
+    private boolean mBinary;                    // If the server switched this session to binary opcodes
+    private byte[] mOpenIv;                     // IV of the last opening packet (salts the session key, with the server nonce for GCM)
+    private MousePacketCipher mSessionCbc;      // Session context for the OPEN-ACK (and the rest of legacy sessions)
+    private PacketCipher mPacketCipher;         // Session context after the OPEN-ACK (secure only)
+    private int mServerSeqNum;                  // Highest seq num received from the server (secure only)
+    private int mSkippedSeqNum = -1;            // Seq num taken by our last heartbeat, which the server skips past (not a loss)
+    private int mLastInput;                     // Newest script step received (only with mInputs)
+    private long mPositionX;                    // Movement received, as a total of the script (only with mInputs)
+    private long mPositionY;
+
+    private final byte[] mMessage = new byte[MousePacket.mPacketBytes];         // Reused outgoing message
+    private final byte[] mPacket = new byte[PacketCipher.mMaxPacketBytes];       // Reused outgoing packet
+    private final ByteBuffer mPacketBuffer = ByteBuffer.wrap(mPacket);
+
+    // Results
+    private long mOpenSentNanos;
+    private long mOpenedNanos;
+    private long mClosedNanos;
+    private long mHeartbeatSentNanos;           // 0 when no heartbeat is outstanding
+    private long mLastUpdateNanos;
+    int mOpenRetries;
+    int mUpdates;
+    int mCommands;
+    int mBatches;                               // Server packets that carried several messages
+    int mBatchedMessages;                       // Messages inside those packets
+    int mHeartbeatsSent;
+    int mHeartbeatsLost;
+    int mSeqGaps;                               // Server packets missing from the seq num sequence (secure only)
+    int mBadPackets;                            // Failed to decrypt or unexpected
+    int mUnmatchedUpdates;                      // Movement that matched no script step (lost or reordered updates)
+    final LatencySamples mOpenLatency = new LatencySamples();
+    final LatencySamples mHeartbeatLatency = new LatencySamples();
+    final LatencySamples mUpdateIntervals = new LatencySamples();
+    final LatencySamples mInputLatency = new LatencySamples();
+
+    /**
+     * Constructor
+     * @param channel connected to the server
+     * @param keys for secure sessions, or null for plain ones
+     * @param requestedVersion protocol version to ask for at OPEN, or 0 for a bare OPEN
+     * @param heartbeatMillis milliseconds between heartbeats
+     * @param inputs timeline of the in-process server's script, or null for a remote server
+     * @throws GeneralSecurityException if SHA-256 is missing
+     */
+    ClientSession(DatagramChannel channel, SessionKeyService keys, byte requestedVersion, int heartbeatMillis, InputTimeline inputs) throws GeneralSecurityException {
+        mChannel = channel;
+        mKeys = keys;
+        mOpenKey = (null != keys) ? keys.getOpenKey() : null;
+        mRequestedVersion = requestedVersion;
+        mHeartbeatNanos = heartbeatMillis * 1000000L;
+        mInputs = inputs;
+    }
+
+    boolean isSecure() {
+        return null != mKeys;
+    }
+
+    boolean isOpen() {
+        return mStateOpen == mState;
+    }
+
+    /**
+     * @return when onTimer should be called next (nanoTime), or Long.MAX_VALUE for never
+     */
+    long getTimerNanos() {
+        return (mStateOpening == mState || mStateOpen == mState) ? mTimerNanos : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return seconds between the OPEN-ACK and the end of the session
+     */
+    double getOpenSeconds(long nowNanos) {
+        if (0 == mOpenedNanos)
+            return 0;
+        return ((0 != mClosedNanos ? mClosedNanos : nowNanos) - mOpenedNanos) / 1e9;
+    }
+
+    /**
+     * Send the opening message (again, if the last one went unanswered)
+     */
+    void open(long nowNanos) throws IOException, GeneralSecurityException {
+        int length = append(mOpenRequest, 0);
+        if (0 != mRequestedVersion)
+            mMessage[length++] = mRequestedVersion;
+
+        if (isSecure()) {
+            // The random IV of the opening packet salts the session key
+            int packetLength = new MousePacketCipher(mOpenKey).encrypt(mMessage, 0, length, 0, mPacket, 0);
+            mOpenIv = MousePacket.getEncryptedPacketIV(mPacket).getIV();
+            mSessionCbc = new MousePacketCipher(mKeys.getSessionKey(mOpenIv, NetworkHelpers.mProtocolVersionLegacy));
+            mPacketCipher = mSessionCbc;
+            send(packetLength);
+        } else {
+            System.arraycopy(mMessage, 0, mPacket, 0, length);
+            send(length);
+        }
+
+        if (mStateOpening == mState)
+            mOpenRetries++;
+        mState = mStateOpening;
+        mOpenSentNanos = nowNanos;
+        mTimerNanos = nowNanos + mOpenRetryNanos;
+    }
+
+    /**
+     * Resend the OPEN or send the next heartbeat, when due
+     */
+    void onTimer(long nowNanos) throws IOException, GeneralSecurityException {
+        if (nowNanos < mTimerNanos)
+            return;
+        if (mStateOpening == mState) {
+            open(nowNanos);
+        } else if (mStateOpen == mState) {
+            // Previous heartbeat never got its ack
+            if (0 != mHeartbeatSentNanos)
+                mHeartbeatsLost++;
+            if (mBinary) {
+                mMessage[0] = BinaryProtocol.mOpHeartbeat;
+                sendMessage(1, true);
+            } else {
+                sendMessage(append(mHeartbeatRequest, 0), true);
+            }
+            mHeartbeatsSent++;
+            mHeartbeatSentNanos = nowNanos;
+            mTimerNanos = nowNanos + mHeartbeatNanos;
+        }
+    }
+
+    /**
+     * Tell the server this client is going away
+     */
+    void close(long nowNanos) throws IOException, GeneralSecurityException {
+        if (mStateOpen == mState) {
+            if (mBinary) {
+                mMessage[0] = BinaryProtocol.mOpClose;
+                sendMessage(1, false);
+            } else {
+                sendMessage(append(mClosingRequest, 0), false);
+            }
+            // An ack still outstanding at the end doesn't count as lost
+            if (0 != mHeartbeatSentNanos)
+                mHeartbeatsSent--;
+            mClosedNanos = nowNanos;
+        }
+        mState = mStateClosed;
+    }
+
+    /**
+     * Handle a packet from the server
+     * @param buf holding the packet
+     * @param length of the packet
+     */
+    void onPacket(byte[] buf, int length, long nowNanos) {
+        if (mStateOpening != mState && mStateOpen != mState)
+            return;
+
+        byte[] msg = buf;
+        int offset = 0;
+        int msgLength = length;
+        if (isSecure()) {
+            PacketCipher cipher = (mStateOpening == mState) ? mSessionCbc : mPacketCipher;
+            try {
+                msgLength = cipher.decrypt(buf, 0, length);
+            } catch (GeneralSecurityException e) {
+                mBadPackets++;
+                return;
+            }
+            msg = cipher.getDecryptedBuffer();
+            offset = PacketCipher.mMessageOffset;
+            if (!checkSeqNum(cipher.getDecryptedSeqNum()))
+                return;
+        }
+
+        if (mStateOpening == mState)
+            onOpenAck(msg, offset, msgLength, nowNanos);
+        else
+            onMessage(msg, offset, msgLength, nowNanos);
+    }
+
+    /**
+     * Keep track of the server's seq nums, counting the ones that never arrived
+     * @return false if the packet is old (replayed or reordered)
+     */
+    private boolean checkSeqNum(int seqNum) {
+        if (mStateOpening == mState) {
+            mServerSeqNum = seqNum;
+            return true;
+        }
+        if (seqNum <= mServerSeqNum) {
+            mBadPackets++;
+            return false;
+        }
+        int gap = seqNum - mServerSeqNum - 1;
+        if (mSkippedSeqNum > mServerSeqNum && mSkippedSeqNum < seqNum)
+            gap--;
+        mSeqGaps += gap;
+        mServerSeqNum = seqNum;
+        return true;
+    }
+
+    private void onOpenAck(byte[] msg, int offset, int length, long nowNanos) {
+        if (!NetworkHelpers.startsWith(msg, offset, length, mOpenAck)) {
+            mBadPackets++;
+            return;
+        }
+        byte version = NetworkHelpers.mProtocolVersionLegacy;
+        if (length > mOpenAck.length)
+            version = msg[offset + mOpenAck.length];
+        mBinary = version >= NetworkHelpers.mProtocolVersionBinary;
+
+        if (isSecure() && version >= NetworkHelpers.mProtocolVersionGcm) {
+            // The server nonce after the version mixes into the GCM session key and ID
+            int nonceOffset = offset + mOpenAck.length + 1;
+            if (length < nonceOffset - offset + MousePacketCipherGcm.mServerNonceBytes) {
+                mBadPackets++;
+                return;
+            }
+            byte[] serverNonce = Arrays.copyOfRange(msg, nonceOffset, nonceOffset + MousePacketCipherGcm.mServerNonceBytes);
+            try {
+                mPacketCipher = new MousePacketCipherGcm(mKeys.getSessionKey(MousePacketCipherGcm.makeSessionSalt(mOpenIv, serverNonce), version),
+                        MousePacketCipherGcm.makeSessionId(mOpenIv, serverNonce), MousePacketCipherGcm.mDirectionToServer);
+            } catch (GeneralSecurityException e) {
+                mBadPackets++;
+                return;
+            }
+        }
+
+        mState = mStateOpen;
+        mOpenedNanos = nowNanos;
+        mOpenLatency.add(nowNanos - mOpenSentNanos);
+        mTimerNanos = nowNanos + mHeartbeatNanos;
+        if (null != mInputs)
+            syncInput();
+    }
+
+    private void onMessage(byte[] msg, int offset, int length, long nowNanos) {
+        if (length <= 0) {
+            mBadPackets++;
+            return;
+        }
+        byte first = msg[offset];
+        if (mBinary && BinaryProtocol.mOpBatch == first) {
+            onBatch(msg, offset, length, nowNanos);
+            return;
+        }
+        boolean heartbeatAck = mBinary ? BinaryProtocol.mOpHeartbeatAck == first : NetworkHelpers.startsWith(msg, offset, length, mHeartbeatAck);
+        if (heartbeatAck) {
+            if (0 != mHeartbeatSentNanos) {
+                mHeartbeatLatency.add(nowNanos - mHeartbeatSentNanos);
+                mHeartbeatSentNanos = 0;
+            }
+            return;
+        }
+
+        boolean update = mBinary
+                ? (BinaryProtocol.mOpMoveRelative == first || BinaryProtocol.mOpMoveAbsolute == first || BinaryProtocol.mOpMoveScrolling == first)
+                : ('M' == first || 'A' == first || 'S' == first);
+        if (update) {
+            if (0 != mLastUpdateNanos)
+                mUpdateIntervals.add(nowNanos - mLastUpdateNanos);
+            mLastUpdateNanos = nowNanos;
+            mUpdates++;
+            if (null != mInputs && length >= NetworkHelpers.mMoveMessageBytes)
+                onInput(readInt(msg, offset + 1), readInt(msg, offset + 5), nowNanos);
+        } else {
+            mCommands++;
+        }
+    }
+
+    /**
+     * Find the script steps a movement update brought this client up to, and record their latency
+     * @param x horizontal movement of the update
+     * @param y vertical movement of the update
+     */
+    private void onInput(int x, int y, long nowNanos) {
+        if (0 == x && 0 == y)
+            return;
+        mPositionX += x;
+        mPositionY += y;
+        int step = mInputs.find(mLastInput, mPositionX, mPositionY);
+        if (step < 0) {
+            mUnmatchedUpdates++;
+            syncInput();
+            return;
+        }
+        for (int i = mLastInput + 1; i <= step; i++)
+            mInputLatency.add(nowNanos - mInputs.getPlayedNanos(i));
+        mLastInput = step;
+    }
+
+    /**
+     * Assume this client has all steps played so far (the server's movement cursor starts at the
+     * OPEN, and catches up to the newest step with every update)
+     */
+    private void syncInput() {
+        mLastInput = mInputs.size() - 1;
+        mPositionX = mInputs.getTotalX(mLastInput);
+        mPositionY = mInputs.getTotalY(mLastInput);
+    }
+
+    /**
+     * Count every message of a batch, in order (see BatchWriter)
+     */
+    private void onBatch(byte[] msg, int offset, int length, long nowNanos) {
+        mBatches++;
+        int end = offset + length;
+        int i = offset + 1;
+        while (i < end) {
+            int msgLength = msg[i] & 0xFF;
+            if (0 == msgLength || i + 1 + msgLength > end || BinaryProtocol.mOpBatch == msg[i + 1]) {
+                mBadPackets++;
+                return;
+            }
+            mBatchedMessages++;
+            onMessage(msg, i + 1, msgLength, nowNanos);
+            i += 1 + msgLength;
+        }
+    }
+
+    /**
+     * Send mMessage, encrypted for secure sessions
+     * @param length of the message
+     * @param takesSeqNum if the server skips past this message's seq num (heartbeats)
+     */
+    private void sendMessage(int length, boolean takesSeqNum) throws IOException, GeneralSecurityException {
+        if (!isSecure()) {
+            System.arraycopy(mMessage, 0, mPacket, 0, length);
+            send(length);
+            return;
+        }
+        // Always one past the newest seq num from the server, like the Python client
+        int seqNum = mServerSeqNum + 1;
+        if (takesSeqNum)
+            mSkippedSeqNum = seqNum;
+        send(mPacketCipher.encrypt(mMessage, 0, length, seqNum, mPacket, 0));
+    }
+
+    private void send(int length) throws IOException {
+        mPacketBuffer.clear();
+        mPacketBuffer.limit(length);
+        mChannel.write(mPacketBuffer);
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
+    private int append(byte[] bytes, int offset) {
+        System.arraycopy(bytes, 0, mMessage, offset, bytes.length);
+        return offset + bytes.length;
+    }
+}
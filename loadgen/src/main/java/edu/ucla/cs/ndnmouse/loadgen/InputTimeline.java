@@ -0,0 +1,73 @@
+package edu.ucla.cs.ndnmouse.loadgen;
+
+import java.util.Arrays;
+
+import edu.ucla.cs.ndnmouse.helpers.ScriptedMotionSource;
+
+/**
+ * When each step of the in-process server's script was played, and the total movement after it. A
+ * client that adds up the movement it received can then find the newest step an update contains,
+ * and so the input-to-update latency of every step, even when updates coalesce several steps.
+ *
+ * Written by the script's player thread, read by the load generator's event loop.
+ */
+class InputTimeline implements ScriptedMotionSource.PlayListener {
+
+    private long[] mTotalX = new long[1024];    // Movement played up to and including each step
+    private long[] mTotalY = new long[1024];
+    private long[] mPlayedNanos = new long[1024];   // When each step was played
+    private int mCount;
+
+    @Override
+    public synchronized void onStepPlayed(long totalX, long totalY, long playedNanos) {
+        if (mCount == mPlayedNanos.length) {
+            mTotalX = Arrays.copyOf(mTotalX, mCount * 2);
+            mTotalY = Arrays.copyOf(mTotalY, mCount * 2);
+            mPlayedNanos = Arrays.copyOf(mPlayedNanos, mCount * 2);
+        }
+        mTotalX[mCount] = totalX;
+        mTotalY[mCount] = totalY;
+        mPlayedNanos[mCount] = playedNanos;
+        mCount++;
+    }
+
+    /**
+     * @return number of steps played so far (the index of the next one)
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return total horizontal movement after step i, 0 before the first step
+     */
+    synchronized long getTotalX(int i) {
+        return (i < 0) ? 0 : mTotalX[i];
+    }
+
+    /**
+     * @return total vertical movement after step i, 0 before the first step
+     */
+    synchronized long getTotalY(int i) {
+        return (i < 0) ? 0 : mTotalY[i];
+    }
+
+    synchronized long getPlayedNanos(int i) {
+        return mPlayedNanos[i];
+    }
+
+    /**
+     * Find the newest step an update brought a client up to
+     * @param after last step the client already had (-1 for none)
+     * @param totalX client's total horizontal movement, in script terms
+     * @param totalY client's total vertical movement, in script terms
+     * @return first step after the given one with these totals, or -1 if none was played
+     */
+    synchronized int find(int after, long totalX, long totalY) {
+        for (int i = after + 1; i < mCount; i++) {
+            if (mTotalX[i] == totalX && mTotalY[i] == totalY)
+                return i;
+        }
+        return -1;
+    }
+}
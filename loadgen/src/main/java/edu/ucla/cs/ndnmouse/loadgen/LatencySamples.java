@@ -0,0 +1,53 @@
+package edu.ucla.cs.ndnmouse.loadgen;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of latency samples (in nanoseconds), sorted once when percentiles are asked for
+ */
+class LatencySamples {
+
+    private long[] mSamples = new long[256];
+    private int mCount;
+    private boolean mSorted = true;
+
+    void add(long nanos) {
+        if (mCount == mSamples.length)
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        mSamples[mCount++] = nanos;
+        mSorted = false;
+    }
+
+    void addAll(LatencySamples other) {
+        for (int i = 0; i < other.mCount; i++)
+            add(other.mSamples[i]);
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return sample at the percentile (nearest rank), or 0 if there are none
+     */
+    long getPercentile(double percentile) {
+        if (0 == mCount)
+            return 0;
+        if (!mSorted) {
+            Arrays.sort(mSamples, 0, mCount);
+            mSorted = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return mSamples[Math.min(mCount, Math.max(1, rank)) - 1];
+    }
+
+    /**
+     * @return summary line in milliseconds
+     */
+    String format() {
+        return String.format("p50 %.2f  p90 %.2f  p99 %.2f  max %.2f ms  (%d samples)",
+                getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+                getPercentile(100) / 1e6, mCount);
+    }
+}
@@ -0,0 +1,392 @@
+package edu.ucla.cs.ndnmouse.loadgen;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.ucla.cs.ndnmouse.helpers.MotionReplay;
+import edu.ucla.cs.ndnmouse.helpers.PacketCipher;
+import edu.ucla.cs.ndnmouse.helpers.ScriptedMotionSource;
+import edu.ucla.cs.ndnmouse.helpers.SessionKeyService;
+import edu.ucla.cs.ndnmouse.utilities.Server;
+import edu.ucla.cs.ndnmouse.utilities.ServerUDP;
+import edu.ucla.cs.ndnmouse.utilities.ServerUDPNio;
+import edu.ucla.cs.ndnmouse.utilities.ServerUDPSecure;
+
+/**
+ * Headless load generator: opens many concurrent UDP client sessions against a ServerUDP or
+ * ServerUDPSecure (e.g. the app on an emulator or phone), keeps them alive with heartbeats, and reports
+ * per-session update rates, latency percentiles and loss. Every session gets its own channel, and a
+ * single selector thread serves all of them, so hundreds of sessions don't need hundreds of threads.
+ *
+ * Against a remote server, movement has to be produced on the server side (touchpad), the clients only
+ * receive it. With --local, the server runs in-process instead, driven by a ScriptedMotionSource that
+ * draws circles or replays a touch log recorded by the app (--replay), and every session also reports
+ * the latency from each scripted input to its update.
+ */
+public class LoadGenerator {
+
+    private final String mHost;
+    private final int mPort;
+    private final int mSessionCount;
+    private final int mDurationSeconds;
+    private final int mHeartbeatMillis;
+    private final String mPassword;             // Null for plain sessions
+    private final byte mVersion;                // Requested protocol version, 0 for a bare OPEN
+    private final String mBindBase;             // First local address to bind to, or null for the wildcard address
+    private final String mLocalServer;          // Server to run in-process (udp or nio), or null for a remote one
+    private final int mInputIntervalMillis;     // Time between scripted input steps of the in-process server
+    private final String mReplayFile;           // Touch log to replay instead of circles, or null
+    private final double mReplaySpeed;          // 1 for the recorded timing, 2 for twice as fast, ...
+    private final int mCoalesceMillis;          // Coalescing window of the in-process server
+    private final int mMinGapMillis;            // Min gap between updates of the in-process server
+
+    private static final byte mMoveRelative = 'M';
+    private static final int mCircleRadius = 100;           // Pixels
+    private static final int mCircleSteps = 60;             // Input steps per circle
+    private static final int mReplayPrecision = 5;          // Same as the app's default setting
+    private static final long mScriptDelayNanos = 2000 * 1000000L;  // Start the script by then, even if not all sessions are open
+
+    private final List<ClientSession> mSessions = new ArrayList<>();
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(PacketCipher.mMaxPacketBytes);   // Reused for every received packet
+    private int mUnreachable;                   // ICMP port unreachable errors (server not listening)
+
+    LoadGenerator(String host, int port, int sessionCount, int durationSeconds, int heartbeatMillis, String password, byte version, String bindBase,
+                  String localServer, int inputIntervalMillis, String replayFile, double replaySpeed, int coalesceMillis, int minGapMillis) {
+        mHost = host;
+        mPort = port;
+        mSessionCount = sessionCount;
+        mDurationSeconds = durationSeconds;
+        mHeartbeatMillis = heartbeatMillis;
+        mPassword = password;
+        mVersion = version;
+        mBindBase = bindBase;
+        mLocalServer = localServer;
+        mInputIntervalMillis = inputIntervalMillis;
+        mReplayFile = replayFile;
+        mReplaySpeed = replaySpeed;
+        mCoalesceMillis = coalesceMillis;
+        mMinGapMillis = minGapMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 10888;
+        int sessions = 100;
+        int duration = 30;
+        int heartbeat = 1000;
+        String password = null;
+        byte version = 0;
+        String bindBase = null;
+        String localServer = null;
+        int inputInterval = 8;
+        String replayFile = null;
+        double replaySpeed = 1;
+        int coalesce = 4;       // Same as the app's default settings
+        int minGap = 8;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length || !arg.startsWith("--")) {
+                printUsage();
+                return;
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--sessions":
+                    sessions = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--heartbeat":
+                    heartbeat = Integer.parseInt(value);
+                    break;
+                case "--password":
+                    password = value;
+                    break;
+                case "--version":
+                    version = Byte.parseByte(value);
+                    break;
+                case "--bind-base":
+                    bindBase = value;
+                    break;
+                case "--local":
+                    if (!"udp".equals(value) && !"nio".equals(value)) {
+                        printUsage();
+                        return;
+                    }
+                    localServer = value;
+                    break;
+                case "--input-interval":
+                    inputInterval = Integer.parseInt(value);
+                    break;
+                case "--replay":
+                    replayFile = value;
+                    break;
+                case "--replay-speed":
+                    replaySpeed = Double.parseDouble(value);
+                    break;
+                case "--coalesce":
+                    coalesce = Integer.parseInt(value);
+                    break;
+                case "--min-gap":
+                    minGap = Integer.parseInt(value);
+                    break;
+                default:
+                    printUsage();
+                    return;
+            }
+        }
+        if ("nio".equals(localServer) && null != password) {
+            System.out.println("The NIO server has no secure mode, use --local udp with --password");
+            return;
+        }
+        if (null == localServer && null != replayFile) {
+            System.out.println("--replay needs an in-process server (--local)");
+            return;
+        }
+        new LoadGenerator(host, port, sessions, duration, heartbeat, password, version, bindBase,
+                localServer, inputInterval, replayFile, replaySpeed, coalesce, minGap).run();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: loadgen [--host 127.0.0.1] [--port 10888] [--sessions 100] [--duration 30]");
+        System.out.println("               [--heartbeat 1000] [--password pw] [--version 0] [--bind-base 127.0.0.2]");
+        System.out.println("               [--local udp|nio] [--input-interval 8] [--replay motion.bin] [--replay-speed 1]");
+        System.out.println("               [--coalesce 4] [--min-gap 8]");
+        System.out.println();
+        System.out.println("  --heartbeat   milliseconds between heartbeats of each session");
+        System.out.println("  --password    use secure sessions with this password (plain otherwise)");
+        System.out.println("  --version     protocol version to request at OPEN (0 sends a bare OPEN like the Python clients)");
+        System.out.println("                (2 = GCM, 3 = binary opcodes, 4 = HKDF session keys, 5 = batches)");
+        System.out.println("  --bind-base   bind session i to this address + i, so every session has its own client address");
+        System.out.println("                (older servers told clients apart by address only; any 127.x.x.x works over loopback)");
+        System.out.println("  --local       start this server in-process on --port (ServerUDPSecure with --password), with a");
+        System.out.println("                scripted touch source, and report the latency from input to update");
+        System.out.println("  --input-interval  milliseconds between the scripted input steps (--local only)");
+        System.out.println("  --replay      replay a touch log recorded by the app instead of drawing circles (--local only)");
+        System.out.println("  --replay-speed    1 for the recorded timing, 2 for twice as fast, ...");
+        System.out.println("  --coalesce, --min-gap  update settings of the in-process server, in milliseconds");
+    }
+
+    void run() throws IOException, GeneralSecurityException, InterruptedException {
+        ScriptedMotionSource script = null;
+        InputTimeline inputs = null;
+        Server localServer = null;
+        if (null != mLocalServer) {
+            script = new ScriptedMotionSource(mMoveRelative);
+            if (null != mReplayFile) {
+                int steps = MotionReplay.load(new FileInputStream(mReplayFile), script, mReplayPrecision, mReplaySpeed);
+                System.out.println("Replaying " + steps + " steps (" + script.getDurationMillis() + " ms) from " + mReplayFile);
+                if (0 == steps)
+                    return;
+            } else {
+                script.addCircle(mCircleRadius, mCircleSteps, mMoveRelative, mInputIntervalMillis);
+            }
+            inputs = new InputTimeline();
+            script.setPlayListener(inputs);
+            localServer = createLocalServer(new LocalHost(script));
+            localServer.start();
+            // Give the server thread time to bind its socket, so the first OPENs aren't lost
+            Thread.sleep(200);
+        }
+
+        InetSocketAddress server = new InetSocketAddress(mHost, mPort);
+        Selector selector = Selector.open();
+        // One key service for all sessions, like the server, so the password is only hashed once
+        SessionKeyService keyService = (null != mPassword) ? new SessionKeyService(mPassword) : null;
+        for (int i = 0; i < mSessionCount; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(getBindAddress(i), 0));
+            channel.connect(server);
+            ClientSession session = new ClientSession(channel, keyService, mVersion, mHeartbeatMillis, inputs);
+            channel.register(selector, SelectionKey.OP_READ, session);
+            mSessions.add(session);
+        }
+
+        System.out.println("Opening " + mSessionCount + (null != mPassword ? " secure" : " plain") + " sessions to " + server + "...");
+        long start = System.nanoTime();
+        long end = start + mDurationSeconds * 1000000000L;
+        for (ClientSession session : mSessions)
+            session.open(start);
+
+        long now = start;
+        boolean scriptStarted = false;
+        while (now < end) {
+            // Script input starts once the sessions are open, so each one knows its movement from the start
+            if (null != script && !scriptStarted && (allOpen() || now - start > mScriptDelayNanos)) {
+                script.start(true);
+                scriptStarted = true;
+            }
+
+            // Sleep until the next packet or the next session timer
+            long next = end;
+            for (ClientSession session : mSessions)
+                next = Math.min(next, session.getTimerNanos());
+            long waitMillis = Math.max(1, (next - now) / 1000000);
+            selector.select(waitMillis);
+
+            now = System.nanoTime();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                receive((DatagramChannel) key.channel(), (ClientSession) key.attachment(), now);
+            }
+            for (ClientSession session : mSessions)
+                session.onTimer(now);
+        }
+
+        now = System.nanoTime();
+        for (ClientSession session : mSessions) {
+            session.close(now);
+        }
+        selector.close();
+        if (null != localServer) {
+            script.stop();
+            localServer.stop();
+        }
+        report(now);
+    }
+
+    /**
+     * @return new in-process server of the chosen kind, not started yet
+     */
+    private Server createLocalServer(LocalHost host) {
+        // Unscaled and not flipped (scrolling is flipped unless inverted), so updates carry the script's own movement
+        if ("nio".equals(mLocalServer))
+            return new ServerUDPNio(host, mPort, 1, true, 1, true, mCoalesceMillis, mMinGapMillis);
+        if (null != mPassword)
+            return new ServerUDPSecure(host, mPort, 1, true, 1, true, mCoalesceMillis, mMinGapMillis, mPassword);
+        return new ServerUDP(host, mPort, 1, true, 1, true, mCoalesceMillis, mMinGapMillis);
+    }
+
+    private boolean allOpen() {
+        for (ClientSession session : mSessions) {
+            if (!session.isOpen())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read every packet waiting on a session's channel
+     */
+    private void receive(DatagramChannel channel, ClientSession session, long nowNanos) throws IOException {
+        while (true) {
+            mReceiveBuffer.clear();
+            int length;
+            try {
+                length = channel.read(mReceiveBuffer);
+            } catch (PortUnreachableException e) {
+                mUnreachable++;
+                return;
+            }
+            if (length <= 0)
+                return;
+            session.onPacket(mReceiveBuffer.array(), length, nowNanos);
+        }
+    }
+
+    /**
+     * @return local address for session i
+     */
+    private InetAddress getBindAddress(int i) throws IOException {
+        if (null == mBindBase)
+            return null;
+        byte[] addr = InetAddress.getByName(mBindBase).getAddress();
+        // Add i to the address, carrying into the higher bytes
+        int carry = i;
+        for (int b = addr.length - 1; b >= 0 && carry > 0; b--) {
+            int sum = (addr[b] & 0xFF) + carry;
+            addr[b] = (byte) sum;
+            carry = sum >> 8;
+        }
+        return InetAddress.getByAddress(addr);
+    }
+
+    /**
+     * Print the results of all sessions
+     */
+    private void report(long nowNanos) {
+        int opened = 0, openRetries = 0, updates = 0, commands = 0, batches = 0, batchedMessages = 0;
+        int heartbeatsSent = 0, heartbeatsLost = 0, seqGaps = 0, badPackets = 0, unmatchedUpdates = 0;
+        double minRate = Double.MAX_VALUE, maxRate = 0, totalRate = 0;
+        LatencySamples openLatency = new LatencySamples();
+        LatencySamples heartbeatLatency = new LatencySamples();
+        LatencySamples updateIntervals = new LatencySamples();
+        LatencySamples inputLatency = new LatencySamples();
+
+        for (ClientSession session : mSessions) {
+            openRetries += session.mOpenRetries;
+            badPackets += session.mBadPackets;
+            double seconds = session.getOpenSeconds(nowNanos);
+            if (0 == seconds)
+                continue;
+            opened++;
+            double rate = session.mUpdates / seconds;
+            minRate = Math.min(minRate, rate);
+            maxRate = Math.max(maxRate, rate);
+            totalRate += rate;
+            updates += session.mUpdates;
+            commands += session.mCommands;
+            batches += session.mBatches;
+            batchedMessages += session.mBatchedMessages;
+            heartbeatsSent += session.mHeartbeatsSent;
+            heartbeatsLost += session.mHeartbeatsLost;
+            seqGaps += session.mSeqGaps;
+            openLatency.addAll(session.mOpenLatency);
+            heartbeatLatency.addAll(session.mHeartbeatLatency);
+            updateIntervals.addAll(session.mUpdateIntervals);
+            inputLatency.addAll(session.mInputLatency);
+            unmatchedUpdates += session.mUnmatchedUpdates;
+        }
+
+        System.out.println();
+        System.out.printf("Sessions:          %d of %d opened (%d OPEN retries), %d s%n", opened, mSessionCount, openRetries, mDurationSeconds);
+        if (0 == opened) {
+            if (mUnreachable > 0)
+                System.out.println("Server port unreachable (" + mUnreachable + " times), is the server running?");
+            return;
+        }
+        System.out.printf("Updates:           %d total, per session %.1f/s avg (min %.1f, max %.1f)%n",
+                updates, totalRate / opened, minRate, maxRate);
+        System.out.printf("Commands:          %d total%n", commands);
+        if (batches > 0)
+            System.out.printf("Batches:           %d packets carrying %d messages%n", batches, batchedMessages);
+        System.out.println("Open latency:      " + openLatency.format());
+        System.out.println("Heartbeat RTT:     " + heartbeatLatency.format());
+        System.out.println("Update interval:   " + updateIntervals.format());
+        if (null != mLocalServer) {
+            System.out.println("Input to update:   " + inputLatency.format());
+            System.out.printf("Unmatched moves:   %d updates (lost or reordered)%n", unmatchedUpdates);
+        }
+        System.out.printf("Unanswered beats:  %d of %d (%.2f%%)%n", heartbeatsLost, heartbeatsSent,
+                0 == heartbeatsSent ? 0.0 : 100.0 * heartbeatsLost / heartbeatsSent);
+        if (null != mPassword) {
+            // Batched messages shared their packet
+            int received = updates + commands + heartbeatLatency.size() - batchedMessages + batches;
+            System.out.printf("Seq num gaps:      %d of %d server packets (%.2f%%)%n", seqGaps, received + seqGaps,
+                    0 == received + seqGaps ? 0.0 : 100.0 * seqGaps / (received + seqGaps));
+        }
+        System.out.printf("Bad packets:       %d%n", badPackets);
+    }
+}
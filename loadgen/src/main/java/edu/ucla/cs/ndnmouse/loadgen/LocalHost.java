@@ -0,0 +1,78 @@
+package edu.ucla.cs.ndnmouse.loadgen;
+
+import java.util.HashMap;
+
+import edu.ucla.cs.ndnmouse.R;
+import edu.ucla.cs.ndnmouse.helpers.MetricsRegistry;
+import edu.ucla.cs.ndnmouse.helpers.MotionAccumulator;
+import edu.ucla.cs.ndnmouse.helpers.MotionDispatcher;
+import edu.ucla.cs.ndnmouse.helpers.NetworkHelpers;
+import edu.ucla.cs.ndnmouse.helpers.ScriptedMotionSource;
+import edu.ucla.cs.ndnmouse.utilities.ServerHost;
+
+/**
+ * Hosts a server inside the load generator in place of the app: movement comes from a scripted
+ * source instead of the touchpad, and the protocol strings are the app's.
+ */
+class LocalHost implements ServerHost {
+
+    private final ScriptedMotionSource mMotion;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final HashMap<Integer, String> mStrings = new HashMap<>();
+
+    LocalHost(ScriptedMotionSource motion) {
+        mMotion = motion;
+        mStrings.put(R.string.protocol_move_scrolling, "S");
+        mStrings.put(R.string.protocol_opening_request, "OPEN");
+        mStrings.put(R.string.protocol_open_ack, "OPEN-ACK");
+        mStrings.put(R.string.protocol_heartbeat_request, "HEART");
+        mStrings.put(R.string.protocol_heartbeat_ack, "BEAT");
+        mStrings.put(R.string.protocol_closing_request, "CLOSE");
+        mStrings.put(R.string.action_custom_type, "T");
+    }
+
+    @Override
+    public void onServerError(String message) {
+        System.err.println("Server error: " + message);
+    }
+
+    @Override
+    public float getRefreshRate() {
+        return 60;
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public byte getMaxSecureProtocolVersion() {
+        return NetworkHelpers.mProtocolVersionBatch;
+    }
+
+    @Override
+    public String getString(int resId) {
+        return mStrings.get(resId);
+    }
+
+    @Override
+    public MotionAccumulator.Cursor newMotionCursor() {
+        return mMotion.newMotionCursor();
+    }
+
+    @Override
+    public void addMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotion.addMotionDispatcher(dispatcher);
+    }
+
+    @Override
+    public void removeMotionDispatcher(MotionDispatcher dispatcher) {
+        mMotion.removeMotionDispatcher(dispatcher);
+    }
+
+    @Override
+    public byte getMoveType() {
+        return mMotion.getMoveType();
+    }
+}
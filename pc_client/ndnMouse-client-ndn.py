@@ -18,6 +18,7 @@ def main(argv):
 	logging_filename = "ndnMouse-log.txt"
 	logging_level = logging.ERROR
 	default_address = "192.168.1.2"
+	seq_names = False
 	
 	def printUsage():
 		print("Usage: ndnMouse-client-udp.py [logging_level_flag]")
@@ -26,11 +27,12 @@ def main(argv):
 		print("  -d  logging level debug")
 		print("  -i  logging level info")
 		print("  -n  logging level none")
+		print("  -s  fetch sequence-numbered updates (/ndnmouse/update/<session>/<seq>)")
 
 	# Parse arguments
 	if len(sys.argv) != 0:
 		try:
-			opts, args = getopt.getopt(argv, "dhin")
+			opts, args = getopt.getopt(argv, "dhins")
 		except getopt.GetoptError:
 			printUsage()
 			sys.exit(2)
@@ -45,6 +47,8 @@ def main(argv):
 				logging_level = logging.INFO
 			elif opt in ('-n'):
 				logging_level = logging.CRITICAL  # critical level never used
+			elif opt in ('-s'):
+				seq_names = True
 
 	# Set logging level based on flag provided (default to error only)
 	logging.basicConfig(filename=logging_filename, level=logging_level)
@@ -68,9 +72,9 @@ def main(argv):
 
 	# Create server and run it
 	if not password:
-		server = ndnMouseClientNDN(server_address)
+		server = ndnMouseClientNDN(server_address, seq_names)
 	else:
-		server = ndnMouseClientNDNSecure(server_address, password)
+		server = ndnMouseClientNDNSecure(server_address, password, seq_names)
 
 	try:
 		server.run()
@@ -95,12 +99,19 @@ class ndnMouseClientNDN():
 	# NDN variables
 	interest_timeout = 50
 	sleep_time = 0.020
+	# Update interests kept outstanding at once (the server holds them until there is movement)
+	pipeline_size = 3
+	update_interest_timeout = 1000
+	# Sequence-numbered updates fetched in parallel (with -s)
+	seq_window = 8
+	session_message_bytes = 13
 
 
-	def __init__(self, addr):
+	def __init__(self, addr, seq_names=False):
 		# Create face to work with NFD
 		self.face = pyndn.face.Face()
 		self.server_address = addr
+		self.seq_names = seq_names
 
 
 	def run(self):
@@ -109,13 +120,8 @@ class ndnMouseClientNDN():
 		logging.info("{0} Use ctrl+c quit at anytime....".format(datetime.now()))
 		logging.info("{0} Routing /ndnmouse interests to Face udp://{1}.".format(datetime.now(), self.server_address))
 
-		# Make interest to get movement data
-		interest_move = pyndn.interest.Interest(pyndn.name.Name("/ndnmouse/update"))
-		interest_move.setInterestLifetimeMilliseconds(self.interest_timeout)
-		interest_move.setMustBeFresh(True)
-
-		# Send interests
-		self.face.expressInterest(interest_move, self._onData, self._onTimeout)
+		# Send interests to get movement data
+		self._expressUpdateInterests()
 		
 		# Loop forever, processing data as it comes back
 		# Additional interests are sent by _onData and _onTimeout callbacks
@@ -128,19 +134,25 @@ class ndnMouseClientNDN():
 		self.face.shutdown()
 
 
+	# Keep several update interests outstanding, each with its own name so NFD doesn't aggregate them
+	def _expressUpdateInterests(self):
+		if self.seq_names:
+			self._startSeqSession()
+			return
+		for i in range(self.pipeline_size):
+			interest_move = pyndn.interest.Interest(pyndn.name.Name("/ndnmouse/update").append(str(i)))
+			interest_move.setInterestLifetimeMilliseconds(self.update_interest_timeout)
+			interest_move.setMustBeFresh(True)
+			self.face.expressInterest(interest_move, self._onData, self._onTimeout)
+
+
 	############################################################################
 	# Interest Callbacks
 	############################################################################
 
 	# Callback for when data is returned for an interest
 	def _onData(self, interest, data):
-		msg = bytes(data.getContent().buf())
-		try:			
-			self._handle(msg)
-			logging.info("{0} Got returned data from {1}: {2}".format(datetime.now(), data.getName().toUri(), msg))
-
-		except UnicodeDecodeError:
-				logging.error("{0} Failed to parse data. Password on server?".format(datetime.now()))
+		self._handleData(data)
 
 		# Resend interest to get move/click data
 		self.face.expressInterest(interest, self._onData, self._onTimeout)
@@ -152,6 +164,94 @@ class ndnMouseClientNDN():
 		# Resend interest to get move/click data
 		self.face.expressInterest(interest, self._onData, self._onTimeout)
 
+
+	# Handle the message in returned data
+	def _handleData(self, data):
+		msg = bytes(data.getContent().buf())
+		try:			
+			self._handle(msg)
+			logging.info("{0} Got returned data from {1}: {2}".format(datetime.now(), data.getName().toUri(), msg))
+
+		except UnicodeDecodeError:
+				logging.error("{0} Failed to parse data. Password on server?".format(datetime.now()))
+
+
+	# Get the message in returned data without handling it (None if it can't be read)
+	def _peekMessage(self, data):
+		return bytes(data.getContent().buf())
+
+
+	############################################################################
+	# Sequence-numbered Updates
+	############################################################################
+
+	# Ask the server for its session and next seq num (servers never use session 0)
+	def _startSeqSession(self):
+		self.session = 0
+		self.next_seq = 0
+		self.seq_buffer = {}
+		self._expressSeqInterest(0)
+
+
+	# Express an interest for one seq-numbered update
+	def _expressSeqInterest(self, seq):
+		name = pyndn.name.Name("/ndnmouse/update")
+		name.append(pyndn.name.Name.Component.fromNumber(self.session))
+		name.appendSequenceNumber(seq)
+		interest = pyndn.interest.Interest(name)
+		interest.setInterestLifetimeMilliseconds(self.update_interest_timeout)
+		# Seq-numbered data never changes, but the session must come from the server itself
+		interest.setMustBeFresh(self.session == 0)
+		self.face.expressInterest(interest, self._onSeqData, self._onSeqTimeout)
+
+
+	# Callback for when data is returned for a seq-numbered update interest
+	def _onSeqData(self, interest, data):
+		name = interest.getName()
+		if name.get(-2).toNumber() != self.session:
+			return	# Left over from an older session
+
+		msg = self._peekMessage(data)
+		if msg is not None and msg.startswith(b"R") and len(msg) == self.session_message_bytes:
+			self._onSessionMessage(msg)
+			return
+
+		# Handle updates in seq num order, holding on to the ones that arrive early
+		seq = name.get(-1).toSequenceNumber()
+		if seq < self.next_seq:
+			return	# Duplicate
+		self.seq_buffer[seq] = data
+		while self.next_seq in self.seq_buffer:
+			self._handleData(self.seq_buffer.pop(self.next_seq))
+			self.next_seq += 1
+			# Keep the window full
+			self._expressSeqInterest(self.next_seq + self.seq_window - 1)
+
+
+	# Callback for when a seq-numbered update interest times out
+	def _onSeqTimeout(self, interest):
+		name = interest.getName()
+		if name.get(-2).toNumber() != self.session:
+			return	# Left over from an older session
+		# Ask again, the server keeps recent updates for retransmission
+		if self.session == 0 or name.get(-1).toSequenceNumber() >= self.next_seq:
+			self.face.expressInterest(interest, self._onSeqData, self._onSeqTimeout)
+
+
+	# Handle a session message: continue at the server's session and next seq num
+	# Format of message:  R<session-4B><next-seq-8B>
+	def _onSessionMessage(self, msg):
+		session = intFromBytes(msg[1:5])
+		next_seq = int.from_bytes(msg[5:13], byteorder="big")
+		if session == self.session and next_seq <= self.next_seq:
+			return	# Already there
+		logging.info("{0} Fetching session {1} from seq num {2}".format(datetime.now(), session, next_seq))
+		self.session = session
+		self.next_seq = next_seq
+		self.seq_buffer = {}
+		for seq in range(next_seq, next_seq + self.seq_window):
+			self._expressSeqInterest(seq)
+
 	
 	############################################################################
 	# Handle Mouse Functions
@@ -172,6 +272,8 @@ class ndnMouseClientNDN():
 			self._handleKeypress(keypress, updown)
 		elif msg.startswith(b"T"):
 			self._handleTypeMessage(msg)
+		elif msg.startswith(b"P"):
+			return self._handleBatch(msg)
 		elif msg.startswith(b"BEAT"):
 			pass  # Ignore, out of order heartbeat response
 		else:
@@ -179,6 +281,22 @@ class ndnMouseClientNDN():
 			return False
 		return True
 
+	# Handle a batch of messages carried by one update, in order
+	# Format of batch:  P<len-1B><msg><len-1B><msg>...
+	#   b"P\x09M\x00\x00\x00\x05\x00\x00\x00\x00\x08C_left_D"	(move 5 right, then press the left button)
+	def _handleBatch(self, batch):
+		i = 1
+		while i < len(batch):
+			length = batch[i]
+			msg = batch[i + 1:i + 1 + length]
+			if length == 0 or len(msg) < length or msg.startswith(b"P"):
+				logging.error("{0} Malformed batch received: {1}".format(datetime.now(), batch))
+				return False
+			if not self._handle(msg):
+				return False
+			i += 1 + length
+		return True
+
 	# Handle click commands
 	def _handleClick(self, click, updown):
 		if updown == "U":	# Up
@@ -268,8 +386,8 @@ class ndnMouseClientNDNSecure(ndnMouseClientNDN):
 	max_seq_num = 2147483647
 
 
-	def __init__(self, addr, password):
-		super().__init__(addr)
+	def __init__(self, addr, password, seq_names=False):
+		super().__init__(addr, seq_names)
 		self.password = password
 		self.rndfile = Random.new()
 		self.seq_num = 0
@@ -291,13 +409,8 @@ class ndnMouseClientNDNSecure(ndnMouseClientNDN):
 			self.face.processEvents()
 			time.sleep(self.sleep_time)
 
-		# Make interest to get movement data
-		interest_move = pyndn.interest.Interest(pyndn.name.Name("/ndnmouse/update"))
-		interest_move.setInterestLifetimeMilliseconds(self.interest_timeout)
-		interest_move.setMustBeFresh(True)
-
 		# Send move and click interests
-		self.face.expressInterest(interest_move, self._onData, self._onTimeout)
+		self._expressUpdateInterests()
 
 		# Loop forever, processing data as it comes back
 		# Additional interests are sent by _onData and _onTimeout callbacks
@@ -314,8 +427,8 @@ class ndnMouseClientNDNSecure(ndnMouseClientNDN):
 	# Interest Callbacks and Helpers
 	############################################################################
 
-	# Callback when data is returned for a general mouse command interest
-	def _onData(self, interest, data):
+	# Handle the encrypted message in returned data
+	def _handleData(self, data):
 		data_bytes = bytes(data.getContent().buf())
 		server_iv = data_bytes[:self.iv_bytes]
 		encrypted = data_bytes[self.iv_bytes:]
@@ -346,16 +459,16 @@ class ndnMouseClientNDNSecure(ndnMouseClientNDN):
 			self.bad_response_count += 1
 			if self.bad_response_count > self.max_bad_responses:
 				self._syncWithServer()
-			
-		# Resend interest to get move/click data
-		self.face.expressInterest(interest, self._onData, self._onTimeout)
-		
 
-	# Callback when timeout for a general mouse command interest
-	def _onTimeout(self, interest):
-		# logging.info("{0} TIMEOUT: {1}".format(datetime.now(), interest.getName().toUri()))
-		# Resend interest to get move/click data
-		self.face.expressInterest(interest, self._onData, self._onTimeout)
+
+	# Decrypt the message in returned data without handling it (None if it can't be decrypted)
+	def _peekMessage(self, data):
+		data_bytes = bytes(data.getContent().buf())
+		try:
+			decrypted = self._decryptData(data_bytes[self.iv_bytes:], data_bytes[:self.iv_bytes])
+			return decrypted[self.seq_num_bytes:]
+		except (UnicodeDecodeError, ValueError):
+			return None
 
 
 	# Send a salt request interest
@@ -484,6 +597,8 @@ class ndnMouseClientNDNSecure(ndnMouseClientNDN):
 			self._handleKeypress(keypress, updown)
 		elif msg.startswith(b"T"):
 			self._handleTypeMessage(msg)
+		elif msg.startswith(b"P"):
+			return self._handleBatch(msg)
 		elif msg.startswith(b"BEAT"):
 			pass  # Ignore, out of order heartbeat response
 		else:
@@ -83,12 +83,14 @@ class ndnMouseClientUDP():
 
 	packet_bytes = 16
 	max_refresh_attempts = 3
+	heartbeat_interval = 5.0	# Seconds between heartbeats, even while updates arrive (server evicts clients silent for 30 s)
 	
 
 	def __init__(self, addr, port):
 		self.server_address = (addr, port)
 		self.bind_address = ('', port)
 		self.refresh_attempts = 0
+		self.next_heartbeat = 0
 
 
 	# Establish connection with server
@@ -106,20 +108,27 @@ class ndnMouseClientUDP():
 					got_timeout = False
 					# Reset refresh attempts (so we go back to heartbeat)
 					self.refresh_attempts = 0
+					self.next_heartbeat = time.monotonic() + self.heartbeat_interval
 					logging.info("{0} Connected to server {1}:{2}.".format(datetime.now(), *server))
 
 			except socket.timeout:
 				continue
 
 
+	# Send a heartbeat without waiting for its ack (the ack is handled like any other message)
+	def _sendHeartbeat(self):
+		message = b"HEART"
+		logging.info("{0} Sending message: {1}".format(datetime.now(), message))
+		self.sock.sendto(message, self.server_address)
+		self.next_heartbeat = time.monotonic() + self.heartbeat_interval
+
+
 	# Send messge to refresh the connection (heartbeat)
 	def _refreshConnection(self):
 		got_timeout = True
 		while got_timeout:
-			message = b"HEART"
-			logging.info("{0} Sending message: {1}".format(datetime.now(), message))
 			try:
-				self.sock.sendto(message, self.server_address)
+				self._sendHeartbeat()
 				msg, server = self.sock.recvfrom(self.packet_bytes)
 				logging.info("{0} Received message: {1}".format(datetime.now(), msg))
 
@@ -163,6 +172,10 @@ class ndnMouseClientUDP():
 			logging.info("{0} Received message: {1}".format(datetime.now(), msg))
 			self._handle(msg)
 
+			# Keep heartbeating while updates arrive, so the server doesn't evict us as silent
+			if time.monotonic() >= self.next_heartbeat:
+				self._sendHeartbeat()
+
 
 	# Shutdown the server
 	def shutdown(self):
@@ -179,7 +192,11 @@ class ndnMouseClientUDP():
 	# General handler
 	# Returns true if message could be handled, otherwise false
 	def _handle(self, msg):
-		if msg.startswith(b"M") or msg.startswith(b"A"):
+		if msg.startswith(b"CLOSE"):
+			# Server has no session for us (e.g. evicted us), so reopen right away (checked before clicks, which also start with C)
+			logging.info("{0} Server lost our session, reopening...".format(datetime.now()))
+			self._openConnection()
+		elif msg.startswith(b"M") or msg.startswith(b"A"):
 			self._handleMove(msg)
 		elif msg.startswith(b"S"):
 			self._handleScroll(msg)
@@ -192,7 +209,7 @@ class ndnMouseClientUDP():
 		elif msg.startswith(b"T"):
 			self._handleTypeMessage(msg)
 		elif msg.startswith(b"BEAT"):
-			pass  # Ignore, out of order heartbeat response
+			pass  # Ignore, heartbeat response (sent while updates were arriving, or out of order)
 		else:
 			logging.error("{0} Bad command received. Password on server?".format(datetime.now()))
 			return False
@@ -282,6 +299,7 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 	aes_block_size = 16
 	packet_bytes = 32
 	max_seq_num = 2147483647
+	session_check_iv_bytes = 6	# Bytes of the session check's IV the server echoes when it has no session for us
 
 
 	def __init__(self, addr, port, password):
@@ -290,6 +308,7 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 		self.key = b""	# To be set when we generate a password salt in _openConnection
 		self.open_key = self._getKeyFromPassword(password)
 		self.rndfile = Random.new()
+		self.session_check = None	# Reopen answer we take for the last session check (None if there is none)
 
 
 	# Establish connection with server
@@ -319,8 +338,10 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 				if decrypted.startswith(b"\x00\x00\x00\x01OPEN-ACK"):
 					# Incrememt the seq num (for this case it will always be 1)
 					self.seq_num = 1
+					self.session_check = None
 					# Reset refresh attempts (so we go back to heartbeat)
 					self.refresh_attempts = 0
+					self.next_heartbeat = time.monotonic() + self.heartbeat_interval
 					# Break out of the loop
 					got_timeout = False
 					logging.info("{0} Connected to server {1}:{2}.".format(datetime.now(), *server))
@@ -330,24 +351,51 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 				continue
 
 
+	# Send a heartbeat without waiting for its ack (the ack is handled like any other message)
+	def _sendHeartbeat(self):
+		# Always increment seq num before sending any message (except opener msg)
+		self.seq_num = self._getNextSeqNum()
+		iv = self._getNewIV()
+
+		# Create message from IV, seq num, and protocol msg
+		message = intToBytes(self.seq_num) + b"HEART"
+		logging.debug(str(datetime.now()).encode() + b" Sending message: " + iv + message)
+		encrypted_message = self._encryptData(message, self.key, iv)
+		encrypted_message_with_iv = iv + encrypted_message
+		self.sock.sendto(encrypted_message_with_iv, self.server_address)
+		self.next_heartbeat = time.monotonic() + self.heartbeat_interval
+
+
+	# Send a heartbeat encrypted with the open key, so a server that lost our session can still check
+	# it came from us. Its answer has to echo this seq num and the start of this IV.
+	def _sendSessionCheck(self):
+		self.seq_num = self._getNextSeqNum()
+		iv = self._getNewIV()
+
+		message = intToBytes(self.seq_num) + b"HEART"
+		logging.debug(str(datetime.now()).encode() + b" Sending session check: " + iv + message)
+		encrypted_message = self._encryptData(message, self.open_key, iv)
+		self.session_check = intToBytes(self.seq_num) + b"CLOSE" + iv[:self.session_check_iv_bytes]
+		self.sock.sendto(iv + encrypted_message, self.server_address)
+
+
 	# Send messge to refresh the connection (heartbeat)
 	def _refreshConnection(self):
 		got_timeout = True
 		while got_timeout:
-			# Always increment seq num before sending any message (except opener msg)
-			self.seq_num = self._getNextSeqNum()
-			iv = self._getNewIV()
-			
-			# Create message from IV, seq num, and protocol msg
-			message = intToBytes(self.seq_num) + b"HEART"
-			logging.debug(str(datetime.now()).encode() + b" Sending message: " + iv + message)
-			encrypted_message = self._encryptData(message, self.key, iv)
-			encrypted_message_with_iv = iv + encrypted_message
 			try:
-				# Send and receive data
-				self.sock.sendto(encrypted_message_with_iv, self.server_address)
+				# Send and receive data (after a missed ack, check the server still has our session first,
+				# so the heartbeat gets the newer seq num and the server's ack moves past both)
+				if self.refresh_attempts > 0:
+					self._sendSessionCheck()
+				self._sendHeartbeat()
 				data, server = self.sock.recvfrom(self.packet_bytes)
 
+				# Server has no session for us (e.g. evicted us), so reopen right away
+				if self._isReopenRequest(data):
+					self._openConnection()
+					return
+
 				# Extract cleartext IV and ciphertext response, then decrypt it
 				server_iv = data[:self.iv_bytes]
 				encrypted = data[self.iv_bytes:]
@@ -358,8 +406,9 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 				if (server_seq_num > self.seq_num or self.seq_num == self.max_seq_num) and decrypted[self.seq_num_bytes:].startswith(b"BEAT"):
 					# Update our seq num to synchronize with server
 					self.seq_num = server_seq_num
-					# Reset refresh attempts
+					# Reset refresh attempts (the server still has our session)
 					self.refresh_attempts = 0
+					self.session_check = None
 					# Break out of the loop
 					got_timeout = False
 					logging.info("{0} Connected to server {1}:{2}.".format(datetime.now(), *server))
@@ -400,6 +449,12 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 
 			logging.debug("{0} Received from server {1}:{2}: {3}".format(datetime.now(), server[0], server[1], data))
 
+			# Server has no session for us (e.g. evicted us), so reopen right away
+			if self._isReopenRequest(data):
+				logging.info("{0} Server lost our session, reopening...".format(datetime.now()))
+				self._openConnection()
+				continue
+
 			# Extract cleartext IV and ciphertext message, then decrypt it
 			server_iv = data[:self.iv_bytes]
 			encrypted = data[self.iv_bytes:]
@@ -412,6 +467,10 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 				msg = decrypted[self.seq_num_bytes:]
 				self._handle(msg)
 
+			# Keep heartbeating while updates arrive, so the server doesn't evict us as silent
+			if time.monotonic() >= self.next_heartbeat:
+				self._sendHeartbeat()
+
 
 	# Shutdown the server
 	def shutdown(self):
@@ -448,6 +507,19 @@ class ndnMouseClientUDPSecure(ndnMouseClientUDP):
 		logging.info(str(datetime.now()).encode() + b" Data RECEIVED: " + decrypted)
 		return decrypted
 
+	# Check if the server answered our last session check saying it has no session for us: CLOSE
+	# with the check's seq num and IV start, encrypted with the open key (the only key we still share
+	# with it). Anything else, such as a replayed answer to an older check, is not a reopen request.
+	def _isReopenRequest(self, data):
+		if self.session_check is None or len(data) != self.packet_bytes:
+			return False
+		cipher = AES.new(self.open_key, AES.MODE_CBC, data[:self.iv_bytes])
+		decrypted = self._PKCS5Unpad(cipher.decrypt(data[self.iv_bytes:]))
+		if decrypted != self.session_check:
+			return False
+		self.session_check = None
+		return True
+
 	# Get a new random initialization vector (IV)
 	def _getNewIV(self):		
 		return self.rndfile.read(self.iv_bytes)